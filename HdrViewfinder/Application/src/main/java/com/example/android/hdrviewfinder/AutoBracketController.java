@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Picks exposure times for the two ends of the HDR burst from the luma histograms of their
+ * frames.
+ *
+ * <p>The shorter exposure is adjusted until its highlights sit just below clipping, and the
+ * longer one until its shadows are lifted off black, so that together they cover the dynamic
+ * range of the scene. Luma is gamma encoded, so the ratio of target to measured luma is raised
+ * to {@link #GAMMA} to get an exposure ratio. Each step is damped and limited, and new
+ * exposures are only proposed every {@link #MIN_UPDATE_INTERVAL_NS} and when they differ by more
+ * than {@link #MIN_CHANGE}, to avoid flooding the camera with new repeating bursts.</p>
+ *
+ * <p>Not thread safe; the processor calls it on its own thread.</p>
+ */
+class AutoBracketController {
+
+    static final long MIN_UPDATE_INTERVAL_NS = 500 * 1000 * 1000L;
+    static final float MIN_CHANGE = 0.1f;
+
+    // Short exposure: this percentile of luma is moved to the target
+    static final float HIGHLIGHT_PERCENTILE = 0.99f;
+    static final int HIGHLIGHT_TARGET = 235;
+    // At or above this the highlights are clipped and their real level unknown
+    static final int CLIPPED_LUMA = LumaHistogram.CLIP_HIGHLIGHT;
+
+    // Long exposure: this percentile of luma is moved to the target
+    static final float SHADOW_PERCENTILE = 0.05f;
+    static final int SHADOW_TARGET = 48;
+
+    static final float GAMMA = 2.2f;
+
+    // Largest exposure change from one histogram, before damping
+    private static final float MAX_STEP = 4.f;
+    // Fraction of the step taken in the log domain
+    private static final float DAMPING = 0.5f;
+
+    private final long mMinExposure;
+    private final long mMaxExposure;
+
+    private long mEvenExposure;
+    private long mOddExposure;
+    private long mTargetEvenExposure;
+    private long mTargetOddExposure;
+    private long mLastUpdateNs;
+    private boolean mUpdated = false;
+
+    AutoBracketController(long minExposure, long maxExposure) {
+        if (minExposure <= 0 || maxExposure < minExposure) {
+            throw new IllegalArgumentException("Invalid exposure range");
+        }
+        mMinExposure = minExposure;
+        mMaxExposure = maxExposure;
+    }
+
+    /**
+     * Set the exposure times the burst is currently using.
+     */
+    void setExposures(long evenExposure, long oddExposure) {
+        mEvenExposure = evenExposure;
+        mOddExposure = oddExposure;
+        mTargetEvenExposure = evenExposure;
+        mTargetOddExposure = oddExposure;
+    }
+
+    long getEvenExposure() {
+        return mEvenExposure;
+    }
+
+    long getOddExposure() {
+        return mOddExposure;
+    }
+
+    /**
+     * Update the target for the exposure of a new histogram.
+     *
+     * @param even whether the histogram is of the even or the odd exposure
+     * @param nowNs current time, for rate limiting
+     * @return true if the even and odd exposures have changed and should be applied
+     */
+    boolean onHistogram(boolean even, LumaHistogram histogram, long nowNs) {
+        if (histogram.getTotal() == 0) return false;
+
+        boolean evenIsShort = mEvenExposure <= mOddExposure;
+        boolean isShort = even == evenIsShort;
+        float ratio;
+        if (isShort) {
+            int highlights = histogram.percentile(HIGHLIGHT_PERCENTILE);
+            ratio = highlights >= CLIPPED_LUMA ?
+                    1 / MAX_STEP : lumaRatio(HIGHLIGHT_TARGET, highlights);
+        } else {
+            ratio = lumaRatio(SHADOW_TARGET, histogram.percentile(SHADOW_PERCENTILE));
+        }
+        float step = (float) Math.pow(Math.max(1 / MAX_STEP, Math.min(ratio, MAX_STEP)),
+                DAMPING);
+
+        long current = even ? mEvenExposure : mOddExposure;
+        long target = clamp((long) (current * step));
+        if (even) {
+            mTargetEvenExposure = target;
+        } else {
+            mTargetOddExposure = target;
+        }
+
+        // Keep the short exposure from overtaking the long one
+        if (evenIsShort) {
+            mTargetEvenExposure = Math.min(mTargetEvenExposure, mTargetOddExposure);
+        } else {
+            mTargetOddExposure = Math.min(mTargetOddExposure, mTargetEvenExposure);
+        }
+
+        if (mUpdated && nowNs - mLastUpdateNs < MIN_UPDATE_INTERVAL_NS) return false;
+        if (!changed(mEvenExposure, mTargetEvenExposure) &&
+                !changed(mOddExposure, mTargetOddExposure)) {
+            return false;
+        }
+        mEvenExposure = mTargetEvenExposure;
+        mOddExposure = mTargetOddExposure;
+        mLastUpdateNs = nowNs;
+        mUpdated = true;
+        return true;
+    }
+
+    /**
+     * Exposure ratio that moves luma value from to luma value to.
+     */
+    private static float lumaRatio(int to, int from) {
+        return (float) Math.pow((float) to / Math.max(from, 1), GAMMA);
+    }
+
+    private long clamp(long exposure) {
+        return Math.max(mMinExposure, Math.min(exposure, mMaxExposure));
+    }
+
+    private static boolean changed(long from, long to) {
+        return Math.abs(to - from) > from * MIN_CHANGE;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Streaming average of an N-exposure bracket, run on the CPU.
+ *
+ * <p>Keeps a ring of N history frames, one slot per exposure of the repeating burst, and a
+ * per-pixel running sum of the ring. Each new frame replaces its exposure's slot and updates
+ * the sum by the difference, so an output costs the same memory traffic for any N instead of
+ * re-reading all N frames:</p>
+ *
+ * <pre>sum += cur - ring[slot]; ring[slot] = cur; out = sum / N</pre>
+ *
+ * <p>A dropped frame just leaves its slot one burst older. History frames are stored like the
+ * RGBA history layout, four bytes per pixel holding Y, U, V and 255; sums are three chars per
+ * pixel. The mergeBracket kernel in hdr_merge.rs does the same for the RenderScript engine.</p>
+ *
+ * <p>The ring keeps this four-byte layout even when the engine's two-frame history uses
+ * {@link HistoryLayout#FORMAT_YUV420}, so bracket mode costs 4 * N bytes per pixel either
+ * way. Every slot is added to the sum of each output pixel, and subsampled slots would
+ * blur chroma across the burst.</p>
+ */
+class BracketAccumulator {
+
+    static final int MIN_BRACKET_SIZE = 2;
+    static final int MAX_BRACKET_SIZE = 7;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBracketSize;
+    private final ForkJoinPool mPool;
+
+    private final byte[][] mRing;
+    private final char[] mSums;
+
+    // Ring and sums hold no frames yet; the next frame fills all slots
+    private boolean mEmpty = true;
+
+    // Per-pass state read by the row workers
+    private YuvFrame mCurrentFrame;
+    private byte[] mOutput;
+    private int mSlot;
+
+    private LumaHistogram.Partials mHistogram;
+
+    // Tone-mapping table for the YUV->RGB conversion, or null for the plain transform
+    private byte[] mToneLut;
+
+    private final RowBands mAccumulateRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            accumulateRows(startY, endY);
+            if (mHistogram != null) {
+                mHistogram.addRows(mCurrentFrame, startY, endY);
+            }
+        }
+    };
+
+    BracketAccumulator(int width, int height, int bracketSize, ForkJoinPool pool) {
+        if (bracketSize < MIN_BRACKET_SIZE || bracketSize > MAX_BRACKET_SIZE) {
+            throw new IllegalArgumentException("Bracket size must be between " +
+                    MIN_BRACKET_SIZE + " and " + MAX_BRACKET_SIZE);
+        }
+        mWidth = width;
+        mHeight = height;
+        mBracketSize = bracketSize;
+        mPool = pool;
+        mRing = new byte[bracketSize][width * height * 4];
+        mSums = new char[width * height * 3];
+    }
+
+    int getBracketSize() {
+        return mBracketSize;
+    }
+
+    /**
+     * Count the luma histogram of the current frame during the pass, or don't if null.
+     */
+    void setHistogram(LumaHistogram.Partials histogram) {
+        mHistogram = histogram;
+    }
+
+    /**
+     * Convert output through a {@link ToneMapper} table, or the plain transform if null.
+     */
+    void setToneLut(byte[] lut) {
+        mToneLut = lut;
+    }
+
+    /**
+     * Forget the ring contents, for when frames have been merged without it. The next frame
+     * then fills every slot.
+     */
+    void reset() {
+        mEmpty = true;
+    }
+
+    /**
+     * Add a frame to the ring, writing the average of the ring as RGBA to output.
+     *
+     * @param slot exposure index of the frame within the burst; reduced modulo the bracket size
+     */
+    void accumulate(YuvFrame cur, int slot, byte[] output) {
+        mCurrentFrame = cur;
+        mOutput = output;
+        mSlot = ((slot % mBracketSize) + mBracketSize) % mBracketSize;
+
+        mAccumulateRows.run(mPool, mHeight);
+        mEmpty = false;
+
+        mCurrentFrame = null;
+        mOutput = null;
+    }
+
+    private void accumulateRows(int startY, int endY) {
+        final YuvFrame cur = mCurrentFrame;
+        final byte[] slot = mRing[mSlot];
+        final char[] sums = mSums;
+        final byte[] out = mOutput;
+        final byte[] toneLut = mToneLut;
+        final int n = mBracketSize;
+        final int round = n / 2;
+
+        for (int y = startY; y < endY; y++) {
+            int offset = y * mWidth * 4;
+            int sum = y * mWidth * 3;
+            for (int x = 0; x < mWidth; x++, offset += 4, sum += 3) {
+                int curY = cur.getY(x, y);
+                int curU = cur.getU(x, y);
+                int curV = cur.getV(x, y);
+
+                int sumY, sumU, sumV;
+                if (mEmpty) {
+                    for (byte[] frame : mRing) {
+                        frame[offset] = (byte) curY;
+                        frame[offset + 1] = (byte) curU;
+                        frame[offset + 2] = (byte) curV;
+                        frame[offset + 3] = (byte) 255;
+                    }
+                    sumY = curY * n;
+                    sumU = curU * n;
+                    sumV = curV * n;
+                } else {
+                    sumY = sums[sum] + curY - (slot[offset] & 0xFF);
+                    sumU = sums[sum + 1] + curU - (slot[offset + 1] & 0xFF);
+                    sumV = sums[sum + 2] + curV - (slot[offset + 2] & 0xFF);
+                    slot[offset] = (byte) curY;
+                    slot[offset + 1] = (byte) curU;
+                    slot[offset + 2] = (byte) curV;
+                }
+                sums[sum] = (char) sumY;
+                sums[sum + 1] = (char) sumU;
+                sums[sum + 2] = (char) sumV;
+
+                HdrMergeKernel.writeRgb(toneLut, out, offset,
+                        (sumY + round) / n, (sumU + round) / n, (sumV + round) / n);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Picks the frame duration of each request of the repeating HDR burst, so that short exposures
+ * run at the fastest rate the output stream allows instead of a fixed one, and long exposures
+ * only hold up their own frame.
+ *
+ * <p>A request's frame duration is its exposure time, but no less than the minimum frame
+ * duration of the output stream and no more than the sensor's maximum frame duration; exposures
+ * are clamped to the maximum frame duration too. The burst repeats every sum of its frame
+ * durations, whatever order the requests are in, and the processor merges every frame with the
+ * ones before it, so one fused output comes per frame. The order therefore doesn't change the
+ * output rate, and the burst keeps its order from the even to the odd exposure, which exposure
+ * pairing relies on.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+class BurstScheduler {
+
+    private final long mMinFrameDuration;
+    private final long mMaxFrameDuration;
+
+    private final long[] mFrameDurations = new long[ViewfinderProcessor.MAX_BRACKET_SIZE];
+    private int mCount = 0;
+    private long mCycleDuration = 0;
+
+    /**
+     * @param minFrameDuration minimum frame duration of the output stream, in ns, or 0 if unknown
+     * @param maxFrameDuration maximum frame duration of the sensor, in ns, or 0 if unknown
+     */
+    BurstScheduler(long minFrameDuration, long maxFrameDuration) {
+        mMinFrameDuration = Math.max(minFrameDuration, 0);
+        mMaxFrameDuration = maxFrameDuration > 0 ? maxFrameDuration : Long.MAX_VALUE;
+    }
+
+    /**
+     * The longest exposure that fits in a frame.
+     */
+    long clampExposure(long exposure) {
+        return Math.min(exposure, mMaxFrameDuration);
+    }
+
+    /**
+     * The shortest legal frame duration for an exposure.
+     */
+    long frameDuration(long exposure) {
+        return Math.min(Math.max(mMinFrameDuration, exposure), mMaxFrameDuration);
+    }
+
+    /**
+     * Schedule a burst of the given exposures, in order.
+     */
+    void schedule(long[] exposures, int count) {
+        if (count < 1 || count > mFrameDurations.length) {
+            throw new IllegalArgumentException("Unsupported burst size: " + count);
+        }
+        long cycle = 0;
+        for (int i = 0; i < count; i++) {
+            mFrameDurations[i] = frameDuration(clampExposure(exposures[i]));
+            cycle += mFrameDurations[i];
+        }
+        mCount = count;
+        mCycleDuration = cycle;
+    }
+
+    /**
+     * Frame duration of request i of the last scheduled burst, in ns.
+     */
+    long getFrameDuration(int i) {
+        if (i < 0 || i >= mCount) {
+            throw new IndexOutOfBoundsException("No request " + i + " in the burst");
+        }
+        return mFrameDurations[i];
+    }
+
+    /**
+     * Time the last scheduled burst takes to repeat, in ns.
+     */
+    long getCycleDuration() {
+        return mCycleDuration;
+    }
+
+    /**
+     * Fused outputs per second the last scheduled burst can give, or 0 if the rate is unbounded
+     * because no durations are known.
+     */
+    float getExpectedOutputRate() {
+        return mCycleDuration > 0 ? mCount * 1e9f / mCycleDuration : 0.f;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Camera backend running the device's camera through camera2.
+ */
+class Camera2Backend implements CameraBackend {
+
+    private final CameraManager mCameraManager;
+
+    private StateCallback mCallback;
+    private Handler mHandler;
+    private CameraDevice mCameraDevice;
+    private CameraCaptureSession mCameraSession;
+    private boolean mClosing = false;
+
+    // Counts opened cameras, so requests built for an earlier one are rebuilt
+    private int mCameraGeneration = 0;
+
+    private final List<CaptureRequest> mCaptureRequests = new ArrayList<>();
+
+    Camera2Backend(CameraManager manager) {
+        if (manager == null) {
+            throw new IllegalArgumentException("Need a valid camera manager");
+        }
+        mCameraManager = manager;
+    }
+
+    @Override
+    public CameraProperties findHdrCamera() throws CameraAccessException {
+        String[] cameraIds = mCameraManager.getCameraIdList();
+        for (String id : cameraIds) {
+            CameraCharacteristics info = mCameraManager.getCameraCharacteristics(id);
+            Integer facing = info.get(CameraCharacteristics.LENS_FACING);
+            Integer level = info.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            boolean hasFullLevel = Objects.equals(level,
+                    CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL);
+
+            int[] capabilities = info
+                    .get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            Integer syncLatency = info.get(CameraCharacteristics.SYNC_MAX_LATENCY);
+            boolean hasManualControl = hasCapability(capabilities,
+                    CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR);
+            boolean hasEnoughCapability = hasManualControl && Objects.equals(syncLatency,
+                    CameraCharacteristics.SYNC_MAX_LATENCY_PER_FRAME_CONTROL);
+
+            // All these are guaranteed by
+            // CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL, but checking
+            // for only the things we care about expands range of devices we can run on.
+            // We want:
+            //  - Back-facing camera
+            //  - Manual sensor control
+            //  - Per-frame synchronization (so that exposure can be changed every frame)
+            if (Objects.equals(facing, CameraCharacteristics.LENS_FACING_BACK) &&
+                    (hasFullLevel || hasEnoughCapability)) {
+                StreamConfigurationMap configs =
+                        info.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                if (configs == null) {
+                    throw new RuntimeException("Cannot get available picture/preview sizes.");
+                }
+                Size[] previewSizes = configs.getOutputSizes(SurfaceHolder.class);
+                long[] minFrameDurations = new long[previewSizes.length];
+                for (int i = 0; i < previewSizes.length; i++) {
+                    minFrameDurations[i] = minFrameDuration(configs, previewSizes[i]);
+                }
+                Long maxFrameDuration =
+                        info.get(CameraCharacteristics.SENSOR_INFO_MAX_FRAME_DURATION);
+                return new CameraProperties(id, previewSizes, minFrameDurations,
+                        configs.getOutputSizes(ImageFormat.YUV_420_888),
+                        info.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE),
+                        maxFrameDuration != null ? maxFrameDuration : 0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Minimum frame duration of a processing input of the given size. The processors read YUV,
+     * so that is used where the size is a YUV output size.
+     */
+    private static long minFrameDuration(StreamConfigurationMap configs, Size size) {
+        try {
+            return configs.getOutputMinFrameDuration(ImageFormat.YUV_420_888, size);
+        } catch (IllegalArgumentException e) {
+            return configs.getOutputMinFrameDuration(SurfaceHolder.class, size);
+        }
+    }
+
+    private static boolean hasCapability(int[] capabilities, int capability) {
+        for (int c : capabilities) {
+            if (c == capability) return true;
+        }
+        return false;
+    }
+
+    @SuppressWarnings("MissingPermission")
+    @Override
+    public void open(String cameraId, StateCallback callback, Handler handler)
+            throws CameraAccessException {
+        if (mCameraDevice != null) {
+            throw new IllegalStateException("Camera already open");
+        }
+        mCallback = callback;
+        mHandler = handler;
+        mClosing = false;
+        mCameraManager.openCamera(cameraId, mCameraDeviceListener, handler);
+    }
+
+    @Override
+    public void createSession(List<Surface> outputs) throws CameraAccessException {
+        mCameraSession = null;
+        mCameraDevice.createCaptureSession(outputs, mCameraSessionListener, mHandler);
+    }
+
+    @Override
+    public void setRepeating(List<FrameRequest> requests, boolean burst,
+            CameraOps.CaptureListener listener, Handler handler) throws CameraAccessException {
+        if (mCameraSession == null) return;
+        CaptureCallbackAdapter callback = new CaptureCallbackAdapter(listener);
+        if (burst) {
+            mCameraSession.setRepeatingBurst(buildRequests(requests), callback, handler);
+        } else {
+            mCameraSession.setRepeatingRequest(buildRequest(requests.get(0)), callback,
+                    handler);
+        }
+    }
+
+    @Override
+    public void captureBurst(List<FrameRequest> requests, CameraOps.CaptureListener listener,
+            Handler handler) throws CameraAccessException {
+        mCameraSession.captureBurst(buildRequests(requests), new CaptureCallbackAdapter(listener),
+                handler);
+    }
+
+    @Override
+    public void close() {
+        mClosing = true;
+        if (mCameraDevice != null) {
+            mCameraDevice.close();
+        }
+        mCameraDevice = null;
+        mCameraSession = null;
+    }
+
+    private List<CaptureRequest> buildRequests(List<FrameRequest> requests)
+            throws CameraAccessException {
+        // The session copies the list, so it can be reused
+        mCaptureRequests.clear();
+        for (int i = 0; i < requests.size(); i++) {
+            mCaptureRequests.add(buildRequest(requests.get(i)));
+        }
+        return mCaptureRequests;
+    }
+
+    /**
+     * Get the CaptureRequest for request, building it if it wasn't built for the open camera.
+     */
+    private CaptureRequest buildRequest(FrameRequest request) throws CameraAccessException {
+        if (request.mCaptureRequest != null &&
+                request.mCaptureRequestCamera == mCameraGeneration) {
+            return request.mCaptureRequest;
+        }
+        CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(
+                request.getTemplate());
+        if (!request.isAutoExposure()) {
+            builder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+            builder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, request.getExposureTime());
+            builder.set(CaptureRequest.SENSOR_SENSITIVITY, request.getSensitivity());
+            if (request.getFrameDuration() > 0) {
+                builder.set(CaptureRequest.SENSOR_FRAME_DURATION, request.getFrameDuration());
+            }
+        }
+        builder.addTarget(request.getTarget());
+        builder.setTag(request);
+        request.mCaptureRequest = builder.build();
+        request.mCaptureRequestCamera = mCameraGeneration;
+        return request.mCaptureRequest;
+    }
+
+    /**
+     * Invoked on the camera thread
+     */
+    private final CameraDevice.StateCallback mCameraDeviceListener =
+            new CameraDevice.StateCallback() {
+
+        @Override
+        public void onOpened(@NonNull CameraDevice camera) {
+            if (mClosing) {
+                // Closed while opening
+                camera.close();
+                return;
+            }
+            mCameraDevice = camera;
+            mCameraGeneration++;
+            mCallback.onOpened();
+        }
+
+        @Override
+        public void onClosed(@NonNull CameraDevice camera) {
+            mCallback.onClosed();
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice camera) {
+            camera.close();
+            mCameraDevice = null;
+            mCallback.onDisconnected();
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice camera, int error) {
+            camera.close();
+            mCameraDevice = null;
+            mCallback.onError(error);
+        }
+    };
+
+    /**
+     * Invoked on the camera thread
+     */
+    private final CameraCaptureSession.StateCallback mCameraSessionListener =
+            new CameraCaptureSession.StateCallback() {
+
+        @Override
+        public void onConfigured(@NonNull CameraCaptureSession session) {
+            mCameraSession = session;
+            mCallback.onConfigured();
+        }
+
+        @Override
+        public void onConfigureFailed(@NonNull CameraCaptureSession session) {
+            mCallback.onConfigureFailed();
+        }
+    };
+
+    /**
+     * Passes camera2 capture callbacks on in terms of the FrameRequests that were submitted
+     */
+    private static class CaptureCallbackAdapter extends CameraCaptureSession.CaptureCallback {
+        private final CameraOps.CaptureListener mListener;
+
+        CaptureCallbackAdapter(CameraOps.CaptureListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                     @NonNull CaptureRequest request,
+                                     long timestamp, long frameNumber) {
+            mListener.onCaptureStarted((FrameRequest) request.getTag(), timestamp, frameNumber);
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+            Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            mListener.onCaptureCompleted((FrameRequest) request.getTag(),
+                    result.getFrameNumber(), timestamp != null ? timestamp : 0,
+                    exposureTime != null ? exposureTime : CameraOps.UNKNOWN_EXPOSURE,
+                    frameDuration != null ? frameDuration : 0,
+                    sensitivity != null ? sensitivity : 0);
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            mListener.onCaptureFailed((FrameRequest) request.getTag());
+        }
+    }
+}
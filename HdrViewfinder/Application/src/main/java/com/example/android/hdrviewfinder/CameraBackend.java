@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.hardware.camera2.CameraAccessException;
+import android.os.Handler;
+import android.view.Surface;
+
+import java.util.List;
+
+/**
+ * Camera run by {@link CameraOps}: the device's camera through camera2, or a simulated one so
+ * the processing pipeline can run without camera hardware.
+ *
+ * <p>Except for {@link #findHdrCamera}, all methods are called on the CameraOps camera thread,
+ * and state callbacks are delivered on the handler given to {@link #open}, which runs on that
+ * same thread.</p>
+ */
+interface CameraBackend {
+
+    /**
+     * Find the first camera fit for an HDR viewfinder: back-facing, with manual sensor control
+     * and per-frame synchronization. May block, so call it off the UI thread.
+     *
+     * @return the camera, or null if there is none
+     */
+    CameraProperties findHdrCamera() throws CameraAccessException;
+
+    /**
+     * Start opening a camera. The callback is notified on handler once it is open or failed.
+     */
+    void open(String cameraId, StateCallback callback, Handler handler)
+            throws CameraAccessException;
+
+    /**
+     * Start configuring a capture session with the given outputs, replacing any previous one.
+     */
+    void createSession(List<Surface> outputs) throws CameraAccessException;
+
+    /**
+     * Replace the repeating request with the given requests, captured in turn if burst is set,
+     * otherwise only the first one.
+     */
+    void setRepeating(List<FrameRequest> requests, boolean burst,
+            CameraOps.CaptureListener listener, Handler handler) throws CameraAccessException;
+
+    /**
+     * Capture the given requests once, ahead of the repeating ones.
+     */
+    void captureBurst(List<FrameRequest> requests, CameraOps.CaptureListener listener,
+            Handler handler) throws CameraAccessException;
+
+    /**
+     * Close the camera, also if it is still opening. The callback is notified with onClosed
+     * once it is closed.
+     */
+    void close();
+
+    /**
+     * Camera and session state changes
+     */
+    interface StateCallback {
+        void onOpened();
+
+        void onClosed();
+
+        void onDisconnected();
+
+        void onError(int error);
+
+        void onConfigured();
+
+        void onConfigureFailed();
+    }
+}
@@ -17,22 +17,27 @@
 package com.example.android.hdrviewfinder;
 
 import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraDevice;
-import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CaptureRequest;
 import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.support.annotation.NonNull;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Simple interface for operating the camera, with major camera operations
  * all performed on a background handler thread.
+ *
+ * <p>The camera itself is a {@link CameraBackend}, normally {@link Camera2Backend}. Requests
+ * and results are {@link FrameRequest}s, which any backend can run.</p>
+ *
+ * <p>Repeating request and burst updates are latest-wins: an update replaces any earlier one
+ * that hasn't been submitted yet, and at most one is submitted per
+ * {@link #REPEATING_UPDATE_INTERVAL}, so rapid updates such as those from a scroll gesture don't
+ * queue up behind each other on the camera thread.</p>
  */
 public class CameraOps {
 
@@ -40,59 +45,92 @@ public class CameraOps {
 
     public static final long CAMERA_CLOSE_TIMEOUT = 2000; // ms
 
-    private final CameraManager mCameraManager;
-    private CameraDevice mCameraDevice;
-    private CameraCaptureSession mCameraSession;
+    public static final long REPEATING_UPDATE_INTERVAL = 33; // ms, one frame at 30 fps
+
+    /**
+     * Exposure time reported when the camera doesn't say
+     */
+    public static final long UNKNOWN_EXPOSURE = -1;
+
+    private final CameraBackend mBackend;
+
+    // Only touched on the camera thread, except that mCameraOpen is checked before notifying
+    // the ready listener. Opening lasts until the backend closes the camera.
+    private boolean mCameraOpening = false;
+    private volatile boolean mCameraOpen = false;
+    private boolean mSessionReady = false;
     private List<Surface> mSurfaces;
 
     private final ConditionVariable mCloseWaiter = new ConditionVariable();
 
-    private HandlerThread mCameraThread;
-    private Handler mCameraHandler;
+    private final HandlerThread mCameraThread;
+    private final Handler mCameraHandler;
 
     private final ErrorDisplayer mErrorDisplayer;
 
     private final CameraReadyListener mReadyListener;
     private final Handler mReadyHandler;
 
+    // Latest repeating request or burst not yet submitted, guarded by mRepeatingLock
+    private final Object mRepeatingLock = new Object();
+    private final List<FrameRequest> mPendingRepeating = new ArrayList<>();
+    private boolean mPendingIsBurst;
+    private CaptureListener mPendingListener;
+    private Handler mPendingHandler;
+    private boolean mRepeatingScheduled = false;
+    private int mCoalescedRepeatingCount = 0;
+
+    // Only touched on the camera thread
+    private final List<FrameRequest> mSubmittingRepeating = new ArrayList<>();
+    private volatile long mLastRepeatingSubmit = 0; // SystemClock.uptimeMillis()
+
     /**
      * Create a new camera ops thread.
      *
+     * @param backend        the camera to operate
      * @param errorDisplayer listener for displaying error messages
      * @param readyListener  listener for notifying when camera is ready for requests
      * @param readyHandler   the handler for calling readyListener methods on
      */
-    CameraOps(CameraManager manager, ErrorDisplayer errorDisplayer,
+    CameraOps(CameraBackend backend, ErrorDisplayer errorDisplayer,
               CameraReadyListener readyListener, Handler readyHandler) {
         mCameraThread = new HandlerThread("CameraOpsThread");
         mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
 
-        if (manager == null || errorDisplayer == null ||
+        if (backend == null || errorDisplayer == null ||
                 readyListener == null || readyHandler == null) {
-            throw new IllegalArgumentException("Need valid displayer, listener, handler");
+            throw new IllegalArgumentException("Need valid backend, displayer, listener, handler");
         }
 
-        mCameraManager = manager;
+        mBackend = backend;
         mErrorDisplayer = errorDisplayer;
         mReadyListener = readyListener;
         mReadyHandler = readyHandler;
     }
 
     /**
-     * Open the first back-facing camera listed by the camera manager.
+     * Find a camera fit for an HDR viewfinder. Blocks, so call off the UI thread.
+     *
+     * @return the camera, or null if there is none
+     */
+    CameraProperties findHdrCamera() throws CameraAccessException {
+        return mBackend.findHdrCamera();
+    }
+
+    /**
+     * Open the given camera.
      * Displays a dialog if it cannot open a camera.
      */
     public void openCamera(final String cameraId) {
-        mCameraHandler = new Handler(mCameraThread.getLooper());
-
         mCameraHandler.post(new Runnable() {
-            @SuppressWarnings("MissingPermission")
             public void run() {
-                if (mCameraDevice != null) {
+                if (mCameraOpening) {
                     throw new IllegalStateException("Camera already open");
                 }
                 try {
-                    mCameraManager.openCamera(cameraId, mCameraDeviceListener, mCameraHandler);
+                    mBackend.open(cameraId, mBackendListener, mCameraHandler);
+                    mCameraOpening = true;
                 } catch (CameraAccessException e) {
                     String errorMessage = mErrorDisplayer.getErrorString(e);
                     mErrorDisplayer.showErrorDialog(errorMessage);
@@ -116,11 +154,22 @@ public class CameraOps {
 
     private Runnable mCloseCameraRunnable = new Runnable() {
         public void run() {
-            if (mCameraDevice != null) {
-                mCameraDevice.close();
+            mCameraHandler.removeCallbacks(mSubmitRepeatingRunnable);
+            synchronized (mRepeatingLock) {
+                mPendingRepeating.clear();
+                mPendingListener = null;
+                mPendingHandler = null;
+                mRepeatingScheduled = false;
             }
-            mCameraDevice = null;
-            mCameraSession = null;
+            if (mCameraOpening) {
+                mBackend.close();
+            } else {
+                // Nothing to wait for
+                mCloseWaiter.open();
+            }
+            mCameraOpening = false;
+            mCameraOpen = false;
+            mSessionReady = false;
             mSurfaces = null;
         }
     };
@@ -138,26 +187,109 @@ public class CameraOps {
     }
 
     /**
-     * Get a request builder for the current camera.
+     * Set a repeating request, replacing any repeating update not yet submitted.
+     */
+    void setRepeatingRequest(FrameRequest request, CaptureListener listener, Handler handler) {
+        synchronized (mRepeatingLock) {
+            replacePendingRepeating(false, listener, handler);
+            mPendingRepeating.add(request);
+        }
+        scheduleRepeating();
+    }
+
+    /**
+     * Set a repeating burst, replacing any repeating update not yet submitted. The requests are
+     * copied, so the list can be reused as soon as this returns.
+     */
+    void setRepeatingBurst(List<FrameRequest> requests, CaptureListener listener,
+                           Handler handler) {
+        synchronized (mRepeatingLock) {
+            replacePendingRepeating(true, listener, handler);
+            mPendingRepeating.addAll(requests);
+        }
+        scheduleRepeating();
+    }
+
+    /**
+     * Get the number of repeating request and burst updates that were replaced by a later one
+     * before they were submitted.
      */
-    public CaptureRequest.Builder createCaptureRequest(int template) throws CameraAccessException {
-        CameraDevice device = mCameraDevice;
-        if (device == null) {
-            throw new IllegalStateException("Can't get requests when no camera is open");
+    public int getCoalescedRepeatingCount() {
+        synchronized (mRepeatingLock) {
+            return mCoalescedRepeatingCount;
         }
-        return device.createCaptureRequest(template);
     }
 
     /**
-     * Set a repeating request.
+     * Drop the pending repeating update, if any, for a new one. Call with mRepeatingLock held.
      */
-    public void setRepeatingRequest(final CaptureRequest request,
-                                    final CameraCaptureSession.CaptureCallback listener,
-                                    final Handler handler) {
+    private void replacePendingRepeating(boolean burst, CaptureListener listener,
+                                         Handler handler) {
+        if (!mPendingRepeating.isEmpty()) {
+            mCoalescedRepeatingCount++;
+            mPendingRepeating.clear();
+        }
+        mPendingIsBurst = burst;
+        mPendingListener = listener;
+        mPendingHandler = handler;
+    }
+
+    /**
+     * Post a submission of the pending repeating update, no sooner than
+     * REPEATING_UPDATE_INTERVAL after the last one, unless one is already posted.
+     */
+    private void scheduleRepeating() {
+        synchronized (mRepeatingLock) {
+            if (mRepeatingScheduled) return;
+            mRepeatingScheduled = true;
+        }
+        long submitTime = Math.max(SystemClock.uptimeMillis(),
+                mLastRepeatingSubmit + REPEATING_UPDATE_INTERVAL);
+        mCameraHandler.postAtTime(mSubmitRepeatingRunnable, submitTime);
+    }
+
+    private Runnable mSubmitRepeatingRunnable = new Runnable() {
+        public void run() {
+            boolean burst;
+            CaptureListener listener;
+            Handler handler;
+            synchronized (mRepeatingLock) {
+                mRepeatingScheduled = false;
+                // Without a session the update stays pending, for onConfigured to submit
+                if (mPendingRepeating.isEmpty() || !mSessionReady) return;
+                mSubmittingRepeating.clear();
+                mSubmittingRepeating.addAll(mPendingRepeating);
+                mPendingRepeating.clear();
+                burst = mPendingIsBurst;
+                listener = mPendingListener;
+                handler = mPendingHandler;
+                mPendingListener = null;
+                mPendingHandler = null;
+            }
+            mLastRepeatingSubmit = SystemClock.uptimeMillis();
+            try {
+                mBackend.setRepeating(mSubmittingRepeating, burst, listener, handler);
+            } catch (CameraAccessException e) {
+                String errorMessage = mErrorDisplayer.getErrorString(e);
+                mErrorDisplayer.showErrorDialog(errorMessage);
+            }
+        }
+    };
+
+    /**
+     * Capture a burst once, alongside any repeating request. If there is no session to capture
+     * with, every request fails.
+     */
+    void captureBurst(final List<FrameRequest> requests, final CaptureListener listener,
+                      final Handler handler) {
         mCameraHandler.post(new Runnable() {
             public void run() {
+                if (!mSessionReady) {
+                    failCaptures(requests, listener, handler);
+                    return;
+                }
                 try {
-                    mCameraSession.setRepeatingRequest(request, listener, handler);
+                    mBackend.captureBurst(requests, listener, handler);
                 } catch (CameraAccessException e) {
                     String errorMessage = mErrorDisplayer.getErrorString(e);
                     mErrorDisplayer.showErrorDialog(errorMessage);
@@ -166,19 +298,12 @@ public class CameraOps {
         });
     }
 
-    /**
-     * Set a repeating request.
-     */
-    public void setRepeatingBurst(final List<CaptureRequest> requests,
-                                  final CameraCaptureSession.CaptureCallback listener,
-                                  final Handler handler) {
-        mCameraHandler.post(new Runnable() {
+    private static void failCaptures(final List<FrameRequest> requests,
+                                     final CaptureListener listener, Handler handler) {
+        handler.post(new Runnable() {
             public void run() {
-                try {
-                    mCameraSession.setRepeatingBurst(requests, listener, handler);
-                } catch (CameraAccessException e) {
-                    String errorMessage = mErrorDisplayer.getErrorString(e);
-                    mErrorDisplayer.showErrorDialog(errorMessage);
+                for (FrameRequest request : requests) {
+                    listener.onCaptureFailed(request);
                 }
             }
         });
@@ -189,83 +314,115 @@ public class CameraOps {
      */
     private void startCameraSession() {
         // Wait until both the camera device is open and the SurfaceView is ready
-        if (mCameraDevice == null || mSurfaces == null) return;
+        if (!mCameraOpen || mSurfaces == null) return;
 
         try {
-            mCameraDevice.createCaptureSession(
-                    mSurfaces, mCameraSessionListener, mCameraHandler);
+            mSessionReady = false;
+            mBackend.createSession(mSurfaces);
         } catch (CameraAccessException e) {
             String errorMessage = mErrorDisplayer.getErrorString(e);
             mErrorDisplayer.showErrorDialog(errorMessage);
-            mCameraDevice.close();
-            mCameraDevice = null;
+            closeAfterFailure();
         }
     }
 
-    /**
-     * Main listener for camera session events
-     * Invoked on mCameraThread
-     */
-    private CameraCaptureSession.StateCallback mCameraSessionListener =
-            new CameraCaptureSession.StateCallback() {
-
-                @Override
-                public void onConfigured(@NonNull CameraCaptureSession session) {
-                    mCameraSession = session;
-                    mReadyHandler.post(new Runnable() {
-                        public void run() {
-                            // This can happen when the screen is turned off and turned back on.
-                            if (null == mCameraDevice) {
-                                return;
-                            }
-
-                            mReadyListener.onCameraReady();
-                        }
-                    });
-
-                }
-
-                @Override
-                public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                    mErrorDisplayer.showErrorDialog("Unable to configure the capture session");
-                    mCameraDevice.close();
-                    mCameraDevice = null;
-                }
-            };
+    private void closeAfterFailure() {
+        mBackend.close();
+        mCameraOpening = false;
+        mCameraOpen = false;
+        mSessionReady = false;
+    }
 
     /**
-     * Main listener for camera device events.
+     * Main listener for camera and session events
      * Invoked on mCameraThread
      */
-    private CameraDevice.StateCallback mCameraDeviceListener = new CameraDevice.StateCallback() {
+    private final CameraBackend.StateCallback mBackendListener = new CameraBackend.StateCallback() {
 
         @Override
-        public void onOpened(@NonNull CameraDevice camera) {
-            mCameraDevice = camera;
+        public void onOpened() {
+            mCameraOpen = true;
             startCameraSession();
         }
 
         @Override
-        public void onClosed(@NonNull CameraDevice camera) {
+        public void onClosed() {
             mCloseWaiter.open();
         }
 
         @Override
-        public void onDisconnected(@NonNull CameraDevice camera) {
+        public void onDisconnected() {
             mErrorDisplayer.showErrorDialog("The camera device has been disconnected.");
-            camera.close();
-            mCameraDevice = null;
+            mCameraOpening = false;
+            mCameraOpen = false;
+            mSessionReady = false;
         }
 
         @Override
-        public void onError(@NonNull CameraDevice camera, int error) {
+        public void onError(int error) {
             mErrorDisplayer.showErrorDialog("The camera encountered an error:" + error);
-            camera.close();
-            mCameraDevice = null;
+            mCameraOpening = false;
+            mCameraOpen = false;
+            mSessionReady = false;
         }
 
+        @Override
+        public void onConfigured() {
+            mSessionReady = true;
+            // Submit a repeating update set before the session was ready
+            scheduleRepeating();
+            mReadyHandler.post(new Runnable() {
+                public void run() {
+                    // This can happen when the screen is turned off and turned back on.
+                    if (!mCameraOpen) {
+                        return;
+                    }
+
+                    mReadyListener.onCameraReady();
+                }
+            });
+        }
+
+        @Override
+        public void onConfigureFailed() {
+            mErrorDisplayer.showErrorDialog("Unable to configure the capture session");
+            closeAfterFailure();
+        }
     };
 
+    /**
+     * Listener for the progress of submitted requests. Methods are called on the handler
+     * given with the requests; by default they do nothing.
+     */
+    public abstract static class CaptureListener {
+        /**
+         * The sensor started exposing request; timestamp is the sensor timestamp of the
+         * frame, which arrives on the request's target after this.
+         */
+        public void onCaptureStarted(FrameRequest request, long timestamp, long frameNumber) {
+        }
+
+        /**
+         * The capture of request finished.
+         *
+         * @param timestamp     sensor timestamp of the frame, as given to onCaptureStarted
+         * @param exposureTime  exposure time the frame was captured with, in ns, or
+         *                      UNKNOWN_EXPOSURE
+         * @param frameDuration frame duration the frame was captured with, in ns, or 0 if
+         *                      unknown
+         * @param sensitivity   ISO sensitivity the frame was captured with, or 0 if unknown
+         */
+        public void onCaptureCompleted(FrameRequest request, long frameNumber, long timestamp,
+                                       long exposureTime, long frameDuration, int sensitivity) {
+        }
+
+        /**
+         * The capture of request failed; no frame will arrive for it.
+         */
+        public void onCaptureFailed(FrameRequest request) {
+        }
+    }
+
     /**
      * Simple listener for main code to know the camera is ready for requests, or failed to
      * start.
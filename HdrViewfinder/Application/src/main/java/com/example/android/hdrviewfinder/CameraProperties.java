@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.util.Range;
+import android.util.Size;
+
+/**
+ * What the viewfinder needs to know about the camera found by
+ * {@link CameraBackend#findHdrCamera()}
+ */
+final class CameraProperties {
+
+    private final String mCameraId;
+    private final Size[] mPreviewSizes;
+    private final long[] mMinFrameDurations;
+    private final Size[] mYuvSizes;
+    private final Range<Long> mExposureRange;
+    private final long mMaxFrameDuration;
+
+    /**
+     * @param previewSizes      output sizes for a SurfaceHolder
+     * @param minFrameDurations minimum frame duration in ns of a processing input stream of
+     *                          each preview size, or 0 where unknown
+     * @param yuvSizes          output sizes for YUV_420_888
+     * @param exposureRange     supported exposure times in ns, or null if unknown
+     * @param maxFrameDuration  longest supported frame duration in ns, or 0 if unknown
+     */
+    CameraProperties(String cameraId, Size[] previewSizes, long[] minFrameDurations,
+            Size[] yuvSizes, Range<Long> exposureRange, long maxFrameDuration) {
+        if (minFrameDurations.length != previewSizes.length) {
+            throw new IllegalArgumentException("Need a minimum frame duration per preview size");
+        }
+        mCameraId = cameraId;
+        mPreviewSizes = previewSizes;
+        mMinFrameDurations = minFrameDurations;
+        mYuvSizes = yuvSizes;
+        mExposureRange = exposureRange;
+        mMaxFrameDuration = maxFrameDuration;
+    }
+
+    String getCameraId() {
+        return mCameraId;
+    }
+
+    Size[] getPreviewSizes() {
+        return mPreviewSizes;
+    }
+
+    /**
+     * Minimum frame duration in ns of a processing input stream of one of the preview sizes, or
+     * 0 if unknown.
+     */
+    long getMinFrameDuration(Size previewSize) {
+        for (int i = 0; i < mPreviewSizes.length; i++) {
+            if (mPreviewSizes[i].equals(previewSize)) return mMinFrameDurations[i];
+        }
+        return 0;
+    }
+
+    long getMaxFrameDuration() {
+        return mMaxFrameDuration;
+    }
+
+    Size[] getYuvSizes() {
+        return mYuvSizes;
+    }
+
+    Range<Long> getExposureRange() {
+        return mExposureRange;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Bounded LRU cache of built capture requests, keyed by quantised exposure time, sensitivity,
+ * frame duration and request tag.
+ *
+ * <p>Exposure times are rounded to {@link #EXPOSURE_STEPS_PER_STOP} steps per stop, finer than
+ * can be seen in the viewfinder, so small changes from a gesture map to a request that was
+ * already built. Callers should build requests with {@link #quantizeExposure} so that a request
+ * matches its key exactly.</p>
+ *
+ * <p>Entries are kept in parallel arrays and looked up by a linear scan, so lookups don't
+ * allocate. Not thread safe.</p>
+ *
+ * @param <T> type of the cached requests; FrameRequest in the app
+ */
+class CaptureRequestCache<T> {
+
+    static final int EXPOSURE_STEPS_PER_STOP = 24;
+
+    // Frame durations are rounded to this many ns
+    static final long FRAME_DURATION_STEP = 1000;
+
+    private final int[] mExposureSteps;
+    private final int[] mSensitivities;
+    private final long[] mFrameDurations;
+    private final Object[] mTags;
+    private final Object[] mRequests;
+    // Access stamp of each entry, 0 if the entry is empty
+    private final long[] mLastUsed;
+    private long mClock = 0;
+
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    CaptureRequestCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mExposureSteps = new int[capacity];
+        mSensitivities = new int[capacity];
+        mFrameDurations = new long[capacity];
+        mTags = new Object[capacity];
+        mRequests = new Object[capacity];
+        mLastUsed = new long[capacity];
+    }
+
+    /**
+     * Round an exposure time in ns to the nearest cache step.
+     */
+    static long quantizeExposure(long exposure) {
+        return Math.round(Math.pow(2, (double) exposureStep(exposure) / EXPOSURE_STEPS_PER_STOP));
+    }
+
+    private static int exposureStep(long exposure) {
+        return (int) Math.round(Math.log(Math.max(exposure, 1)) / Math.log(2) *
+                EXPOSURE_STEPS_PER_STOP);
+    }
+
+    private static long quantizeFrameDuration(long frameDuration) {
+        return (frameDuration + FRAME_DURATION_STEP / 2) / FRAME_DURATION_STEP;
+    }
+
+    /**
+     * Get the request cached for these settings, or null.
+     */
+    @SuppressWarnings("unchecked")
+    T get(long exposure, int sensitivity, long frameDuration, Object tag) {
+        int entry = find(exposureStep(exposure), sensitivity,
+                quantizeFrameDuration(frameDuration), tag);
+        if (entry < 0) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        mLastUsed[entry] = ++mClock;
+        return (T) mRequests[entry];
+    }
+
+    /**
+     * Cache a request for these settings, evicting the least recently used entry if full.
+     */
+    void put(long exposure, int sensitivity, long frameDuration, Object tag, T request) {
+        int step = exposureStep(exposure);
+        long duration = quantizeFrameDuration(frameDuration);
+        int entry = find(step, sensitivity, duration, tag);
+        if (entry < 0) {
+            entry = 0;
+            for (int i = 1; i < mLastUsed.length; i++) {
+                if (mLastUsed[i] < mLastUsed[entry]) entry = i;
+            }
+        }
+        mExposureSteps[entry] = step;
+        mSensitivities[entry] = sensitivity;
+        mFrameDurations[entry] = duration;
+        mTags[entry] = tag;
+        mRequests[entry] = request;
+        mLastUsed[entry] = ++mClock;
+    }
+
+    /**
+     * Drop all entries, for example when the requests' target surfaces change.
+     */
+    void clear() {
+        for (int i = 0; i < mLastUsed.length; i++) {
+            mTags[i] = null;
+            mRequests[i] = null;
+            mLastUsed[i] = 0;
+        }
+    }
+
+    int getHitCount() {
+        return mHitCount;
+    }
+
+    int getMissCount() {
+        return mMissCount;
+    }
+
+    private int find(int step, int sensitivity, long frameDuration, Object tag) {
+        for (int i = 0; i < mLastUsed.length; i++) {
+            if (mLastUsed[i] != 0 && mExposureSteps[i] == step &&
+                    mSensitivities[i] == sensitivity && mFrameDurations[i] == frameDuration &&
+                    mTags[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Ring of the most recent capture results kept in primitive arrays, written by one thread and
+ * read by others without locks or allocation.
+ *
+ * <p>Results are numbered in the order they were added. The writer fills in a slot and then
+ * publishes it by advancing the volatile count, so a reader sees every result below
+ * {@link #getCount()} complete. The writer never waits for readers: once a result is more than
+ * the capacity behind the count its slot is reused, and a reader that was slower than that
+ * finds out with {@link #isOverwritten} after reading.</p>
+ */
+final class CaptureResultRing {
+
+    private final int mMask;
+    private final long[] mFrameNumbers;
+    private final long[] mTimestamps;
+    private final long[] mExposureTimes;
+    private final int[] mKinds;
+
+    private volatile long mCount = 0;
+
+    /**
+     * @param capacity number of results kept, a power of two
+     */
+    CaptureResultRing(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        mMask = capacity - 1;
+        mFrameNumbers = new long[capacity];
+        mTimestamps = new long[capacity];
+        mExposureTimes = new long[capacity];
+        mKinds = new int[capacity];
+    }
+
+    int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Add a result. Only one thread may add results.
+     *
+     * @param timestamp    sensor timestamp of the frame
+     * @param exposureTime exposure time of the frame in ns
+     * @param kind         caller-defined kind of request the frame was captured for
+     */
+    void add(long frameNumber, long timestamp, long exposureTime, int kind) {
+        long count = mCount;
+        int slot = (int) count & mMask;
+        mFrameNumbers[slot] = frameNumber;
+        mTimestamps[slot] = timestamp;
+        mExposureTimes[slot] = exposureTime;
+        mKinds[slot] = kind;
+        mCount = count + 1;
+    }
+
+    /**
+     * Number of results ever added; the newest one is number getCount() - 1.
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Whether result number index has been, or may be being, replaced by a newer one. Check
+     * after reading a result to know whether what was read can be trusted.
+     */
+    boolean isOverwritten(long index) {
+        // The slot of index is rewritten while result index + capacity is being added
+        return index + mMask < mCount;
+    }
+
+    long getFrameNumber(long index) {
+        return mFrameNumbers[(int) index & mMask];
+    }
+
+    long getTimestamp(long index) {
+        return mTimestamps[(int) index & mMask];
+    }
+
+    long getExposureTime(long index) {
+        return mExposureTimes[(int) index & mMask];
+    }
+
+    int getKind(long index) {
+        return mKinds[(int) index & mMask];
+    }
+}
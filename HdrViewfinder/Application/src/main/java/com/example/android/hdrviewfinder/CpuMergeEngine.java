@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merge engine running {@link HdrMergeKernel} on the CPU.
+ *
+ * <p>Camera frames arrive through {@link ImageReader}s, and the merged RGBA frame is copied into
+ * an output Allocation for display.</p>
+ *
+ * <p>Merges run asynchronously on the ForkJoin pool, so the handler thread can latch the next
+ * frame while the current one is being computed. The previous-frame history is double-buffered
+ * and indexed by frame: merge N reads buffer N &amp; 1 and writes buffer (N + 1) &amp; 1, so
+ * the history being read is never written by the same pass. A merge waits for the one before it
+ * to finish before starting.</p>
+ */
+class CpuMergeEngine implements MergeEngine {
+
+    // Enough to keep the camera from stalling while one image is being merged
+    private static final int MAX_INPUT_IMAGES = 3;
+
+    private final ImageReader[] mInputReaders = new ImageReader[2];
+    private final Image[] mCurrentImages = new Image[2];
+    private final long[] mCurrentTimestamps = new long[2];
+    private final Handler mInputHandler;
+
+    private final YuvFrame mCurrentFrame;
+    private final byte[][] mHistoryFrames = new byte[2][];
+    private final byte[] mOutputFrame;
+    private final Allocation mOutputAllocation;
+
+    private final ForkJoinPool mPool;
+    private final HdrMergeKernel mKernel;
+
+    // Index of the next frame to merge, selecting the history buffers it reads and writes
+    private long mFrameIndex = 0;
+
+    // Merge in progress and the image it reads from, owned by the merge until it is done
+    private MergeTask mPendingMerge;
+
+    private volatile boolean mDeghost = false;
+    private volatile boolean mAlign = false;
+    private volatile int mBracketSize = BracketAccumulator.MIN_BRACKET_SIZE;
+    private volatile int mFusionProxyScale = 1;
+    private byte[] mToneLut;
+    private int[] mLocalToneScale;
+    private LinearBlend mLinearBlend;
+
+    private volatile OutputListener mOutputListener;
+    private volatile EncoderFeed mEncoderFeed;
+
+    // Histograms counted by alternate merges, and the last one completed
+    private boolean mHistogramEnabled = false;
+    private int mHistogramExposure = ExposurePairing.EXPOSURE_UNKNOWN;
+    private final LumaHistogram[] mHistograms = new LumaHistogram[2];
+    private LumaHistogram mLatestHistogram;
+
+    /**
+     * @param inputHandler handler to deliver input buffer callbacks on
+     * @param historyFormat one of the HistoryLayout.FORMAT_ constants
+     */
+    CpuMergeEngine(RenderScript rs, Size dimensions, Handler inputHandler, int historyFormat) {
+        int width = dimensions.getWidth();
+        int height = dimensions.getHeight();
+
+        mInputReaders[STREAM_HDR] = ImageReader.newInstance(width, height,
+                ImageFormat.YUV_420_888, MAX_INPUT_IMAGES);
+        mInputReaders[STREAM_NORMAL] = ImageReader.newInstance(width, height,
+                ImageFormat.YUV_420_888, MAX_INPUT_IMAGES);
+        mInputHandler = inputHandler;
+
+        mCurrentFrame = new YuvFrame(width, height);
+        mOutputFrame = new byte[width * height * 4];
+
+        Type.Builder rgbTypeBuilder = new Type.Builder(rs, Element.RGBA_8888(rs));
+        rgbTypeBuilder.setX(width);
+        rgbTypeBuilder.setY(height);
+        mOutputAllocation = Allocation.createTyped(rs, rgbTypeBuilder.create(),
+                Allocation.USAGE_IO_OUTPUT | Allocation.USAGE_SCRIPT);
+
+        mPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        mKernel = new HdrMergeKernel(width, height, mPool);
+        mKernel.setCurrentFrame(mCurrentFrame);
+        mKernel.setHistoryFormat(historyFormat);
+
+        int historySize = mKernel.getHistoryLayout().getBufferSize();
+        mHistoryFrames[0] = new byte[historySize];
+        mHistoryFrames[1] = new byte[historySize];
+    }
+
+    @Override
+    public void setDeghostEnabled(boolean deghost) {
+        mDeghost = deghost;
+    }
+
+    @Override
+    public void setAlignmentEnabled(boolean align) {
+        mAlign = align;
+    }
+
+    @Override
+    public void setBracketSize(int bracketSize) {
+        mBracketSize = bracketSize;
+    }
+
+    @Override
+    public void setFusionProxyScale(int proxyScale) {
+        mFusionProxyScale = proxyScale;
+    }
+
+    @Override
+    public void setToneMap(byte[] lut, int[] localScale) {
+        mToneLut = lut;
+        mLocalToneScale = localScale;
+    }
+
+    @Override
+    public void setLinearBlend(LinearBlend blend) {
+        mLinearBlend = blend;
+    }
+
+    @Override
+    public void release() {
+        finishPendingMerge();
+        for (int stream = 0; stream < mInputReaders.length; stream++) {
+            if (mCurrentImages[stream] != null) {
+                mCurrentImages[stream].close();
+                mCurrentImages[stream] = null;
+            }
+            mInputReaders[stream].close();
+        }
+        mPool.shutdown();
+        mOutputAllocation.destroy();
+    }
+
+    @Override
+    public int getMotionTileCount() {
+        return mKernel.getMotionTiles().getMotionTileCount();
+    }
+
+    @Override
+    public void setOutputListener(OutputListener listener) {
+        mOutputListener = listener;
+    }
+
+    @Override
+    public void setEncoderFeed(EncoderFeed feed) {
+        mEncoderFeed = feed;
+    }
+
+    @Override
+    public void setHistogramEnabled(boolean enabled) {
+        mHistogramEnabled = enabled;
+        if (enabled && mHistograms[0] == null) {
+            mHistograms[0] = new LumaHistogram();
+            mHistograms[1] = new LumaHistogram();
+        }
+    }
+
+    @Override
+    public void setHistogramExposure(int exposure) {
+        mHistogramExposure = exposure;
+    }
+
+    @Override
+    public boolean getHistogram(LumaHistogram out) {
+        if (mLatestHistogram == null) return false;
+        out.copyFrom(mLatestHistogram);
+        mLatestHistogram = null;
+        return true;
+    }
+
+    @Override
+    public Surface getInputSurface(int stream) {
+        return mInputReaders[stream].getSurface();
+    }
+
+    @Override
+    public void setOutputSurface(Surface output) {
+        mOutputAllocation.setSurface(output);
+    }
+
+    @Override
+    public void setInputListener(int stream, final InputListener listener) {
+        mInputReaders[stream].setOnImageAvailableListener(
+                new ImageReader.OnImageAvailableListener() {
+                    @Override
+                    public void onImageAvailable(ImageReader reader) {
+                        listener.onInputAvailable();
+                    }
+                }, mInputHandler);
+    }
+
+    @Override
+    public void receive(int stream) {
+        Image next = mInputReaders[stream].acquireNextImage();
+        if (next == null) return;
+        if (mCurrentImages[stream] != null) {
+            mCurrentImages[stream].close();
+        }
+        mCurrentImages[stream] = next;
+        mCurrentTimestamps[stream] = next.getTimestamp();
+    }
+
+    @Override
+    public long getTimestamp(int stream) {
+        return mCurrentTimestamps[stream];
+    }
+
+    @Override
+    public void merge(int stream, int frameCounter, int cutPointX, int mergeMode,
+                      Object tag) {
+        Image image = mCurrentImages[stream];
+        if (image == null) {
+            OutputListener listener = mOutputListener;
+            if (listener != null) {
+                listener.onOutputDropped(tag);
+            }
+            return;
+        }
+
+        // The merge takes over the image, so receive() won't close it while it is being read
+        mCurrentImages[stream] = null;
+        finishPendingMerge();
+
+        Image.Plane[] planes = image.getPlanes();
+        mCurrentFrame.setPlanes(planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride());
+
+        mKernel.setFrameCounter(frameCounter);
+        mKernel.setCutPointX(cutPointX);
+        mKernel.setMergeMode(mergeMode);
+        mKernel.setDeghostEnabled(mDeghost);
+        mKernel.setAlignmentEnabled(mAlign);
+        mKernel.setBracketSize(mBracketSize);
+        mKernel.setFusionProxyScale(mFusionProxyScale);
+        mKernel.setToneMap(mToneLut, mLocalToneScale);
+        mKernel.setLinearBlend(mLinearBlend);
+        mKernel.setHistoryFrames(mHistoryFrames[(int) (mFrameIndex & 1)],
+                mHistoryFrames[(int) ((mFrameIndex + 1) & 1)]);
+        LumaHistogram histogram = null;
+        if (mHistogramEnabled) {
+            histogram = mHistograms[(int) (mFrameIndex & 1)];
+            histogram.reset(mHistogramExposure);
+        }
+        mKernel.setHistogram(histogram);
+        mFrameIndex++;
+
+        // Run processing pass
+        mPendingMerge = new MergeTask(image, histogram, tag);
+        mPool.execute(mPendingMerge);
+    }
+
+    /**
+     * Wait for the merge in progress, if any, and release its input image.
+     */
+    private void finishPendingMerge() {
+        if (mPendingMerge == null) return;
+        try {
+            mPendingMerge.join();
+            if (mPendingMerge.mHistogram != null) {
+                mLatestHistogram = mPendingMerge.mHistogram;
+            }
+        } finally {
+            mPendingMerge.mImage.close();
+            mPendingMerge = null;
+        }
+    }
+
+    /**
+     * One merge pass, run on the pool; sends the result to the output Surface when done
+     */
+    @SuppressWarnings("serial")
+    private class MergeTask extends RecursiveAction {
+        final Image mImage;
+        final LumaHistogram mHistogram;
+        final Object mTag;
+
+        MergeTask(Image image, LumaHistogram histogram, Object tag) {
+            mImage = image;
+            mHistogram = histogram;
+            mTag = tag;
+        }
+
+        @Override
+        protected void compute() {
+            mKernel.mergeHdrFrames(mOutputFrame);
+            mOutputAllocation.copyFrom(mOutputFrame);
+            // The feed copies the output, which must happen before it is sent
+            EncoderFeed feed = mEncoderFeed;
+            if (feed != null) {
+                feed.offer(mOutputAllocation);
+            }
+            mOutputAllocation.ioSend();
+
+            OutputListener listener = mOutputListener;
+            if (listener != null) {
+                listener.onOutputSent(mTag, SystemClock.elapsedRealtimeNanos());
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends merged output frames to a second Surface, such as a video encoder's input surface,
+ * without holding up the merge.
+ *
+ * <p>Sending a buffer to a Surface can block until its consumer gives one back, so a frame is
+ * copied into the feed's own output allocation on the merge thread, which doesn't block, and
+ * sent from the feed's thread. A frame offered while the previous one is still being sent is
+ * dropped rather than queued: a slow encoder gets fewer frames and the viewfinder isn't
+ * delayed.</p>
+ */
+class EncoderFeed {
+
+    private final int mWidth;
+    private final int mHeight;
+    private final Allocation mAllocation;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Set while a frame is being sent; guards mAllocation against the next copy
+    private final AtomicBoolean mSending = new AtomicBoolean();
+    private boolean mReleased = false;
+
+    // Each written by one thread only
+    private volatile long mSentCount = 0;
+    private volatile long mDroppedCount = 0;
+
+    /**
+     * @param size    size of the merged output
+     * @param surface where to send frames; must accept RGBA_8888 buffers of that size
+     */
+    EncoderFeed(RenderScript rs, Size size, Surface surface) {
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+        Type.Builder rgbTypeBuilder = new Type.Builder(rs, Element.RGBA_8888(rs));
+        rgbTypeBuilder.setX(mWidth);
+        rgbTypeBuilder.setY(mHeight);
+        mAllocation = Allocation.createTyped(rs, rgbTypeBuilder.create(),
+                Allocation.USAGE_IO_OUTPUT | Allocation.USAGE_SCRIPT);
+        mAllocation.setSurface(surface);
+
+        mThread = new HandlerThread("EncoderFeed");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Send a copy of a merged output frame, or drop it if the previous one is still being sent.
+     * Call from the thread the engine merges on.
+     */
+    synchronized void offer(Allocation output) {
+        if (mReleased) return;
+        if (!mSending.compareAndSet(false, true)) {
+            mDroppedCount++;
+            return;
+        }
+        mAllocation.copy2DRangeFrom(0, 0, mWidth, mHeight, output, 0, 0);
+        mHandler.post(mSend);
+    }
+
+    private final Runnable mSend = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mAllocation.ioSend();
+                mSentCount++;
+            } finally {
+                mSending.set(false);
+            }
+        }
+    };
+
+    /**
+     * Number of frames sent to the Surface.
+     */
+    long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * Number of frames dropped because the Surface wasn't ready.
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Stop sending, waiting for a frame being sent, and free the allocation. Frames offered
+     * afterwards are ignored.
+     */
+    void release() {
+        synchronized (this) {
+            mReleased = true;
+        }
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mAllocation.setSurface(null);
+        mAllocation.destroy();
+    }
+}
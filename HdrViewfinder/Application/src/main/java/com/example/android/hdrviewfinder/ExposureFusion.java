@@ -0,0 +1,716 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Two-frame multi-scale exposure fusion (Mertens, Kautz and Van Reeth), run on the CPU.
+ *
+ * <p>Each pixel of the current and previous frame gets a weight from its contrast, saturation
+ * and well-exposedness. With only two frames and normalized weights, blending the Laplacian
+ * pyramids of both frames is the same as adding the weighted Laplacian pyramid of their
+ * difference to the previous frame:</p>
+ *
+ * <pre>out = prev + collapse(G(w) * L(cur - prev))</pre>
+ *
+ * <p>so only one Laplacian pyramid (luma difference) and one Gaussian pyramid (weight of the
+ * current frame) are built. Chroma is quarter resolution in the input, and is blended in a single
+ * scale with the already-smoothed weights of the first pyramid level.</p>
+ *
+ * <p>With a proxy scale of 2 or 4, weights and the pyramid are computed on a box-downsampled
+ * proxy of both frames, and the finest Laplacian band is blended at full resolution with
+ * proxy weights upsampled by a joint bilateral filter guided by the current frame's luma, so
+ * weights don't bleed across edges. Where the proxy weights around a pixel are all but equal
+ * there is no edge to respect, and the range kernel is skipped. This cuts the per-pixel cost of
+ * a large frame to roughly one full-resolution pass.</p>
+ *
+ * <p>All pyramid levels are allocated up front and reused for every frame.
+ * exposure_fusion.rs runs the same steps for the RenderScript engine.</p>
+ */
+class ExposureFusion {
+
+    /**
+     * Smallest dimension allowed for the coarsest pyramid level
+     */
+    private static final int MIN_LEVEL_SIZE = 8;
+    private static final int MAX_LEVELS = 7;
+
+    /**
+     * Keeps flat, unsaturated areas from getting zero weight in both frames
+     */
+    private static final float WEIGHT_EPSILON = 1.f / 255.f;
+
+    /**
+     * Largest proxy scale; proxy weights are computed on a frame 1/scale the size
+     */
+    static final int MAX_PROXY_SCALE = 4;
+
+    /**
+     * Range kernel of the proxy weight upsampling: Gaussian in the luma difference between a
+     * pixel and a proxy sample, floored so that the weights never all vanish. The RenderScript
+     * engine hands the same table to exposure_fusion.rs
+     */
+    static final float RANGE_SIGMA = 16.f;
+    private static final float MIN_RANGE_WEIGHT = 1e-4f;
+    static final float[] RANGE_WEIGHT = new float[256];
+
+    /**
+     * Proxy weights closer than this are interpolated bilinearly: with no edge between the
+     * taps the range kernel can't change the result by more than this, well under a level of
+     * output, and most of a frame skips it. Must match exposure_fusion.rs
+     */
+    private static final float FLAT_WEIGHT = 1.f / 512.f;
+
+    /**
+     * Well-exposedness: Gaussian around mid-gray with sigma 0.2, as in the paper
+     */
+    private static final float[] WELL_EXPOSED = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            WELL_EXPOSED[i] = wellExposed(i / 255.f);
+            RANGE_WEIGHT[i] = Math.max(MIN_RANGE_WEIGHT,
+                    (float) Math.exp(-i * i / (2 * RANGE_SIGMA * RANGE_SIGMA)));
+        }
+    }
+
+    private final ForkJoinPool mPool;
+
+    private final int mWidth;
+    private final int mHeight;
+
+    // log2 of the proxy scale; 0 fuses at full resolution
+    private final int mProxyShift;
+    // Proxy frame: box-averaged luma of both frames and their saturation, null without a proxy
+    private final int[] mProxyCurY;
+    private final int[] mProxyPrevY;
+    private final int[] mProxyCurSaturation;
+    private final int[] mProxyPrevSaturation;
+    // Bilinear proxy taps and weight of the second one for every output column
+    private final int[] mTapX0;
+    private final int[] mTapX1;
+    private final float[] mTapWeightX;
+
+    private final int mLevels;
+    private final int[] mLevelWidth;
+    private final int[] mLevelHeight;
+
+    // Gaussian pyramid of the luma difference cur - prev
+    private final float[][] mDiff;
+    // Gaussian pyramid of the normalized weight of the current frame
+    private final float[][] mWeight;
+    // Collapsed blend for levels 1 and up; level 0 is written straight to the output, except
+    // for a proxy, whose level 0 is upsampled into the output
+    private final float[][] mResult;
+
+    // Per-pass state read by the row workers
+    private YuvFrame mCurrentFrame;
+    private byte[] mPrevFrame;
+    private byte[] mNextPrevFrame;
+    private HistoryLayout mHistoryLayout;
+    private byte[] mOutput;
+    private int mLevel;
+
+    private LumaHistogram.Partials mHistogram;
+
+    // Tone-mapping table for the YUV->RGB conversion, or null for the plain transform
+    private byte[] mToneLut;
+
+    // Well-exposedness by luma
+    private float[] mWellExposed = WELL_EXPOSED;
+
+    private final RowBands mWeightRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            weightRows(startY, endY);
+            if (mHistogram != null) {
+                mHistogram.addRows(mCurrentFrame, startY, endY);
+            }
+        }
+    };
+
+    private final RowBands mProxyRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            proxyRows(startY, endY);
+        }
+    };
+
+    private final RowBands mProxyWeightRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            proxyWeightRows(startY, endY);
+        }
+    };
+
+    private final RowBands mProxyOutputRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            proxyOutputRows(startY, endY);
+            if (mHistogram != null) {
+                mHistogram.addRows(mCurrentFrame, startY, endY);
+            }
+        }
+    };
+
+    private final RowBands mDownsampleRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            downsampleRows(mLevel, startY, endY);
+        }
+    };
+
+    private final RowBands mCollapseRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            collapseRows(mLevel, startY, endY);
+        }
+    };
+
+    private final RowBands mOutputRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            outputRows(startY, endY);
+        }
+    };
+
+    ExposureFusion(int width, int height, ForkJoinPool pool) {
+        this(width, height, 1, pool);
+    }
+
+    /**
+     * @param proxyScale 1 to fuse at full resolution, or 2 or 4 to compute weights on a proxy
+     *                   frame that much smaller
+     */
+    ExposureFusion(int width, int height, int proxyScale, ForkJoinPool pool) {
+        if (proxyScale != 1 && proxyScale != 2 && proxyScale != MAX_PROXY_SCALE) {
+            throw new IllegalArgumentException("Unsupported proxy scale: " + proxyScale);
+        }
+        mProxyShift = Integer.numberOfTrailingZeros(proxyScale);
+        int proxyWidth = (width + proxyScale - 1) >> mProxyShift;
+        int proxyHeight = (height + proxyScale - 1) >> mProxyShift;
+        if (proxyWidth < 2 || proxyHeight < 2) {
+            throw new IllegalArgumentException("Frame too small to fuse");
+        }
+        mPool = pool;
+        mWidth = width;
+        mHeight = height;
+        mHistoryLayout = new HistoryLayout(width, height, HistoryLayout.FORMAT_RGBA);
+        mLevels = levelCount(proxyWidth, proxyHeight);
+
+        mLevelWidth = new int[mLevels];
+        mLevelHeight = new int[mLevels];
+        mDiff = new float[mLevels][];
+        mWeight = new float[mLevels][];
+        mResult = new float[mLevels][];
+        int w = proxyWidth;
+        int h = proxyHeight;
+        for (int l = 0; l < mLevels; l++) {
+            mLevelWidth[l] = w;
+            mLevelHeight[l] = h;
+            mDiff[l] = new float[w * h];
+            mWeight[l] = new float[w * h];
+            if (l > 0 || mProxyShift > 0) {
+                mResult[l] = new float[w * h];
+            }
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+        }
+
+        if (mProxyShift > 0) {
+            int proxySize = proxyWidth * proxyHeight;
+            mProxyCurY = new int[proxySize];
+            mProxyPrevY = new int[proxySize];
+            mProxyCurSaturation = new int[proxySize];
+            mProxyPrevSaturation = new int[proxySize];
+            mTapX0 = new int[width];
+            mTapX1 = new int[width];
+            mTapWeightX = new float[width];
+            for (int x = 0; x < width; x++) {
+                float px = proxyPosition(x, proxyScale);
+                int x0 = (int) Math.floor(px);
+                mTapX0[x] = clamp(x0, proxyWidth);
+                mTapX1[x] = clamp(x0 + 1, proxyWidth);
+                mTapWeightX[x] = px - x0;
+            }
+        } else {
+            mProxyCurY = null;
+            mProxyPrevY = null;
+            mProxyCurSaturation = null;
+            mProxyPrevSaturation = null;
+            mTapX0 = null;
+            mTapX1 = null;
+            mTapWeightX = null;
+        }
+    }
+
+    int getProxyScale() {
+        return 1 << mProxyShift;
+    }
+
+    /**
+     * Set the layout of the previous-frame buffers passed to {@link #fuse}.
+     */
+    void setHistoryLayout(HistoryLayout layout) {
+        mHistoryLayout = layout;
+    }
+
+    /**
+     * Count the luma histogram of the current frame during the weight pass, or don't if null.
+     */
+    void setHistogram(LumaHistogram.Partials histogram) {
+        mHistogram = histogram;
+    }
+
+    /**
+     * Convert output through a {@link ToneMapper} table, or the plain transform if null.
+     */
+    void setToneLut(byte[] lut) {
+        mToneLut = lut;
+    }
+
+    /**
+     * Weigh exposures by a 256-entry well-exposedness table such as
+     * {@link LinearBlend#mWellExposed}, or by the luma as it is if null.
+     */
+    void setWellExposed(float[] table) {
+        mWellExposed = table != null ? table : WELL_EXPOSED;
+    }
+
+    /**
+     * Well-exposedness of a level between 0 and 1. Must match exposure_fusion.rs
+     */
+    static float wellExposed(float level) {
+        float v = level - 0.5f;
+        return (float) Math.exp(-v * v * 12.5f);
+    }
+
+    /**
+     * Number of pyramid levels used for a frame of the given size. Each level is half the size
+     * of the one below it, rounded up.
+     */
+    static int levelCount(int width, int height) {
+        int levels = 1;
+        int w = width;
+        int h = height;
+        while (levels < MAX_LEVELS && Math.min((w + 1) / 2, (h + 1) / 2) >= MIN_LEVEL_SIZE) {
+            w = (w + 1) / 2;
+            h = (h + 1) / 2;
+            levels++;
+        }
+        // Chroma blending needs level 1
+        return Math.max(levels, 2);
+    }
+
+    /**
+     * Fuse the current frame with the previous frame, writing RGBA to output, then store the
+     * current frame into nextPrev. nextPrev may be the same buffer as prev.
+     */
+    void fuse(YuvFrame cur, byte[] prev, byte[] nextPrev, byte[] output) {
+        mCurrentFrame = cur;
+        mPrevFrame = prev;
+        mNextPrevFrame = nextPrev;
+        mOutput = output;
+
+        if (mProxyShift == 0) {
+            mWeightRows.run(mPool, mLevelHeight[0]);
+        } else {
+            mProxyRows.run(mPool, mLevelHeight[0]);
+            mProxyWeightRows.run(mPool, mLevelHeight[0]);
+        }
+
+        for (mLevel = 1; mLevel < mLevels; mLevel++) {
+            mDownsampleRows.run(mPool, mLevelHeight[mLevel]);
+        }
+
+        int top = mLevels - 1;
+        float[] diffTop = mDiff[top];
+        float[] weightTop = mWeight[top];
+        float[] resultTop = mResult[top];
+        for (int i = 0; i < resultTop.length; i++) {
+            resultTop[i] = weightTop[i] * diffTop[i];
+        }
+        // A proxy's level 0 is collapsed too, and upsampled into the output
+        int lastCollapsed = mProxyShift == 0 ? 1 : 0;
+        for (mLevel = top - 1; mLevel >= lastCollapsed; mLevel--) {
+            mCollapseRows.run(mPool, mLevelHeight[mLevel]);
+        }
+
+        if (mProxyShift == 0) {
+            mOutputRows.run(mPool, mLevelHeight[0]);
+        } else {
+            mProxyOutputRows.run(mPool, mHeight);
+        }
+
+        mCurrentFrame = null;
+        mPrevFrame = null;
+        mNextPrevFrame = null;
+        mOutput = null;
+    }
+
+    /**
+     * Level 0: luma difference and normalized weight of the current frame.
+     */
+    private void weightRows(int startY, int endY) {
+        final YuvFrame cur = mCurrentFrame;
+        final byte[] prev = mPrevFrame;
+        final HistoryLayout history = mHistoryLayout;
+        final int width = mLevelWidth[0];
+        final int height = mLevelHeight[0];
+        final float[] diff = mDiff[0];
+        final float[] weight = mWeight[0];
+
+        for (int y = startY; y < endY; y++) {
+            int up = Math.max(y - 1, 0);
+            int down = Math.min(y + 1, height - 1);
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(x - 1, 0);
+                int right = Math.min(x + 1, width - 1);
+                int i = y * width + x;
+
+                int curY = cur.getY(x, y);
+                int curContrast = Math.abs(4 * curY - cur.getY(left, y) - cur.getY(right, y) -
+                        cur.getY(x, up) - cur.getY(x, down));
+                int curSaturation = Math.abs(cur.getU(x, y) - 128) +
+                        Math.abs(cur.getV(x, y) - 128);
+
+                int prevY = prev[history.lumaIndex(x, y)] & 0xFF;
+                int prevContrast = Math.abs(4 * prevY -
+                        (prev[history.lumaIndex(left, y)] & 0xFF) -
+                        (prev[history.lumaIndex(right, y)] & 0xFF) -
+                        (prev[history.lumaIndex(x, up)] & 0xFF) -
+                        (prev[history.lumaIndex(x, down)] & 0xFF));
+                int chroma = history.chromaIndex(x, y);
+                int prevSaturation = Math.abs((prev[chroma] & 0xFF) - 128) +
+                        Math.abs((prev[chroma + 1] & 0xFF) - 128);
+
+                float curWeight = weight(curContrast, curSaturation, curY);
+                float prevWeight = weight(prevContrast, prevSaturation, prevY);
+
+                diff[i] = curY - prevY;
+                weight[i] = curWeight / (curWeight + prevWeight);
+            }
+        }
+    }
+
+    private float weight(int contrast, int saturation, int luma) {
+        return (contrast / 255.f + WEIGHT_EPSILON) *
+                (saturation / 255.f + WEIGHT_EPSILON) * mWellExposed[luma];
+    }
+
+    /**
+     * Proxy frame: box average of the luma of each scale x scale block of both frames, and the
+     * saturation of its top-left chroma sample.
+     */
+    private void proxyRows(int startY, int endY) {
+        final YuvFrame cur = mCurrentFrame;
+        final byte[] prev = mPrevFrame;
+        final HistoryLayout history = mHistoryLayout;
+        final int shift = mProxyShift;
+        final int proxyWidth = mLevelWidth[0];
+
+        final int width = mWidth;
+        final int[] curLuma = mProxyCurY;
+        final int[] prevLuma = mProxyPrevY;
+
+        for (int py = startY; py < endY; py++) {
+            int row = py * proxyWidth;
+            int y0 = py << shift;
+            int y1 = Math.min(y0 + (1 << shift), mHeight);
+
+            // Sum whole rows into the proxy row, reading the frames sequentially
+            Arrays.fill(curLuma, row, row + proxyWidth, 0);
+            Arrays.fill(prevLuma, row, row + proxyWidth, 0);
+            for (int y = y0; y < y1; y++) {
+                for (int x = 0; x < width; x++) {
+                    int i = row + (x >> shift);
+                    curLuma[i] += cur.getY(x, y);
+                    prevLuma[i] += prev[history.lumaIndex(x, y)] & 0xFF;
+                }
+            }
+
+            for (int px = 0; px < proxyWidth; px++) {
+                int x0 = px << shift;
+                int count = (Math.min(x0 + (1 << shift), width) - x0) * (y1 - y0);
+                int i = row + px;
+                curLuma[i] = (curLuma[i] + count / 2) / count;
+                prevLuma[i] = (prevLuma[i] + count / 2) / count;
+
+                int chroma = history.chromaIndex(x0, y0);
+                mProxyCurSaturation[i] = Math.abs(cur.getU(x0, y0) - 128) +
+                        Math.abs(cur.getV(x0, y0) - 128);
+                mProxyPrevSaturation[i] = Math.abs((prev[chroma] & 0xFF) - 128) +
+                        Math.abs((prev[chroma + 1] & 0xFF) - 128);
+            }
+        }
+    }
+
+    /**
+     * Level 0 of a proxy: luma difference and normalized weight, as in weightRows.
+     */
+    private void proxyWeightRows(int startY, int endY) {
+        final int width = mLevelWidth[0];
+        final int height = mLevelHeight[0];
+        final int[] curLuma = mProxyCurY;
+        final int[] prevLuma = mProxyPrevY;
+        final float[] diff = mDiff[0];
+        final float[] weight = mWeight[0];
+
+        for (int y = startY; y < endY; y++) {
+            int up = Math.max(y - 1, 0) * width;
+            int down = Math.min(y + 1, height - 1) * width;
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int left = Math.max(x - 1, 0);
+                int right = Math.min(x + 1, width - 1);
+                int i = row + x;
+
+                int curY = curLuma[i];
+                int curContrast = Math.abs(4 * curY - curLuma[row + left] -
+                        curLuma[row + right] - curLuma[up + x] - curLuma[down + x]);
+                int prevY = prevLuma[i];
+                int prevContrast = Math.abs(4 * prevY - prevLuma[row + left] -
+                        prevLuma[row + right] - prevLuma[up + x] - prevLuma[down + x]);
+
+                float curWeight = weight(curContrast, mProxyCurSaturation[i], curY);
+                float prevWeight = weight(prevContrast, mProxyPrevSaturation[i], prevY);
+
+                diff[i] = curY - prevY;
+                weight[i] = curWeight / (curWeight + prevWeight);
+            }
+        }
+    }
+
+    /**
+     * Build one Gaussian level from the one below with a [1 2 1] x [1 2 1] / 16 tent filter
+     * centered on the even pixels of the finer level.
+     */
+    private void downsampleRows(int level, int startY, int endY) {
+        final int fineWidth = mLevelWidth[level - 1];
+        final int fineHeight = mLevelHeight[level - 1];
+        final float[] fineDiff = mDiff[level - 1];
+        final float[] fineWeight = mWeight[level - 1];
+        final int width = mLevelWidth[level];
+        final float[] diff = mDiff[level];
+        final float[] weight = mWeight[level];
+
+        for (int y = startY; y < endY; y++) {
+            int fy = 2 * y;
+            int rowUp = Math.max(fy - 1, 0) * fineWidth;
+            int rowMid = fy * fineWidth;
+            int rowDown = Math.min(fy + 1, fineHeight - 1) * fineWidth;
+            for (int x = 0; x < width; x++) {
+                int fx = 2 * x;
+                int left = Math.max(fx - 1, 0);
+                int right = Math.min(fx + 1, fineWidth - 1);
+
+                diff[y * width + x] = tent(fineDiff, rowUp, rowMid, rowDown, left, fx, right);
+                weight[y * width + x] = tent(fineWeight, rowUp, rowMid, rowDown, left, fx, right);
+            }
+        }
+    }
+
+    private static float tent(float[] src, int rowUp, int rowMid, int rowDown,
+                              int left, int mid, int right) {
+        return (src[rowUp + left] + 2 * src[rowUp + mid] + src[rowUp + right] +
+                2 * (src[rowMid + left] + 2 * src[rowMid + mid] + src[rowMid + right]) +
+                src[rowDown + left] + 2 * src[rowDown + mid] + src[rowDown + right]) / 16.f;
+    }
+
+    /**
+     * Blend and collapse one level: R(l) = W(l) * (D(l) - up(D(l+1))) + up(R(l+1))
+     */
+    private void collapseRows(int level, int startY, int endY) {
+        final int width = mLevelWidth[level];
+        final float[] diff = mDiff[level];
+        final float[] weight = mWeight[level];
+        final float[] result = mResult[level];
+
+        for (int y = startY; y < endY; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                float laplacian = diff[i] - upsample(mDiff, level + 1, x, y);
+                result[i] = weight[i] * laplacian + upsample(mResult, level + 1, x, y);
+            }
+        }
+    }
+
+    /**
+     * Level 0 collapse, chroma blend, YUV->RGB and history update.
+     */
+    private void outputRows(int startY, int endY) {
+        final YuvFrame cur = mCurrentFrame;
+        final byte[] prev = mPrevFrame;
+        final byte[] next = mNextPrevFrame;
+        final HistoryLayout history = mHistoryLayout;
+        final byte[] out = mOutput;
+        final byte[] toneLut = mToneLut;
+        final int width = mLevelWidth[0];
+        final float[] diff = mDiff[0];
+        final float[] weight = mWeight[0];
+        final int chromaWidth = mLevelWidth[1];
+        final float[] chromaWeight = mWeight[1];
+
+        for (int y = startY; y < endY; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                int offset = i * 4;
+
+                int curY = cur.getY(x, y);
+                int curU = cur.getU(x, y);
+                int curV = cur.getV(x, y);
+                int chroma = history.chromaIndex(x, y);
+                int prevY = prev[history.lumaIndex(x, y)] & 0xFF;
+                int prevU = prev[chroma] & 0xFF;
+                int prevV = prev[chroma + 1] & 0xFF;
+
+                float laplacian = diff[i] - upsample(mDiff, 1, x, y);
+                float fusedY = prevY + weight[i] * laplacian + upsample(mResult, 1, x, y);
+
+                float w = chromaWeight[(y >> 1) * chromaWidth + (x >> 1)];
+                float fusedU = prevU + w * (curU - prevU);
+                float fusedV = prevV + w * (curV - prevV);
+
+                // Store current pixel for next frame
+                history.store(next, x, y, curY, curU, curV);
+
+                HdrMergeKernel.writeRgb(toneLut, out, offset,
+                        toByte(fusedY), toByte(fusedU), toByte(fusedV));
+            }
+        }
+    }
+
+    /**
+     * Full-resolution output from a proxy: the finest band, cur - prev minus the upsampled proxy
+     * difference, is blended with the proxy weight upsampled by a joint bilateral filter over
+     * the 2x2 bilinear taps, with range weights from the current frame's luma. Then chroma
+     * blend, YUV->RGB and history update as in outputRows.
+     */
+    private void proxyOutputRows(int startY, int endY) {
+        final YuvFrame cur = mCurrentFrame;
+        final byte[] prev = mPrevFrame;
+        final byte[] next = mNextPrevFrame;
+        final HistoryLayout history = mHistoryLayout;
+        final byte[] out = mOutput;
+        final byte[] toneLut = mToneLut;
+        final int scale = 1 << mProxyShift;
+        final int proxyWidth = mLevelWidth[0];
+        final int proxyHeight = mLevelHeight[0];
+        final int[] guide = mProxyCurY;
+        final float[] proxyDiff = mDiff[0];
+        final float[] proxyWeight = mWeight[0];
+        final float[] proxyResult = mResult[0];
+        final int[] tapX0 = mTapX0;
+        final int[] tapX1 = mTapX1;
+        final float[] tapWeightX = mTapWeightX;
+
+        for (int y = startY; y < endY; y++) {
+            float py = proxyPosition(y, scale);
+            int y0 = (int) Math.floor(py);
+            float ty = py - y0;
+            int row0 = clamp(y0, proxyHeight) * proxyWidth;
+            int row1 = clamp(y0 + 1, proxyHeight) * proxyWidth;
+            for (int x = 0; x < mWidth; x++) {
+                float tx = tapWeightX[x];
+                int i00 = row0 + tapX0[x];
+                int i01 = row0 + tapX1[x];
+                int i10 = row1 + tapX0[x];
+                int i11 = row1 + tapX1[x];
+                float s00 = (1 - tx) * (1 - ty);
+                float s01 = tx * (1 - ty);
+                float s10 = (1 - tx) * ty;
+                float s11 = tx * ty;
+
+                int curY = cur.getY(x, y);
+                int curU = cur.getU(x, y);
+                int curV = cur.getV(x, y);
+                int chroma = history.chromaIndex(x, y);
+                int prevY = prev[history.lumaIndex(x, y)] & 0xFF;
+                int prevU = prev[chroma] & 0xFF;
+                int prevV = prev[chroma + 1] & 0xFF;
+
+                float w00 = proxyWeight[i00];
+                float w01 = proxyWeight[i01];
+                float w10 = proxyWeight[i10];
+                float w11 = proxyWeight[i11];
+                float w;
+                if (Math.max(Math.max(w00, w01), Math.max(w10, w11)) -
+                        Math.min(Math.min(w00, w01), Math.min(w10, w11)) < FLAT_WEIGHT) {
+                    w = s00 * w00 + s01 * w01 + s10 * w10 + s11 * w11;
+                } else {
+                    float b00 = s00 * RANGE_WEIGHT[Math.abs(curY - guide[i00])];
+                    float b01 = s01 * RANGE_WEIGHT[Math.abs(curY - guide[i01])];
+                    float b10 = s10 * RANGE_WEIGHT[Math.abs(curY - guide[i10])];
+                    float b11 = s11 * RANGE_WEIGHT[Math.abs(curY - guide[i11])];
+                    w = (b00 * w00 + b01 * w01 + b10 * w10 + b11 * w11) /
+                            (b00 + b01 + b10 + b11);
+                }
+
+                float diffUp = s00 * proxyDiff[i00] + s01 * proxyDiff[i01] +
+                        s10 * proxyDiff[i10] + s11 * proxyDiff[i11];
+                float resultUp = s00 * proxyResult[i00] + s01 * proxyResult[i01] +
+                        s10 * proxyResult[i10] + s11 * proxyResult[i11];
+
+                float fusedY = prevY + w * (curY - prevY - diffUp) + resultUp;
+                float fusedU = prevU + w * (curU - prevU);
+                float fusedV = prevV + w * (curV - prevV);
+
+                // Store current pixel for next frame
+                history.store(next, x, y, curY, curU, curV);
+
+                HdrMergeKernel.writeRgb(toneLut, out, (y * mWidth + x) * 4,
+                        toByte(fusedY), toByte(fusedU), toByte(fusedV));
+            }
+        }
+    }
+
+    /**
+     * Position of full-resolution pixel coordinate v in proxy pixel coordinates, where proxy
+     * pixel centers are at integers.
+     */
+    private static float proxyPosition(int v, int scale) {
+        return (v + 0.5f) / scale - 0.5f;
+    }
+
+    private static int clamp(int v, int size) {
+        return v < 0 ? 0 : (v >= size ? size - 1 : v);
+    }
+
+    /**
+     * Bilinear sample of a coarse level at the position of fine pixel (x, y).
+     */
+    private float upsample(float[][] pyramid, int coarseLevel, int x, int y) {
+        final int width = mLevelWidth[coarseLevel];
+        final int height = mLevelHeight[coarseLevel];
+        final float[] coarse = pyramid[coarseLevel];
+
+        int x0 = x >> 1;
+        int y0 = y >> 1;
+        int x1 = (x & 1) != 0 ? Math.min(x0 + 1, width - 1) : x0;
+        int y1 = (y & 1) != 0 ? Math.min(y0 + 1, height - 1) : y0;
+
+        return (coarse[y0 * width + x0] + coarse[y0 * width + x1] +
+                coarse[y1 * width + x0] + coarse[y1 * width + x1]) * 0.25f;
+    }
+
+    private static int toByte(float value) {
+        int v = (int) (value + 0.5f);
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Matches HDR stream buffers to the exposure they were captured with, and decides whether a new
+ * frame and the frame in the history buffer form a true even/odd exposure pair.
+ *
+ * <p>Capture results are recorded by sensor timestamp from the camera callback thread. Buffers
+ * are looked up by their own timestamp, which the camera sets to the sensor timestamp, on the
+ * processing thread. Only the processing thread may call {@link #pair} and
+ * {@link #setHistoryExposure}.</p>
+ */
+class ExposurePairing {
+
+    // Exposures are indexes of the request within the burst; a two-exposure burst alternates
+    // between EXPOSURE_EVEN and EXPOSURE_ODD
+    static final int EXPOSURE_UNKNOWN = -1;
+    static final int EXPOSURE_EVEN = 0;
+    static final int EXPOSURE_ODD = 1;
+
+    // Outcomes of pair()
+    /**
+     * The new frame and the history frame are opposite exposures; merge them
+     */
+    static final int PAIR_MERGE = 0;
+    /**
+     * Not a pair; drop the new frame and keep the history frame for the next one
+     */
+    static final int PAIR_SKIP = 1;
+    /**
+     * Not a pair; show the new frame unmerged and store it as the history frame
+     */
+    static final int PAIR_PASSTHROUGH = 2;
+
+    /**
+     * Frames dropped in a row before falling back to a passthrough, so the display and history
+     * don't go stale if the exposures stop alternating
+     */
+    static final int MAX_CONSECUTIVE_SKIPS = 2;
+
+    // Recent capture results; a buffer is normally looked up within a few frames of its result
+    private static final int RESULT_HISTORY = 16;
+
+    private final long[] mResultTimestamps = new long[RESULT_HISTORY];
+    private final int[] mResultExposures = new int[RESULT_HISTORY];
+    private int mNextResult = 0;
+    private long mNewestResultTimestamp = 0;
+
+    private int mHistoryExposure = EXPOSURE_UNKNOWN;
+    private int mConsecutiveSkips = 0;
+    private volatile int mSkippedPairCount = 0;
+
+    /**
+     * Record the exposure of a completed capture. Called on the camera callback thread.
+     */
+    synchronized void onCaptureResult(long sensorTimestamp, int exposure) {
+        mResultTimestamps[mNextResult] = sensorTimestamp;
+        mResultExposures[mNextResult] = exposure;
+        mNextResult = (mNextResult + 1) % RESULT_HISTORY;
+        mNewestResultTimestamp = Math.max(mNewestResultTimestamp, sensorTimestamp);
+    }
+
+    /**
+     * Get the exposure of the buffer with the given timestamp, or EXPOSURE_UNKNOWN if no result
+     * for it has been recorded.
+     */
+    synchronized int findExposure(long timestamp) {
+        for (int i = 0; i < RESULT_HISTORY; i++) {
+            if (mResultTimestamps[i] == timestamp && timestamp != 0) {
+                return mResultExposures[i];
+            }
+        }
+        return EXPOSURE_UNKNOWN;
+    }
+
+    /**
+     * Whether the capture result for a buffer may still arrive. False once a result for a later
+     * capture has been recorded, in which case the buffer's result was lost.
+     */
+    synchronized boolean isResultPending(long timestamp) {
+        return timestamp > mNewestResultTimestamp;
+    }
+
+    /**
+     * Decide what to do with a new frame of the given exposure, based on the exposure of the
+     * frame in the history buffer.
+     *
+     * @return one of the PAIR_ constants
+     */
+    int pair(int exposure) {
+        if (exposure != EXPOSURE_UNKNOWN && mHistoryExposure != EXPOSURE_UNKNOWN) {
+            if (exposure != mHistoryExposure) {
+                mConsecutiveSkips = 0;
+                return PAIR_MERGE;
+            }
+            mSkippedPairCount++;
+            if (mConsecutiveSkips < MAX_CONSECUTIVE_SKIPS) {
+                mConsecutiveSkips++;
+                return PAIR_SKIP;
+            }
+        }
+        // Nothing known to pair with; start over from this frame
+        mConsecutiveSkips = 0;
+        return PAIR_PASSTHROUGH;
+    }
+
+    /**
+     * Set the exposure of the frame now stored in the history buffer, EXPOSURE_UNKNOWN if it is
+     * not a tagged HDR frame.
+     */
+    void setHistoryExposure(int exposure) {
+        mHistoryExposure = exposure;
+    }
+
+    /**
+     * Number of frames not merged because the history frame had the same exposure.
+     */
+    int getSkippedPairCount() {
+        return mSkippedPairCount;
+    }
+}
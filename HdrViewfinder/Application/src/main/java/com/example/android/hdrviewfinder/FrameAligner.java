@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Estimates the global translation between consecutive frames, so that merges can sample the
+ * history frame where the current frame's content moved to.
+ *
+ * <p>Frames of an HDR burst have different exposures, so they are compared as median threshold
+ * bitmaps (Ward, 2003): each pixel is one bit, set if it is brighter than the median of its
+ * frame, which doesn't depend on the exposure. Pixels within {@link #EXCLUSION} of the median
+ * are noisy and left out. Bitmaps are packed 64 pixels to a long so a candidate offset costs a
+ * few XORs and bit counts per row.</p>
+ *
+ * <p>Alignment runs on a pyramid of {@link #LEVELS} levels only, starting at half resolution:
+ * every offset within {@link #SEARCH_RADIUS} is tried on the coarsest level, then refined by
+ * one pixel on each finer level. The result is in full-resolution pixels and even, covering up
+ * to 30 pixels of shake. Each frame's pyramid is kept as the reference for the next one.</p>
+ *
+ * <p>Not thread safe; the base level may be filled by any thread before {@link #align} is
+ * called.</p>
+ */
+class FrameAligner {
+
+    static final int LEVELS = 3;
+    static final int SEARCH_RADIUS = 3;
+    static final int EXCLUSION = 4;
+
+    private final int[] mWidths = new int[LEVELS];
+    private final int[] mHeights = new int[LEVELS];
+    private final int[] mWords = new int[LEVELS];
+
+    // Luma of each level of the current frame; level 0 is half resolution
+    private final byte[][] mLevels = new byte[LEVELS][];
+    // Median threshold and validity bitmaps, rows of mWords[level] longs, for the current frame
+    // and the reference frame
+    private long[][] mBits = new long[LEVELS][];
+    private long[][] mValid = new long[LEVELS][];
+    private long[][] mReferenceBits = new long[LEVELS][];
+    private long[][] mReferenceValid = new long[LEVELS][];
+    private boolean mHasReference = false;
+
+    private final int[] mHistogram = new int[256];
+
+    private int mOffsetX = 0;
+    private int mOffsetY = 0;
+
+    private YuvFrame mFrame;
+    private final RowBands mDownsampleRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            downsampleRows(startY, endY);
+        }
+    };
+
+    FrameAligner(int width, int height) {
+        int levelWidth = width / 2;
+        int levelHeight = height / 2;
+        for (int level = 0; level < LEVELS; level++) {
+            if (levelWidth < 1 || levelHeight < 1) {
+                throw new IllegalArgumentException("Frame too small to align");
+            }
+            mWidths[level] = levelWidth;
+            mHeights[level] = levelHeight;
+            mWords[level] = (levelWidth + 63) / 64;
+            mLevels[level] = new byte[levelWidth * levelHeight];
+            int bitmapSize = mWords[level] * levelHeight;
+            mBits[level] = new long[bitmapSize];
+            mValid[level] = new long[bitmapSize];
+            mReferenceBits[level] = new long[bitmapSize];
+            mReferenceValid[level] = new long[bitmapSize];
+            levelWidth /= 2;
+            levelHeight /= 2;
+        }
+    }
+
+    int getBaseWidth() {
+        return mWidths[0];
+    }
+
+    int getBaseHeight() {
+        return mHeights[0];
+    }
+
+    /**
+     * Buffer for the half-resolution luma of the next frame, each pixel the rounded mean of a
+     * 2x2 block, as downsampleLuma in hdr_merge.rs writes it.
+     */
+    byte[] getBaseLevel() {
+        return mLevels[0];
+    }
+
+    /**
+     * Fill the base level from the luma of frame.
+     */
+    void downsample(YuvFrame frame, ForkJoinPool pool) {
+        mFrame = frame;
+        mDownsampleRows.run(pool, mHeights[0]);
+        mFrame = null;
+    }
+
+    private void downsampleRows(int startY, int endY) {
+        final YuvFrame frame = mFrame;
+        final byte[] base = mLevels[0];
+        final int width = mWidths[0];
+        for (int y = startY; y < endY; y++) {
+            for (int x = 0; x < width; x++) {
+                int sum = frame.getY(2 * x, 2 * y) + frame.getY(2 * x + 1, 2 * y) +
+                        frame.getY(2 * x, 2 * y + 1) + frame.getY(2 * x + 1, 2 * y + 1);
+                base[y * width + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+    }
+
+    /**
+     * Estimate the offset of the reference frame from the frame in the base level, then make
+     * that frame the reference. The offset is 0 if there is no reference yet.
+     */
+    void align() {
+        for (int level = 1; level < LEVELS; level++) {
+            halve(level);
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            threshold(level);
+        }
+
+        int offsetX = 0;
+        int offsetY = 0;
+        if (mHasReference) {
+            int radius = SEARCH_RADIUS;
+            for (int level = LEVELS - 1; level >= 0; level--) {
+                long bestCost = Long.MAX_VALUE;
+                int bestX = 0;
+                int bestY = 0;
+                for (int dy = offsetY - radius; dy <= offsetY + radius; dy++) {
+                    for (int dx = offsetX - radius; dx <= offsetX + radius; dx++) {
+                        long cost = cost(level, dx, dy);
+                        // Ties go to the smaller offset
+                        if (cost < bestCost || (cost == bestCost &&
+                                Math.abs(dx) + Math.abs(dy) < Math.abs(bestX) + Math.abs(bestY))) {
+                            bestCost = cost;
+                            bestX = dx;
+                            bestY = dy;
+                        }
+                    }
+                }
+                offsetX = bestX;
+                offsetY = bestY;
+                if (level > 0) {
+                    offsetX *= 2;
+                    offsetY *= 2;
+                    radius = 1;
+                }
+            }
+        }
+        // Base level pixels are two full-resolution ones
+        mOffsetX = offsetX * 2;
+        mOffsetY = offsetY * 2;
+
+        long[][] bits = mReferenceBits;
+        mReferenceBits = mBits;
+        mBits = bits;
+        long[][] valid = mReferenceValid;
+        mReferenceValid = mValid;
+        mValid = valid;
+        mHasReference = true;
+    }
+
+    /**
+     * Forget the reference frame, for when the history is no longer the previous aligned frame.
+     */
+    void reset() {
+        mHasReference = false;
+        mOffsetX = 0;
+        mOffsetY = 0;
+    }
+
+    /**
+     * Horizontal offset in full-resolution pixels: the reference pixel matching pixel (x, y) of
+     * the frame is at (x + getOffsetX(), y + getOffsetY()).
+     */
+    int getOffsetX() {
+        return mOffsetX;
+    }
+
+    int getOffsetY() {
+        return mOffsetY;
+    }
+
+    private void halve(int level) {
+        final byte[] src = mLevels[level - 1];
+        final byte[] dst = mLevels[level];
+        final int srcWidth = mWidths[level - 1];
+        final int width = mWidths[level];
+        final int height = mHeights[level];
+        for (int y = 0; y < height; y++) {
+            int row = 2 * y * srcWidth;
+            for (int x = 0; x < width; x++) {
+                int i = row + 2 * x;
+                int sum = (src[i] & 0xFF) + (src[i + 1] & 0xFF) + (src[i + srcWidth] & 0xFF) +
+                        (src[i + srcWidth + 1] & 0xFF);
+                dst[y * width + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+    }
+
+    private void threshold(int level) {
+        final byte[] luma = mLevels[level];
+        final int width = mWidths[level];
+        final int height = mHeights[level];
+        final int words = mWords[level];
+        final long[] bits = mBits[level];
+        final long[] valid = mValid[level];
+
+        int[] histogram = mHistogram;
+        Arrays.fill(histogram, 0);
+        for (int i = 0; i < width * height; i++) {
+            histogram[luma[i] & 0xFF]++;
+        }
+        int median = 0;
+        for (int count = 0; median < 255; median++) {
+            count += histogram[median];
+            if (2 * count >= width * height) break;
+        }
+
+        for (int y = 0; y < height; y++) {
+            for (int w = 0; w < words; w++) {
+                long wordBits = 0;
+                long wordValid = 0;
+                int end = Math.min(64, width - w * 64);
+                for (int b = 0; b < end; b++) {
+                    int value = luma[y * width + w * 64 + b] & 0xFF;
+                    if (value > median) wordBits |= 1L << b;
+                    if (Math.abs(value - median) > EXCLUSION) wordValid |= 1L << b;
+                }
+                bits[y * words + w] = wordBits;
+                valid[y * words + w] = wordValid;
+            }
+        }
+    }
+
+    /**
+     * Number of valid pixels that differ between the frame and the reference shifted by
+     * (dx, dy) at the given level.
+     */
+    private long cost(int level, int dx, int dy) {
+        final int height = mHeights[level];
+        final int words = mWords[level];
+        final long[] bits = mBits[level];
+        final long[] valid = mValid[level];
+        final long[] refBits = mReferenceBits[level];
+        final long[] refValid = mReferenceValid[level];
+
+        long cost = 0;
+        int startY = Math.max(0, -dy);
+        int endY = Math.min(height, height - dy);
+        for (int y = startY; y < endY; y++) {
+            int row = y * words;
+            int refRow = (y + dy) * words;
+            for (int w = 0; w < words; w++) {
+                long mask = valid[row + w] & extract(refValid, refRow, words, w * 64 + dx);
+                if (mask == 0) continue;
+                long diff = bits[row + w] ^ extract(refBits, refRow, words, w * 64 + dx);
+                cost += Long.bitCount(diff & mask);
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * The 64 bits of a row starting at bit position, with bits outside the row 0.
+     */
+    private static long extract(long[] bitmap, int row, int words, int position) {
+        int word = position >> 6;
+        int shift = position & 63;
+        long low = word >= 0 && word < words ? bitmap[row + word] : 0;
+        if (shift == 0) return low;
+        long high = word + 1 >= 0 && word + 1 < words ? bitmap[row + word + 1] : 0;
+        return (low >>> shift) | (high << (64 - shift));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the ring files of {@link FrameMetadataRecorder} and exports them as CSV. Uses only the
+ * JVM class library, so it also runs on a desktop:
+ *
+ * <pre>
+ * adb pull /sdcard/Android/data/com.example.android.hdrviewfinder/files/frame_metadata.bin
+ * java -cp classes com.example.android.hdrviewfinder.FrameMetadataReader frame_metadata.bin
+ * </pre>
+ */
+final class FrameMetadataReader {
+
+    static final String CSV_HEADER = "frame_number,timestamp_ns,exposure_ns," +
+            "frame_duration_ns,sensitivity,tag,latency_ns";
+
+    private FrameMetadataReader() {
+    }
+
+    /**
+     * One record of the file; fields that the record type doesn't have are 0.
+     */
+    static final class Record {
+        int type;
+        int tag;
+        long frameNumber;
+        long timestamp;
+        long exposureTime;
+        long frameDuration;
+        long latency;
+        int sensitivity;
+    }
+
+    /**
+     * Read the records still in a ring file, oldest first.
+     */
+    static List<Record> read(File file) throws IOException {
+        byte[] bytes;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + in.length());
+            }
+            bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    static List<Record> read(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < FrameMetadataRecorder.HEADER_SIZE ||
+                buffer.getInt(FrameMetadataRecorder.HEADER_MAGIC) !=
+                        FrameMetadataRecorder.MAGIC) {
+            throw new IOException("Not a frame metadata file");
+        }
+        int version = buffer.getInt(FrameMetadataRecorder.HEADER_VERSION);
+        if (version != FrameMetadataRecorder.VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+        int recordSize = buffer.getInt(FrameMetadataRecorder.HEADER_RECORD_SIZE);
+        int capacity = buffer.getInt(FrameMetadataRecorder.HEADER_CAPACITY);
+        long count = buffer.getLong(FrameMetadataRecorder.HEADER_COUNT);
+        if (recordSize < FrameMetadataRecorder.RECORD_SIZE || capacity <= 0 || count < 0 ||
+                FrameMetadataRecorder.HEADER_SIZE + (long) capacity * recordSize >
+                        buffer.limit()) {
+            throw new IOException("Corrupt frame metadata header");
+        }
+
+        List<Record> records = new ArrayList<Record>();
+        for (long i = Math.max(0, count - capacity); i < count; i++) {
+            int offset = FrameMetadataRecorder.HEADER_SIZE + (int) (i % capacity) * recordSize;
+            Record record = new Record();
+            record.type = buffer.getInt(offset + FrameMetadataRecorder.RECORD_TYPE);
+            record.tag = buffer.getInt(offset + FrameMetadataRecorder.RECORD_TAG);
+            record.frameNumber = buffer.getLong(offset + FrameMetadataRecorder.RECORD_FRAME_NUMBER);
+            record.timestamp = buffer.getLong(offset + FrameMetadataRecorder.RECORD_TIMESTAMP);
+            record.exposureTime =
+                    buffer.getLong(offset + FrameMetadataRecorder.RECORD_EXPOSURE_TIME);
+            record.frameDuration =
+                    buffer.getLong(offset + FrameMetadataRecorder.RECORD_FRAME_DURATION);
+            record.latency = buffer.getLong(offset + FrameMetadataRecorder.RECORD_LATENCY);
+            record.sensitivity = buffer.getInt(offset + FrameMetadataRecorder.RECORD_SENSITIVITY);
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Write one CSV row per capture record, with the latency of the processed record of the same
+     * frame, or an empty latency if the frame was never processed.
+     */
+    static void writeCsv(List<Record> records, Writer out) throws IOException {
+        Map<Long, Long> latencies = new HashMap<Long, Long>();
+        for (Record record : records) {
+            if (record.type == FrameMetadataRecorder.TYPE_PROCESSED) {
+                latencies.put(record.timestamp, record.latency);
+            }
+        }
+
+        out.write(CSV_HEADER);
+        out.write('\n');
+        for (Record record : records) {
+            if (record.type != FrameMetadataRecorder.TYPE_CAPTURE) continue;
+            Long latency = latencies.get(record.timestamp);
+            out.write(record.frameNumber + "," + record.timestamp + "," +
+                    record.exposureTime + "," + record.frameDuration + "," +
+                    record.sensitivity + "," + record.tag + "," +
+                    (latency != null ? latency.toString() : "") + "\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Export a ring file as CSV: FrameMetadataReader &lt;file&gt; [&lt;csv file&gt;]. Writes to
+     * standard output if no CSV file is given.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: FrameMetadataReader <metadata file> [<csv file>]");
+            System.exit(2);
+        }
+        List<Record> records = read(new File(args[0]));
+        Writer out = new OutputStreamWriter(args.length == 2 ?
+                new FileOutputStream(args[1]) : System.out, Charset.forName("US-ASCII"));
+        try {
+            writeCsv(records, out);
+        } finally {
+            if (args.length == 2) {
+                out.close();
+            }
+        }
+    }
+}
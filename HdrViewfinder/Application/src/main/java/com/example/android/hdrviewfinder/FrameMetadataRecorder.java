@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records per-frame capture metadata and processing latency as fixed-size binary records in a
+ * memory-mapped ring file, for pulling off a device after a field session.
+ *
+ * <p>The file is mapped once when opened; recording only stores into the mapping, so it neither
+ * allocates nor makes a system call, and the kernel writes pages back in its own time. Once the
+ * ring is full the oldest records are overwritten. Read the file with
+ * {@link FrameMetadataReader}.</p>
+ *
+ * <p>File layout, little endian: a {@link #HEADER_SIZE} byte header of magic, version, record
+ * size, capacity and the number of records ever written, followed by capacity records of
+ * {@link #RECORD_SIZE} bytes. Record number n is in slot n % capacity. The count is updated after
+ * each record, so a file left by a killed process has at most its newest record torn.</p>
+ *
+ * <p>Capture records come from the camera callback thread and processed records from the
+ * processing thread; they are matched up by sensor timestamp when reading. Thread safe.</p>
+ */
+final class FrameMetadataRecorder implements Closeable {
+
+    static final int MAGIC = 0x4d524448; // "HDRM"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_RECORD_SIZE = 8;
+    static final int HEADER_CAPACITY = 12;
+    static final int HEADER_COUNT = 16;
+
+    static final int RECORD_SIZE = 56;
+    static final int RECORD_TYPE = 0;
+    static final int RECORD_TAG = 4;
+    static final int RECORD_FRAME_NUMBER = 8;
+    static final int RECORD_TIMESTAMP = 16;
+    static final int RECORD_EXPOSURE_TIME = 24;
+    static final int RECORD_FRAME_DURATION = 32;
+    static final int RECORD_LATENCY = 40;
+    static final int RECORD_SENSITIVITY = 48;
+
+    // Record types
+    static final int TYPE_CAPTURE = 1;
+    static final int TYPE_PROCESSED = 2;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private long mCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Create or truncate file and map a ring of capacity records in it.
+     */
+    FrameMetadataRecorder(File file, int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mCapacity = capacity;
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(0);
+            mFile.setLength(size);
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(HEADER_MAGIC, MAGIC);
+        mBuffer.putInt(HEADER_VERSION, VERSION);
+        mBuffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+        mBuffer.putInt(HEADER_CAPACITY, capacity);
+        mBuffer.putLong(HEADER_COUNT, 0);
+    }
+
+    /**
+     * Record the capture result of a frame.
+     *
+     * @param tag           caller-defined request tag, such as the exposure index in the burst
+     * @param timestamp     sensor timestamp in ns
+     * @param exposureTime  exposure time in ns
+     * @param frameDuration frame duration in ns
+     */
+    synchronized void recordCapture(long frameNumber, long timestamp, long exposureTime,
+            long frameDuration, int sensitivity, int tag) {
+        int offset = beginRecord(TYPE_CAPTURE, tag);
+        if (offset < 0) return;
+        mBuffer.putLong(offset + RECORD_FRAME_NUMBER, frameNumber);
+        mBuffer.putLong(offset + RECORD_TIMESTAMP, timestamp);
+        mBuffer.putLong(offset + RECORD_EXPOSURE_TIME, exposureTime);
+        mBuffer.putLong(offset + RECORD_FRAME_DURATION, frameDuration);
+        mBuffer.putLong(offset + RECORD_LATENCY, 0);
+        mBuffer.putInt(offset + RECORD_SENSITIVITY, sensitivity);
+        endRecord();
+    }
+
+    /**
+     * Record that the frame with the given sensor timestamp was processed.
+     *
+     * @param latency time from the sensor timestamp until the processed frame was sent to the
+     *                output, in ns
+     */
+    synchronized void recordProcessed(long timestamp, long latency) {
+        int offset = beginRecord(TYPE_PROCESSED, 0);
+        if (offset < 0) return;
+        mBuffer.putLong(offset + RECORD_FRAME_NUMBER, 0);
+        mBuffer.putLong(offset + RECORD_TIMESTAMP, timestamp);
+        mBuffer.putLong(offset + RECORD_EXPOSURE_TIME, 0);
+        mBuffer.putLong(offset + RECORD_FRAME_DURATION, 0);
+        mBuffer.putLong(offset + RECORD_LATENCY, latency);
+        mBuffer.putInt(offset + RECORD_SENSITIVITY, 0);
+        endRecord();
+    }
+
+    /**
+     * Number of records written since the file was opened.
+     */
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Stop recording, flush the mapping to the file and close it. Records after this are
+     * dropped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        mBuffer.force();
+        mFile.close();
+    }
+
+    private int beginRecord(int type, int tag) {
+        if (mClosed) return -1;
+        int offset = HEADER_SIZE + (int) (mCount % mCapacity) * RECORD_SIZE;
+        mBuffer.putInt(offset + RECORD_TYPE, type);
+        mBuffer.putInt(offset + RECORD_TAG, tag);
+        return offset;
+    }
+
+    private void endRecord() {
+        mCount++;
+        mBuffer.putLong(HEADER_COUNT, mCount);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.hardware.camera2.CaptureRequest;
+import android.view.Surface;
+
+/**
+ * Settings of one capture, independent of the {@link CameraBackend} that runs it: a request
+ * template, a single output target, auto or manual exposure, and a tag that is handed back in
+ * capture callbacks.
+ *
+ * <p>Immutable, so the same request can be submitted any number of times. Camera2Backend builds
+ * the CaptureRequest for it once per opened camera and keeps it here.</p>
+ */
+final class FrameRequest {
+
+    /**
+     * Exposure time of requests using auto exposure
+     */
+    static final long AUTO_EXPOSURE = 0;
+
+    private final int mTemplate;
+    private final Surface mTarget;
+    private final long mExposureTime;
+    private final int mSensitivity;
+    private final long mFrameDuration;
+    private final Object mTag;
+
+    // Built by Camera2Backend for the camera it had open; only touched on the camera thread
+    CaptureRequest mCaptureRequest;
+    int mCaptureRequestCamera;
+
+    /**
+     * Request with auto exposure.
+     *
+     * @param template one of the CameraDevice.TEMPLATE_ constants
+     */
+    FrameRequest(int template, Surface target, Object tag) {
+        this(template, target, AUTO_EXPOSURE, 0, 0, tag);
+    }
+
+    /**
+     * Request with manual exposure.
+     *
+     * @param template      one of the CameraDevice.TEMPLATE_ constants
+     * @param exposureTime  sensor exposure time in ns
+     * @param sensitivity   sensor sensitivity in ISO
+     * @param frameDuration frame duration in ns, or 0 for the template's
+     */
+    FrameRequest(int template, Surface target, long exposureTime, int sensitivity,
+            long frameDuration, Object tag) {
+        mTemplate = template;
+        mTarget = target;
+        mExposureTime = exposureTime;
+        mSensitivity = sensitivity;
+        mFrameDuration = frameDuration;
+        mTag = tag;
+    }
+
+    int getTemplate() {
+        return mTemplate;
+    }
+
+    Surface getTarget() {
+        return mTarget;
+    }
+
+    boolean isAutoExposure() {
+        return mExposureTime == AUTO_EXPOSURE;
+    }
+
+    long getExposureTime() {
+        return mExposureTime;
+    }
+
+    int getSensitivity() {
+        return mSensitivity;
+    }
+
+    long getFrameDuration() {
+        return mFrameDuration;
+    }
+
+    Object getTag() {
+        return mTag;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Decides which input frames the processor works on, giving each a deadline and skipping work
+ * that would be shown too late.
+ *
+ * <p>A frame's deadline is one display refresh after it is expected to arrive: its sensor
+ * timestamp plus the smoothed delay from sensor timestamp to arrival, plus the vsync period.
+ * Before processing, the expected finish time, from the smoothed processing time of the
+ * stream, is checked against the deadline; a frame that can't make it is skipped so that the
+ * processor gets to the next, fresher one sooner. At most {@link #MAX_CONSECUTIVE_SKIPS}
+ * frames are skipped in a row, so the viewfinder keeps updating when every frame is late, as
+ * it is until the quality governor catches up.</p>
+ *
+ * <p>The stream the render mode shows has priority: a frame of the other stream, such as one
+ * still in flight after a mode switch, is skipped while the priority stream has frames
+ * waiting.</p>
+ *
+ * <p>Processed frames count as on time or late by when they finished; older frames that
+ * arrived behind a newer one, and frames skipped here, count as skipped.</p>
+ *
+ * <p>Not thread safe, except for the counters, which can be read from any thread.</p>
+ */
+class FrameScheduler {
+
+    static final int STREAM_COUNT = 2;
+    static final int MAX_CONSECUTIVE_SKIPS = 2;
+    static final long DEFAULT_VSYNC_PERIOD = 1000 * 1000 * 1000L / 60;
+
+    // Weight of a new sample in the smoothed latency and processing times
+    private static final float SMOOTHING = 0.125f;
+
+    private long mVsyncPeriod = DEFAULT_VSYNC_PERIOD;
+    private int mPriorityStream = MergeEngine.STREAM_NORMAL;
+
+    private long mArrivalLatency = -1;
+    private final long[] mProcessingTimes = new long[STREAM_COUNT];
+    // Frames of each stream skipped in a row for missing their deadline
+    private final int[] mConsecutiveSkips = new int[STREAM_COUNT];
+
+    private volatile long mOnTimeCount = 0;
+    private volatile long mLateCount = 0;
+    private volatile long mSkippedCount = 0;
+
+    /**
+     * Set the display refresh period that frames are due within, in ns.
+     */
+    void setVsyncPeriod(long vsyncPeriod) {
+        if (vsyncPeriod <= 0) {
+            throw new IllegalArgumentException("Vsync period must be positive");
+        }
+        mVsyncPeriod = vsyncPeriod;
+    }
+
+    /**
+     * Set the stream that is shown, one of the MergeEngine.STREAM_ constants.
+     */
+    void setPriorityStream(int stream) {
+        mPriorityStream = stream;
+    }
+
+    int getPriorityStream() {
+        return mPriorityStream;
+    }
+
+    /**
+     * Get the deadline of a frame, in the elapsedRealtimeNanos time base.
+     *
+     * @param timestamp   sensor timestamp of the frame, or 0 if unknown
+     * @param arrivalTime when the frame arrived at the processor
+     */
+    long deadline(long timestamp, long arrivalTime) {
+        if (timestamp == 0 || timestamp > arrivalTime) {
+            // No usable timestamp; the frame is due a refresh after it arrived
+            return arrivalTime + mVsyncPeriod;
+        }
+        long latency = arrivalTime - timestamp;
+        mArrivalLatency = mArrivalLatency < 0 ? latency :
+                mArrivalLatency + Math.round((latency - mArrivalLatency) * SMOOTHING);
+        return timestamp + mArrivalLatency + mVsyncPeriod;
+    }
+
+    /**
+     * Decide whether to process the newest frame of a stream now.
+     *
+     * @param stream          stream of the frame
+     * @param deadline        deadline of the frame, from {@link #deadline}
+     * @param now             current time
+     * @param olderFrames     frames of the stream that arrived before this one and won't be
+     *                        processed
+     * @param priorityPending whether the priority stream has frames waiting
+     * @return true to process the frame, then report it with {@link #onProcessed}; false if it
+     *         is skipped
+     */
+    boolean schedule(int stream, long deadline, long now, int olderFrames,
+                     boolean priorityPending) {
+        mSkippedCount += olderFrames;
+        if (stream != mPriorityStream && priorityPending) {
+            mSkippedCount++;
+            return false;
+        }
+        if (now + mProcessingTimes[stream] > deadline &&
+                mConsecutiveSkips[stream] < MAX_CONSECUTIVE_SKIPS) {
+            mConsecutiveSkips[stream]++;
+            mSkippedCount++;
+            return false;
+        }
+        mConsecutiveSkips[stream] = 0;
+        return true;
+    }
+
+    /**
+     * Account for a frame that was scheduled but then dropped without being processed.
+     */
+    void onDropped() {
+        mSkippedCount++;
+    }
+
+    /**
+     * Account for a processed frame.
+     *
+     * @param startTime  when processing started
+     * @param finishTime when the processed frame was sent to the output
+     */
+    void onProcessed(int stream, long deadline, long startTime, long finishTime) {
+        long processingTime = finishTime - startTime;
+        long smoothed = mProcessingTimes[stream];
+        mProcessingTimes[stream] = smoothed == 0 ? processingTime :
+                smoothed + Math.round((processingTime - smoothed) * SMOOTHING);
+        if (finishTime <= deadline) {
+            mOnTimeCount++;
+        } else {
+            mLateCount++;
+        }
+    }
+
+    long getOnTimeCount() {
+        return mOnTimeCount;
+    }
+
+    long getLateCount() {
+        return mLateCount;
+    }
+
+    long getSkippedCount() {
+        return mSkippedCount;
+    }
+}
@@ -0,0 +1,613 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Plain-Java port of the mergeHdrFrames kernel in hdr_merge.rs.
+ *
+ * <p>The arithmetic matches the RenderScript kernel exactly, so both engines produce identical
+ * output for identical input. The frame is split into bands of rows which are processed in
+ * parallel on a {@link ForkJoinPool}.</p>
+ *
+ * <p>In {@link #MERGE_FUSION} mode the work is handed to {@link ExposureFusion} instead, and in
+ * {@link #MERGE_BRACKET} mode to {@link BracketAccumulator}.</p>
+ *
+ * <p>{@link #MERGE_DENOISE} is a recursive temporal filter over frames of the same exposure: each
+ * pixel moves from the history towards the current frame by a weight that grows with their luma
+ * difference, and the result, rather than the current frame, becomes the history. Static areas
+ * average over many frames and moving ones follow the current frame.</p>
+ *
+ * <p>With deghosting enabled, {@link #MERGE_AVERAGE} works in {@link MotionTiles#TILE_SIZE}
+ * square tiles. A luma-only pass first estimates the exposure ratio of the pair from the
+ * unclipped pixels of all tiles. Each tile is then scanned for the difference between the two
+ * frames at that ratio, while it is still in cache, and merged; tiles with motion use only the
+ * better-exposed frame instead of the average.</p>
+ *
+ * <p>With a {@link LinearBlend} set, the average and denoise merges look up the luma of each
+ * blend in its tables, so it is done in the linear light of the calibrated response.</p>
+ *
+ * <p>With alignment enabled, the translation between the current and previous frame is
+ * estimated by a {@link FrameAligner} before each merge that reads the previous frame, see
+ * {@link #readsHistory}, which then reads it shifted by that offset.</p>
+ *
+ * <p>The previous frame is stored in one of the {@link HistoryLayout} formats, the same way as
+ * the RenderScript history allocations; by default four bytes per pixel holding Y, U, V and
+ * 255. Output is RGBA_8888, four bytes per pixel. The current frame is stored into a separate
+ * next-frame buffer if one is set with {@link #setHistoryFrames}, otherwise back into the
+ * previous-frame buffer.</p>
+ */
+class HdrMergeKernel {
+
+    // Merge modes; MERGE_NONE, MERGE_AVERAGE and MERGE_DENOISE match the gDoMerge values of
+    // hdr_merge.rs
+    static final int MERGE_NONE = 0;
+    static final int MERGE_AVERAGE = 1;
+    static final int MERGE_FUSION = 2;
+    static final int MERGE_BRACKET = 3;
+    static final int MERGE_DENOISE = 4;
+
+    // Weight of the current frame in MERGE_DENOISE, in 1/256ths: DENOISE_MIN_WEIGHT where it
+    // matches the history, growing by DENOISE_WEIGHT_SLOPE per level of luma difference up to
+    // all of it. Must match hdr_merge.rs.
+    static final int DENOISE_MIN_WEIGHT = 32;
+    static final int DENOISE_WEIGHT_SLOPE = 12;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final ForkJoinPool mPool;
+
+    // Kernel globals, same meaning as in hdr_merge.rs
+    private YuvFrame mCurrentFrame;
+    private byte[] mPrevFrame;
+    private byte[] mNextPrevFrame;
+    private HistoryLayout mHistoryLayout;
+    private int mCutPointX = 0;
+    private int mMergeMode = MERGE_NONE;
+    private int mFrameCounter = 0;
+
+    private byte[] mOutput;
+
+    // Histogram to fill, or null, and the per-thread counts it is summed from
+    private LumaHistogram mHistogram;
+    private LumaHistogram.Partials mHistogramPartials;
+
+    // Global tone-mapping table, or null for the plain YUV->RGB transform, and the local
+    // operator's scale table, or null if it is off
+    private byte[] mToneLut;
+    private int[] mLocalToneScale;
+    private LocalToneMap mLocalToneMap;
+
+    // Luma blends in the linear light of a calibrated response, or null to blend code values
+    private LinearBlend mLinearBlend;
+
+    private final RowBands mMergeRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            mergeRows(startY, endY);
+            if (mHistogram != null) {
+                mHistogramPartials.addRows(mCurrentFrame, startY, endY);
+            }
+        }
+    };
+
+    private boolean mDeghost = false;
+    private final MotionTiles mMotionTiles;
+
+    private final RowBands mTileSumRows = new RowBands() {
+        @Override
+        void processRows(int startTileY, int endTileY) {
+            for (int ty = startTileY; ty < endTileY; ty++) {
+                for (int tx = 0; tx < mMotionTiles.mTilesX; tx++) {
+                    sumTile(tx, ty);
+                }
+            }
+        }
+    };
+
+    private final RowBands mDeghostRows = new RowBands() {
+        @Override
+        void processRows(int startTileY, int endTileY) {
+            for (int ty = startTileY; ty < endTileY; ty++) {
+                for (int tx = 0; tx < mMotionTiles.mTilesX; tx++) {
+                    mergeTileDeghosted(tx, ty);
+                }
+            }
+            if (mHistogram != null) {
+                mHistogramPartials.addRows(mCurrentFrame, startTileY * MotionTiles.TILE_SIZE,
+                        Math.min(endTileY * MotionTiles.TILE_SIZE, mHeight));
+            }
+        }
+    };
+
+    private boolean mAlign = false;
+    private FrameAligner mAligner;
+
+    private ExposureFusion mFusion;
+    private int mFusionProxyScale = 1;
+
+    private int mBracketSize = BracketAccumulator.MIN_BRACKET_SIZE;
+    private BracketAccumulator mBracket;
+
+    HdrMergeKernel(int width, int height, ForkJoinPool pool) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Frame size must be positive");
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("Need a valid pool");
+        }
+        mWidth = width;
+        mHeight = height;
+        mPool = pool;
+        mMotionTiles = new MotionTiles(width, height);
+        mHistoryLayout = new HistoryLayout(width, height, HistoryLayout.FORMAT_RGBA);
+    }
+
+    void setCurrentFrame(YuvFrame frame) {
+        mCurrentFrame = frame;
+    }
+
+    /**
+     * Use a single previous-frame buffer, updated in place.
+     */
+    void setPrevFrame(byte[] prevFrame) {
+        setHistoryFrames(prevFrame, prevFrame);
+    }
+
+    /**
+     * Read the previous frame from prevFrame and store the current frame into nextPrevFrame,
+     * for double-buffered history.
+     */
+    void setHistoryFrames(byte[] prevFrame, byte[] nextPrevFrame) {
+        mPrevFrame = prevFrame;
+        mNextPrevFrame = nextPrevFrame;
+    }
+
+    /**
+     * @param format one of the HistoryLayout.FORMAT_ constants
+     */
+    void setHistoryFormat(int format) {
+        mHistoryLayout = new HistoryLayout(mWidth, mHeight, format);
+        if (mFusion != null) {
+            mFusion.setHistoryLayout(mHistoryLayout);
+        }
+    }
+
+    HistoryLayout getHistoryLayout() {
+        return mHistoryLayout;
+    }
+
+    void setCutPointX(int cutPointX) {
+        mCutPointX = cutPointX;
+    }
+
+    /**
+     * @param mergeMode one of the MERGE_ constants
+     */
+    void setMergeMode(int mergeMode) {
+        mMergeMode = mergeMode;
+    }
+
+    /**
+     * For {@link #MERGE_BRACKET}, the frame counter is the frame's exposure index within the
+     * burst.
+     */
+    void setFrameCounter(int frameCounter) {
+        mFrameCounter = frameCounter;
+    }
+
+    /**
+     * Set the number of exposures averaged by {@link #MERGE_BRACKET}.
+     */
+    void setBracketSize(int bracketSize) {
+        if (bracketSize < BracketAccumulator.MIN_BRACKET_SIZE ||
+                bracketSize > BracketAccumulator.MAX_BRACKET_SIZE) {
+            throw new IllegalArgumentException("Unsupported bracket size: " + bracketSize);
+        }
+        mBracketSize = bracketSize;
+    }
+
+    /**
+     * Set how much smaller the proxy frame that {@link #MERGE_FUSION} computes its weights on
+     * is: 1 for full resolution, 2 or 4.
+     */
+    void setFusionProxyScale(int proxyScale) {
+        if (proxyScale != 1 && proxyScale != 2 && proxyScale != ExposureFusion.MAX_PROXY_SCALE) {
+            throw new IllegalArgumentException("Unsupported proxy scale: " + proxyScale);
+        }
+        mFusionProxyScale = proxyScale;
+    }
+
+    /**
+     * Enable per-tile motion detection for {@link #MERGE_AVERAGE}.
+     */
+    void setDeghostEnabled(boolean deghost) {
+        mDeghost = deghost;
+    }
+
+    /**
+     * Count a luma histogram of the current frame into histogram during the merge pass, or
+     * don't if null. The histogram must be reset by the caller; its statistics are updated
+     * when the merge is done.
+     */
+    void setHistogram(LumaHistogram histogram) {
+        mHistogram = histogram;
+        if (histogram != null && mHistogramPartials == null) {
+            mHistogramPartials = new LumaHistogram.Partials();
+        }
+    }
+
+    /**
+     * Set the tone mapping of the output: a {@link ToneMapper} table for the YUV->RGB
+     * conversion or null for the plain transform, and a {@link LocalToneMap} scale table to run
+     * the local operator over the result, or null.
+     */
+    void setToneMap(byte[] lut, int[] localScale) {
+        if (lut != null && lut.length != ToneMapper.LUT_ENTRIES * 4) {
+            throw new IllegalArgumentException("Tone-mapping table has the wrong size");
+        }
+        mToneLut = lut;
+        mLocalToneScale = localScale;
+        if (localScale != null && mLocalToneMap == null) {
+            mLocalToneMap = new LocalToneMap(mWidth, mHeight);
+        }
+    }
+
+    /**
+     * Blend luma of the average and denoise merges and weigh fusion exposures through the
+     * tables of a calibrated camera response, or in code values if blend is null.
+     */
+    void setLinearBlend(LinearBlend blend) {
+        mLinearBlend = blend;
+    }
+
+    /**
+     * Estimate the translation from the previous frame before each merge and read the previous
+     * frame shifted by it.
+     */
+    void setAlignmentEnabled(boolean align) {
+        mAlign = align;
+    }
+
+    /**
+     * Read offset of the previous frame used by the last merge, in pixels.
+     */
+    int getAlignmentOffsetX() {
+        return mAlign && mAligner != null ? mAligner.getOffsetX() : 0;
+    }
+
+    int getAlignmentOffsetY() {
+        return mAlign && mAligner != null ? mAligner.getOffsetY() : 0;
+    }
+
+    MotionTiles getMotionTiles() {
+        return mMotionTiles;
+    }
+
+    /**
+     * Run the merge over the whole frame, writing RGBA pixels to output and storing the
+     * current frame into the previous-frame buffer.
+     */
+    void mergeHdrFrames(byte[] output) {
+        runMerge(output);
+        if (mHistogram != null) {
+            mHistogramPartials.reduceInto(mHistogram);
+        }
+        if (mLocalToneScale != null) {
+            mLocalToneMap.setScale(mLocalToneScale);
+            mLocalToneMap.apply(output, mPool);
+        }
+    }
+
+    private void runMerge(byte[] output) {
+        if (mCurrentFrame == null || mPrevFrame == null) {
+            throw new IllegalStateException("Current and previous frames must be set");
+        }
+        int historySize = mHistoryLayout.getBufferSize();
+        if (output.length < mWidth * mHeight * 4 || mPrevFrame.length < historySize ||
+                mNextPrevFrame.length < historySize) {
+            throw new IllegalArgumentException("Buffers too small for frame size");
+        }
+        if (mPrevFrame == mNextPrevFrame &&
+                mHistoryLayout.getFormat() == HistoryLayout.FORMAT_YUV420) {
+            throw new IllegalStateException("YUV 4:2:0 history can't be updated in place");
+        }
+        align();
+        if (mMergeMode == MERGE_FUSION) {
+            if (mFusion == null || mFusion.getProxyScale() != mFusionProxyScale) {
+                // Pyramid buffers are only allocated once fusion is first used
+                mFusion = new ExposureFusion(mWidth, mHeight, mFusionProxyScale, mPool);
+                mFusion.setHistoryLayout(mHistoryLayout);
+            }
+            mFusion.setHistogram(mHistogram != null ? mHistogramPartials : null);
+            mFusion.setToneLut(mToneLut);
+            mFusion.setWellExposed(mLinearBlend != null ? mLinearBlend.mWellExposed : null);
+            mFusion.fuse(mCurrentFrame, mPrevFrame, mNextPrevFrame, output);
+            resetBracket();
+            return;
+        }
+        if (mMergeMode == MERGE_BRACKET) {
+            if (mBracket == null || mBracket.getBracketSize() != mBracketSize) {
+                // Ring buffers are only allocated once a bracket is first used
+                mBracket = new BracketAccumulator(mWidth, mHeight, mBracketSize, mPool);
+            }
+            mBracket.setHistogram(mHistogram != null ? mHistogramPartials : null);
+            mBracket.setToneLut(mToneLut);
+            mBracket.accumulate(mCurrentFrame, mFrameCounter, output);
+            return;
+        }
+        resetBracket();
+        mOutput = output;
+        if (mDeghost && mMergeMode == MERGE_AVERAGE) {
+            mTileSumRows.run(mPool, mMotionTiles.mTilesY);
+            mMotionTiles.updateExposureRatio();
+            mDeghostRows.run(mPool, mMotionTiles.mTilesY);
+            mMotionTiles.update();
+        } else {
+            mMergeRows.run(mPool, mHeight);
+            mMotionTiles.reset();
+        }
+        mOutput = null;
+    }
+
+    /**
+     * Whether a merge reads the previous frame, and so needs it aligned: the averaging modes and
+     * side-by-side. Passthrough only stores the frame, and brackets don't use the history.
+     */
+    static boolean readsHistory(int mergeMode, int cutPointX) {
+        switch (mergeMode) {
+            case MERGE_AVERAGE:
+            case MERGE_FUSION:
+            case MERGE_DENOISE:
+                return true;
+            case MERGE_NONE:
+                return cutPointX > 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Estimate the offset of the previous frame and shift history reads by it. For merges that
+     * don't read the history the aligner's reference is dropped, since the next frame's history
+     * won't be the frame it was built from.
+     */
+    private void align() {
+        if (!mAlign || !readsHistory(mMergeMode, mCutPointX)) {
+            if (mAligner != null) {
+                mAligner.reset();
+            }
+            mHistoryLayout.setReadOffset(0, 0);
+            return;
+        }
+        if (mAligner == null) {
+            mAligner = new FrameAligner(mWidth, mHeight);
+        }
+        mAligner.downsample(mCurrentFrame, mPool);
+        mAligner.align();
+        mHistoryLayout.setReadOffset(mAligner.getOffsetX(), mAligner.getOffsetY());
+    }
+
+    /**
+     * The ring isn't updated by other merge modes, so it must be refilled when the bracket
+     * merge resumes.
+     */
+    private void resetBracket() {
+        if (mBracket != null) {
+            mBracket.reset();
+        }
+    }
+
+    private void mergeRows(int startY, int endY) {
+        final YuvFrame cur = mCurrentFrame;
+        final byte[] prev = mPrevFrame;
+        final byte[] next = mNextPrevFrame;
+        final HistoryLayout history = mHistoryLayout;
+        final byte[] out = mOutput;
+        final byte[] toneLut = mToneLut;
+        final LinearBlend blend = mLinearBlend;
+        final boolean oddFrame = (mFrameCounter & 0x1) != 0;
+
+        for (int y = startY; y < endY; y++) {
+            int offset = y * mWidth * 4;
+            for (int x = 0; x < mWidth; x++, offset += 4) {
+
+                // Read in pixel values from latest frame - YUV color space
+                int curY = cur.getY(x, y);
+                int curU = cur.getU(x, y);
+                int curV = cur.getV(x, y);
+
+                int chroma = history.chromaIndex(x, y);
+                int prevY = prev[history.lumaIndex(x, y)] & 0xFF;
+                int prevU = prev[chroma] & 0xFF;
+                int prevV = prev[chroma + 1] & 0xFF;
+
+                int mergedY, mergedU, mergedV;
+                if (mMergeMode == MERGE_DENOISE) {
+                    int weight = Math.min(DENOISE_MIN_WEIGHT +
+                            Math.abs(curY - prevY) * DENOISE_WEIGHT_SLOPE, 256);
+                    mergedY = blend != null ?
+                            blend.mDenoise[LinearBlend.index(curY, prevY)] & 0xFF :
+                            prevY + (((curY - prevY) * weight + 128) >> 8);
+                    mergedU = prevU + (((curU - prevU) * weight + 128) >> 8);
+                    mergedV = prevV + (((curV - prevV) * weight + 128) >> 8);
+                } else if (mMergeMode == MERGE_AVERAGE) {
+                    mergedY = blend != null ?
+                            blend.mAverage[LinearBlend.index(curY, prevY)] & 0xFF :
+                            curY / 2 + prevY / 2;
+                    mergedU = curU / 2 + prevU / 2;
+                    mergedV = curV / 2 + prevV / 2;
+                } else if (mCutPointX > 0) {
+                    // Composite side by side
+                    boolean useCurrent = (x < mCutPointX) ^ oddFrame;
+                    mergedY = useCurrent ? curY : prevY;
+                    mergedU = useCurrent ? curU : prevU;
+                    mergedV = useCurrent ? curV : prevV;
+                } else {
+                    // Straight passthrough
+                    mergedY = curY;
+                    mergedU = curU;
+                    mergedV = curV;
+                }
+
+                // Store current pixel for next frame; denoising is recursive and stores the
+                // filtered one
+                if (mMergeMode == MERGE_DENOISE) {
+                    history.store(next, x, y, mergedY, mergedU, mergedV);
+                } else {
+                    history.store(next, x, y, curY, curU, curV);
+                }
+
+                writeRgb(toneLut, out, offset, mergedY, mergedU, mergedV);
+            }
+        }
+    }
+
+    /**
+     * Sum the luma of a tile over pixels unclipped in both frames, for the exposure ratio.
+     */
+    private void sumTile(int tx, int ty) {
+        final YuvFrame cur = mCurrentFrame;
+        final byte[] prev = mPrevFrame;
+        final HistoryLayout history = mHistoryLayout;
+
+        int startX = tx * MotionTiles.TILE_SIZE;
+        int startY = ty * MotionTiles.TILE_SIZE;
+        int endX = Math.min(startX + MotionTiles.TILE_SIZE, mWidth);
+        int endY = Math.min(startY + MotionTiles.TILE_SIZE, mHeight);
+
+        float sumCur = 0;
+        float sumPrev = 0;
+        for (int y = startY; y < endY; y++) {
+            for (int x = startX; x < endX; x++) {
+                int curY = cur.getY(x, y);
+                int prevY = prev[history.lumaIndex(x, y)] & 0xFF;
+                if (curY >= MotionTiles.CLIP_LOW && curY <= MotionTiles.CLIP_HIGH &&
+                        prevY >= MotionTiles.CLIP_LOW && prevY <= MotionTiles.CLIP_HIGH) {
+                    sumCur += curY;
+                    sumPrev += prevY;
+                }
+            }
+        }
+        int tile = ty * mMotionTiles.mTilesX + tx;
+        mMotionTiles.mSums[tile * 2] = sumCur;
+        mMotionTiles.mSums[tile * 2 + 1] = sumPrev;
+    }
+
+    private void mergeTileDeghosted(int tx, int ty) {
+        final YuvFrame cur = mCurrentFrame;
+        final byte[] prev = mPrevFrame;
+        final byte[] next = mNextPrevFrame;
+        final HistoryLayout history = mHistoryLayout;
+        final byte[] out = mOutput;
+        final byte[] toneLut = mToneLut;
+        final LinearBlend blend = mLinearBlend;
+        final MotionTiles tiles = mMotionTiles;
+        final float ratio = tiles.getExposureRatio();
+
+        int startX = tx * MotionTiles.TILE_SIZE;
+        int startY = ty * MotionTiles.TILE_SIZE;
+        int endX = Math.min(startX + MotionTiles.TILE_SIZE, mWidth);
+        int endY = Math.min(startY + MotionTiles.TILE_SIZE, mHeight);
+
+        // Tile statistics
+        float diff = 0;
+        int count = 0;
+        int curClipped = 0;
+        int prevClipped = 0;
+        for (int y = startY; y < endY; y++) {
+            for (int x = startX; x < endX; x++) {
+                int curY = cur.getY(x, y);
+                int prevY = prev[history.lumaIndex(x, y)] & 0xFF;
+                boolean curOk = curY >= MotionTiles.CLIP_LOW && curY <= MotionTiles.CLIP_HIGH;
+                boolean prevOk = prevY >= MotionTiles.CLIP_LOW && prevY <= MotionTiles.CLIP_HIGH;
+                if (!curOk) curClipped++;
+                if (!prevOk) prevClipped++;
+                if (curOk && prevOk) {
+                    diff += Math.abs(curY - prevY * ratio);
+                    count++;
+                }
+            }
+        }
+        boolean motion = count > 0 && diff > MotionTiles.MOTION_THRESHOLD * count;
+        boolean useCurrent = curClipped <= prevClipped;
+
+        int tile = ty * tiles.mTilesX + tx;
+        tiles.mFlags[tile] = (byte) (motion ? 1 : 0);
+
+        // Merge the tile, now in cache
+        for (int y = startY; y < endY; y++) {
+            int offset = (y * mWidth + startX) * 4;
+            for (int x = startX; x < endX; x++, offset += 4) {
+                int curY = cur.getY(x, y);
+                int curU = cur.getU(x, y);
+                int curV = cur.getV(x, y);
+
+                int chroma = history.chromaIndex(x, y);
+                int prevY = prev[history.lumaIndex(x, y)] & 0xFF;
+                int prevU = prev[chroma] & 0xFF;
+                int prevV = prev[chroma + 1] & 0xFF;
+
+                int mergedY, mergedU, mergedV;
+                if (!motion) {
+                    mergedY = blend != null ?
+                            blend.mAverage[LinearBlend.index(curY, prevY)] & 0xFF :
+                            curY / 2 + prevY / 2;
+                    mergedU = curU / 2 + prevU / 2;
+                    mergedV = curV / 2 + prevV / 2;
+                } else {
+                    // Fall back to the single better-exposed frame
+                    mergedY = useCurrent ? curY : prevY;
+                    mergedU = useCurrent ? curU : prevU;
+                    mergedV = useCurrent ? curV : prevV;
+                }
+
+                // Store current pixel for next frame
+                history.store(next, x, y, curY, curU, curV);
+
+                writeRgb(toneLut, out, offset, mergedY, mergedU, mergedV);
+            }
+        }
+    }
+
+    /**
+     * JFIF YUV->RGB transform in the same fixed-point form as hdr_merge.rs, or a lookup in a
+     * {@link ToneMapper} table if lut isn't null, as toneMapYuv in tonemap.rsh.
+     */
+    static void writeRgb(byte[] lut, byte[] out, int offset, int y, int u, int v) {
+        if (lut != null) {
+            ToneMapper.lookup(lut, out, offset, y, u, v);
+            return;
+        }
+        // R = Y + 1.402 * (V - 128)
+        // G = Y - 0.34414 * (U - 128) - 0.71414 * (V - 128)
+        // B = Y + 1.772 * (U - 128)
+        int r = y + v * 1436 / 1024 - 179;
+        int g = y - u * 46549 / 131072 + 44 - v * 93604 / 131072 + 91;
+        int b = y + u * 1814 / 1024 - 227;
+
+        out[offset] = (byte) clamp(r);
+        out[offset + 1] = (byte) clamp(g);
+        out[offset + 2] = (byte) clamp(b);
+        out[offset + 3] = (byte) 255;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraDevice;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Takes HDR stills: captures the current exposure pair at full sensor resolution, merges it into
+ * linear radiance on a background worker and streams it to a Radiance RGBE (.hdr) file row by
+ * row, so no full-size float image is ever held in memory.
+ *
+ * <p>Capture buffers are bounded: the ImageReader holds exactly one exposure pair, and the
+ * worker's queue one job. A capture requested while one is still being merged waits until the
+ * worker is done with it instead of allocating more buffers.</p>
+ *
+ * <p>Captures are requested and their results delivered on the handler passed in; the merge and
+ * file write happen on the worker thread only, so they never stall the viewfinder.</p>
+ *
+ * <p>The same output also captures response calibration brackets. Calibration frames are
+ * sampled by {@link ResponseCalibration} and released as they arrive, so a bracket of any length
+ * fits in the reader's buffers; stills requested meanwhile wait for the bracket to finish.</p>
+ */
+class HdrStillCapture {
+
+    private static final String TAG = "HdrStillCapture";
+
+    // Captures that may be in flight, from request to file written
+    static final int MAX_CAPTURES_IN_FLIGHT = 1;
+
+    private static final int EXPOSURES = 2;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Notified on the callback handler when a still has been saved or has failed.
+     */
+    interface Listener {
+        void onStillSaved(File file);
+
+        void onStillFailed();
+
+        /**
+         * Every frame of a calibration bracket was sampled; the curve can be solved.
+         */
+        void onCalibrationCaptured(ResponseCalibration calibration);
+
+        void onCalibrationFailed();
+    }
+
+    /**
+     * One exposure pair on its way from the camera to disk.
+     */
+    private static class Job {
+        final long[] mExposures = new long[EXPOSURES];
+        final Image[] mImages = new Image[EXPOSURES];
+        int mReceived;
+        int mFailed;
+        File mFile;
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final File mDirectory;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final ImageReader mReader;
+
+    // Jobs ready to be taken, and jobs handed back by the worker
+    private final ArrayBlockingQueue<Job> mFreeJobs =
+            new ArrayBlockingQueue<>(MAX_CAPTURES_IN_FLIGHT);
+    private final ArrayBlockingQueue<Job> mMergeQueue =
+            new ArrayBlockingQueue<>(MAX_CAPTURES_IN_FLIGHT);
+    // Jobs submitted to the camera, in capture order; only touched on mHandler
+    private final ArrayDeque<Job> mSubmittedJobs = new ArrayDeque<>(MAX_CAPTURES_IN_FLIGHT);
+
+    private final Thread mWorker;
+
+    private CameraOps mCameraOps;
+    private int mSensitivity;
+    private final List<FrameRequest> mRequests = new ArrayList<>(EXPOSURES);
+
+    // Calibration bracket in flight, only touched on mHandler
+    private ResponseCalibration mCalibration;
+    private int mCalibrationImages;
+    private int mCalibrationResults;
+    private int mCalibrationFailed;
+    private YuvFrame mCalibrationFrame;
+
+    // Inverse response for the merge, null for the default gamma
+    private volatile float[] mInverseResponse;
+
+    // Captures requested while every job was busy, taken with the latest requested exposures
+    private int mWaitingCaptures = 0;
+    private long mWaitingEvenExposure;
+    private long mWaitingOddExposure;
+
+    /**
+     * @param size      full sensor resolution YUV output size
+     * @param directory where stills are written
+     * @param handler   thread for camera and listener callbacks
+     */
+    HdrStillCapture(Size size, File directory, Listener listener, Handler handler) {
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+        mDirectory = directory;
+        mListener = listener;
+        mHandler = handler;
+
+        mReader = ImageReader.newInstance(mWidth, mHeight, ImageFormat.YUV_420_888,
+                EXPOSURES * MAX_CAPTURES_IN_FLIGHT);
+        mReader.setOnImageAvailableListener(mImageListener, handler);
+
+        for (int i = 0; i < MAX_CAPTURES_IN_FLIGHT; i++) {
+            mFreeJobs.add(new Job());
+        }
+        mWorker = new Thread(mMergeLoop, TAG);
+        mWorker.start();
+    }
+
+    Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    /**
+     * Set the camera to capture with, and the sensitivity of its manual exposure requests. Call
+     * on the callback handler.
+     */
+    void setCamera(CameraOps cameraOps, int sensitivity) {
+        mCameraOps = cameraOps;
+        mSensitivity = sensitivity;
+    }
+
+    /**
+     * Set the inverse-response table stills are linearized with, or null for the default gamma.
+     * Takes effect from the next still merged. Can be called from any thread.
+     */
+    void setInverseResponse(float[] table) {
+        mInverseResponse = table;
+    }
+
+    /**
+     * Capture the bracket of calibration, sampling each frame into it, and report it to the
+     * listener. Returns false if a calibration or still capture is already in flight. Call on
+     * the callback handler.
+     */
+    boolean calibrate(ResponseCalibration calibration) {
+        if (mCameraOps == null || mCalibration != null || !mSubmittedJobs.isEmpty()) {
+            return false;
+        }
+        mCalibration = calibration;
+        mCalibrationImages = 0;
+        mCalibrationResults = 0;
+        mCalibrationFailed = 0;
+        if (mCalibrationFrame == null) {
+            mCalibrationFrame = new YuvFrame(mWidth, mHeight);
+        }
+
+        mRequests.clear();
+        for (int i = 0; i < calibration.getFrameCount(); i++) {
+            mRequests.add(new FrameRequest(CameraDevice.TEMPLATE_STILL_CAPTURE, getSurface(),
+                    calibration.getExposure(i), mSensitivity, 0, calibration));
+        }
+        mCameraOps.captureBurst(mRequests, mCaptureCallback, mHandler);
+        return true;
+    }
+
+    /**
+     * Capture the given exposure pair. If a previous still is still being merged, or a
+     * calibration bracket is in flight, the capture waits for it. Call on the callback handler.
+     */
+    void capture(long evenExposure, long oddExposure) {
+        if (mCameraOps == null) return;
+        Job job = mCalibration == null ? mFreeJobs.poll() : null;
+        if (job == null) {
+            mWaitingCaptures++;
+            mWaitingEvenExposure = evenExposure;
+            mWaitingOddExposure = oddExposure;
+            return;
+        }
+        job.mExposures[0] = evenExposure;
+        job.mExposures[1] = oddExposure;
+        job.mReceived = 0;
+        job.mFailed = 0;
+        job.mFile = null;
+
+        mRequests.clear();
+        for (int i = 0; i < EXPOSURES; i++) {
+            mRequests.add(new FrameRequest(CameraDevice.TEMPLATE_STILL_CAPTURE, getSurface(),
+                    job.mExposures[i], mSensitivity, 0, job));
+        }
+        mSubmittedJobs.add(job);
+        mCameraOps.captureBurst(mRequests, mCaptureCallback, mHandler);
+    }
+
+    /**
+     * Stop the worker once its current job is done and free the capture buffers.
+     */
+    void release() {
+        mWorker.interrupt();
+        try {
+            mWorker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Job job : mSubmittedJobs) {
+            closeImages(job);
+        }
+        for (Job job : mMergeQueue) {
+            closeImages(job);
+        }
+        mReader.close();
+    }
+
+    private final ImageReader.OnImageAvailableListener mImageListener =
+            new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null) return;
+            if (mCalibration != null) {
+                sampleCalibrationImage(image);
+                return;
+            }
+            // Images arrive in capture order, so the first unfilled job owns this one
+            Job job = mSubmittedJobs.peek();
+            if (job == null) {
+                image.close();
+                return;
+            }
+            job.mImages[job.mReceived++] = image;
+            checkComplete(job);
+        }
+    };
+
+    private final CameraOps.CaptureListener mCaptureCallback = new CameraOps.CaptureListener() {
+        @Override
+        public void onCaptureCompleted(FrameRequest request, long frameNumber, long timestamp,
+                                       long exposureTime, long frameDuration, int sensitivity) {
+            if (request.getTag() != mCalibration || mCalibration == null) return;
+            // The camera may have clamped the requested exposure
+            if (exposureTime != CameraOps.UNKNOWN_EXPOSURE) {
+                mCalibration.setExposure(mCalibrationResults, exposureTime);
+            }
+            mCalibrationResults++;
+            checkCalibrationComplete();
+        }
+
+        @Override
+        public void onCaptureFailed(FrameRequest request) {
+            if (request.getTag() instanceof ResponseCalibration) {
+                if (request.getTag() == mCalibration) {
+                    mCalibrationFailed++;
+                    checkCalibrationComplete();
+                }
+                return;
+            }
+            Job job = (Job) request.getTag();
+            job.mFailed++;
+            checkComplete(job);
+        }
+    };
+
+    /**
+     * Hand a job to the worker once every exposure has either arrived or failed.
+     */
+    private void checkComplete(Job job) {
+        if (job.mReceived + job.mFailed < EXPOSURES) return;
+        mSubmittedJobs.remove(job);
+        // Never blocks: there are only as many jobs as queue slots
+        mMergeQueue.add(job);
+    }
+
+    /**
+     * Sample a calibration frame and release its buffer right away. Frames arrive in capture
+     * order, so this is the next frame of the bracket.
+     */
+    private void sampleCalibrationImage(Image image) {
+        try {
+            Image.Plane[] planes = image.getPlanes();
+            mCalibrationFrame.setPlanes(planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(),
+                    planes[1].getRowStride(), planes[1].getPixelStride());
+            mCalibration.addFrame(mCalibrationImages++, mCalibrationFrame);
+        } finally {
+            image.close();
+        }
+        checkCalibrationComplete();
+    }
+
+    /**
+     * Report the calibration once every frame of the bracket has arrived with its result, or
+     * failed, then start a still capture that waited for it.
+     */
+    private void checkCalibrationComplete() {
+        final ResponseCalibration calibration = mCalibration;
+        final int frames = calibration.getFrameCount();
+        if (mCalibrationImages + mCalibrationFailed < frames ||
+                mCalibrationResults + mCalibrationFailed < frames) {
+            return;
+        }
+        mCalibration = null;
+        if (mCalibrationFailed == 0 && calibration.isComplete()) {
+            mListener.onCalibrationCaptured(calibration);
+        } else {
+            mListener.onCalibrationFailed();
+        }
+        if (mWaitingCaptures > 0) {
+            mWaitingCaptures--;
+            capture(mWaitingEvenExposure, mWaitingOddExposure);
+        }
+    }
+
+    private final Runnable mMergeLoop = new Runnable() {
+        @Override
+        public void run() {
+            YuvFrame[] frames = new YuvFrame[EXPOSURES];
+            for (int i = 0; i < EXPOSURES; i++) {
+                frames[i] = new YuvFrame(mWidth, mHeight);
+            }
+            RadianceMerger merger = new RadianceMerger();
+            float[] row = new float[mWidth * 3];
+            try {
+                while (true) {
+                    Job job = mMergeQueue.take();
+                    merger.setInverseResponse(mInverseResponse);
+                    try {
+                        if (job.mFailed == 0) {
+                            job.mFile = writeStill(job, frames, merger, row);
+                        }
+                    } finally {
+                        closeImages(job);
+                    }
+                    mHandler.post(new JobDone(job));
+                }
+            } catch (InterruptedException e) {
+                // Released
+            }
+        }
+    };
+
+    /**
+     * Merge a job's exposures and stream them to a new file, returning it, or null on error.
+     */
+    private File writeStill(Job job, YuvFrame[] frames, RadianceMerger merger, float[] row) {
+        for (int i = 0; i < EXPOSURES; i++) {
+            Image.Plane[] planes = job.mImages[i].getPlanes();
+            frames[i].setPlanes(planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(),
+                    planes[1].getRowStride(), planes[1].getPixelStride());
+        }
+
+        String name = "HDR_" + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US)
+                .format(new Date()) + ".hdr";
+        File file = new File(mDirectory, name);
+        try (OutputStream out =
+                     new BufferedOutputStream(new FileOutputStream(file), OUTPUT_BUFFER_SIZE)) {
+            RgbeWriter writer = new RgbeWriter(out, mWidth, mHeight);
+            for (int y = 0; y < mHeight; y++) {
+                merger.mergeRow(frames[0], job.mExposures[0], frames[1], job.mExposures[1],
+                        y, row);
+                writer.writeRow(row);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + file, e);
+            if (!file.delete()) {
+                Log.w(TAG, "Couldn't delete partial " + file);
+            }
+            return null;
+        }
+        Log.i(TAG, "Saved " + file);
+        return file;
+    }
+
+    private static void closeImages(Job job) {
+        for (int i = 0; i < EXPOSURES; i++) {
+            if (job.mImages[i] != null) {
+                job.mImages[i].close();
+                job.mImages[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Back on the callback handler: report the job, recycle it, and start a waiting capture.
+     */
+    private class JobDone implements Runnable {
+        private final Job mJob;
+
+        JobDone(Job job) {
+            mJob = job;
+        }
+
+        @Override
+        public void run() {
+            File file = mJob.mFile;
+            mFreeJobs.add(mJob);
+            if (file != null) {
+                mListener.onStillSaved(file);
+            } else {
+                mListener.onStillFailed();
+            }
+            if (mWaitingCaptures > 0) {
+                mWaitingCaptures--;
+                capture(mWaitingEvenExposure, mWaitingOddExposure);
+            }
+        }
+    }
+}
@@ -21,18 +21,16 @@ import android.annotation.SuppressLint;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.CaptureResult;
-import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.renderscript.RenderScript;
 import android.support.annotation.NonNull;
@@ -46,15 +44,24 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.Surface;
+import android.view.Choreographer;
 import android.view.SurfaceHolder;
 import android.view.View;
+import android.util.Range;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.TextView;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A small demo of advanced camera functionality with the Android camera2 API.
@@ -64,17 +71,19 @@ import java.util.Objects;
  * frames, and then compositing together the latest two frames whenever a new frame is
  * captured.</p>
  *
- * <p>The demo has three modes: Regular auto-exposure viewfinder, split-screen manual exposure,
- * and the fused HDR viewfinder.  The latter two use manual exposure controlled by the user,
- * by swiping up/down on the right and left halves of the viewfinder.  The left half controls
- * the exposure time of even frames, and the right half controls the exposure time of odd frames.
- * </p>
+ * <p>The demo has four modes: Regular auto-exposure viewfinder, split-screen manual exposure,
+ * the fused HDR viewfinder, and an exposure fusion viewfinder.  The latter three use manual
+ * exposure controlled by the user, by swiping up/down on the right and left halves of the
+ * viewfinder.  The left half controls the exposure time of even frames, and the right half
+ * controls the exposure time of odd frames.</p>
  *
  * <p>In split-screen mode, the even frames are shown on the left and the odd frames on the right,
  * so the user can see two different exposures of the scene simultaneously.  In fused HDR mode,
  * the even/odd frames are merged together into a single image.  By selecting different exposure
  * values for the even/odd frames, the fused image has a higher dynamic range than the regular
- * viewfinder.</p>
+ * viewfinder.  Exposure fusion mode weights each pixel of the two frames by its contrast,
+ * saturation and exposure, and blends them on Laplacian pyramids, which keeps highlight and
+ * shadow detail instead of averaging it away.</p>
  *
  * <p>The HDR fusion and the split-screen viewfinder processing is done with RenderScript; as is the
  * necessary YUV->RGB conversion. The camera subsystem outputs YUV images naturally, while the GPU
@@ -94,6 +103,30 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
 
     private static final String FRAGMENT_DIALOG = "dialog";
 
+    /**
+     * Intent extras that run the viewfinder on a SimulatedCameraBackend instead of the camera:
+     * a boolean to enable it, the path of a Radiance .hdr scene to use instead of the synthetic
+     * one, and the frame rate.
+     */
+    static final String EXTRA_SIMULATED_CAMERA =
+            "com.example.android.hdrviewfinder.SIMULATED_CAMERA";
+    static final String EXTRA_SIMULATED_SCENE =
+            "com.example.android.hdrviewfinder.SIMULATED_SCENE";
+    static final String EXTRA_SIMULATED_FRAME_RATE =
+            "com.example.android.hdrviewfinder.SIMULATED_FRAME_RATE";
+    private static final int SIMULATED_FRAME_RATE = 30;
+
+    /**
+     * Intent extra, a boolean, that records per-frame capture metadata and processing latency
+     * to METADATA_FILE in the app's external files directory. Export it with
+     * FrameMetadataReader.
+     */
+    static final String EXTRA_RECORD_METADATA =
+            "com.example.android.hdrviewfinder.RECORD_METADATA";
+    static final String METADATA_FILE = "frame_metadata.bin";
+    // About two minutes of a 240 fps burst
+    private static final int METADATA_CAPACITY = 1 << 16;
+
     private static final int REQUEST_PERMISSIONS_REQUEST_CODE = 34;
 
     /**
@@ -114,40 +147,121 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
     // These show lengths of exposure for even frames, exposure for odd frames, and auto exposure.
     private TextView mEvenExposureText, mOddExposureText, mAutoExposureText;
 
+    private CheckBox mAutoBracketBox;
+
+    private Button mCaptureButton;
+
+    private Button mRecordButton;
+
+    // Whether the record button is in its recording state; only touched on the UI thread
+    private boolean mRecording = false;
+    // The recording and the processor it records from, only touched on the startup thread
+    private VideoRecorder mVideoRecorder;
+    private ViewfinderProcessor mRecordingProcessor;
+    private Size mProcessorSize;
+
+    private Button mToneMapButton;
+
     private Handler mUiHandler;
 
-    private CameraCharacteristics mCameraInfo;
+    private CameraProperties mCamera;
 
     private Surface mPreviewSurface;
     private Surface mProcessingHdrSurface;
     private Surface mProcessingNormalSurface;
-    CaptureRequest.Builder mHdrBuilder;
-    ArrayList<CaptureRequest> mHdrRequests = new ArrayList<>(2);
+    ArrayList<FrameRequest> mHdrRequests = new ArrayList<>(2);
+
+    // Built HDR requests, reused while exposures stay within a cache step
+    private static final int HDR_REQUEST_CACHE_SIZE = 32;
+    private final CaptureRequestCache<FrameRequest> mHdrRequestCache =
+            new CaptureRequestCache<>(HDR_REQUEST_CACHE_SIZE);
+    // The burst last set as the repeating request, empty while the preview request is
+    private final ArrayList<FrameRequest> mActiveHdrRequests = new ArrayList<>(2);
 
-    CaptureRequest mPreviewRequest;
+    // Number of exposures in the repeating HDR burst, cycled with a long press
+    private static final int[] BRACKET_SIZES = {2, 3, 5, 7};
+    private int mBracketSize = 2;
+
+    FrameRequest mPreviewRequest;
 
     RenderScript mRS;
-    ViewfinderProcessor mProcessor;
+
+    // RenderScript and the processor are created in order on the startup thread, in parallel
+    // with the camera being found on its own thread, opened, and the preview surface created
+    private HandlerThread mStartupThread;
+    private Handler mStartupHandler;
+    private StartupTrace mStartupTrace;
+    volatile ViewfinderProcessor mProcessor;
+    HdrStillCapture mStillCapture;
     CameraManager mCameraManager;
     CameraOps mCameraOps;
 
     private int mRenderMode = ViewfinderProcessor.MODE_NORMAL;
 
+    private int mToneMap = ViewfinderProcessor.TONE_MAP_NONE;
+
+    // Linear gain before the tone curve; curves compress highlights, so lift the image a stop
+    private static final float TONE_MAP_EXPOSURE_STOPS = 1.f;
+
+    // Widest frame that fusion can process at full resolution at frame rate; wider outputs
+    // compute fusion weights on a proxy no wider than this
+    private static final int FULL_RATE_WIDTH = 1280;
+
     // Durations in nanoseconds
     private static final long MICRO_SECOND = 1000;
     private static final long MILLI_SECOND = MICRO_SECOND * 1000;
     private static final long ONE_SECOND = MILLI_SECOND * 1000;
 
+    private static final int HDR_SENSITIVITY = 1600;
+
+    // Frame durations of the HDR burst, for the processing input size
+    private BurstScheduler mBurstScheduler;
+    private final long[] mBurstExposures = new long[ViewfinderProcessor.MAX_BRACKET_SIZE];
+
     private long mOddExposure = ONE_SECOND / 33;
     private long mEvenExposure = ONE_SECOND / 33;
 
-    private Object mOddExposureTag = new Object();
-    private Object mEvenExposureTag = new Object();
     private Object mAutoExposureTag = new Object();
 
+    // Tags of the HDR burst requests, indexed by burst size and exposure index. Each tag
+    // carries its own index, so results still in flight after the burst size changes are
+    // matched to the burst they came from.
+    private final ExposureTag[][] mBurstExposureTags =
+            new ExposureTag[ViewfinderProcessor.MAX_BRACKET_SIZE + 1][];
+
+    // Capture results are handled on the metadata thread and recorded in mCaptureResults. The
+    // exposure labels are updated from it at most once per display frame.
+    private HandlerThread mMetadataThread;
+    private Handler mMetadataHandler;
+    private static final int CAPTURE_RESULT_CAPACITY = 64;
+    private final CaptureResultRing mCaptureResults =
+            new CaptureResultRing(CAPTURE_RESULT_CAPACITY);
+    private final AtomicBoolean mLabelUpdateScheduled = new AtomicBoolean();
+
+    // Kinds of capture results, indexing the exposure labels
+    private static final int RESULT_OTHER = -1;
+    private static final int RESULT_EVEN = 0;
+    private static final int RESULT_ODD = 1;
+    private static final int RESULT_AUTO = 2;
+    private static final int RESULT_KIND_COUNT = 3;
+
+    // Only touched on the UI thread: results up to this count were shown, and the exposure times
+    // shown for each kind
+    private long mShownResultCount = 0;
+    private final long[] mShownExposures = new long[RESULT_KIND_COUNT];
+    private final boolean[] mSeenResultKinds = new boolean[RESULT_KIND_COUNT];
+
+    // Opened on the startup thread if EXTRA_RECORD_METADATA is set
+    private volatile FrameMetadataRecorder mFrameRecorder;
+
+    // Calibrated inverse response of the open camera, null for the default gamma. Loaded and
+    // solved on the startup thread, applied to stills and the viewfinder on the UI thread.
+    private float[] mInverseResponse;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mStartupTrace = new StartupTrace(SystemClock.elapsedRealtimeNanos());
         setContentView(R.layout.main);
 
         rootView = findViewById(R.id.panels);
@@ -164,9 +278,49 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
         mOddExposureText = (TextView) findViewById(R.id.odd_exposure);
         mAutoExposureText = (TextView) findViewById(R.id.auto_exposure);
 
+        mAutoBracketBox = (CheckBox) findViewById(R.id.auto_bracket);
+        mAutoBracketBox.setOnCheckedChangeListener(mAutoBracketBoxListener);
+
+        mCaptureButton = (Button) findViewById(R.id.capture_button);
+        mCaptureButton.setOnClickListener(mCaptureButtonListener);
+
+        mRecordButton = (Button) findViewById(R.id.record_button);
+        mRecordButton.setOnClickListener(mRecordButtonListener);
+
+        mToneMapButton = (Button) findViewById(R.id.tone_map_button);
+        mToneMapButton.setOnClickListener(mToneMapButtonListener);
+        updateToneMapText();
+
         mUiHandler = new Handler(Looper.getMainLooper());
 
-        mRS = RenderScript.create(this);
+        for (int size : BRACKET_SIZES) {
+            mBurstExposureTags[size] = new ExposureTag[size];
+            for (int i = 0; i < size; i++) {
+                mBurstExposureTags[size][i] = new ExposureTag(i, size);
+            }
+        }
+        mMetadataThread = new HandlerThread("CaptureMetadata");
+        mMetadataThread.start();
+        mMetadataHandler = new Handler(mMetadataThread.getLooper());
+
+        mStartupThread = new HandlerThread("StartupThread");
+        mStartupThread.start();
+        mStartupHandler = new Handler(mStartupThread.getLooper());
+        mStartupHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRS = RenderScript.create(HdrViewfinderActivity.this);
+                mStartupTrace.mark("renderscript", SystemClock.elapsedRealtimeNanos());
+            }
+        });
+        if (getIntent().getBooleanExtra(EXTRA_RECORD_METADATA, false)) {
+            mStartupHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    openFrameRecorder();
+                }
+            });
+        }
 
         // When permissions are revoked the app is restarted so onCreate is sufficient to check for
         // permissions core to the Activity's functionality.
@@ -188,9 +342,75 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
 
         // Wait until camera is closed to ensure the next application can open it
         if (mCameraOps != null) {
+            Log.i(TAG, "Repeating request updates coalesced: " +
+                    mCameraOps.getCoalescedRepeatingCount() + ", HDR request cache hits: " +
+                    mHdrRequestCache.getHitCount() + ", misses: " +
+                    mHdrRequestCache.getMissCount());
+            if (mProcessor != null && mBurstScheduler != null) {
+                Log.i(TAG, String.format(Locale.US,
+                        "Fused output rate: %.1f frames/s, expected %.1f frames/s",
+                        mProcessor.getFusedOutputRate(),
+                        mBurstScheduler.getExpectedOutputRate()));
+            }
+            if (mProcessor != null) {
+                Log.i(TAG, "Frames on time: " + mProcessor.getOnTimeFrameCount() + ", late: " +
+                        mProcessor.getLateFrameCount() + ", skipped: " +
+                        mProcessor.getSkippedFrameCount());
+            }
             mCameraOps.closeCameraAndWait();
             mCameraOps = null;
         }
+        if (mStillCapture != null) {
+            mStillCapture.release();
+            mStillCapture = null;
+        }
+        mCaptureButton.setEnabled(false);
+        stopRecording();
+        mRecordButton.setEnabled(false);
+        // The camera is closed, so nothing sends frames to the processor anymore
+        if (mProcessor != null) {
+            mProcessor.release();
+            mProcessor = null;
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mStartupHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeFrameRecorder();
+            }
+        });
+        mStartupThread.quitSafely();
+        mMetadataThread.quitSafely();
+    }
+
+    /**
+     * Open the frame metadata recorder. Called on the startup thread before the processor is
+     * created.
+     */
+    private void openFrameRecorder() {
+        File file = new File(getExternalFilesDir(null), METADATA_FILE);
+        try {
+            mFrameRecorder = new FrameMetadataRecorder(file, METADATA_CAPACITY);
+            Log.i(TAG, "Recording frame metadata to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't open " + file + " for frame metadata", e);
+        }
+    }
+
+    private void closeFrameRecorder() {
+        FrameMetadataRecorder recorder = mFrameRecorder;
+        if (recorder == null) return;
+        mFrameRecorder = null;
+        try {
+            recorder.close();
+            Log.i(TAG, "Recorded " + recorder.getCount() + " frame metadata records");
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't close the frame metadata file", e);
+        }
     }
 
     @Override
@@ -207,6 +427,10 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
                         .show(getSupportFragmentManager(), FRAGMENT_DIALOG);
                 break;
             }
+            case R.id.calibrate_response: {
+                calibrateResponse();
+                break;
+            }
         }
         return super.onOptionsItemSelected(item);
     }
@@ -225,9 +449,14 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
             return true;
         }
 
+        @Override
+        public void onLongPress(MotionEvent e) {
+            switchBracketSize();
+        }
+
         @Override
         public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
-            if (mRenderMode == ViewfinderProcessor.MODE_NORMAL) return false;
+            if (!usesHdrBurst()) return false;
 
             float xPosition = e1.getAxisValue(MotionEvent.AXIS_X);
             float width = mPreviewView.getWidth();
@@ -239,6 +468,9 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
             final float ACCELERATION_FACTOR = 8;
             double scaleFactor = Math.pow(2.f, yDistNorm * ACCELERATION_FACTOR);
 
+            // Manual exposure control takes over from auto bracketing
+            mAutoBracketBox.setChecked(false);
+
             // Even on left, odd on right
             if (xPosNorm > 0.5) {
                 mOddExposure *= scaleFactor;
@@ -262,6 +494,225 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
         }
     };
 
+    /**
+     * Take an HDR still with the current even and odd exposures.
+     */
+    private View.OnClickListener mCaptureButtonListener = new View.OnClickListener() {
+        public void onClick(View v) {
+            if (mStillCapture != null) {
+                mStillCapture.capture(mEvenExposure, mOddExposure);
+            }
+        }
+    };
+
+    /**
+     * Start or stop recording the viewfinder.
+     */
+    private View.OnClickListener mRecordButtonListener = new View.OnClickListener() {
+        public void onClick(View v) {
+            if (mRecording) {
+                stopRecording();
+            } else {
+                startRecording();
+            }
+        }
+    };
+
+    /**
+     * Start recording the output of the current processor to a new video file. The encoder is
+     * set up on the startup thread.
+     */
+    private void startRecording() {
+        if (mProcessor == null) return;
+        final ViewfinderProcessor processor = mProcessor;
+        final Size size = mProcessorSize;
+        String name = "HDR_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US)
+                .format(new Date()) + ".mp4";
+        final File file = new File(getExternalFilesDir(Environment.DIRECTORY_MOVIES), name);
+        setRecording(true);
+        mStartupHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    VideoRecorder recorder = new VideoRecorder(size, file);
+                    processor.startRecording(recorder.getInputSurface());
+                    mVideoRecorder = recorder;
+                    mRecordingProcessor = processor;
+                    Log.i(TAG, "Recording to " + file);
+                } catch (IOException | IllegalStateException e) {
+                    Log.e(TAG, "Couldn't start recording to " + file, e);
+                    mUiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            setRecording(false);
+                            Snackbar.make(rootView, R.string.recording_failed,
+                                    Snackbar.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop recording, if recording. The file is finished on the startup thread.
+     */
+    private void stopRecording() {
+        if (!mRecording) return;
+        setRecording(false);
+        mStartupHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                VideoRecorder recorder = mVideoRecorder;
+                ViewfinderProcessor processor = mRecordingProcessor;
+                if (recorder == null) return;
+                mVideoRecorder = null;
+                mRecordingProcessor = null;
+
+                processor.stopRecording();
+                recorder.stop();
+                final String name = recorder.getFile().getName();
+                final long encoded = recorder.getEncodedFrameCount();
+                final long processed = processor.getRecordingProcessedFrameCount();
+                Log.i(TAG, "Recorded " + recorder.getFile() + ": " + processed +
+                        " frames processed, " + processor.getRecordedFrameCount() +
+                        " sent to the encoder, " + encoded + " encoded");
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Snackbar.make(rootView,
+                                getString(R.string.recording_saved, name, encoded, processed),
+                                Snackbar.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
+    }
+
+    private void setRecording(boolean recording) {
+        mRecording = recording;
+        mRecordButton.setText(recording ? R.string.stop_recording_button : R.string.record_button);
+    }
+
+    /**
+     * Cycle through the tone-mapping operators.
+     */
+    private View.OnClickListener mToneMapButtonListener = new View.OnClickListener() {
+        public void onClick(View v) {
+            mToneMap = (mToneMap + 1) % ViewfinderProcessor.TONE_MAP_COUNT;
+            updateToneMapText();
+            if (mProcessor != null) {
+                mProcessor.setToneMap(mToneMap, TONE_MAP_EXPOSURE_STOPS);
+            }
+        }
+    };
+
+    private void updateToneMapText() {
+        mToneMapButton.setText(
+                getResources().getStringArray(R.array.tone_map_label_array)[mToneMap]);
+    }
+
+    private HdrStillCapture.Listener mStillListener = new HdrStillCapture.Listener() {
+        @Override
+        public void onStillSaved(File file) {
+            Snackbar.make(rootView, getString(R.string.still_saved, file.getName()),
+                    Snackbar.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onStillFailed() {
+            Snackbar.make(rootView, R.string.still_failed, Snackbar.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onCalibrationCaptured(final ResponseCalibration calibration) {
+            final String cameraId = mCamera.getCameraId();
+            mStartupHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    solveResponse(calibration, cameraId);
+                }
+            });
+        }
+
+        @Override
+        public void onCalibrationFailed() {
+            Snackbar.make(rootView, R.string.calibration_failed, Snackbar.LENGTH_SHORT).show();
+        }
+    };
+
+    /**
+     * Capture a calibration bracket centered between the current even and odd exposures.
+     */
+    private void calibrateResponse() {
+        if (mStillCapture == null) return;
+        long center = Math.round(Math.sqrt((double) mEvenExposure * mOddExposure));
+        ResponseCalibration calibration =
+                new ResponseCalibration(ResponseCalibration.bracket(center));
+        if (!mStillCapture.calibrate(calibration)) {
+            Snackbar.make(rootView, R.string.calibration_failed, Snackbar.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Solve and save the response of a captured bracket. Called on the startup thread.
+     */
+    private void solveResponse(ResponseCalibration calibration, String cameraId) {
+        final float[] table;
+        try {
+            table = calibration.solve();
+            ResponseCalibration.save(table,
+                    ResponseCalibration.file(getFilesDir(), cameraId));
+        } catch (IllegalStateException | IOException e) {
+            Log.e(TAG, "Couldn't calibrate the response of camera " + cameraId, e);
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Snackbar.make(rootView, R.string.calibration_failed,
+                            Snackbar.LENGTH_SHORT).show();
+                }
+            });
+            return;
+        }
+        Log.i(TAG, "Calibrated the response of camera " + cameraId);
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                setInverseResponse(table);
+                Snackbar.make(rootView, R.string.calibration_saved, Snackbar.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Load the saved response of a camera, if it was calibrated. Called on the startup thread.
+     */
+    private void loadResponse(String cameraId) {
+        float[] table = null;
+        try {
+            table = ResponseCalibration.load(ResponseCalibration.file(getFilesDir(), cameraId));
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't load the response of camera " + cameraId, e);
+        }
+        final float[] response = table;
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                setInverseResponse(response);
+            }
+        });
+    }
+
+    private void setInverseResponse(float[] table) {
+        mInverseResponse = table;
+        if (mStillCapture != null) {
+            mStillCapture.setInverseResponse(table);
+        }
+        if (mProcessor != null) {
+            mProcessor.setInverseResponse(table);
+        }
+    }
+
     /**
      * Return the current state of the camera permissions.
      */
@@ -284,15 +735,30 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
      * Attempt to initialize the camera.
      */
     private void initializeCamera() {
-        mCameraManager = (CameraManager) getSystemService(CAMERA_SERVICE);
-        if (mCameraManager != null) {
-            mCameraOps = new CameraOps(mCameraManager,
+        CameraBackend backend = null;
+        Intent intent = getIntent();
+        if (intent.getBooleanExtra(EXTRA_SIMULATED_CAMERA, false)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                String scenePath = intent.getStringExtra(EXTRA_SIMULATED_SCENE);
+                backend = new SimulatedCameraBackend(
+                        scenePath != null ? new File(scenePath) : null,
+                        intent.getIntExtra(EXTRA_SIMULATED_FRAME_RATE,
+                                SIMULATED_FRAME_RATE));
+            } else {
+                Log.w(TAG, "The simulated camera needs API 23, using the device camera");
+            }
+        }
+        if (backend == null) {
+            mCameraManager = (CameraManager) getSystemService(CAMERA_SERVICE);
+            if (mCameraManager != null) {
+                backend = new Camera2Backend(mCameraManager);
+            }
+        }
+        if (backend != null) {
+            mCameraOps = new CameraOps(backend,
                 /*errorDisplayer*/ this,
                 /*readyListener*/ this,
                 /*readyHandler*/ mUiHandler);
-
-            mHdrRequests.add(null);
-            mHdrRequests.add(null);
         } else {
             Log.e(TAG, "Couldn't initialize the camera");
         }
@@ -378,97 +844,140 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
         if (!cameraPermissions) {
             return;
         }
-        String errorMessage = "Unknown error";
-        boolean foundCamera = false;
         initializeCamera();
         if (mCameraOps != null) {
-            try {
-                // Find first back-facing camera that has necessary capability.
-                String[] cameraIds = mCameraManager.getCameraIdList();
-                for (String id : cameraIds) {
-                    CameraCharacteristics info = mCameraManager.getCameraCharacteristics(id);
-                    Integer facing = info.get(CameraCharacteristics.LENS_FACING);
-                    Integer level = info.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
-                    boolean hasFullLevel = Objects.equals(level,
-                            CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL);
-
-                    int[] capabilities = info
-                            .get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
-                    Integer syncLatency = info.get(CameraCharacteristics.SYNC_MAX_LATENCY);
-                    boolean hasManualControl = hasCapability(capabilities,
-                            CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR);
-                    boolean hasEnoughCapability = hasManualControl && Objects.equals(syncLatency,
-                            CameraCharacteristics.SYNC_MAX_LATENCY_PER_FRAME_CONTROL);
-
-                    // All these are guaranteed by
-                    // CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL, but checking
-                    // for only the things we care about expands range of devices we can run on.
-                    // We want:
-                    //  - Back-facing camera
-                    //  - Manual sensor control
-                    //  - Per-frame synchronization (so that exposure can be changed every frame)
-                    if (Objects.equals(facing, CameraCharacteristics.LENS_FACING_BACK) &&
-                            (hasFullLevel || hasEnoughCapability)) {
-                        // Found suitable camera - get info, open, and set up outputs
-                        mCameraInfo = info;
-                        mCameraOps.openCamera(id);
-                        configureSurfaces();
-                        foundCamera = true;
-                        break;
-                    }
+            // Looking up characteristics is a round trip to the camera service per camera, so
+            // do it while the UI and RenderScript start up
+            final CameraOps cameraOps = mCameraOps;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    findCamera(cameraOps);
                 }
-                if (!foundCamera) {
-                    errorMessage = getString(R.string.camera_no_good);
-                }
-            } catch (CameraAccessException e) {
-                errorMessage = getErrorString(e);
-            }
-            if (!foundCamera) {
-                showErrorDialog(errorMessage);
-            }
+            }, "CameraLookup").start();
         }
     }
 
-    private boolean hasCapability(int[] capabilities, int capability) {
-        for (int c : capabilities) {
-            if (c == capability) return true;
+    /**
+     * Find a camera fit for HDR, and have it opened and the outputs set up on the UI thread.
+     * Runs on a background thread.
+     */
+    private void findCamera(final CameraOps cameraOps) {
+        String errorMessage;
+        try {
+            final CameraProperties camera = cameraOps.findHdrCamera();
+            if (camera != null) {
+                mStartupTrace.mark("camera found", SystemClock.elapsedRealtimeNanos());
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        openCamera(cameraOps, camera);
+                    }
+                });
+                return;
+            }
+            errorMessage = getString(R.string.camera_no_good);
+        } catch (CameraAccessException e) {
+            errorMessage = getErrorString(e);
         }
-        return false;
+        final String message = errorMessage;
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                showErrorDialog(message);
+            }
+        });
+    }
+
+    /**
+     * Open the camera found by findCamera and set up outputs, unless the activity was paused
+     * while looking.
+     */
+    private void openCamera(CameraOps cameraOps, CameraProperties camera) {
+        if (cameraOps != mCameraOps) return;
+
+        mCamera = camera;
+        mCameraOps.openCamera(camera.getCameraId());
+        final String cameraId = camera.getCameraId();
+        mStartupHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                loadResponse(cameraId);
+            }
+        });
+        configureSurfaces();
     }
 
     private void switchRenderMode(int direction) {
         if (mCameraOps != null) {
-            mRenderMode = (mRenderMode + direction) % 3;
+            mRenderMode = (mRenderMode + direction) % ViewfinderProcessor.MODE_COUNT;
 
-            mModeText.setText(getResources().getStringArray(R.array.mode_label_array)[mRenderMode]);
+            updateModeText();
 
             if (mProcessor != null) {
                 mProcessor.setRenderMode(mRenderMode);
             }
-            if (mRenderMode == ViewfinderProcessor.MODE_NORMAL) {
+            if (!usesHdrBurst()) {
                 mCameraOps.setRepeatingRequest(mPreviewRequest,
-                        mCaptureCallback, mUiHandler);
+                        mCaptureCallback, mMetadataHandler);
+                mActiveHdrRequests.clear();
             } else {
                 setHdrBurst();
             }
         }
     }
 
+    /**
+     * Cycle through the supported HDR burst lengths.
+     */
+    private void switchBracketSize() {
+        int next = 0;
+        for (int i = 0; i < BRACKET_SIZES.length; i++) {
+            if (BRACKET_SIZES[i] == mBracketSize) {
+                next = (i + 1) % BRACKET_SIZES.length;
+            }
+        }
+        mBracketSize = BRACKET_SIZES[next];
+
+        if (mProcessor != null) {
+            mProcessor.setBracketSize(mBracketSize);
+        }
+        updateModeText();
+        if (mCameraOps != null && mPreviewRequest != null &&
+                usesHdrBurst()) {
+            setHdrBurst();
+        }
+    }
+
+    /**
+     * Whether the current render mode captures the HDR burst rather than the auto-exposed
+     * preview request.
+     */
+    private boolean usesHdrBurst() {
+        return mRenderMode != ViewfinderProcessor.MODE_NORMAL &&
+                mRenderMode != ViewfinderProcessor.MODE_DENOISE;
+    }
+
+    private void updateModeText() {
+        String modeLabel = getResources().getStringArray(R.array.mode_label_array)[mRenderMode];
+        if (mBracketSize > 2) {
+            modeLabel = getString(R.string.bracket_label, modeLabel, mBracketSize);
+        }
+        mModeText.setText(modeLabel);
+    }
+
     /**
      * Configure the surfaceview and RS processing.
      */
     private void configureSurfaces() {
-        // Find a good size for output - largest 16:9 aspect ratio that's less than 720p
-        final int MAX_WIDTH = 1280;
+        // Find a good size for output - largest 16:9 aspect ratio that's less than 1080p. Fusion
+        // weights are computed at no more than 720p, see FULL_RATE_WIDTH, and the
+        // full-resolution output pass only runs the bilateral upsampling at weight edges.
+        final int MAX_WIDTH = 1920;
         final float TARGET_ASPECT = 16.f / 9.f;
         final float ASPECT_TOLERANCE = 0.1f;
 
-        StreamConfigurationMap configs =
-                mCameraInfo.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-        if (configs == null) {
-            throw new RuntimeException("Cannot get available picture/preview sizes.");
-        }
-        Size[] outputSizes = configs.getOutputSizes(SurfaceHolder.class);
+        Size[] outputSizes = mCamera.getPreviewSizes();
 
         Size outputSize = outputSizes[0];
         float outputAspect = (float) outputSize.getWidth() / outputSize.getHeight();
@@ -486,22 +995,91 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
             }
         }
         Log.i(TAG, "Resolution chosen: " + outputSize);
+        mBurstScheduler = new BurstScheduler(mCamera.getMinFrameDuration(outputSize),
+                mCamera.getMaxFrameDuration());
 
         // Configure processing
-        mProcessor = new ViewfinderProcessor(mRS, outputSize);
-        setupProcessor();
+        int proxyScale = 1;
+        while (outputSize.getWidth() > FULL_RATE_WIDTH * proxyScale &&
+                proxyScale < ViewfinderProcessor.MAX_PROXY_SCALE) {
+            proxyScale *= 2;
+        }
+        Log.i(TAG, "Fusion proxy scale: " + proxyScale);
+
+        // Stills use the largest YUV output, merged off the viewfinder path
+        Size[] yuvSizes = mCamera.getYuvSizes();
+        Size stillSize = yuvSizes[0];
+        for (Size candidateSize : yuvSizes) {
+            if ((long) candidateSize.getWidth() * candidateSize.getHeight() >
+                    (long) stillSize.getWidth() * stillSize.getHeight()) {
+                stillSize = candidateSize;
+            }
+        }
+        Log.i(TAG, "Still resolution: " + stillSize);
+        if (mStillCapture != null) {
+            mStillCapture.release();
+        }
+        mStillCapture = new HdrStillCapture(stillSize,
+                getExternalFilesDir(Environment.DIRECTORY_PICTURES), mStillListener, mUiHandler);
+        mStillCapture.setInverseResponse(mInverseResponse);
+
+        // Loading the merge scripts waits for RenderScript on the startup thread, while the
+        // camera opens and the preview surface is created below
+        final Size processorSize = outputSize;
+        mProcessorSize = outputSize;
+        final int processorProxyScale = proxyScale;
+        mStartupHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final ViewfinderProcessor processor = new ViewfinderProcessor(mRS, processorSize);
+                mStartupTrace.mark("processor", SystemClock.elapsedRealtimeNanos());
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onProcessorCreated(processor, processorProxyScale);
+                    }
+                });
+            }
+        });
 
         // Configure the output view - this will fire surfaceChanged
         mPreviewView.setAspectRatio(outputAspect);
         mPreviewView.getHolder().setFixedSize(outputSize.getWidth(), outputSize.getHeight());
     }
 
+    /**
+     * Apply the current settings to a newly created processor and set it up if the preview
+     * surface is ready.
+     */
+    private void onProcessorCreated(ViewfinderProcessor processor, int proxyScale) {
+        if (mProcessor != null) {
+            mProcessor.release();
+        }
+        mProcessor = processor;
+        mProcessor.setRenderMode(mRenderMode);
+        mProcessor.setBracketSize(mBracketSize);
+        mProcessor.setFusionProxyScale(proxyScale);
+        mProcessor.setToneMap(mToneMap, TONE_MAP_EXPOSURE_STOPS);
+        mProcessor.setInverseResponse(mInverseResponse);
+        mProcessor.setFrameRecorder(mFrameRecorder);
+        mProcessor.setDisplayRefreshRate(
+                getWindowManager().getDefaultDisplay().getRefreshRate());
+        if (!mStartupTrace.isFinished()) {
+            mProcessor.setFirstFrameListener(mFirstFrameListener, mUiHandler);
+        }
+        mProcessor.setQualityListener(mQualityListener, mUiHandler);
+        // The encoder's asynchronous mode needs M
+        mRecordButton.setEnabled(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+        updateAutoBracket();
+        setupProcessor();
+    }
+
     /**
      * Once camera is open and output surfaces are ready, configure the RS processing
      * and the camera device inputs/outputs.
      */
     private void setupProcessor() {
-        if (mProcessor == null || mPreviewSurface == null) return;
+        if (mProcessor == null || mPreviewSurface == null || mCameraOps == null) return;
 
         mProcessor.setOutputSurface(mPreviewSurface);
         mProcessingHdrSurface = mProcessor.getInputHdrSurface();
@@ -510,87 +1088,296 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
         List<Surface> cameraOutputSurfaces = new ArrayList<>();
         cameraOutputSurfaces.add(mProcessingHdrSurface);
         cameraOutputSurfaces.add(mProcessingNormalSurface);
+        cameraOutputSurfaces.add(mStillCapture.getSurface());
 
         mCameraOps.setSurfaces(cameraOutputSurfaces);
     }
 
     /**
-     * Start running an HDR burst on a configured camera session
+     * Start running an HDR burst on a configured camera session. The burst has mBracketSize
+     * requests, with exposure times spaced geometrically from the even to the odd exposure.
      */
     public void setHdrBurst() {
+        for (int i = 0; i < mBracketSize; i++) {
+            double position = (double) i / (mBracketSize - 1);
+            long exposure = Math.round(
+                    mEvenExposure * Math.pow((double) mOddExposure / mEvenExposure, position));
+            mBurstExposures[i] = CaptureRequestCache.quantizeExposure(
+                    mBurstScheduler.clampExposure(exposure));
+        }
+        // Each request gets the shortest frame duration its exposure allows
+        mBurstScheduler.schedule(mBurstExposures, mBracketSize);
+
+        mHdrRequests.clear();
+        for (int i = 0; i < mBracketSize; i++) {
+            long exposure = mBurstExposures[i];
+            long frameDuration = mBurstScheduler.getFrameDuration(i);
+            Object tag = getExposureTag(i);
+            FrameRequest request = mHdrRequestCache.get(exposure, HDR_SENSITIVITY,
+                    frameDuration, tag);
+            if (request == null) {
+                request = new FrameRequest(CameraDevice.TEMPLATE_PREVIEW,
+                        mProcessingHdrSurface, exposure, HDR_SENSITIVITY, frameDuration, tag);
+                mHdrRequestCache.put(exposure, HDR_SENSITIVITY, frameDuration, tag, request);
+            }
+            mHdrRequests.add(request);
+        }
 
-        mHdrBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, 1600);
-        mHdrBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, ONE_SECOND / 30);
+        // Exposure changes within a cache step give the same requests; don't resubmit them
+        if (!sameRequests(mHdrRequests, mActiveHdrRequests)) {
+            mCameraOps.setRepeatingBurst(mHdrRequests, mCaptureCallback, mMetadataHandler);
+            mActiveHdrRequests.clear();
+            mActiveHdrRequests.addAll(mHdrRequests);
+            Log.d(TAG, String.format(Locale.US,
+                    "HDR burst repeats every %.1f ms, up to %.1f fused frames/s",
+                    mBurstScheduler.getCycleDuration() / 1e6,
+                    mBurstScheduler.getExpectedOutputRate()));
+        }
+        mProcessor.setBracketExposures(mEvenExposure, mOddExposure);
+    }
 
-        mHdrBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mEvenExposure);
-        mHdrBuilder.setTag(mEvenExposureTag);
-        mHdrRequests.set(0, mHdrBuilder.build());
+    private static boolean sameRequests(List<FrameRequest> a, List<FrameRequest> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i)) return false;
+        }
+        return true;
+    }
+
+    private CompoundButton.OnCheckedChangeListener mAutoBracketBoxListener =
+            new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            updateAutoBracket();
+        }
+    };
 
-        mHdrBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mOddExposure);
-        mHdrBuilder.setTag(mOddExposureTag);
-        mHdrRequests.set(1, mHdrBuilder.build());
+    /**
+     * Start or stop auto bracketing in the processor to match the auto bracket checkbox.
+     */
+    private void updateAutoBracket() {
+        if (mProcessor == null) return;
+        if (!mAutoBracketBox.isChecked()) {
+            mProcessor.setAutoBracketListener(null, null, 0, 0);
+            return;
+        }
 
-        mCameraOps.setRepeatingBurst(mHdrRequests, mCaptureCallback, mUiHandler);
+        // Keep exposures short enough for the burst to run at its frame rate
+        long minExposure = MILLI_SECOND / 10;
+        long maxExposure = ONE_SECOND / 30;
+        Range<Long> exposureRange = mCamera.getExposureRange();
+        if (exposureRange != null) {
+            minExposure = Math.min(exposureRange.getLower(), maxExposure);
+            maxExposure = Math.min(exposureRange.getUpper(), maxExposure);
+        }
+        mProcessor.setAutoBracketListener(mAutoBracketListener, mUiHandler,
+                minExposure, maxExposure);
+        mProcessor.setBracketExposures(mEvenExposure, mOddExposure);
     }
 
+    private ViewfinderProcessor.AutoBracketListener mAutoBracketListener =
+            new ViewfinderProcessor.AutoBracketListener() {
+        @Override
+        public void onAutoBracket(long evenExposure, long oddExposure) {
+            if (!mAutoBracketBox.isChecked()) return;
+            mEvenExposure = evenExposure;
+            mOddExposure = oddExposure;
+            if (usesHdrBurst()) {
+                setHdrBurst();
+            }
+        }
+    };
+
     /**
-     * Listener for completed captures
-     * Invoked on UI thread
+     * Tag of an HDR burst request: its exposure index and the size of its burst. The first
+     * exposure is the even one and the last the odd one.
      */
-    private CameraCaptureSession.CaptureCallback mCaptureCallback
-            = new CameraCaptureSession.CaptureCallback() {
+    private static final class ExposureTag {
+        final int mIndex;
+        final int mBurstSize;
 
-        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                       @NonNull CaptureRequest request,
-                                       @NonNull TotalCaptureResult result) {
+        ExposureTag(int index, int burstSize) {
+            mIndex = index;
+            mBurstSize = burstSize;
+        }
 
-            // Only update UI every so many frames
-            // Use an odd number here to ensure both even and odd exposures get an occasional update
-            long frameNumber = result.getFrameNumber();
-            if (frameNumber % 3 != 0) return;
+        boolean isEven() {
+            return mIndex == 0;
+        }
 
-            final Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-            if (exposureTime == null) {
-                throw new RuntimeException("Cannot get exposure time.");
+        boolean isOdd() {
+            return mIndex == mBurstSize - 1;
+        }
+    }
+
+    /**
+     * Tag of the request for the given exposure index of the current HDR burst.
+     */
+    private Object getExposureTag(int exposure) {
+        return mBurstExposureTags[mBracketSize][exposure];
+    }
+
+    /**
+     * Exposure index within its HDR burst of a request tag, or -1 if it isn't an HDR request.
+     */
+    private static int getExposureIndex(Object tag) {
+        return tag instanceof ExposureTag ? ((ExposureTag) tag).mIndex : -1;
+    }
+
+    /**
+     * Listener for repeating captures
+     * Invoked on the metadata thread
+     */
+    private CameraOps.CaptureListener mCaptureCallback = new CameraOps.CaptureListener() {
+
+        @Override
+        public void onCaptureStarted(FrameRequest request, long timestamp, long frameNumber) {
+            // Tell the processor which exposure each HDR buffer has. The timestamp is the
+            // sensor timestamp of the final capture result, but arrives before the buffer.
+            int exposure = getExposureIndex(request.getTag());
+            ViewfinderProcessor processor = mProcessor;
+            if (processor != null && exposure >= 0) {
+                processor.onCaptureResult(timestamp, exposure);
             }
+        }
 
-            // Format exposure time nicely
-            String exposureText;
-            if (exposureTime > ONE_SECOND) {
-                exposureText = String.format(Locale.US, "%.2f s", exposureTime / 1e9);
-            } else if (exposureTime > MILLI_SECOND) {
-                exposureText = String.format(Locale.US, "%.2f ms", exposureTime / 1e6);
-            } else if (exposureTime > MICRO_SECOND) {
-                exposureText = String.format(Locale.US, "%.2f us", exposureTime / 1e3);
-            } else {
-                exposureText = String.format(Locale.US, "%d ns", exposureTime);
+        @Override
+        public void onCaptureCompleted(FrameRequest request, long frameNumber, long timestamp,
+                                       long exposureTime, long frameDuration, int sensitivity) {
+            if (exposureTime == CameraOps.UNKNOWN_EXPOSURE) {
+                throw new RuntimeException("Cannot get exposure time.");
             }
 
             Object tag = request.getTag();
-            Log.i(TAG, "Exposure: " + exposureText);
+            int kind = RESULT_OTHER;
+            if (tag instanceof ExposureTag && ((ExposureTag) tag).isEven()) {
+                kind = RESULT_EVEN;
+            } else if (tag instanceof ExposureTag && ((ExposureTag) tag).isOdd()) {
+                kind = RESULT_ODD;
+            } else if (tag == mAutoExposureTag) {
+                kind = RESULT_AUTO;
+            }
+            mCaptureResults.add(frameNumber, timestamp, exposureTime, kind);
 
-            if (tag == mEvenExposureTag) {
-                mEvenExposureText.setText(exposureText);
+            FrameMetadataRecorder recorder = mFrameRecorder;
+            if (recorder != null) {
+                recorder.recordCapture(frameNumber, timestamp, exposureTime, frameDuration,
+                        sensitivity, getExposureIndex(tag));
+            }
 
-                mEvenExposureText.setEnabled(true);
-                mOddExposureText.setEnabled(true);
-                mAutoExposureText.setEnabled(false);
-            } else if (tag == mOddExposureTag) {
-                mOddExposureText.setText(exposureText);
+            if (mLabelUpdateScheduled.compareAndSet(false, true)) {
+                mUiHandler.post(mScheduleLabelUpdate);
+            }
+        }
+    };
 
-                mEvenExposureText.setEnabled(true);
-                mOddExposureText.setEnabled(true);
-                mAutoExposureText.setEnabled(false);
-            } else {
-                mAutoExposureText.setText(exposureText);
+    private final Runnable mScheduleLabelUpdate = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mLabelUpdate);
+        }
+    };
+
+    /**
+     * Shows the newest exposure time of each kind of capture result, once per display frame
+     */
+    private final Choreographer.FrameCallback mLabelUpdate = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Results added from here on schedule the next update
+            mLabelUpdateScheduled.set(false);
+            updateExposureLabels();
+        }
+    };
 
-                mEvenExposureText.setEnabled(false);
-                mOddExposureText.setEnabled(false);
-                mAutoExposureText.setEnabled(true);
+    /**
+     * Update the exposure labels from the capture results added since the last update.
+     */
+    private void updateExposureLabels() {
+        long count = mCaptureResults.getCount();
+        long oldest = Math.max(mShownResultCount, count - mCaptureResults.getCapacity() + 1);
+        mShownResultCount = count;
+
+        // Walk back from the newest result until every kind has been seen
+        int newestKind = RESULT_OTHER;
+        boolean[] seen = mSeenResultKinds;
+        Arrays.fill(seen, false);
+        for (long i = count - 1; i >= oldest; i--) {
+            int kind = mCaptureResults.getKind(i);
+            long exposureTime = mCaptureResults.getExposureTime(i);
+            if (mCaptureResults.isOverwritten(i)) break;
+            if (kind == RESULT_OTHER || seen[kind]) continue;
+            seen[kind] = true;
+            if (newestKind == RESULT_OTHER) {
+                newestKind = kind;
+            }
+            if (exposureTime != mShownExposures[kind]) {
+                mShownExposures[kind] = exposureTime;
+                getExposureText(kind).setText(formatExposure(exposureTime));
+            }
+        }
+
+        if (newestKind != RESULT_OTHER) {
+            boolean auto = newestKind == RESULT_AUTO;
+            mEvenExposureText.setEnabled(!auto);
+            mOddExposureText.setEnabled(!auto);
+            mAutoExposureText.setEnabled(auto);
+        }
+    }
+
+    private TextView getExposureText(int kind) {
+        switch (kind) {
+            case RESULT_EVEN:
+                return mEvenExposureText;
+            case RESULT_ODD:
+                return mOddExposureText;
+            default:
+                return mAutoExposureText;
+        }
+    }
+
+    /**
+     * Format exposure time nicely
+     */
+    private static String formatExposure(long exposureTime) {
+        if (exposureTime > ONE_SECOND) {
+            return String.format(Locale.US, "%.2f s", exposureTime / 1e9);
+        } else if (exposureTime > MILLI_SECOND) {
+            return String.format(Locale.US, "%.2f ms", exposureTime / 1e6);
+        } else if (exposureTime > MICRO_SECOND) {
+            return String.format(Locale.US, "%.2f us", exposureTime / 1e3);
+        } else {
+            return String.format(Locale.US, "%d ns", exposureTime);
+        }
+    }
+
+    /**
+     * Logs how long startup took once the first processed frame is shown
+     */
+    private final ViewfinderProcessor.FirstFrameListener mFirstFrameListener =
+            new ViewfinderProcessor.FirstFrameListener() {
+        @Override
+        public void onFirstFrame(long sendTime) {
+            String summary = mStartupTrace.finish(sendTime);
+            if (summary != null) {
+                Log.i(TAG, "Time to first frame: " + summary);
             }
         }
     };
 
+    /**
+     * Logs when processing falls behind or recovers
+     * Invoked on UI thread
+     */
+    private final ViewfinderProcessor.QualityListener mQualityListener =
+            new ViewfinderProcessor.QualityListener() {
+        @Override
+        public void onQualityChanged(int level, long droppedFrames) {
+            Log.i(TAG, "Processing quality level " + level + ", " + droppedFrames +
+                    " frames dropped so far");
+        }
+    };
+
     /**
      * Callbacks for the FixedAspectSurfaceView
      */
@@ -598,6 +1385,7 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
     @Override
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
         mPreviewSurface = holder.getSurface();
+        mStartupTrace.mark("surface", SystemClock.elapsedRealtimeNanos());
 
         setupProcessor();
     }
@@ -617,26 +1405,20 @@ public class HdrViewfinderActivity extends AppCompatActivity implements
      */
     @Override
     public void onCameraReady() {
+        mStartupTrace.mark("session", SystemClock.elapsedRealtimeNanos());
+
         // Ready to send requests in, so set them up
-        try {
-            CaptureRequest.Builder previewBuilder =
-                    mCameraOps.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            previewBuilder.addTarget(mProcessingNormalSurface);
-            previewBuilder.setTag(mAutoExposureTag);
-            mPreviewRequest = previewBuilder.build();
+        mPreviewRequest = new FrameRequest(CameraDevice.TEMPLATE_PREVIEW,
+                mProcessingNormalSurface, mAutoExposureTag);
 
-            mHdrBuilder =
-                    mCameraOps.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            mHdrBuilder.set(CaptureRequest.CONTROL_AE_MODE,
-                    CaptureRequest.CONTROL_AE_MODE_OFF);
-            mHdrBuilder.addTarget(mProcessingHdrSurface);
+        // Cached requests target the previous session's surfaces
+        mHdrRequestCache.clear();
+        mActiveHdrRequests.clear();
 
-            switchRenderMode(0);
+        mStillCapture.setCamera(mCameraOps, HDR_SENSITIVITY);
+        mCaptureButton.setEnabled(true);
 
-        } catch (CameraAccessException e) {
-            String errorMessage = getErrorString(e);
-            showErrorDialog(errorMessage);
-        }
+        switchRenderMode(0);
     }
 
     /**
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Byte layout of a previous-frame history buffer.
+ *
+ * <p>{@link #FORMAT_RGBA} is four bytes per pixel holding Y, U, V and 255, the layout of an
+ * RGBA_8888 allocation. {@link #FORMAT_YUV420} is a full-resolution Y plane followed by a
+ * quarter-resolution plane of interleaved U, V pairs, one per 2x2 block, for 1.5 bytes per
+ * pixel. Camera input is already 4:2:0, so both layouts hold the same values.</p>
+ *
+ * <p>In FORMAT_YUV420 the chroma of a block is only stored by its top-left pixel, so a merge
+ * must not read and write the same buffer.</p>
+ *
+ * <p>Reads through {@link #lumaIndex} and {@link #chromaIndex} can be shifted by a read offset,
+ * clamped to the frame, to sample the history where a {@link FrameAligner} found the current
+ * frame's content; stores are not shifted.</p>
+ */
+class HistoryLayout {
+
+    // Must match gHistoryFormat in history.rsh
+    static final int FORMAT_RGBA = 0;
+    static final int FORMAT_YUV420 = 1;
+
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mChromaWidth;
+    private final int mChromaHeight;
+    private int mReadOffsetX = 0;
+    private int mReadOffsetY = 0;
+
+    HistoryLayout(int width, int height, int format) {
+        if (format != FORMAT_RGBA && format != FORMAT_YUV420) {
+            throw new IllegalArgumentException("Unknown history format: " + format);
+        }
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mChromaWidth = (width + 1) / 2;
+        mChromaHeight = (height + 1) / 2;
+    }
+
+    int getFormat() {
+        return mFormat;
+    }
+
+    int getChromaWidth() {
+        return mChromaWidth;
+    }
+
+    int getChromaHeight() {
+        return mChromaHeight;
+    }
+
+    /**
+     * Size in bytes of a history buffer for one frame.
+     */
+    int getBufferSize() {
+        if (mFormat == FORMAT_RGBA) {
+            return mWidth * mHeight * 4;
+        }
+        return mWidth * mHeight + mChromaWidth * mChromaHeight * 2;
+    }
+
+    /**
+     * Shift following reads: pixel (x, y) is read from (x + offsetX, y + offsetY), clamped to
+     * the frame. Must match gAlignX and gAlignY in history.rsh.
+     */
+    void setReadOffset(int offsetX, int offsetY) {
+        mReadOffsetX = offsetX;
+        mReadOffsetY = offsetY;
+    }
+
+    private int readX(int x) {
+        x += mReadOffsetX;
+        return x < 0 ? 0 : (x >= mWidth ? mWidth - 1 : x);
+    }
+
+    private int readY(int y) {
+        y += mReadOffsetY;
+        return y < 0 ? 0 : (y >= mHeight ? mHeight - 1 : y);
+    }
+
+    int lumaIndex(int x, int y) {
+        x = readX(x);
+        y = readY(y);
+        int i = y * mWidth + x;
+        return mFormat == FORMAT_RGBA ? i * 4 : i;
+    }
+
+    /**
+     * Index of the U value for pixel (x, y); V follows it.
+     */
+    int chromaIndex(int x, int y) {
+        x = readX(x);
+        y = readY(y);
+        if (mFormat == FORMAT_RGBA) {
+            return (y * mWidth + x) * 4 + 1;
+        }
+        return mWidth * mHeight + ((y >> 1) * mChromaWidth + (x >> 1)) * 2;
+    }
+
+    /**
+     * Store the YUV value of pixel (x, y).
+     */
+    void store(byte[] buffer, int x, int y, int luma, int u, int v) {
+        if (mFormat == FORMAT_RGBA) {
+            int offset = (y * mWidth + x) * 4;
+            buffer[offset] = (byte) luma;
+            buffer[offset + 1] = (byte) u;
+            buffer[offset + 2] = (byte) v;
+            buffer[offset + 3] = (byte) 255;
+            return;
+        }
+        buffer[y * mWidth + x] = (byte) luma;
+        if (((x | y) & 1) == 0) {
+            int offset = mWidth * mHeight + ((y >> 1) * mChromaWidth + (x >> 1)) * 2;
+            buffer[offset] = (byte) u;
+            buffer[offset + 1] = (byte) v;
+        }
+    }
+}
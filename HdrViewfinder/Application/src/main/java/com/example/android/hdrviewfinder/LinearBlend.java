@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Viewfinder merge tables for a calibrated camera response, so that the average and denoise
+ * merges blend luma in linear light and fusion judges exposure on a known curve, at the cost of
+ * a table lookup per pixel.
+ *
+ * <p>Re-encoding a blend of two linear values needs the inverse of the 256-entry response
+ * table, so the luma of each blend is baked into a table indexed by the current and previous
+ * luma with {@link #index}, with the denoise weight of HdrMergeKernel.MERGE_DENOISE folded in.
+ * Chroma is still blended in code values. Fusion weighs exposures by the well-exposedness of
+ * the luma linearized by the response and re-encoded with the standard {@link ToneMapper#GAMMA},
+ * so the weights don't depend on the camera's own tone curve.</p>
+ *
+ * <p>hdr_merge.rs and exposure_fusion.rs read the same tables.</p>
+ */
+final class LinearBlend {
+
+    static final int ENTRIES = 256 * 256;
+
+    // Blended luma by index(cur, prev)
+    final byte[] mAverage = new byte[ENTRIES];
+    final byte[] mDenoise = new byte[ENTRIES];
+    // Fusion well-exposedness by luma
+    final float[] mWellExposed = new float[256];
+
+    /**
+     * @param inverseResponse a 256-entry, non-decreasing inverse-response table from
+     *                        {@link ResponseCalibration}
+     */
+    LinearBlend(float[] inverseResponse) {
+        if (inverseResponse.length != 256) {
+            throw new IllegalArgumentException("Inverse response must have 256 entries");
+        }
+        for (int cur = 0; cur < 256; cur++) {
+            float curLinear = inverseResponse[cur];
+            for (int prev = 0; prev < 256; prev++) {
+                float prevLinear = inverseResponse[prev];
+                int weight = Math.min(HdrMergeKernel.DENOISE_MIN_WEIGHT +
+                        Math.abs(cur - prev) * HdrMergeKernel.DENOISE_WEIGHT_SLOPE, 256);
+                int i = index(cur, prev);
+                mAverage[i] = (byte) encode(inverseResponse, (curLinear + prevLinear) / 2);
+                mDenoise[i] = (byte) encode(inverseResponse,
+                        prevLinear + (curLinear - prevLinear) * weight / 256.f);
+            }
+            mWellExposed[cur] = ExposureFusion.wellExposed(
+                    (float) Math.pow(Math.max(curLinear, 0.f), 1 / ToneMapper.GAMMA));
+        }
+    }
+
+    /**
+     * Index of the blend of a current and previous luma. Must match hdr_merge.rs
+     */
+    static int index(int cur, int prev) {
+        return (cur << 8) | prev;
+    }
+
+    /**
+     * The level whose linear value is nearest to linear.
+     */
+    private static int encode(float[] inverseResponse, float linear) {
+        int low = 0;
+        int high = 255;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (inverseResponse[mid] < linear) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low > 0 && linear - inverseResponse[low - 1] < inverseResponse[low] - linear) {
+            low--;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A simple local tone-mapping operator, run as a pass over the merged RGBA output.
+ *
+ * <p>The mean luma of each {@link #CELL_SIZE} square cell is sampled into a coarse grid, which
+ * is bilinearly interpolated to give every pixel the brightness it is adapted to. Each pixel is
+ * then scaled by Reinhard's local curve g / (1 + g * La) in linear light, which lifts dark
+ * regions and compresses bright ones while keeping the contrast within them. Because the curve
+ * only depends on the adaptation luma, it is precomputed as a 256-entry gamma-domain scale
+ * table, the same way as the Java and RenderScript paths; see {@link #buildScale}.</p>
+ */
+class LocalToneMap {
+
+    // Must match LOCAL_CELL_SIZE and LOCAL_SAMPLE_STEP in hdr_merge.rs
+    static final int CELL_SIZE = 32;
+    static final int SAMPLE_STEP = 4;
+
+    // Scale table entries are fixed point with this many fraction bits
+    static final int SCALE_BITS = 8;
+
+    private final int mWidth;
+    private final int mHeight;
+    final int mGridWidth;
+    final int mGridHeight;
+
+    // Mean gamma luma per cell
+    final int[] mGrid;
+
+    // Per column: left grid cell and the weight of the one right of it, in 1/256ths
+    private final int[] mTapX0;
+    private final int[] mTapWeightX;
+
+    private int[] mScale;
+    private byte[] mOutput;
+
+    private final RowBands mApplyRows = new RowBands() {
+        @Override
+        void processRows(int startY, int endY) {
+            applyRows(startY, endY);
+        }
+    };
+
+    LocalToneMap(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mGridWidth = gridSize(width);
+        mGridHeight = gridSize(height);
+        mGrid = new int[mGridWidth * mGridHeight];
+
+        mTapX0 = new int[width];
+        mTapWeightX = new int[width];
+        for (int x = 0; x < width; x++) {
+            int position = gridPosition(x);
+            mTapX0[x] = position >> 8;
+            mTapWeightX[x] = position & 0xFF;
+        }
+    }
+
+    /**
+     * Number of grid cells covering the given number of pixels.
+     */
+    static int gridSize(int pixels) {
+        return (pixels + CELL_SIZE - 1) / CELL_SIZE;
+    }
+
+    /**
+     * Scale table for a local exposure gain: entry a is the gamma-domain factor for pixels
+     * adapted to gamma luma a, in {@link #SCALE_BITS} fixed point.
+     */
+    static int[] buildScale(float exposureStops) {
+        float gain = (float) Math.pow(2, exposureStops);
+        int[] scale = new int[256];
+        for (int a = 0; a < 256; a++) {
+            double adapted = Math.pow(a / 255.0, ToneMapper.GAMMA);
+            scale[a] = (int) Math.round((1 << SCALE_BITS) *
+                    Math.pow(gain / (1 + gain * adapted), 1 / ToneMapper.GAMMA));
+        }
+        return scale;
+    }
+
+    void setScale(int[] scale) {
+        mScale = scale;
+    }
+
+    /**
+     * Tone map an RGBA_8888 frame in place.
+     */
+    void apply(byte[] rgba, ForkJoinPool pool) {
+        if (mScale == null) {
+            throw new IllegalStateException("Scale table must be set");
+        }
+        computeGrid(rgba);
+        mOutput = rgba;
+        mApplyRows.run(pool, mHeight);
+        mOutput = null;
+    }
+
+    /**
+     * Average the sampled luma of each cell; cheap enough at SAMPLE_STEP to run on one thread.
+     */
+    void computeGrid(byte[] rgba) {
+        for (int gy = 0; gy < mGridHeight; gy++) {
+            int endY = Math.min((gy + 1) * CELL_SIZE, mHeight);
+            for (int gx = 0; gx < mGridWidth; gx++) {
+                int endX = Math.min((gx + 1) * CELL_SIZE, mWidth);
+                int sum = 0;
+                int count = 0;
+                for (int y = gy * CELL_SIZE; y < endY; y += SAMPLE_STEP) {
+                    for (int x = gx * CELL_SIZE; x < endX; x += SAMPLE_STEP) {
+                        sum += luma(rgba, (y * mWidth + x) * 4);
+                        count++;
+                    }
+                }
+                mGrid[gy * mGridWidth + gx] = sum / count;
+            }
+        }
+    }
+
+    private void applyRows(int startY, int endY) {
+        final byte[] out = mOutput;
+        final int[] grid = mGrid;
+        final int[] scale = mScale;
+        final int[] tapX0 = mTapX0;
+        final int[] tapWeightX = mTapWeightX;
+        final int gridWidth = mGridWidth;
+        final int lastX = gridWidth - 1;
+        final int round = 1 << (SCALE_BITS - 1);
+        for (int y = startY; y < endY; y++) {
+            int position = gridPosition(y);
+            int row0 = Math.min(position >> 8, mGridHeight - 1) * gridWidth;
+            int row1 = Math.min((position >> 8) + 1, mGridHeight - 1) * gridWidth;
+            int wy = position & 0xFF;
+            int offset = y * mWidth * 4;
+            for (int x = 0; x < mWidth; x++, offset += 4) {
+                int x0 = tapX0[x];
+                int x1 = Math.min(x0 + 1, lastX);
+                int wx = tapWeightX[x];
+                int top = grid[row0 + x0] * (256 - wx) + grid[row0 + x1] * wx;
+                int bottom = grid[row1 + x0] * (256 - wx) + grid[row1 + x1] * wx;
+                int s = scale[(top * (256 - wy) + bottom * wy) >> 16];
+                out[offset] = (byte) Math.min(255, ((out[offset] & 0xFF) * s + round)
+                        >> SCALE_BITS);
+                out[offset + 1] = (byte) Math.min(255, ((out[offset + 1] & 0xFF) * s + round)
+                        >> SCALE_BITS);
+                out[offset + 2] = (byte) Math.min(255, ((out[offset + 2] & 0xFF) * s + round)
+                        >> SCALE_BITS);
+            }
+        }
+    }
+
+    /**
+     * Position of pixel coordinate v on the grid, where cell centers are at integers, in 1/256
+     * fixed point and clamped to the first cell.
+     */
+    private static int gridPosition(int v) {
+        return Math.max(0, ((2 * v + 1) * 256 / CELL_SIZE - 256) / 2);
+    }
+
+    /**
+     * Rec. 601 luma of an RGBA pixel, in fixed point.
+     */
+    static int luma(byte[] rgba, int offset) {
+        return (77 * (rgba[offset] & 0xFF) + 150 * (rgba[offset + 1] & 0xFF) +
+                29 * (rgba[offset + 2] & 0xFF)) >> 8;
+    }
+}
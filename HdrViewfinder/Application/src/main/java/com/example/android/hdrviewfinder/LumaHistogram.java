@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Luma histogram and summary statistics of one merged frame, counted by the merge pass while
+ * it reads the frame.
+ *
+ * <p>Only pixels on a {@link #SAMPLE_STEP} grid are counted, which is plenty for exposure
+ * control and keeps the cost per frame small. The CPU merge counts into per-thread
+ * {@link Partials} that are summed once the pass is done, so bands never contend on the
+ * bins.</p>
+ */
+class LumaHistogram {
+
+    static final int BINS = 256;
+
+    /**
+     * Every SAMPLE_STEP-th pixel of every SAMPLE_STEP-th row is counted; must match
+     * histogram.rsh
+     */
+    static final int SAMPLE_STEP = 4;
+
+    /**
+     * Luma at or above this counts as a clipped highlight
+     */
+    static final int CLIP_HIGHLIGHT = 250;
+    /**
+     * Luma at or below this counts as a clipped shadow
+     */
+    static final int CLIP_SHADOW = 5;
+
+    final int[] mBins = new int[BINS];
+
+    private int mExposure = ExposurePairing.EXPOSURE_UNKNOWN;
+
+    // Summary of mBins, see updateStatistics()
+    private int mTotal;
+    private long mLumaSum;
+    private int mClippedHighlights;
+    private int mClippedShadows;
+
+    /**
+     * Clear the counts for a new frame with the given exposure index.
+     */
+    void reset(int exposure) {
+        Arrays.fill(mBins, 0);
+        mExposure = exposure;
+        mTotal = 0;
+        mLumaSum = 0;
+        mClippedHighlights = 0;
+        mClippedShadows = 0;
+    }
+
+    /**
+     * Exposure index of the frame, as passed to {@link #reset}.
+     */
+    int getExposure() {
+        return mExposure;
+    }
+
+    /**
+     * Recompute the sample count, mean and clipped counts after the bins have been filled.
+     */
+    void updateStatistics() {
+        int total = 0;
+        long lumaSum = 0;
+        for (int i = 0; i < BINS; i++) {
+            total += mBins[i];
+            lumaSum += (long) i * mBins[i];
+        }
+        int clippedHighlights = 0;
+        for (int i = CLIP_HIGHLIGHT; i < BINS; i++) {
+            clippedHighlights += mBins[i];
+        }
+        int clippedShadows = 0;
+        for (int i = 0; i <= CLIP_SHADOW; i++) {
+            clippedShadows += mBins[i];
+        }
+        mTotal = total;
+        mLumaSum = lumaSum;
+        mClippedHighlights = clippedHighlights;
+        mClippedShadows = clippedShadows;
+    }
+
+    void copyFrom(LumaHistogram other) {
+        System.arraycopy(other.mBins, 0, mBins, 0, BINS);
+        mExposure = other.mExposure;
+        mTotal = other.mTotal;
+        mLumaSum = other.mLumaSum;
+        mClippedHighlights = other.mClippedHighlights;
+        mClippedShadows = other.mClippedShadows;
+    }
+
+    /**
+     * Number of sampled pixels.
+     */
+    int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Mean luma of the sampled pixels, or 0 if there are none.
+     */
+    float getMean() {
+        return mTotal > 0 ? (float) mLumaSum / mTotal : 0.f;
+    }
+
+    /**
+     * Number of sampled pixels at or above {@link #CLIP_HIGHLIGHT}.
+     */
+    int getClippedHighlights() {
+        return mClippedHighlights;
+    }
+
+    /**
+     * Number of sampled pixels at or below {@link #CLIP_SHADOW}.
+     */
+    int getClippedShadows() {
+        return mClippedShadows;
+    }
+
+    /**
+     * Smallest luma value with at least the given fraction of samples at or below it.
+     */
+    int percentile(float fraction) {
+        long target = (long) Math.ceil(fraction * getTotal());
+        long count = 0;
+        for (int i = 0; i < BINS; i++) {
+            count += mBins[i];
+            if (count >= target && count > 0) {
+                return i;
+            }
+        }
+        return BINS - 1;
+    }
+
+    /**
+     * Partial histograms of one merge pass, one per thread taking part in it. Bands add to
+     * the bins of the thread they run on without locking; {@link #reduceInto} sums them once
+     * the pass is done. Bins are allocated the first time a thread counts, not per frame.
+     */
+    static class Partials {
+        private final List<int[]> mThreadBins = new ArrayList<>();
+
+        private final ThreadLocal<int[]> mLocalBins = new ThreadLocal<int[]>() {
+            @Override
+            protected int[] initialValue() {
+                int[] bins = new int[BINS];
+                synchronized (mThreadBins) {
+                    mThreadBins.add(bins);
+                }
+                return bins;
+            }
+        };
+
+        /**
+         * Count the sampled pixels of rows [startY, endY) of a frame. May be called
+         * concurrently for disjoint bands of rows.
+         */
+        void addRows(YuvFrame frame, int startY, int endY) {
+            int[] bins = mLocalBins.get();
+            int width = frame.getWidth();
+            int firstRow = (startY + SAMPLE_STEP - 1) / SAMPLE_STEP * SAMPLE_STEP;
+            for (int y = firstRow; y < endY; y += SAMPLE_STEP) {
+                for (int x = 0; x < width; x += SAMPLE_STEP) {
+                    bins[frame.getY(x, y)]++;
+                }
+            }
+        }
+
+        /**
+         * Add the partial counts of a finished pass to histogram, update its statistics, and
+         * clear the partials for the next pass.
+         */
+        void reduceInto(LumaHistogram histogram) {
+            synchronized (mThreadBins) {
+                for (int t = 0; t < mThreadBins.size(); t++) {
+                    int[] bins = mThreadBins.get(t);
+                    for (int i = 0; i < BINS; i++) {
+                        histogram.mBins[i] += bins[i];
+                        bins[i] = 0;
+                    }
+                }
+            }
+            histogram.updateStatistics();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.view.Surface;
+
+/**
+ * Backend that owns the input/output buffers of a {@link ViewfinderProcessor} and runs the
+ * merge kernel over them.
+ *
+ * <p>All methods except the Surface getters are called on the processor's handler thread.</p>
+ */
+interface MergeEngine {
+
+    int STREAM_HDR = 0;
+    int STREAM_NORMAL = 1;
+
+    /**
+     * Get the Surface the camera should send frames for the given stream to.
+     */
+    Surface getInputSurface(int stream);
+
+    void setOutputSurface(Surface output);
+
+    /**
+     * Set the listener notified every time a merged frame is sent to the output Surface, or
+     * null. May be called on any thread, and the listener may be notified on any thread, up to
+     * a merge later than the frame was done.
+     */
+    void setOutputListener(OutputListener listener);
+
+    /**
+     * Also offer each output frame to this feed, or stop if null. Can be called from any thread.
+     */
+    void setEncoderFeed(EncoderFeed feed);
+
+    /**
+     * Set the listener notified once for every buffer that arrives on the given stream.
+     */
+    void setInputListener(int stream, InputListener listener);
+
+    /**
+     * Latch the next queued buffer of the given stream as its current frame.
+     */
+    void receive(int stream);
+
+    /**
+     * Get the timestamp of the current frame of the given stream, which the camera sets to the
+     * sensor timestamp of its capture, or 0 if the engine can't tell.
+     */
+    long getTimestamp(int stream);
+
+    /**
+     * Merge the current frame of the given stream with the previous frame, store it as the new
+     * previous frame, and send the result to the output Surface.
+     *
+     * <p>May return before the merge is done, so that the next frame can be received while it
+     * runs; merges always complete in the order they were issued.</p>
+     *
+     * @param mergeMode one of the HdrMergeKernel.MERGE_ constants
+     * @param tag       passed back to the output listener with the merged frame, or with the
+     *                  dropped merge if there was no current frame, or null
+     */
+    void merge(int stream, int frameCounter, int cutPointX, int mergeMode, Object tag);
+
+    /**
+     * Wait for the merge in progress and free the input and output buffers and any threads of
+     * the engine. No other method may be called afterwards.
+     */
+    void release();
+
+    /**
+     * Set the number of exposures averaged by HdrMergeKernel.MERGE_BRACKET. For that mode the
+     * frame counter passed to {@link #merge} is the exposure index of the frame.
+     */
+    void setBracketSize(int bracketSize);
+
+    /**
+     * Set the proxy scale of HdrMergeKernel.MERGE_FUSION: 1 computes fusion weights at full
+     * resolution, 2 or 4 on a proxy frame that much smaller, upsampled edge-aware.
+     */
+    void setFusionProxyScale(int proxyScale);
+
+    /**
+     * Set the tone mapping of following merges.
+     *
+     * @param lut        a ToneMapper table replacing the YUV->RGB transform, or null for the
+     *                   plain transform
+     * @param localScale a LocalToneMap scale table to run the local operator over the output
+     *                   with, or null
+     */
+    void setToneMap(byte[] lut, int[] localScale);
+
+    /**
+     * Blend luma of the average and denoise merges and weigh fusion exposures in the linear
+     * light of a calibrated camera response, or in code values if blend is null.
+     */
+    void setLinearBlend(LinearBlend blend);
+
+    /**
+     * Enable per-tile motion detection for the average merge.
+     */
+    void setDeghostEnabled(boolean deghost);
+
+    /**
+     * Enable global alignment: each merge that reads the previous frame samples it shifted by
+     * the translation a FrameAligner estimates between the frames.
+     */
+    void setAlignmentEnabled(boolean align);
+
+    /**
+     * Number of tiles where motion was detected in the last merged frame.
+     */
+    int getMotionTileCount();
+
+    /**
+     * Count a sampled luma histogram of the current frame during each merge, for
+     * {@link #getHistogram}.
+     */
+    void setHistogramEnabled(boolean enabled);
+
+    /**
+     * Set the exposure index that histograms of the following merges are tagged with, or
+     * ExposurePairing.EXPOSURE_UNKNOWN.
+     */
+    void setHistogramExposure(int exposure);
+
+    /**
+     * Copy the histogram and statistics of the most recently completed merge into out. Since
+     * merges may still be running, this can lag the last merge issued by a frame.
+     *
+     * @return false if no new histogram is available since the last call
+     */
+    boolean getHistogram(LumaHistogram out);
+
+    /**
+     * Listener for new input buffers
+     */
+    interface InputListener {
+        void onInputAvailable();
+    }
+
+    /**
+     * Listener for frames sent to the output Surface
+     */
+    interface OutputListener {
+        /**
+         * @param tag      the tag the frame was merged with
+         * @param sendTime SystemClock.elapsedRealtimeNanos() when the merge was done and the
+         *                 frame sent
+         */
+        void onOutputSent(Object tag, long sendTime);
+
+        /**
+         * Called instead of {@link #onOutputSent} when a merge was issued without a current
+         * frame to merge, so nothing was sent.
+         *
+         * @param tag the tag the merge was issued with
+         */
+        void onOutputDropped(Object tag);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Per-tile motion statistics for the deghosting merge.
+ *
+ * <p>A first pass fills in, for every TILE_SIZE x TILE_SIZE tile, the sums of current and
+ * previous luma over pixels that are unclipped in both frames, and
+ * {@link #updateExposureRatio()} reduces them to the exposure ratio of the pair. The merge pass
+ * then compares the frames at that ratio and fills in a motion flag per tile, and
+ * {@link #update()} counts the motion tiles.</p>
+ */
+class MotionTiles {
+
+    static final int TILE_SIZE = 32;
+
+    // Luma values outside this range are treated as clipped; must match hdr_merge.rs
+    static final int CLIP_LOW = 16;
+    static final int CLIP_HIGH = 240;
+
+    /**
+     * Mean exposure-normalised luma difference above which a tile is considered moving
+     */
+    static final float MOTION_THRESHOLD = 12.f;
+
+    private static final float MAX_EXPOSURE_RATIO = 64.f;
+
+    final int mTilesX;
+    final int mTilesY;
+
+    /**
+     * Nonzero for tiles where motion was detected, 0 otherwise. The RenderScript engine also
+     * records which frame a moving tile uses in the value.
+     */
+    final byte[] mFlags;
+
+    /**
+     * Sum of unclipped current and previous luma, interleaved per tile
+     */
+    final float[] mSums;
+
+    private float mExposureRatio = 1.f;
+    private volatile int mMotionTileCount = 0;
+
+    MotionTiles(int width, int height) {
+        mTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        mTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        mFlags = new byte[mTilesX * mTilesY];
+        mSums = new float[mTilesX * mTilesY * 2];
+    }
+
+    /**
+     * Expected ratio of current to previous frame brightness, to scale previous-frame luma by
+     * before comparing.
+     */
+    float getExposureRatio() {
+        return mExposureRatio;
+    }
+
+    /**
+     * Number of tiles flagged as moving in the last merged frame.
+     */
+    int getMotionTileCount() {
+        return mMotionTileCount;
+    }
+
+    /**
+     * Estimate the exposure ratio of the current pair from the tile sums, before its merge pass.
+     * The updateExposureRatio function in hdr_merge.rs does the same for the RenderScript
+     * engine.
+     */
+    void updateExposureRatio() {
+        float sumCur = 0;
+        float sumPrev = 0;
+        for (int i = 0; i < mSums.length; i += 2) {
+            sumCur += mSums[i];
+            sumPrev += mSums[i + 1];
+        }
+        if (sumCur > 0 && sumPrev > 0) {
+            mExposureRatio = Math.max(1.f / MAX_EXPOSURE_RATIO,
+                    Math.min(sumCur / sumPrev, MAX_EXPOSURE_RATIO));
+        } else {
+            mExposureRatio = 1.f;
+        }
+    }
+
+    /**
+     * Count the motion tiles of a finished merge pass.
+     */
+    void update() {
+        int motionTiles = 0;
+        for (byte flag : mFlags) {
+            if (flag != 0) motionTiles++;
+        }
+        mMotionTileCount = motionTiles;
+    }
+
+    /**
+     * Clear the statistics, for frames merged without deghosting.
+     */
+    void reset() {
+        mMotionTileCount = 0;
+        mExposureRatio = 1.f;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Steps the viewfinder's processing quality down when frames take longer to process than the
+ * camera takes to deliver them, and back up when there is headroom again.
+ *
+ * <p>Load is the smoothed ratio of processing time per frame to frame interval. The level steps
+ * down after {@link #STEP_DOWN_FRAMES} consecutive frames above {@link #STEP_DOWN_LOAD} or with
+ * dropped input, and up after a much longer run below {@link #STEP_UP_LOAD}. If the level has
+ * to step down again soon after stepping up, the next step up waits twice as long, so a level
+ * that can't be sustained isn't retried every few seconds. Frames right after a change are not
+ * counted while the pipeline settles.</p>
+ *
+ * <p>Not thread safe; the processor calls it on its own thread.</p>
+ */
+class QualityGovernor {
+
+    // Levels, from best to cheapest
+    static final int LEVEL_FULL = 0;
+    static final int LEVEL_REDUCED = 1;
+    static final int LEVEL_LOW = 2;
+    static final int LEVEL_MINIMAL = 3;
+    static final int LEVEL_COUNT = 4;
+
+    static final float STEP_DOWN_LOAD = 0.9f;
+    static final float STEP_UP_LOAD = 0.6f;
+    static final int STEP_DOWN_FRAMES = 8;
+    static final int STEP_UP_FRAMES = 60;
+    static final int MAX_STEP_UP_FRAMES = STEP_UP_FRAMES * 16;
+    static final int SETTLE_FRAMES = 10;
+
+    // Weight of a new frame in the smoothed load
+    private static final float LOAD_SMOOTHING = 0.2f;
+
+    private int mLevel = LEVEL_FULL;
+    private float mLoad = 0;
+    private boolean mHasLoad = false;
+
+    private int mOverloadedFrames = 0;
+    private int mIdleFrames = 0;
+    private int mSettleFrames = 0;
+    private int mStepUpFrames = STEP_UP_FRAMES;
+    // Frames since the last step up, or -1 if the level hasn't stepped up since the last step
+    // down
+    private int mFramesSinceStepUp = -1;
+
+    private long mProcessedFrames = 0;
+    private long mDroppedFrames = 0;
+
+    /**
+     * Account for one processed frame.
+     *
+     * @param processingTime time from starting to process the frame until its output was
+     *                       sent, in ns
+     * @param frameInterval  time between frames from the camera, in ns, or 0 if unknown
+     * @param droppedFrames  number of newer frames that arrived first, so that this one
+     *                       replaced them unprocessed
+     * @return true if the level changed
+     */
+    boolean onFrame(long processingTime, long frameInterval, int droppedFrames) {
+        mProcessedFrames++;
+        mDroppedFrames += droppedFrames;
+        if (frameInterval <= 0) return false;
+
+        float load = (float) processingTime / frameInterval;
+        mLoad = mHasLoad ? mLoad + LOAD_SMOOTHING * (load - mLoad) : load;
+        mHasLoad = true;
+
+        if (mFramesSinceStepUp >= 0) mFramesSinceStepUp++;
+        if (mSettleFrames > 0) {
+            mSettleFrames--;
+            return false;
+        }
+
+        if (droppedFrames > 0 || mLoad > STEP_DOWN_LOAD) {
+            mIdleFrames = 0;
+            if (++mOverloadedFrames >= STEP_DOWN_FRAMES && mLevel < LEVEL_COUNT - 1) {
+                // Stepping up didn't last: be slower to try it again
+                if (mFramesSinceStepUp >= 0 && mFramesSinceStepUp < mStepUpFrames) {
+                    mStepUpFrames = Math.min(mStepUpFrames * 2, MAX_STEP_UP_FRAMES);
+                }
+                mFramesSinceStepUp = -1;
+                setLevel(mLevel + 1);
+                return true;
+            }
+        } else if (mLoad < STEP_UP_LOAD) {
+            mOverloadedFrames = 0;
+            if (++mIdleFrames >= mStepUpFrames && mLevel > LEVEL_FULL) {
+                mFramesSinceStepUp = 0;
+                setLevel(mLevel - 1);
+                return true;
+            }
+        } else {
+            mOverloadedFrames = 0;
+            mIdleFrames = 0;
+        }
+
+        // A level that held for a while is trusted again
+        if (mFramesSinceStepUp >= MAX_STEP_UP_FRAMES) {
+            mFramesSinceStepUp = -1;
+            mStepUpFrames = STEP_UP_FRAMES;
+        }
+        return false;
+    }
+
+    /**
+     * Return to LEVEL_FULL and forget the load history, keeping the frame counts.
+     */
+    void reset() {
+        setLevel(LEVEL_FULL);
+        mSettleFrames = 0;
+        mStepUpFrames = STEP_UP_FRAMES;
+        mFramesSinceStepUp = -1;
+    }
+
+    private void setLevel(int level) {
+        mLevel = level;
+        mOverloadedFrames = 0;
+        mIdleFrames = 0;
+        mSettleFrames = SETTLE_FRAMES;
+        mHasLoad = false;
+    }
+
+    int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Smoothed processing time per frame interval; above 1 the processor can't keep up.
+     */
+    float getLoad() {
+        return mLoad;
+    }
+
+    long getProcessedFrameCount() {
+        return mProcessedFrames;
+    }
+
+    long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Merges two differently exposed YUV frames into linear scene radiance, one row at a time.
+ *
+ * <p>Each frame is converted to RGB, linearized with an inverse-response table and divided by
+ * its exposure time, so both estimate the same radiance. The table is an inverse gamma unless a
+ * calibrated one from {@link ResponseCalibration} is set. The estimates are blended with a hat
+ * weight that trusts mid-tones most and ignores clipped pixels; where both frames are clipped
+ * the shorter exposure is used. Output units are linear values per second of exposure.</p>
+ */
+class RadianceMerger {
+
+    static final float GAMMA = 2.2f;
+    // At or above this a channel is treated as clipped
+    static final int CLIP_LEVEL = LumaHistogram.CLIP_HIGHLIGHT;
+    // Keeps near-black pixels from having zero total weight
+    private static final float MIN_WEIGHT = 1e-3f;
+
+    private static final float[] LINEAR = new float[256];
+    private static final float[] HAT = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            LINEAR[i] = (float) Math.pow(i / 255.0, GAMMA);
+            HAT[i] = i >= CLIP_LEVEL ? 0.f :
+                    Math.max(MIN_WEIGHT, 1.f - Math.abs(2.f * i / 255.f - 1.f));
+        }
+    }
+
+    private float[] mLinear = LINEAR;
+
+    private final int[] mRgbA = new int[3];
+    private final int[] mRgbB = new int[3];
+
+    /**
+     * Linearize with a 256-entry inverse-response table, or with the inverse gamma if null.
+     */
+    void setInverseResponse(float[] table) {
+        if (table != null && table.length != 256) {
+            throw new IllegalArgumentException("Inverse response must have 256 entries");
+        }
+        mLinear = table != null ? table : LINEAR;
+    }
+
+    /**
+     * Merge row y of two frames of the same size.
+     *
+     * @param a          first frame
+     * @param exposureA  exposure time of a, in nanoseconds
+     * @param b          second frame
+     * @param exposureB  exposure time of b, in nanoseconds
+     * @param out        linear RGB radiance, 3 floats per pixel
+     */
+    void mergeRow(YuvFrame a, long exposureA, YuvFrame b, long exposureB, int y, float[] out) {
+        final float scaleA = 1e9f / exposureA;
+        final float scaleB = 1e9f / exposureB;
+        final boolean aIsShort = exposureA <= exposureB;
+        final int[] rgbA = mRgbA;
+        final int[] rgbB = mRgbB;
+        final float[] linear = mLinear;
+        final int width = a.getWidth();
+        for (int x = 0; x < width; x++) {
+            toRgb(a, x, y, rgbA);
+            toRgb(b, x, y, rgbB);
+            float weightA = HAT[max(rgbA)];
+            float weightB = HAT[max(rgbB)];
+            if (weightA + weightB == 0.f) {
+                // Both clipped: the short exposure is the closer underestimate
+                weightA = aIsShort ? 1.f : 0.f;
+                weightB = 1.f - weightA;
+            }
+            float norm = 1.f / (weightA + weightB);
+            weightA *= scaleA * norm;
+            weightB *= scaleB * norm;
+            int offset = x * 3;
+            for (int c = 0; c < 3; c++) {
+                out[offset + c] = weightA * linear[rgbA[c]] + weightB * linear[rgbB[c]];
+            }
+        }
+    }
+
+    /**
+     * JFIF YUV->RGB, matching the plain transform of {@link HdrMergeKernel#writeRgb}.
+     */
+    private static void toRgb(YuvFrame frame, int x, int y, int[] rgb) {
+        int luma = frame.getY(x, y);
+        int u = frame.getU(x, y);
+        int v = frame.getV(x, y);
+        rgb[0] = clamp(luma + v * 1436 / 1024 - 179);
+        rgb[1] = clamp(luma - u * 46549 / 131072 + 44 - v * 93604 / 131072 + 91);
+        rgb[2] = clamp(luma + u * 1814 / 1024 - 227);
+    }
+
+    private static int max(int[] rgb) {
+        return Math.max(rgb[0], Math.max(rgb[1], rgb[2]));
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
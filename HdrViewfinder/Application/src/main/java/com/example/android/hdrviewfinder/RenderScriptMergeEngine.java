@@ -0,0 +1,727 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.graphics.ImageFormat;
+import android.os.Build;
+import android.os.SystemClock;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.util.Size;
+import android.view.Surface;
+
+/**
+ * Merge engine running the hdr_merge.rs and exposure_fusion.rs kernels on RenderScript
+ *
+ * <p>The previous-frame history is double-buffered: merge N reads allocation N &amp; 1 and
+ * stores the current frame into allocation (N + 1) &amp; 1, so no kernel reads and writes the
+ * same history buffer. Kernel launches are queued, letting the next input buffer be latched
+ * while the current merge is still running. The script records when each merge is done, which
+ * is read back and reported to the output listener at the start of the next merge.</p>
+ *
+ * <p>History is kept either as RGBA_8888 allocations or, for {@link HistoryLayout#FORMAT_YUV420},
+ * as a U8 luma allocation plus a half-size U8_2 chroma allocation; see history.rsh.</p>
+ */
+class RenderScriptMergeEngine implements MergeEngine {
+
+    private final RenderScript mRS;
+    private final Size mDimensions;
+
+    private final Allocation[] mInputAllocations = new Allocation[2];
+    private final int mHistoryFormat;
+    private final Allocation[] mHistoryAllocations = new Allocation[2];
+    // Only used for HistoryLayout.FORMAT_YUV420
+    private final Allocation[] mHistoryChromaAllocations = new Allocation[2];
+    private final Allocation mOutputAllocation;
+
+    // Index of the next frame to merge, selecting the history buffers it reads and writes
+    private long mFrameIndex = 0;
+
+    private final ScriptC_hdr_merge mHdrMergeScript;
+
+    // Deghosting tile statistics. The exposure ratio is reduced from the current pair within the
+    // script. The tile flags are double-buffered and read back at the start of the merge after
+    // the one that filled them, like the histogram; the motion tile count lags by that frame.
+    private volatile boolean mDeghost = false;
+    private final MotionTiles mMotionTiles;
+    private final Allocation mRowStatsAllocation;
+    private final Allocation mTileSumsAllocation;
+    private final Allocation[] mMotionTileAllocations = new Allocation[2];
+    private int mTileBuffer = 0;
+    private boolean mMotionTilesPending = false;
+
+    // Global alignment. The half-resolution luma of each frame is read back to the aligner
+    // before its merge is launched, so the offset between the frame and the history is applied
+    // to the same merge.
+    private volatile boolean mAlign = false;
+    private FrameAligner mAligner;
+    private Allocation mAlignLumaAllocation;
+
+    // N-exposure bracket ring and sums, allocated on first use
+    private volatile int mBracketSize = BracketAccumulator.MIN_BRACKET_SIZE;
+    private Allocation mBracketRing;
+    private Allocation mBracketSums;
+    private boolean mBracketEmpty = true;
+
+    // Exposure fusion pyramid, allocated on first use and kept for following frames, and the
+    // proxy frame it is built from if its proxy scale is over 1
+    private ScriptC_exposure_fusion mFusionScript;
+    private Allocation[] mFusionLevels;
+    private Allocation[] mFusionResults;
+    private volatile int mFusionProxyScale = 1;
+    private int mPyramidProxyScale;
+    private Allocation mFusionProxy;
+
+    // Histogram counters, read back at the start of the merge after the one that filled them so
+    // the handler thread doesn't wait for the kernel
+    private boolean mHistogramEnabled = false;
+    private int mNextHistogramExposure = ExposurePairing.EXPOSURE_UNKNOWN;
+    private Allocation mHistogramAllocation;
+    private int[] mZeroCounts;
+    private boolean mHistogramPending = false;
+    private int mHistogramExposure;
+    private final LumaHistogram mLatestHistogram = new LumaHistogram();
+    private boolean mHistogramFresh = false;
+
+    // Global tone-mapping table and local operator state, allocated on first use
+    private Allocation mToneLutAllocation;
+    private boolean mToneLutEnabled = false;
+    private Allocation mLocalGridAllocation;
+    private Allocation mLocalScaleAllocation;
+    private boolean mLocalToneEnabled = false;
+
+    // Calibrated response tables, allocated on first use
+    private Allocation mLinearAverageAllocation;
+    private Allocation mLinearDenoiseAllocation;
+    private Allocation mWellExposedAllocation;
+    private boolean mLinearBlendEnabled = false;
+
+    private volatile OutputListener mOutputListener;
+    private volatile EncoderFeed mEncoderFeed;
+
+    // Completion time of the last merge, written by the script and read back at the start of
+    // the next merge, like the histogram
+    private final Allocation mOutputDoneAllocation;
+    private final int[] mOutputDone = new int[2];
+    private boolean mOutputPending = false;
+    private Object mOutputTag;
+
+    /**
+     * @param historyFormat one of the HistoryLayout.FORMAT_ constants
+     */
+    RenderScriptMergeEngine(RenderScript rs, Size dimensions, int historyFormat) {
+        mRS = rs;
+        mDimensions = dimensions;
+        mHistoryFormat = historyFormat;
+
+        Type.Builder yuvTypeBuilder = new Type.Builder(rs, Element.YUV(rs));
+        yuvTypeBuilder.setX(dimensions.getWidth());
+        yuvTypeBuilder.setY(dimensions.getHeight());
+        yuvTypeBuilder.setYuvFormat(ImageFormat.YUV_420_888);
+        mInputAllocations[STREAM_HDR] = Allocation.createTyped(rs, yuvTypeBuilder.create(),
+                Allocation.USAGE_IO_INPUT | Allocation.USAGE_SCRIPT);
+        mInputAllocations[STREAM_NORMAL] = Allocation.createTyped(rs, yuvTypeBuilder.create(),
+                Allocation.USAGE_IO_INPUT | Allocation.USAGE_SCRIPT);
+
+        Type.Builder rgbTypeBuilder = new Type.Builder(rs, Element.RGBA_8888(rs));
+        rgbTypeBuilder.setX(dimensions.getWidth());
+        rgbTypeBuilder.setY(dimensions.getHeight());
+        if (historyFormat == HistoryLayout.FORMAT_YUV420) {
+            HistoryLayout layout = new HistoryLayout(dimensions.getWidth(),
+                    dimensions.getHeight(), historyFormat);
+            Type.Builder lumaTypeBuilder = new Type.Builder(rs, Element.U8(rs));
+            lumaTypeBuilder.setX(dimensions.getWidth());
+            lumaTypeBuilder.setY(dimensions.getHeight());
+            Type.Builder chromaTypeBuilder = new Type.Builder(rs, Element.U8_2(rs));
+            chromaTypeBuilder.setX(layout.getChromaWidth());
+            chromaTypeBuilder.setY(layout.getChromaHeight());
+            for (int i = 0; i < 2; i++) {
+                mHistoryAllocations[i] = Allocation.createTyped(rs, lumaTypeBuilder.create(),
+                        Allocation.USAGE_SCRIPT);
+                mHistoryChromaAllocations[i] = Allocation.createTyped(rs,
+                        chromaTypeBuilder.create(), Allocation.USAGE_SCRIPT);
+            }
+        } else {
+            mHistoryAllocations[0] = Allocation.createTyped(rs, rgbTypeBuilder.create(),
+                    Allocation.USAGE_SCRIPT);
+            mHistoryAllocations[1] = Allocation.createTyped(rs, rgbTypeBuilder.create(),
+                    Allocation.USAGE_SCRIPT);
+        }
+        mOutputAllocation = Allocation.createTyped(rs, rgbTypeBuilder.create(),
+                Allocation.USAGE_IO_OUTPUT | Allocation.USAGE_SCRIPT);
+
+        mHdrMergeScript = new ScriptC_hdr_merge(rs);
+        mHdrMergeScript.set_gHistoryFormat(historyFormat);
+        mHdrMergeScript.set_gHistoryWidth(dimensions.getWidth());
+        mHdrMergeScript.set_gHistoryHeight(dimensions.getHeight());
+
+        mMotionTiles = new MotionTiles(dimensions.getWidth(), dimensions.getHeight());
+        Type.Builder rowStatsTypeBuilder = new Type.Builder(rs, Element.F32_4(rs));
+        rowStatsTypeBuilder.setX(mMotionTiles.mTilesX);
+        rowStatsTypeBuilder.setY(dimensions.getHeight());
+        mRowStatsAllocation = Allocation.createTyped(rs, rowStatsTypeBuilder.create(),
+                Allocation.USAGE_SCRIPT);
+        Type.Builder tileTypeBuilder = new Type.Builder(rs, Element.U8(rs));
+        tileTypeBuilder.setX(mMotionTiles.mTilesX);
+        tileTypeBuilder.setY(mMotionTiles.mTilesY);
+        Type.Builder sumsTypeBuilder = new Type.Builder(rs, Element.F32_2(rs));
+        sumsTypeBuilder.setX(mMotionTiles.mTilesX);
+        sumsTypeBuilder.setY(mMotionTiles.mTilesY);
+        mTileSumsAllocation = Allocation.createTyped(rs, sumsTypeBuilder.create(),
+                Allocation.USAGE_SCRIPT);
+        for (int i = 0; i < 2; i++) {
+            mMotionTileAllocations[i] = Allocation.createTyped(rs, tileTypeBuilder.create(),
+                    Allocation.USAGE_SCRIPT);
+        }
+
+        mHdrMergeScript.set_gRowStats(mRowStatsAllocation);
+        mHdrMergeScript.set_gTileSums(mTileSumsAllocation);
+        mOutputDoneAllocation = Allocation.createSized(rs, Element.I32(rs), 2,
+                Allocation.USAGE_SCRIPT);
+        mHdrMergeScript.bind_gOutputDone(mOutputDoneAllocation);
+        mHdrMergeScript.set_gWidth(dimensions.getWidth());
+        mHdrMergeScript.set_gHeight(dimensions.getHeight());
+    }
+
+    @Override
+    public void setDeghostEnabled(boolean deghost) {
+        mDeghost = deghost;
+    }
+
+    @Override
+    public void setAlignmentEnabled(boolean align) {
+        mAlign = align;
+    }
+
+    @Override
+    public void setBracketSize(int bracketSize) {
+        mBracketSize = bracketSize;
+    }
+
+    @Override
+    public void setFusionProxyScale(int proxyScale) {
+        mFusionProxyScale = proxyScale;
+    }
+
+    @Override
+    public void setToneMap(byte[] lut, int[] localScale) {
+        mToneLutEnabled = lut != null;
+        if (lut != null) {
+            if (mToneLutAllocation == null) {
+                mToneLutAllocation = Allocation.createSized(mRS, Element.U8_4(mRS),
+                        ToneMapper.LUT_ENTRIES, Allocation.USAGE_SCRIPT);
+                mHdrMergeScript.set_gToneLut(mToneLutAllocation);
+                if (mFusionScript != null) {
+                    mFusionScript.set_gToneLut(mToneLutAllocation);
+                }
+            }
+            mToneLutAllocation.copyFrom(lut);
+        }
+        mHdrMergeScript.set_gToneLutEnabled(mToneLutEnabled ? 1 : 0);
+        if (mFusionScript != null) {
+            mFusionScript.set_gToneLutEnabled(mToneLutEnabled ? 1 : 0);
+        }
+
+        mLocalToneEnabled = localScale != null;
+        if (localScale != null) {
+            if (mLocalScaleAllocation == null) {
+                int gridWidth = LocalToneMap.gridSize(mDimensions.getWidth());
+                int gridHeight = LocalToneMap.gridSize(mDimensions.getHeight());
+                Type.Builder gridTypeBuilder = new Type.Builder(mRS, Element.U8(mRS));
+                gridTypeBuilder.setX(gridWidth);
+                gridTypeBuilder.setY(gridHeight);
+                mLocalGridAllocation = Allocation.createTyped(mRS, gridTypeBuilder.create(),
+                        Allocation.USAGE_SCRIPT);
+                mLocalScaleAllocation = Allocation.createSized(mRS, Element.I32(mRS), 256,
+                        Allocation.USAGE_SCRIPT);
+                mHdrMergeScript.set_gLocalInput(mOutputAllocation);
+                mHdrMergeScript.set_gLocalGrid(mLocalGridAllocation);
+                mHdrMergeScript.bind_gLocalScale(mLocalScaleAllocation);
+                mHdrMergeScript.set_gLocalGridWidth(gridWidth);
+                mHdrMergeScript.set_gLocalGridHeight(gridHeight);
+            }
+            mLocalScaleAllocation.copyFrom(localScale);
+        }
+    }
+
+    @Override
+    public void setLinearBlend(LinearBlend blend) {
+        mLinearBlendEnabled = blend != null;
+        if (blend != null) {
+            if (mLinearAverageAllocation == null) {
+                mLinearAverageAllocation = Allocation.createSized(mRS, Element.U8(mRS),
+                        LinearBlend.ENTRIES, Allocation.USAGE_SCRIPT);
+                mLinearDenoiseAllocation = Allocation.createSized(mRS, Element.U8(mRS),
+                        LinearBlend.ENTRIES, Allocation.USAGE_SCRIPT);
+                mWellExposedAllocation = Allocation.createSized(mRS, Element.F32(mRS), 256,
+                        Allocation.USAGE_SCRIPT);
+                mHdrMergeScript.bind_gLinearAverage(mLinearAverageAllocation);
+                mHdrMergeScript.bind_gLinearDenoise(mLinearDenoiseAllocation);
+                if (mFusionScript != null) {
+                    mFusionScript.bind_gWellExposed(mWellExposedAllocation);
+                }
+            }
+            mLinearAverageAllocation.copyFrom(blend.mAverage);
+            mLinearDenoiseAllocation.copyFrom(blend.mDenoise);
+            mWellExposedAllocation.copyFrom(blend.mWellExposed);
+        }
+        mHdrMergeScript.set_gLinearBlendEnabled(mLinearBlendEnabled ? 1 : 0);
+        if (mFusionScript != null) {
+            mFusionScript.set_gWellExposedEnabled(mLinearBlendEnabled ? 1 : 0);
+        }
+    }
+
+    @Override
+    public void release() {
+        // Waits for the queued merges
+        mRS.finish();
+        for (int i = 0; i < 2; i++) {
+            mInputAllocations[i].destroy();
+            mHistoryAllocations[i].destroy();
+            if (mHistoryChromaAllocations[i] != null) {
+                mHistoryChromaAllocations[i].destroy();
+            }
+        }
+        mOutputAllocation.destroy();
+        mHdrMergeScript.destroy();
+        if (mFusionScript != null) {
+            mFusionScript.destroy();
+        }
+    }
+
+    @Override
+    public int getMotionTileCount() {
+        return mMotionTiles.getMotionTileCount();
+    }
+
+    @Override
+    public void setOutputListener(OutputListener listener) {
+        mOutputListener = listener;
+    }
+
+    @Override
+    public void setEncoderFeed(EncoderFeed feed) {
+        mEncoderFeed = feed;
+    }
+
+    @Override
+    public void setHistogramEnabled(boolean enabled) {
+        mHistogramEnabled = enabled;
+        if (enabled && mHistogramAllocation == null) {
+            mHistogramAllocation = Allocation.createSized(mRS, Element.I32(mRS),
+                    LumaHistogram.BINS, Allocation.USAGE_SCRIPT);
+            mZeroCounts = new int[LumaHistogram.BINS];
+            mHdrMergeScript.bind_gHistogram(mHistogramAllocation);
+            if (mFusionScript != null) {
+                mFusionScript.bind_gHistogram(mHistogramAllocation);
+            }
+        }
+    }
+
+    @Override
+    public void setHistogramExposure(int exposure) {
+        mNextHistogramExposure = exposure;
+    }
+
+    @Override
+    public boolean getHistogram(LumaHistogram out) {
+        if (!mHistogramFresh) return false;
+        out.copyFrom(mLatestHistogram);
+        mHistogramFresh = false;
+        return true;
+    }
+
+    /**
+     * Collect the counts of the previous merge, if it was counted, and clear the counters for
+     * the next one.
+     */
+    private void startHistogram(int exposure) {
+        if (mHistogramPending) {
+            mLatestHistogram.reset(mHistogramExposure);
+            mHistogramAllocation.copyTo(mLatestHistogram.mBins);
+            mLatestHistogram.updateStatistics();
+            mHistogramFresh = true;
+            mHistogramPending = false;
+        }
+        int enabled = mHistogramEnabled ? 1 : 0;
+        if (mHistogramEnabled) {
+            mHistogramAllocation.copyFrom(mZeroCounts);
+            mHistogramExposure = exposure;
+            mHistogramPending = true;
+        }
+        mHdrMergeScript.set_gHistogramEnabled(enabled);
+        if (mFusionScript != null) {
+            mFusionScript.set_gHistogramEnabled(enabled);
+        }
+    }
+
+    /**
+     * Collect the tile statistics of the previous merge, if it was deghosted.
+     */
+    private void collectMotionTiles() {
+        if (!mMotionTilesPending) return;
+        mMotionTileAllocations[mTileBuffer].copyTo(mMotionTiles.mFlags);
+        mMotionTiles.update();
+        mMotionTilesPending = false;
+    }
+
+    @Override
+    public Surface getInputSurface(int stream) {
+        return mInputAllocations[stream].getSurface();
+    }
+
+    @Override
+    public void setOutputSurface(Surface output) {
+        mOutputAllocation.setSurface(output);
+    }
+
+    @Override
+    public void setInputListener(int stream, final InputListener listener) {
+        mInputAllocations[stream].setOnBufferAvailableListener(
+                new Allocation.OnBufferAvailableListener() {
+                    @Override
+                    public void onBufferAvailable(Allocation a) {
+                        listener.onInputAvailable();
+                    }
+                });
+    }
+
+    @Override
+    public void receive(int stream) {
+        mInputAllocations[stream].ioReceive();
+    }
+
+    @Override
+    public long getTimestamp(int stream) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return 0;
+        }
+        return mInputAllocations[stream].getTimeStamp();
+    }
+
+    @Override
+    public void merge(int stream, int frameCounter, int cutPointX, int mergeMode,
+                      Object tag) {
+        if (mergeMode == HdrMergeKernel.MERGE_FUSION &&
+                (mFusionScript == null || mPyramidProxyScale != mFusionProxyScale)) {
+            createFusionPyramid(mFusionProxyScale);
+        }
+        collectOutput();
+        startHistogram(mNextHistogramExposure);
+        collectMotionTiles();
+        align(mInputAllocations[stream], HdrMergeKernel.readsHistory(mergeMode, cutPointX));
+
+        if (mergeMode == HdrMergeKernel.MERGE_BRACKET) {
+            mergeBracket(mInputAllocations[stream], frameCounter);
+            sendOutput(tag);
+            return;
+        }
+        // Other modes don't update the bracket ring
+        mBracketEmpty = true;
+
+        int prev = (int) (mFrameIndex & 1);
+        int next = (int) ((mFrameIndex + 1) & 1);
+        mFrameIndex++;
+
+        if (mergeMode == HdrMergeKernel.MERGE_FUSION) {
+            fuse(mInputAllocations[stream], prev, next);
+            sendOutput(tag);
+            return;
+        }
+
+        mHdrMergeScript.set_gPrevFrame(mHistoryAllocations[prev]);
+        mHdrMergeScript.set_gNextPrevFrame(mHistoryAllocations[next]);
+        if (mHistoryFormat == HistoryLayout.FORMAT_YUV420) {
+            mHdrMergeScript.set_gPrevChroma(mHistoryChromaAllocations[prev]);
+            mHdrMergeScript.set_gNextPrevChroma(mHistoryChromaAllocations[next]);
+        }
+        mHdrMergeScript.set_gFrameCounter(frameCounter);
+        mHdrMergeScript.set_gCurrentFrame(mInputAllocations[stream]);
+        mHdrMergeScript.set_gCutPointX(cutPointX);
+        mHdrMergeScript.set_gDoMerge(mergeMode);
+
+        // Run processing pass
+        if (mDeghost && mergeMode == HdrMergeKernel.MERGE_AVERAGE) {
+            mTileBuffer ^= 1;
+            mHdrMergeScript.set_gTileFlags(mMotionTileAllocations[mTileBuffer]);
+            mHdrMergeScript.forEach_tileRowSums(mRowStatsAllocation);
+            mHdrMergeScript.forEach_tileSums(mTileSumsAllocation);
+            mHdrMergeScript.invoke_updateExposureRatio();
+            mHdrMergeScript.forEach_tileRowStats(mRowStatsAllocation);
+            mHdrMergeScript.forEach_tileMotion(mMotionTileAllocations[mTileBuffer]);
+            mHdrMergeScript.forEach_mergeHdrMotion(mOutputAllocation);
+            mMotionTilesPending = true;
+        } else {
+            mHdrMergeScript.forEach_mergeHdrFrames(mOutputAllocation);
+            mMotionTiles.reset();
+        }
+        sendOutput(tag);
+    }
+
+    /**
+     * Run the local tone-mapping pass over the merged output if it is on, and send it. The
+     * listener is notified once the next merge finds it done.
+     */
+    private void sendOutput(Object tag) {
+        if (mLocalToneEnabled) {
+            mHdrMergeScript.forEach_localGrid(mLocalGridAllocation);
+            mHdrMergeScript.forEach_localToneMap(mOutputAllocation);
+        }
+        // The feed copies the output, which must happen before it is sent
+        EncoderFeed feed = mEncoderFeed;
+        if (feed != null) {
+            feed.offer(mOutputAllocation);
+        }
+        mOutputAllocation.ioSend();
+        mHdrMergeScript.invoke_markOutputDone();
+        mOutputTag = tag;
+        mOutputPending = true;
+    }
+
+    /**
+     * Report the output of the previous merge with the time the script finished it.
+     */
+    private void collectOutput() {
+        if (!mOutputPending) return;
+        mOutputDoneAllocation.copyTo(mOutputDone);
+        Object tag = mOutputTag;
+        mOutputTag = null;
+        mOutputPending = false;
+
+        OutputListener listener = mOutputListener;
+        if (listener == null) return;
+        // rsUptimeNanos is on the System.nanoTime clock
+        long doneTime = ((long) mOutputDone[1] << 32) | (mOutputDone[0] & 0xFFFFFFFFL);
+        listener.onOutputSent(tag,
+                doneTime + SystemClock.elapsedRealtimeNanos() - System.nanoTime());
+    }
+
+    /**
+     * Shift history reads in both scripts by the offset between the input and the history. The
+     * readback of the downsampled input waits for the previous merge, which collectOutput
+     * already did. Merges that don't read the history drop the aligner's reference.
+     */
+    private void align(Allocation input, boolean readsHistory) {
+        int offsetX = 0;
+        int offsetY = 0;
+        if (mAlign && readsHistory) {
+            if (mAligner == null) {
+                mAligner = new FrameAligner(mDimensions.getWidth(), mDimensions.getHeight());
+                Type.Builder lumaTypeBuilder = new Type.Builder(mRS, Element.U8(mRS));
+                lumaTypeBuilder.setX(mAligner.getBaseWidth());
+                lumaTypeBuilder.setY(mAligner.getBaseHeight());
+                mAlignLumaAllocation = Allocation.createTyped(mRS, lumaTypeBuilder.create(),
+                        Allocation.USAGE_SCRIPT);
+            }
+            mHdrMergeScript.set_gCurrentFrame(input);
+            mHdrMergeScript.forEach_downsampleLuma(mAlignLumaAllocation);
+            mAlignLumaAllocation.copyTo(mAligner.getBaseLevel());
+            mAligner.align();
+            offsetX = mAligner.getOffsetX();
+            offsetY = mAligner.getOffsetY();
+        } else if (mAligner != null) {
+            mAligner.reset();
+        }
+        mHdrMergeScript.set_gAlignX(offsetX);
+        mHdrMergeScript.set_gAlignY(offsetY);
+        if (mFusionScript != null) {
+            mFusionScript.set_gAlignX(offsetX);
+            mFusionScript.set_gAlignY(offsetY);
+        }
+    }
+
+    /**
+     * Add the input to the bracket ring at the slot of its exposure and output the ring average.
+     */
+    private void mergeBracket(Allocation input, int exposure) {
+        int bracketSize = mBracketSize;
+        if (mBracketRing == null || mBracketRing.getType().getZ() != bracketSize) {
+            createBracketRing(bracketSize);
+        }
+        mHdrMergeScript.set_gCurrentFrame(input);
+        mHdrMergeScript.set_gBracketSize(bracketSize);
+        mHdrMergeScript.set_gBracketSlot(((exposure % bracketSize) + bracketSize) % bracketSize);
+        mHdrMergeScript.set_gBracketEmpty(mBracketEmpty ? 1 : 0);
+        mHdrMergeScript.forEach_mergeBracket(mOutputAllocation);
+        mBracketEmpty = false;
+    }
+
+    /**
+     * Allocate one RGBA_8888 slice per exposure. The ring stays RGBA for either history format;
+     * see BracketAccumulator.
+     */
+    private void createBracketRing(int bracketSize) {
+        if (mBracketRing != null) {
+            mBracketRing.destroy();
+        }
+        Type.Builder ringTypeBuilder = new Type.Builder(mRS, Element.U8_4(mRS));
+        ringTypeBuilder.setX(mDimensions.getWidth());
+        ringTypeBuilder.setY(mDimensions.getHeight());
+        ringTypeBuilder.setZ(bracketSize);
+        mBracketRing = Allocation.createTyped(mRS, ringTypeBuilder.create(),
+                Allocation.USAGE_SCRIPT);
+
+        if (mBracketSums == null) {
+            Type.Builder sumsTypeBuilder = new Type.Builder(mRS, Element.U16_4(mRS));
+            sumsTypeBuilder.setX(mDimensions.getWidth());
+            sumsTypeBuilder.setY(mDimensions.getHeight());
+            mBracketSums = Allocation.createTyped(mRS, sumsTypeBuilder.create(),
+                    Allocation.USAGE_SCRIPT);
+            mHdrMergeScript.set_gBracketSums(mBracketSums);
+        }
+        mHdrMergeScript.set_gBracketRing(mBracketRing);
+        mBracketEmpty = true;
+    }
+
+    /**
+     * Run the exposure fusion passes: weights, pyramid build, collapse, and the final output pass.
+     *
+     * @param prev index of the history buffers holding the previous frame
+     * @param next index of the history buffers to store the current frame into
+     */
+    private void fuse(Allocation input, int prev, int next) {
+        ScriptC_exposure_fusion script = mFusionScript;
+        int levels = mFusionLevels.length;
+
+        script.set_gCurrentFrame(input);
+        script.set_gPrevFrame(mHistoryAllocations[prev]);
+        script.set_gNextPrevFrame(mHistoryAllocations[next]);
+        if (mHistoryFormat == HistoryLayout.FORMAT_YUV420) {
+            script.set_gPrevChroma(mHistoryChromaAllocations[prev]);
+            script.set_gNextPrevChroma(mHistoryChromaAllocations[next]);
+        }
+        if (mFusionProxy != null) {
+            script.forEach_proxyFrame(mFusionProxy);
+            script.forEach_proxyWeights(mFusionProxy, mFusionLevels[0]);
+        } else {
+            script.forEach_fusionWeights(mFusionLevels[0]);
+        }
+
+        for (int l = 1; l < levels; l++) {
+            Type fine = mFusionLevels[l - 1].getType();
+            script.set_gFineLevel(mFusionLevels[l - 1]);
+            script.set_gFineWidth(fine.getX());
+            script.set_gFineHeight(fine.getY());
+            script.forEach_downsample(mFusionLevels[l]);
+        }
+
+        script.forEach_collapseTop(mFusionLevels[levels - 1], mFusionResults[levels - 1]);
+        for (int l = levels - 2; l >= 0; l--) {
+            Type coarse = mFusionLevels[l + 1].getType();
+            script.set_gCoarseLevel(mFusionLevels[l + 1]);
+            script.set_gCoarseResult(mFusionResults[l + 1]);
+            script.set_gCoarseWidth(coarse.getX());
+            script.set_gCoarseHeight(coarse.getY());
+            if (l > 0) {
+                script.forEach_collapse(mFusionLevels[l], mFusionResults[l]);
+            } else if (mFusionProxy != null) {
+                // Proxy level 0 is collapsed too, and upsampled into the output
+                script.forEach_collapse(mFusionLevels[0], mFusionResults[0]);
+                script.set_gFineLevel(mFusionLevels[0]);
+                script.set_gProxyResult(mFusionResults[0]);
+                script.forEach_fuseProxyOutput(mOutputAllocation);
+            } else {
+                script.set_gFineLevel(mFusionLevels[0]);
+                script.forEach_fuseOutput(mOutputAllocation);
+            }
+        }
+    }
+
+    /**
+     * Allocate the pyramid for the given proxy scale, replacing the previous one if any.
+     */
+    private void createFusionPyramid(int proxyScale) {
+        if (mFusionLevels != null) {
+            for (int l = 0; l < mFusionLevels.length; l++) {
+                mFusionLevels[l].destroy();
+                if (mFusionResults[l] != null) {
+                    mFusionResults[l].destroy();
+                }
+            }
+        }
+        if (mFusionProxy != null) {
+            mFusionProxy.destroy();
+            mFusionProxy = null;
+        }
+
+        int proxyWidth = (mDimensions.getWidth() + proxyScale - 1) / proxyScale;
+        int proxyHeight = (mDimensions.getHeight() + proxyScale - 1) / proxyScale;
+        if (proxyScale > 1) {
+            Type.Builder proxyTypeBuilder = new Type.Builder(mRS, Element.U16_4(mRS));
+            proxyTypeBuilder.setX(proxyWidth);
+            proxyTypeBuilder.setY(proxyHeight);
+            mFusionProxy = Allocation.createTyped(mRS, proxyTypeBuilder.create(),
+                    Allocation.USAGE_SCRIPT);
+        }
+
+        int levels = ExposureFusion.levelCount(proxyWidth, proxyHeight);
+        mFusionLevels = new Allocation[levels];
+        mFusionResults = new Allocation[levels];
+        int width = proxyWidth;
+        int height = proxyHeight;
+        for (int l = 0; l < levels; l++) {
+            Type.Builder levelTypeBuilder = new Type.Builder(mRS, Element.F32_2(mRS));
+            levelTypeBuilder.setX(width);
+            levelTypeBuilder.setY(height);
+            mFusionLevels[l] = Allocation.createTyped(mRS, levelTypeBuilder.create(),
+                    Allocation.USAGE_SCRIPT);
+            if (l > 0 || proxyScale > 1) {
+                Type.Builder resultTypeBuilder = new Type.Builder(mRS, Element.F32(mRS));
+                resultTypeBuilder.setX(width);
+                resultTypeBuilder.setY(height);
+                mFusionResults[l] = Allocation.createTyped(mRS, resultTypeBuilder.create(),
+                        Allocation.USAGE_SCRIPT);
+            }
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+        }
+
+        mPyramidProxyScale = proxyScale;
+
+        if (mFusionScript == null) {
+            mFusionScript = new ScriptC_exposure_fusion(mRS);
+            mFusionScript.set_gHistoryFormat(mHistoryFormat);
+            mFusionScript.set_gHistoryWidth(mDimensions.getWidth());
+            mFusionScript.set_gHistoryHeight(mDimensions.getHeight());
+            mFusionScript.set_gWidth(mDimensions.getWidth());
+            mFusionScript.set_gHeight(mDimensions.getHeight());
+            if (mHistogramAllocation != null) {
+                mFusionScript.bind_gHistogram(mHistogramAllocation);
+            }
+            if (mToneLutAllocation != null) {
+                mFusionScript.set_gToneLut(mToneLutAllocation);
+            }
+            mFusionScript.set_gToneLutEnabled(mToneLutEnabled ? 1 : 0);
+            if (mWellExposedAllocation != null) {
+                mFusionScript.bind_gWellExposed(mWellExposedAllocation);
+            }
+            mFusionScript.set_gWellExposedEnabled(mLinearBlendEnabled ? 1 : 0);
+            Allocation rangeWeight = Allocation.createSized(mRS, Element.F32(mRS), 256,
+                    Allocation.USAGE_SCRIPT);
+            rangeWeight.copyFrom(ExposureFusion.RANGE_WEIGHT);
+            mFusionScript.bind_gRangeWeight(rangeWeight);
+        }
+        mFusionScript.set_gProxyScale(proxyScale);
+        if (mFusionProxy != null) {
+            mFusionScript.set_gProxy(mFusionProxy);
+            mFusionScript.set_gProxyWidth(proxyWidth);
+            mFusionScript.set_gProxyHeight(proxyHeight);
+        }
+    }
+}
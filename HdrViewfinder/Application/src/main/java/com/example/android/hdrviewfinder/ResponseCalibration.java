@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Estimates the camera response curve from a bracket of frames of a static scene, after Debevec
+ * and Malik (1997), and stores it as a 256-entry inverse-response table.
+ *
+ * <p>Luma is sampled on a {@link #GRID} x {@link #GRID} grid of each frame. The log inverse
+ * response g and the log radiance of every sample are then the least-squares solution of
+ * g(Z) = ln E + ln t over all samples, with the hat weighting of {@link #weight}, a second
+ * derivative penalty of {@link #SMOOTHNESS} keeping g smooth, and g(128) = 0 fixing the scale.
+ * The system is a few hundred unknowns and is solved densely in well under a second.</p>
+ *
+ * <p>The table holds exp(g) scaled so that level 255 maps to 1, a drop-in replacement for the
+ * gamma table {@link RadianceMerger} uses otherwise. The same curve is applied to each RGB
+ * channel. Tables are stored per camera id with {@link #save} and {@link #load}.</p>
+ *
+ * <p>Not thread safe; frames may be added on one thread and the curve solved on another if
+ * handed over safely.</p>
+ */
+final class ResponseCalibration {
+
+    static final int LEVELS = 256;
+    static final int GRID = 12;
+    static final float SMOOTHNESS = 50.f;
+    // Level fixed at g = 0
+    private static final int MID_LEVEL = 128;
+
+    // Stops between the frames of the default bracket
+    static final int BRACKET_FRAMES = 5;
+    static final float BRACKET_STEP_STOPS = 1.5f;
+
+    private static final int FILE_MAGIC = 0x48525350;
+    private static final int FILE_VERSION = 1;
+
+    private final long[] mExposures;
+    // Sampled luma, GRID * GRID per frame
+    private final int[][] mSamples;
+
+    /**
+     * @param exposures exposure time of each frame of the bracket, in nanoseconds
+     */
+    ResponseCalibration(long[] exposures) {
+        if (exposures.length < 2) {
+            throw new IllegalArgumentException("Calibration needs at least two exposures");
+        }
+        mExposures = exposures.clone();
+        mSamples = new int[exposures.length][];
+    }
+
+    /**
+     * The default bracket: {@link #BRACKET_FRAMES} exposures {@link #BRACKET_STEP_STOPS} apart,
+     * centered on center.
+     */
+    static long[] bracket(long center) {
+        long[] exposures = new long[BRACKET_FRAMES];
+        for (int i = 0; i < BRACKET_FRAMES; i++) {
+            double stops = (i - (BRACKET_FRAMES - 1) / 2.0) * BRACKET_STEP_STOPS;
+            exposures[i] = Math.max(1, Math.round(center * Math.pow(2, stops)));
+        }
+        return exposures;
+    }
+
+    int getFrameCount() {
+        return mExposures.length;
+    }
+
+    long getExposure(int frame) {
+        return mExposures[frame];
+    }
+
+    /**
+     * Replace the requested exposure time of a frame with the one it was captured with.
+     */
+    void setExposure(int frame, long exposure) {
+        if (exposure > 0) {
+            mExposures[frame] = exposure;
+        }
+    }
+
+    /**
+     * Sample the luma of a frame of the bracket.
+     */
+    void addFrame(int frame, YuvFrame yuv) {
+        int[] samples = new int[GRID * GRID];
+        int width = yuv.getWidth();
+        int height = yuv.getHeight();
+        for (int j = 0; j < GRID; j++) {
+            int y = (2 * j + 1) * height / (2 * GRID);
+            for (int i = 0; i < GRID; i++) {
+                int x = (2 * i + 1) * width / (2 * GRID);
+                samples[j * GRID + i] = yuv.getY(x, y);
+            }
+        }
+        mSamples[frame] = samples;
+    }
+
+    boolean isComplete() {
+        for (int[] samples : mSamples) {
+            if (samples == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Debevec-Malik hat weight, kept above zero so that levels at the ends stay determined.
+     */
+    static int weight(int level) {
+        return Math.min(level, LEVELS - 1 - level) + 1;
+    }
+
+    /**
+     * Solve for the inverse-response table. Call once every frame has been added.
+     */
+    float[] solve() {
+        if (!isComplete()) {
+            throw new IllegalStateException("Not every frame of the bracket was sampled");
+        }
+        final int samples = GRID * GRID;
+        final int unknowns = LEVELS + samples;
+        // Normal equations of the weighted system, built row by row
+        double[][] normal = new double[unknowns][unknowns];
+        double[] rhs = new double[unknowns];
+
+        int[] columns = new int[3];
+        double[] values = new double[3];
+        for (int frame = 0; frame < mExposures.length; frame++) {
+            double logExposure = Math.log(mExposures[frame] / 1e9);
+            for (int s = 0; s < samples; s++) {
+                int level = mSamples[frame][s];
+                double w = weight(level);
+                columns[0] = level;
+                values[0] = w;
+                columns[1] = LEVELS + s;
+                values[1] = -w;
+                addRow(normal, rhs, columns, values, 2, w * logExposure);
+            }
+        }
+        columns[0] = MID_LEVEL;
+        values[0] = 1;
+        addRow(normal, rhs, columns, values, 1, 0);
+        for (int level = 1; level < LEVELS - 1; level++) {
+            double w = SMOOTHNESS * weight(level);
+            columns[0] = level - 1;
+            values[0] = w;
+            columns[1] = level;
+            values[1] = -2 * w;
+            columns[2] = level + 1;
+            values[2] = w;
+            addRow(normal, rhs, columns, values, 3, 0);
+        }
+
+        double[] solution = solveSymmetric(normal, rhs);
+
+        // The response is monotonic; noise can make the solved curve dip at the ends
+        float[] table = new float[LEVELS];
+        double g = solution[0];
+        for (int level = 0; level < LEVELS; level++) {
+            g = Math.max(g, solution[level]);
+            table[level] = (float) Math.exp(g);
+        }
+        float white = table[LEVELS - 1];
+        for (int level = 0; level < LEVELS; level++) {
+            table[level] /= white;
+        }
+        return table;
+    }
+
+    /**
+     * Add the row with the given nonzero entries to the normal equations.
+     */
+    private static void addRow(double[][] normal, double[] rhs, int[] columns, double[] values,
+                               int count, double b) {
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < count; j++) {
+                normal[columns[i]][columns[j]] += values[i] * values[j];
+            }
+            rhs[columns[i]] += values[i] * b;
+        }
+    }
+
+    /**
+     * Solve a symmetric positive definite system by Cholesky decomposition, in place.
+     */
+    private static double[] solveSymmetric(double[][] a, double[] b) {
+        final int n = b.length;
+        for (int j = 0; j < n; j++) {
+            double[] rowJ = a[j];
+            double diagonal = rowJ[j];
+            for (int k = 0; k < j; k++) {
+                diagonal -= rowJ[k] * rowJ[k];
+            }
+            if (!(diagonal > 0)) {
+                throw new IllegalStateException("Calibration system is singular");
+            }
+            diagonal = Math.sqrt(diagonal);
+            rowJ[j] = diagonal;
+            for (int i = j + 1; i < n; i++) {
+                double[] rowI = a[i];
+                double sum = rowI[j];
+                for (int k = 0; k < j; k++) {
+                    sum -= rowI[k] * rowJ[k];
+                }
+                rowI[j] = sum / diagonal;
+            }
+        }
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            double sum = b[i];
+            for (int k = 0; k < i; k++) {
+                sum -= a[i][k] * x[k];
+            }
+            x[i] = sum / a[i][i];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = x[i];
+            for (int k = i + 1; k < n; k++) {
+                sum -= a[k][i] * x[k];
+            }
+            x[i] = sum / a[i][i];
+        }
+        return x;
+    }
+
+    /**
+     * File holding the table of a camera in directory.
+     */
+    static File file(File directory, String cameraId) {
+        return new File(directory, "response_" + cameraId + ".bin");
+    }
+
+    static void save(float[] table, File file) throws IOException {
+        if (table.length != LEVELS) {
+            throw new IllegalArgumentException("Table must have " + LEVELS + " entries");
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(LEVELS);
+            for (float value : table) {
+                out.writeFloat(value);
+            }
+        }
+    }
+
+    /**
+     * Read a table written by {@link #save}, or return null if there is no file.
+     */
+    static float[] load(File file) throws IOException {
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a response curve file");
+            }
+            int version = in.readInt();
+            if (version != FILE_VERSION) {
+                throw new IOException("Unsupported response curve version " + version);
+            }
+            if (in.readInt() != LEVELS) {
+                throw new IOException("Bad response curve size");
+            }
+            float[] table = new float[LEVELS];
+            for (int i = 0; i < LEVELS; i++) {
+                table[i] = in.readFloat();
+            }
+            return table;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming reader for Radiance RGBE (.hdr) images such as those written by
+ * {@link RgbeWriter}.
+ *
+ * <p>Reads flat and new-style run-length encoded scanlines in the standard -Y h +X w
+ * orientation, one row at a time. Old-style RLE, which no current writer produces, is not
+ * supported.</p>
+ */
+class RgbeReader {
+
+    private static final int MAX_HEADER_LINE = 4096;
+    private static final int MIN_RLE_WIDTH = 8;
+    private static final int MAX_RLE_WIDTH = 0x7fff;
+
+    private final InputStream mIn;
+    private final int mWidth;
+    private final int mHeight;
+    private int mRowsRead = 0;
+
+    // RGBE bytes of the current row, channel-interleaved
+    private final byte[] mPixels;
+
+    /**
+     * Read the file header from in. The caller owns in and should buffer it.
+     */
+    RgbeReader(InputStream in) throws IOException {
+        mIn = in;
+        String line = readLine();
+        if (!line.startsWith("#?")) {
+            throw new IOException("Not a Radiance file");
+        }
+        // Variables up to an empty line, then the resolution
+        while (!(line = readLine()).isEmpty()) {
+            if (line.startsWith("FORMAT=") && !line.equals("FORMAT=32-bit_rle_rgbe")) {
+                throw new IOException("Unsupported pixel format: " + line);
+            }
+        }
+        String[] resolution = readLine().trim().split("\\s+");
+        if (resolution.length != 4 || !resolution[0].equals("-Y") ||
+                !resolution[2].equals("+X")) {
+            throw new IOException("Unsupported image orientation");
+        }
+        try {
+            mHeight = Integer.parseInt(resolution[1]);
+            mWidth = Integer.parseInt(resolution[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad image size", e);
+        }
+        if (mWidth <= 0 || mHeight <= 0) {
+            throw new IOException("Bad image size");
+        }
+        mPixels = new byte[mWidth * 4];
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Read the next row, top to bottom.
+     *
+     * @param rgb receives linear RGB radiance, 3 floats per pixel
+     */
+    void readRow(float[] rgb) throws IOException {
+        if (mRowsRead == mHeight) {
+            throw new IllegalStateException("All " + mHeight + " rows already read");
+        }
+        if (mWidth < MIN_RLE_WIDTH || mWidth > MAX_RLE_WIDTH) {
+            readFully(mPixels, 0, mPixels.length);
+        } else {
+            readFully(mPixels, 0, 4);
+            if (mPixels[0] == 2 && mPixels[1] == 2 && (mPixels[2] & 0x80) == 0) {
+                int width = ((mPixels[2] & 0xFF) << 8) | (mPixels[3] & 0xFF);
+                if (width != mWidth) {
+                    throw new IOException("Scanline width doesn't match the image");
+                }
+                for (int channel = 0; channel < 4; channel++) {
+                    decodeChannel(channel);
+                }
+            } else if (mPixels[0] == 1 && mPixels[1] == 1 && mPixels[2] == 1) {
+                throw new IOException("Old-style run-length encoding isn't supported");
+            } else {
+                readFully(mPixels, 4, mPixels.length - 4);
+            }
+        }
+        for (int x = 0; x < mWidth; x++) {
+            fromRgbe(mPixels, x * 4, rgb, x * 3);
+        }
+        mRowsRead++;
+    }
+
+    /**
+     * Convert one RGBE pixel to linear RGB, taking each mantissa at the middle of its step.
+     */
+    static void fromRgbe(byte[] rgbe, int offset, float[] out, int outOffset) {
+        int exponent = rgbe[offset + 3] & 0xFF;
+        if (exponent == 0) {
+            out[outOffset] = 0;
+            out[outOffset + 1] = 0;
+            out[outOffset + 2] = 0;
+            return;
+        }
+        float scale = Math.scalb(1.f, exponent - 128 - 8);
+        out[outOffset] = ((rgbe[offset] & 0xFF) + 0.5f) * scale;
+        out[outOffset + 1] = ((rgbe[offset + 1] & 0xFF) + 0.5f) * scale;
+        out[outOffset + 2] = ((rgbe[offset + 2] & 0xFF) + 0.5f) * scale;
+    }
+
+    /**
+     * Decode one run-length encoded channel into mPixels: (128 + count, value) is a run,
+     * (count, bytes...) literal.
+     */
+    private void decodeChannel(int channel) throws IOException {
+        int x = 0;
+        while (x < mWidth) {
+            int count = read();
+            if (count > 128) {
+                count -= 128;
+                if (x + count > mWidth) {
+                    throw new IOException("Run past end of scanline");
+                }
+                byte value = (byte) read();
+                for (int i = 0; i < count; i++) {
+                    mPixels[(x + i) * 4 + channel] = value;
+                }
+            } else {
+                if (count == 0 || x + count > mWidth) {
+                    throw new IOException("Bad literal in scanline");
+                }
+                for (int i = 0; i < count; i++) {
+                    mPixels[(x + i) * 4 + channel] = (byte) read();
+                }
+            }
+            x += count;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = read()) != '\n') {
+            if (sb.length() == MAX_HEADER_LINE) {
+                throw new IOException("Header line too long");
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    private int read() throws IOException {
+        int c = mIn.read();
+        if (c < 0) {
+            throw new EOFException();
+        }
+        return c;
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = mIn.read(buffer, offset, length);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+}
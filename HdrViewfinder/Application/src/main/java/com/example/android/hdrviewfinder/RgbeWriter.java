@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming writer for Radiance RGBE (.hdr) images.
+ *
+ * <p>Each pixel is stored as an 8-bit mantissa per channel with a shared 8-bit exponent, which
+ * covers the dynamic range of any merged exposure pair. Rows are written one at a time, run-length
+ * encoded per channel, so only a single row is ever held in memory. All row buffers are allocated
+ * up front.</p>
+ */
+class RgbeWriter {
+
+    // Scanlines outside this width range can't be run-length encoded and are written flat
+    private static final int MIN_RLE_WIDTH = 8;
+    private static final int MAX_RLE_WIDTH = 0x7fff;
+
+    // Shortest run worth encoding as a run rather than literally
+    private static final int MIN_RUN = 4;
+    private static final int MAX_RUN = 127;
+    private static final int MAX_LITERAL = 128;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private int mRowsWritten = 0;
+
+    // RGBE bytes of the current row, channel-interleaved
+    private final byte[] mPixels;
+    // Encoded row: header plus worst case one literal count byte per MAX_LITERAL bytes
+    private final byte[] mEncoded;
+
+    /**
+     * Write the file header to out. The caller owns out and should buffer it.
+     */
+    RgbeWriter(OutputStream out, int width, int height) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Image size must be positive");
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mPixels = new byte[width * 4];
+        mEncoded = new byte[4 + width * 4 + 4 * (width / MAX_LITERAL + 1)];
+
+        String header = "#?RADIANCE\n" +
+                "# Written by HdrViewfinder\n" +
+                "FORMAT=32-bit_rle_rgbe\n" +
+                "\n" +
+                "-Y " + height + " +X " + width + "\n";
+        out.write(header.getBytes(Charset.forName("US-ASCII")));
+    }
+
+    /**
+     * Write the next row, top to bottom.
+     *
+     * @param rgb linear RGB radiance, 3 floats per pixel
+     */
+    void writeRow(float[] rgb) throws IOException {
+        if (mRowsWritten == mHeight) {
+            throw new IllegalStateException("All " + mHeight + " rows already written");
+        }
+        for (int x = 0; x < mWidth; x++) {
+            toRgbe(rgb[x * 3], rgb[x * 3 + 1], rgb[x * 3 + 2], mPixels, x * 4);
+        }
+        if (mWidth < MIN_RLE_WIDTH || mWidth > MAX_RLE_WIDTH) {
+            mOut.write(mPixels);
+        } else {
+            mOut.write(mEncoded, 0, encodeRow());
+        }
+        mRowsWritten++;
+    }
+
+    /**
+     * Convert one pixel to RGBE: the largest channel's binary exponent is shared, and each
+     * channel keeps 8 bits of mantissa relative to it.
+     */
+    static void toRgbe(float r, float g, float b, byte[] out, int offset) {
+        float max = Math.max(r, Math.max(g, b));
+        if (!(max > 1e-32f)) {
+            out[offset] = 0;
+            out[offset + 1] = 0;
+            out[offset + 2] = 0;
+            out[offset + 3] = 0;
+            return;
+        }
+        // max = m * 2^exponent with m in [0.5, 1)
+        int exponent = Math.getExponent(max) + 1;
+        float scale = Math.scalb(256.f, -exponent);
+        out[offset] = (byte) (Math.max(r, 0.f) * scale);
+        out[offset + 1] = (byte) (Math.max(g, 0.f) * scale);
+        out[offset + 2] = (byte) (Math.max(b, 0.f) * scale);
+        out[offset + 3] = (byte) (exponent + 128);
+    }
+
+    /**
+     * Encode mPixels as a new-style RLE scanline into mEncoded, returning its length.
+     */
+    private int encodeRow() {
+        byte[] dst = mEncoded;
+        dst[0] = 2;
+        dst[1] = 2;
+        dst[2] = (byte) (mWidth >> 8);
+        dst[3] = (byte) mWidth;
+        int length = 4;
+        for (int channel = 0; channel < 4; channel++) {
+            length = encodeChannel(channel, dst, length);
+        }
+        return length;
+    }
+
+    /**
+     * Run-length encode one channel of mPixels: runs of MIN_RUN or more equal bytes become
+     * (128 + count, value), everything else literal (count, bytes...).
+     */
+    private int encodeChannel(int channel, byte[] dst, int length) {
+        final byte[] src = mPixels;
+        final int n = mWidth;
+        int cur = 0;
+        while (cur < n) {
+            // Find the next run of at least MIN_RUN
+            int runStart = cur;
+            int runCount = 0;
+            int previousRunCount = 0;
+            while (runCount < MIN_RUN && runStart < n) {
+                runStart += runCount;
+                previousRunCount = runCount;
+                runCount = 1;
+                while (runStart + runCount < n && runCount < MAX_RUN &&
+                        src[(runStart + runCount) * 4 + channel] == src[runStart * 4 + channel]) {
+                    runCount++;
+                }
+            }
+            // A short run right before the long one is cheaper as a run too
+            if (previousRunCount > 1 && previousRunCount == runStart - cur) {
+                dst[length++] = (byte) (128 + previousRunCount);
+                dst[length++] = src[cur * 4 + channel];
+                cur = runStart;
+            }
+            while (cur < runStart) {
+                int literal = Math.min(MAX_LITERAL, runStart - cur);
+                dst[length++] = (byte) literal;
+                for (int i = 0; i < literal; i++) {
+                    dst[length++] = src[(cur + i) * 4 + channel];
+                }
+                cur += literal;
+            }
+            if (runCount >= MIN_RUN) {
+                dst[length++] = (byte) (128 + runCount);
+                dst[length++] = src[runStart * 4 + channel];
+                cur += runCount;
+            }
+        }
+        return length;
+    }
+}
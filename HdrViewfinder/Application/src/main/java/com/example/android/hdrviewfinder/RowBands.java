@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A per-row operation that is run over bands of rows in parallel on a {@link ForkJoinPool}.
+ */
+abstract class RowBands {
+
+    /**
+     * Rows below which a band is processed directly instead of being split further
+     */
+    static final int TILE_ROWS = 16;
+
+    /**
+     * Process rows [startY, endY). Called concurrently for disjoint bands.
+     */
+    abstract void processRows(int startY, int endY);
+
+    /**
+     * Process rows [0, height), returning once all bands are done. May be called from a task
+     * already running in the pool, in which case the bands are forked from that task.
+     */
+    void run(ForkJoinPool pool, int height) {
+        if (height <= TILE_ROWS) {
+            processRows(0, height);
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            new Band(0, height).invoke();
+        } else {
+            pool.invoke(new Band(0, height));
+        }
+    }
+
+    /**
+     * A band of rows; splits itself in half until it is small enough to process directly
+     */
+    @SuppressWarnings("serial")
+    private class Band extends RecursiveAction {
+        private final int mStartY;
+        private final int mEndY;
+
+        Band(int startY, int endY) {
+            mStartY = startY;
+            mEndY = endY;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEndY - mStartY <= TILE_ROWS) {
+                processRows(mStartY, mEndY);
+                return;
+            }
+            int mid = (mStartY + mEndY) >>> 1;
+            invokeAll(new Band(mStartY, mid), new Band(mid, mEndY));
+        }
+    }
+}
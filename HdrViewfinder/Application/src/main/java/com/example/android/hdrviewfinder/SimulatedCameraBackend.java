@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraAccessException;
+import android.media.Image;
+import android.media.ImageWriter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Camera backend that renders a {@link SimulatedScene} instead of running camera hardware, so
+ * the whole viewfinder can be run and benchmarked on devices and emulators without a suitable
+ * camera.
+ *
+ * <p>Frames come at up to a fixed frame rate, slower when a request's exposure or frame
+ * duration is longer. Each one is the scene rendered with the request's exposure time and
+ * sensitivity, or {@link SimulatedScene#KEY_EXPOSURE} with auto exposure, queued to the
+ * request's target with an ImageWriter and timestamped like the capture callbacks around it.
+ * The scene is static and noiseless, so runs are repeatable. Rendered frames are kept for the
+ * last few exposures, which repeat with the HDR burst.</p>
+ *
+ * <p>Selected by starting the activity with extras, for example:</p>
+ * <pre>
+ * adb shell am start -n com.example.android.hdrviewfinder/.HdrViewfinderActivity \
+ *     --ez com.example.android.hdrviewfinder.SIMULATED_CAMERA true \
+ *     --es com.example.android.hdrviewfinder.SIMULATED_SCENE /sdcard/scene.hdr
+ * </pre>
+ *
+ * <p>Frames are rendered on the camera thread.</p>
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class SimulatedCameraBackend implements CameraBackend {
+
+    static final String CAMERA_ID = "simulated";
+
+    /**
+     * Size of the synthetic scene, used without a scene file
+     */
+    static final int SYNTHETIC_WIDTH = 1280;
+    static final int SYNTHETIC_HEIGHT = 720;
+
+    private static final long MIN_EXPOSURE = 100 * 1000L; // ns
+    private static final long MAX_EXPOSURE = 1000 * 1000 * 1000L; // ns
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private static final int MAX_CACHED_FRAMES = ViewfinderProcessor.MAX_BRACKET_SIZE;
+    private static final int WRITER_IMAGES = 2;
+
+    private final File mSceneFile;
+    private final long mMinFrameDuration;
+    // Loaded by findHdrCamera, before the camera thread first uses it
+    private volatile SimulatedScene mScene;
+
+    // Everything below is only touched on the camera thread
+    private StateCallback mCallback;
+    private Handler mHandler;
+    private boolean mOpen = false;
+
+    private final IdentityHashMap<Surface, ImageWriter> mWriters = new IdentityHashMap<>();
+
+    private final List<FrameRequest> mRepeating = new ArrayList<>();
+    private boolean mRepeatingBurst;
+    private int mRepeatingIndex;
+    private CameraOps.CaptureListener mRepeatingListener;
+    private Handler mRepeatingHandler;
+    private final ArrayDeque<Capture> mCaptures = new ArrayDeque<>();
+    private long mFrameNumber = 0;
+
+    // Rendered frames by exposure time times sensitivity, replaced round robin
+    private final long[] mCachedGains = new long[MAX_CACHED_FRAMES];
+    private final byte[][] mCachedFrames = new byte[MAX_CACHED_FRAMES][];
+    private int mNextCachedFrame = 0;
+
+    /**
+     * @param sceneFile Radiance .hdr file to load the scene from, or null for
+     *                  {@link SimulatedScene#synthetic}
+     * @param frameRate highest frame rate to produce frames at
+     */
+    SimulatedCameraBackend(File sceneFile, int frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive");
+        }
+        mSceneFile = sceneFile;
+        mMinFrameDuration = 1000 * NANOS_PER_MILLI / frameRate;
+    }
+
+    @Override
+    public CameraProperties findHdrCamera() throws CameraAccessException {
+        if (mScene == null) {
+            if (mSceneFile == null) {
+                mScene = SimulatedScene.synthetic(SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT);
+            } else {
+                try {
+                    mScene = SimulatedScene.load(mSceneFile);
+                } catch (IOException e) {
+                    throw new CameraAccessException(CameraAccessException.CAMERA_ERROR,
+                            "Can't load simulated scene " + mSceneFile, e);
+                }
+            }
+        }
+        Size[] sizes = {new Size(mScene.getWidth(), mScene.getHeight())};
+        return new CameraProperties(CAMERA_ID, sizes, new long[] {mMinFrameDuration}, sizes,
+                new Range<>(MIN_EXPOSURE, MAX_EXPOSURE), MAX_EXPOSURE);
+    }
+
+    @Override
+    public void open(String cameraId, final StateCallback callback, Handler handler)
+            throws CameraAccessException {
+        if (!CAMERA_ID.equals(cameraId) || mScene == null) {
+            throw new CameraAccessException(CameraAccessException.CAMERA_ERROR,
+                    "No simulated camera " + cameraId);
+        }
+        mCallback = callback;
+        mHandler = handler;
+        mOpen = true;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOpen) {
+                    callback.onOpened();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void createSession(List<Surface> outputs) {
+        stopSession();
+        for (Surface output : outputs) {
+            mWriters.put(output, ImageWriter.newInstance(output, WRITER_IMAGES));
+        }
+        mHandler.post(mFrameRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mOpen) {
+                    mCallback.onConfigured();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setRepeating(List<FrameRequest> requests, boolean burst,
+            CameraOps.CaptureListener listener, Handler handler) {
+        mRepeating.clear();
+        mRepeating.addAll(requests);
+        mRepeatingBurst = burst;
+        mRepeatingIndex = 0;
+        mRepeatingListener = listener;
+        mRepeatingHandler = handler;
+    }
+
+    @Override
+    public void captureBurst(List<FrameRequest> requests, CameraOps.CaptureListener listener,
+            Handler handler) {
+        for (FrameRequest request : requests) {
+            mCaptures.add(new Capture(request, listener, handler));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!mOpen) return;
+        mOpen = false;
+        stopSession();
+        final StateCallback callback = mCallback;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onClosed();
+            }
+        });
+    }
+
+    private void stopSession() {
+        mHandler.removeCallbacks(mFrameRunnable);
+        for (ImageWriter writer : mWriters.values()) {
+            writer.close();
+        }
+        mWriters.clear();
+        mRepeating.clear();
+        mRepeatingListener = null;
+        mRepeatingHandler = null;
+        mCaptures.clear();
+    }
+
+    /**
+     * Produces one frame, from a pending capture or else the repeating requests, and schedules
+     * the next one.
+     */
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long frameStart = SystemClock.uptimeMillis();
+            long frameDuration = mMinFrameDuration;
+
+            Capture capture = mCaptures.poll();
+            if (capture != null) {
+                frameDuration = Math.max(frameDuration,
+                        capture(capture.mRequest, capture.mListener, capture.mHandler));
+            } else if (!mRepeating.isEmpty()) {
+                FrameRequest request = mRepeating.get(mRepeatingIndex);
+                if (mRepeatingBurst) {
+                    mRepeatingIndex = (mRepeatingIndex + 1) % mRepeating.size();
+                }
+                frameDuration = Math.max(frameDuration,
+                        capture(request, mRepeatingListener, mRepeatingHandler));
+            }
+            mHandler.postAtTime(this, frameStart + frameDuration / NANOS_PER_MILLI);
+        }
+    };
+
+    /**
+     * Capture one frame for request and report it to listener.
+     *
+     * @return the frame duration of the request
+     */
+    private long capture(final FrameRequest request, final CameraOps.CaptureListener listener,
+            Handler handler) {
+        final long exposureTime = request.isAutoExposure() ? SimulatedScene.KEY_EXPOSURE :
+                Math.min(Math.max(request.getExposureTime(), MIN_EXPOSURE), MAX_EXPOSURE);
+        final int sensitivity = request.isAutoExposure() ? SimulatedScene.KEY_SENSITIVITY :
+                request.getSensitivity();
+        final long frameDuration = Math.max(exposureTime, request.getFrameDuration());
+        final long timestamp = SystemClock.elapsedRealtimeNanos();
+        final long frameNumber = mFrameNumber++;
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onCaptureStarted(request, timestamp, frameNumber);
+            }
+        });
+        ImageWriter writer = mWriters.get(request.getTarget());
+        final boolean written = writer != null &&
+                writeFrame(writer, exposureTime, sensitivity, timestamp);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (written) {
+                    listener.onCaptureCompleted(request, frameNumber, timestamp,
+                            exposureTime, frameDuration, sensitivity);
+                } else {
+                    listener.onCaptureFailed(request);
+                }
+            }
+        });
+        return frameDuration;
+    }
+
+    /**
+     * Queue the scene rendered with the given exposure to writer. Blocks while the consumer
+     * holds all of the writer's images, as a camera stalls on a slow consumer.
+     *
+     * @return false if the target's size doesn't match the scene
+     */
+    private boolean writeFrame(ImageWriter writer, long exposureTime, int sensitivity,
+            long timestamp) {
+        Image image = writer.dequeueInputImage();
+        if (image.getWidth() != mScene.getWidth() || image.getHeight() != mScene.getHeight()) {
+            image.close();
+            return false;
+        }
+        byte[] frame = getFrame(exposureTime, sensitivity);
+        int width = mScene.getWidth();
+        int height = mScene.getHeight();
+        int chromaWidth = mScene.getChromaWidth();
+        int chromaHeight = mScene.getChromaHeight();
+        Image.Plane[] planes = image.getPlanes();
+        copyPlane(frame, 0, width, height, planes[0]);
+        copyPlane(frame, width * height, chromaWidth, chromaHeight, planes[1]);
+        copyPlane(frame, width * height + chromaWidth * chromaHeight, chromaWidth,
+                chromaHeight, planes[2]);
+        image.setTimestamp(timestamp);
+        writer.queueInputImage(image);
+        return true;
+    }
+
+    /**
+     * Get the scene rendered with the given exposure, from the cache if it was rendered lately.
+     */
+    private byte[] getFrame(long exposureTime, int sensitivity) {
+        long gain = exposureTime * sensitivity;
+        for (int i = 0; i < MAX_CACHED_FRAMES; i++) {
+            if (mCachedFrames[i] != null && mCachedGains[i] == gain) {
+                return mCachedFrames[i];
+            }
+        }
+        int slot = mNextCachedFrame;
+        mNextCachedFrame = (slot + 1) % MAX_CACHED_FRAMES;
+        if (mCachedFrames[slot] == null) {
+            mCachedFrames[slot] = new byte[mScene.getFrameSize()];
+        }
+        mScene.render(exposureTime, sensitivity, mCachedFrames[slot]);
+        mCachedGains[slot] = gain;
+        return mCachedFrames[slot];
+    }
+
+    private static void copyPlane(byte[] src, int offset, int width, int height,
+            Image.Plane plane) {
+        ByteBuffer dst = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        for (int y = 0; y < height; y++) {
+            int srcRow = offset + y * width;
+            if (pixelStride == 1) {
+                dst.position(y * rowStride);
+                dst.put(src, srcRow, width);
+            } else {
+                for (int x = 0; x < width; x++) {
+                    dst.put(y * rowStride + x * pixelStride, src[srcRow + x]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Capture requested with captureBurst
+     */
+    private static class Capture {
+        final FrameRequest mRequest;
+        final CameraOps.CaptureListener mListener;
+        final Handler mHandler;
+
+        Capture(FrameRequest request, CameraOps.CaptureListener listener, Handler handler) {
+            mRequest = request;
+            mListener = listener;
+            mHandler = handler;
+        }
+    }
+}
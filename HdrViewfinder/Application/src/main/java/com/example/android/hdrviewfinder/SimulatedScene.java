@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Static scene of linear RGB radiance, rendered into YUV_420_888 frames at any exposure by
+ * {@link SimulatedCameraBackend}.
+ *
+ * <p>A pixel's linear value is its radiance times the exposure time in seconds times
+ * sensitivity / 100, clipped at 1 and encoded with {@link ToneMapper#GAMMA}, the response that
+ * {@link RadianceMerger} assumes. Scenes are scaled so that their log-average luminance comes
+ * out mid-gray at {@link #KEY_EXPOSURE} and {@link #KEY_SENSITIVITY}.</p>
+ */
+final class SimulatedScene {
+
+    static final float MID_GRAY = 0.18f;
+    static final long KEY_EXPOSURE = 1000L * 1000 * 1000 / 30; // ns
+    static final int KEY_SENSITIVITY = 100;
+
+    // Log-average luminance of every scene
+    static final float KEY_RADIANCE = MID_GRAY * 30;
+
+    /**
+     * Dynamic range of the synthetic scene's ramps
+     */
+    static final int SYNTHETIC_STOPS = 14;
+
+    // Keeps black pixels out of the log average
+    private static final double LOG_EPSILON = 1e-6;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final float[] mRadiance;
+
+    /**
+     * @param radiance linear RGB radiance, 3 floats per pixel, scaled so that its log-average
+     *                 luminance is KEY_RADIANCE; see {@link #normalize}
+     */
+    SimulatedScene(int width, int height, float[] radiance) {
+        if (width <= 0 || height <= 0 || radiance.length < width * height * 3) {
+            throw new IllegalArgumentException("Radiance doesn't match the scene size");
+        }
+        mWidth = width;
+        mHeight = height;
+        mRadiance = radiance;
+    }
+
+    /**
+     * Make a test scene: horizontal ramps over SYNTHETIC_STOPS stops centred on KEY_RADIANCE,
+     * neutral in the top half and red, green and blue tinted in the bottom half.
+     */
+    static SimulatedScene synthetic(int width, int height) {
+        float[] radiance = new float[width * height * 3];
+        final float[][] tints = {
+                {1.f, 1.f, 1.f},
+                {1.6f, 0.8f, 0.8f},
+                {0.8f, 1.2f, 0.8f},
+                {0.8f, 0.8f, 2.f}};
+        for (int y = 0; y < height; y++) {
+            int band = y < height / 2 ? 0 : 1 + Math.min(2, (y - height / 2) * 6 / height);
+            float[] tint = tints[band];
+            for (int x = 0; x < width; x++) {
+                double position = width > 1 ? (double) x / (width - 1) - 0.5 : 0;
+                float level = (float) (KEY_RADIANCE * Math.pow(2, position * SYNTHETIC_STOPS));
+                int i = (y * width + x) * 3;
+                radiance[i] = level * tint[0];
+                radiance[i + 1] = level * tint[1];
+                radiance[i + 2] = level * tint[2];
+            }
+        }
+        normalize(radiance, width * height);
+        return new SimulatedScene(width, height, radiance);
+    }
+
+    /**
+     * Load a scene from a Radiance .hdr file, such as an HDR still saved by the app.
+     */
+    static SimulatedScene load(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            RgbeReader reader = new RgbeReader(in);
+            int width = reader.getWidth();
+            int height = reader.getHeight();
+            float[] radiance = new float[width * height * 3];
+            float[] row = new float[width * 3];
+            for (int y = 0; y < height; y++) {
+                reader.readRow(row);
+                System.arraycopy(row, 0, radiance, y * width * 3, row.length);
+            }
+            normalize(radiance, width * height);
+            return new SimulatedScene(width, height, radiance);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Scale radiance in place so that its log-average luminance is KEY_RADIANCE.
+     */
+    static void normalize(float[] radiance, int pixels) {
+        double logSum = 0;
+        for (int i = 0; i < pixels; i++) {
+            logSum += Math.log(LOG_EPSILON + luminance(radiance, i * 3));
+        }
+        float scale = (float) (KEY_RADIANCE / Math.exp(logSum / pixels));
+        for (int i = 0; i < pixels * 3; i++) {
+            radiance[i] *= scale;
+        }
+    }
+
+    private static float luminance(float[] rgb, int offset) {
+        return 0.299f * rgb[offset] + 0.587f * rgb[offset + 1] + 0.114f * rgb[offset + 2];
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Size of a frame from {@link #render}: a full-resolution Y plane followed by
+     * quarter-resolution U and V planes, rounded up for odd sizes.
+     */
+    int getFrameSize() {
+        return mWidth * mHeight + 2 * getChromaWidth() * getChromaHeight();
+    }
+
+    int getChromaWidth() {
+        return (mWidth + 1) / 2;
+    }
+
+    int getChromaHeight() {
+        return (mHeight + 1) / 2;
+    }
+
+    /**
+     * Render the scene as captured with the given settings into frame, laid out as described
+     * for {@link #getFrameSize}. Chroma is the average of each 2x2 block.
+     *
+     * @param exposureTime exposure time in ns
+     * @param sensitivity  sensitivity in ISO
+     */
+    void render(long exposureTime, int sensitivity, byte[] frame) {
+        final float gain = exposureTime * 1e-9f * sensitivity / 100;
+        final int chromaWidth = getChromaWidth();
+        final int uOffset = mWidth * mHeight;
+        final int vOffset = uOffset + chromaWidth * getChromaHeight();
+        final int[] rgb = new int[3];
+        for (int cy = 0; cy < getChromaHeight(); cy++) {
+            for (int cx = 0; cx < chromaWidth; cx++) {
+                int sumR = 0;
+                int sumG = 0;
+                int sumB = 0;
+                for (int i = 0; i < 4; i++) {
+                    // Odd sizes repeat the last row or column
+                    int x = Math.min(cx * 2 + (i & 1), mWidth - 1);
+                    int y = Math.min(cy * 2 + (i >> 1), mHeight - 1);
+                    encode(x, y, gain, rgb);
+                    frame[y * mWidth + x] =
+                            (byte) ((77 * rgb[0] + 150 * rgb[1] + 29 * rgb[2] + 128) >> 8);
+                    sumR += rgb[0];
+                    sumG += rgb[1];
+                    sumB += rgb[2];
+                }
+                int c = cy * chromaWidth + cx;
+                frame[uOffset + c] = (byte) clamp(
+                        ((-43 * sumR - 85 * sumG + 128 * sumB + 512) >> 10) + 128);
+                frame[vOffset + c] = (byte) clamp(
+                        ((128 * sumR - 107 * sumG - 21 * sumB + 512) >> 10) + 128);
+            }
+        }
+    }
+
+    private void encode(int x, int y, float gain, int[] rgb) {
+        int i = (y * mWidth + x) * 3;
+        rgb[0] = ToneMapper.encode(mRadiance[i] * gain);
+        rgb[1] = ToneMapper.encode(mRadiance[i + 1] * gain);
+        rgb[2] = ToneMapper.encode(mRadiance[i + 2] * gain);
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
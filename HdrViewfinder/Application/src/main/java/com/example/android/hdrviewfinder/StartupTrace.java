@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Records how long after launch each step of startup first completed, up to the first
+ * processed frame sent to the viewfinder. Steps run on different threads, so all methods are
+ * thread-safe. Times are SystemClock.elapsedRealtimeNanos() values.
+ */
+final class StartupTrace {
+
+    static final String FIRST_FRAME = "first frame";
+
+    private static final int MAX_MILESTONES = 16;
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private final long mStartTime;
+    private final String[] mMilestones = new String[MAX_MILESTONES];
+    private final long[] mTimes = new long[MAX_MILESTONES];
+    private int mCount = 0;
+    private boolean mFinished = false;
+
+    StartupTrace(long startTime) {
+        mStartTime = startTime;
+    }
+
+    /**
+     * Record that a step completed at time. Only the first completion of each step counts, and
+     * nothing is recorded once the first frame has been.
+     */
+    synchronized void mark(String milestone, long time) {
+        if (mFinished || mCount == MAX_MILESTONES || indexOf(milestone) >= 0) return;
+        mMilestones[mCount] = milestone;
+        mTimes[mCount] = time;
+        mCount++;
+    }
+
+    /**
+     * Record the first frame and end the trace.
+     *
+     * @return a summary of the trace to log, or null if it had already ended
+     */
+    synchronized String finish(long firstFrameTime) {
+        if (mFinished) return null;
+        mark(FIRST_FRAME, firstFrameTime);
+        mFinished = true;
+        return toString();
+    }
+
+    synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Get the time from start to the given step in nanoseconds, or -1 if it hasn't completed.
+     */
+    synchronized long getElapsed(String milestone) {
+        int i = indexOf(milestone);
+        return i < 0 ? -1 : mTimes[i] - mStartTime;
+    }
+
+    /**
+     * Steps in the order they completed, with milliseconds since start.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mCount; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(mMilestones[i]).append(' ')
+                    .append((mTimes[i] - mStartTime) / NANOS_PER_MILLI).append(" ms");
+        }
+        return sb.toString();
+    }
+
+    private int indexOf(String milestone) {
+        for (int i = 0; i < mCount; i++) {
+            if (mMilestones[i].equals(milestone)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+/**
+ * Tone-mapping operators for the merged viewfinder output.
+ *
+ * <p>Global operators map every pixel with the same curve, so the whole YUV->RGB conversion and
+ * curve are baked into one table and the merge kernels do a single lookup per pixel instead of
+ * the fixed-point JFIF transform. The table is indexed by the full 8 bits of luma and the top
+ * {@link #CHROMA_BITS} bits of each chroma channel, which is finer than the chroma of a 4:2:0
+ * frame needs; it is {@link #LUT_ENTRIES} RGBA entries, 4 MB.</p>
+ *
+ * <p>The local operator adapts to the mean brightness around each pixel and can't be a single
+ * table; see {@link LocalToneMap}.</p>
+ *
+ * <p>Curves are applied in linear light, decoding and re-encoding the output with
+ * {@link #GAMMA}. Building a table takes up to a few hundred milliseconds, so it is done off the
+ * processing thread.</p>
+ */
+class ToneMapper {
+
+    // Operators; must be in the same order as the tone_map_label_array strings
+    static final int OPERATOR_NONE = 0;
+    static final int OPERATOR_REINHARD = 1;
+    static final int OPERATOR_ACES = 2;
+    static final int OPERATOR_LOCAL = 3;
+    static final int OPERATOR_COUNT = 4;
+
+    static final int CHROMA_BITS = 6;
+    private static final int CHROMA_SHIFT = 8 - CHROMA_BITS;
+    static final int LUT_ENTRIES = 256 << (2 * CHROMA_BITS);
+
+    static final float GAMMA = 2.2f;
+
+    // Gamma encoding table, indexed by the square root of linear light so that the dark end,
+    // where the curve is steepest, gets more entries
+    private static final int ENCODE_STEPS = 4095;
+    private static final byte[] ENCODE = new byte[ENCODE_STEPS + 1];
+
+    static {
+        for (int i = 0; i <= ENCODE_STEPS; i++) {
+            ENCODE[i] = (byte) Math.round(255 * Math.pow((double) i / ENCODE_STEPS, 2 / GAMMA));
+        }
+    }
+
+    /**
+     * Index of the table entry for a YUV pixel; its RGBA bytes start at four times this.
+     * Must match toneMapYuv in tonemap.rsh.
+     */
+    static int lutIndex(int y, int u, int v) {
+        return (y << (2 * CHROMA_BITS)) | ((u >> CHROMA_SHIFT) << CHROMA_BITS) |
+                (v >> CHROMA_SHIFT);
+    }
+
+    /**
+     * Build the YUV->RGBA table of a global operator.
+     *
+     * @param operator      OPERATOR_REINHARD or OPERATOR_ACES
+     * @param exposureStops gain applied in linear light before the curve
+     */
+    static byte[] buildLut(int operator, float exposureStops) {
+        if (operator != OPERATOR_REINHARD && operator != OPERATOR_ACES) {
+            throw new IllegalArgumentException("Not a global operator: " + operator);
+        }
+        final float gain = (float) Math.pow(2, exposureStops);
+        // Reinhard's white point: the brightest input maps to 1
+        final float white2 = gain * gain;
+
+        float[] linear = new float[256];
+        for (int i = 0; i < 256; i++) {
+            linear[i] = (float) Math.pow(i / 255.0, GAMMA);
+        }
+
+        byte[] lut = new byte[LUT_ENTRIES * 4];
+        float[] rgb = new float[3];
+        final int chromaLevels = 1 << CHROMA_BITS;
+        // Chroma is looked up by truncation; sampling buckets at their lower edge keeps neutral
+        // 128 exactly gray
+        for (int y = 0; y < 256; y++) {
+            for (int ui = 0; ui < chromaLevels; ui++) {
+                float u = (ui << CHROMA_SHIFT) - 128;
+                for (int vi = 0; vi < chromaLevels; vi++) {
+                    float v = (vi << CHROMA_SHIFT) - 128;
+                    // JFIF YUV->RGB, then to linear light
+                    rgb[0] = linear[clamp(Math.round(y + 1.402f * v))];
+                    rgb[1] = linear[clamp(Math.round(y - 0.34414f * u - 0.71414f * v))];
+                    rgb[2] = linear[clamp(Math.round(y + 1.772f * u))];
+
+                    if (operator == OPERATOR_REINHARD) {
+                        // Extended Reinhard on luminance, keeping hue
+                        float l = gain * (0.2126f * rgb[0] + 0.7152f * rgb[1] +
+                                0.0722f * rgb[2]);
+                        float scale = l > 0 ? gain * (1 + l / white2) / (1 + l) : 0;
+                        for (int c = 0; c < 3; c++) rgb[c] *= scale;
+                    } else {
+                        for (int c = 0; c < 3; c++) rgb[c] = aces(gain * rgb[c]);
+                    }
+
+                    int offset = (y << (2 * CHROMA_BITS) | ui << CHROMA_BITS | vi) * 4;
+                    for (int c = 0; c < 3; c++) {
+                        lut[offset + c] = (byte) encode(rgb[c]);
+                    }
+                    lut[offset + 3] = (byte) 255;
+                }
+            }
+        }
+        return lut;
+    }
+
+    /**
+     * Narkowicz's fit of the ACES filmic reference rendering transform.
+     */
+    static float aces(float x) {
+        return Math.max(0.f, Math.min(1.f,
+                (x * (2.51f * x + 0.03f)) / (x * (2.43f * x + 0.59f) + 0.14f)));
+    }
+
+    /**
+     * Write the RGBA table entry for a YUV pixel to out.
+     */
+    static void lookup(byte[] lut, byte[] out, int offset, int y, int u, int v) {
+        int entry = lutIndex(y, u, v) * 4;
+        out[offset] = lut[entry];
+        out[offset + 1] = lut[entry + 1];
+        out[offset + 2] = lut[entry + 2];
+        out[offset + 3] = (byte) 255;
+    }
+
+    /**
+     * Linear [0, 1] to gamma-encoded 8 bits.
+     */
+    static int encode(float linear) {
+        if (!(linear > 0)) return 0;
+        if (linear >= 1) return 255;
+        return ENCODE[(int) (Math.sqrt(linear) * ENCODE_STEPS + 0.5f)] & 0xFF;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes frames sent to its input Surface to H.264 and muxes them into an MP4 file.
+ *
+ * <p>The encoder runs in asynchronous mode: its output is written to the muxer from callbacks on
+ * the recorder's own thread, so nothing on the viewfinder path waits for it. Frames reach the
+ * input Surface through an {@link EncoderFeed}, which drops frames the encoder isn't ready
+ * for.</p>
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class VideoRecorder {
+
+    private static final String TAG = "VideoRecorder";
+
+    static final int FRAME_RATE = 30;
+    static final int I_FRAME_INTERVAL = 1; // s
+    // Bit rate per pixel of a frame per second; about 10 Mb/s at 1080p30
+    static final float BITS_PER_PIXEL = 0.16f;
+    // Longest wait for the encoder to finish the file
+    private static final long DRAIN_TIMEOUT_MS = 1000;
+
+    private final File mFile;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final MediaCodec mEncoder;
+    private final Surface mInputSurface;
+    private final MediaMuxer mMuxer;
+
+    // Only touched on the recorder thread
+    private int mTrack = -1;
+
+    private volatile long mEncodedFrameCount = 0;
+    private final ConditionVariable mDrained = new ConditionVariable();
+
+    /**
+     * Start an encoder for frames of the given size, writing to file.
+     */
+    VideoRecorder(Size size, File file) throws IOException {
+        mFile = file;
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+                size.getWidth(), size.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE,
+                Math.round(BITS_PER_PIXEL * size.getWidth() * size.getHeight() * FRAME_RATE));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+        MediaCodec encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        try {
+            encoder.setCallback(mEncoderCallback, mHandler);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = encoder.createInputSurface();
+            mMuxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException | IllegalStateException e) {
+            encoder.release();
+            mThread.quitSafely();
+            throw e;
+        }
+        mEncoder = encoder;
+        mEncoder.start();
+    }
+
+    /**
+     * Surface to send frames to, through an {@link EncoderFeed}.
+     */
+    Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Number of frames written to the file so far.
+     */
+    long getEncodedFrameCount() {
+        return mEncodedFrameCount;
+    }
+
+    /**
+     * Finish the file and release the encoder. Stop sending frames to the input Surface first.
+     * Waits up to {@link #DRAIN_TIMEOUT_MS} for frames still in the encoder.
+     */
+    void stop() {
+        try {
+            mEncoder.signalEndOfInputStream();
+            if (!mDrained.block(DRAIN_TIMEOUT_MS)) {
+                Log.w(TAG, "Encoder didn't finish in time; " + mFile + " may be cut short");
+            }
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Couldn't finish encoding", e);
+        }
+        // Tear down on the recorder thread, after any callbacks still queued there
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mEncoder.stop();
+                    if (mTrack >= 0) {
+                        mMuxer.stop();
+                    }
+                } catch (IllegalStateException e) {
+                    // After an encoder error, or with no frames written
+                    Log.e(TAG, "Couldn't finish " + mFile, e);
+                } finally {
+                    mEncoder.release();
+                    mMuxer.release();
+                    mInputSurface.release();
+                }
+            }
+        });
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final MediaCodec.Callback mEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Input comes from the Surface
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            mTrack = mMuxer.addTrack(format);
+            mMuxer.start();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                            MediaCodec.BufferInfo info) {
+            // Codec config is already in the track format
+            boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if (!config && info.size > 0 && mTrack >= 0) {
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                mMuxer.writeSampleData(mTrack, buffer, info);
+                mEncodedFrameCount++;
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mDrained.open();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error", e);
+            mDrained.open();
+        }
+    };
+}
@@ -16,28 +16,24 @@
 
 package com.example.android.hdrviewfinder;
 
-import android.graphics.ImageFormat;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
+import android.os.SystemClock;
 import android.renderscript.RenderScript;
-import android.renderscript.Type;
 import android.util.Size;
 import android.view.Surface;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Renderscript-based merger for an HDR viewfinder
+ * Merger for an HDR viewfinder, running on either RenderScript or the CPU
  */
 public class ViewfinderProcessor {
 
-    private Allocation mInputHdrAllocation;
-    private Allocation mInputNormalAllocation;
-    private Allocation mPrevAllocation;
-    private Allocation mOutputAllocation;
-
+    private final HandlerThread mProcessingThread;
     private Handler mProcessingHandler;
-    private ScriptC_hdr_merge mHdrMergeScript;
+    private MergeEngine mEngine;
+    private final ExposurePairing mPairing = new ExposurePairing();
 
     public ProcessingTask mHdrTask;
     public ProcessingTask mNormalTask;
@@ -46,112 +42,1082 @@ public class ViewfinderProcessor {
 
     public final static int MODE_NORMAL = 0;
     public final static int MODE_HDR = 2;
+    public final static int MODE_FUSION = 3;
+    /**
+     * Temporal denoising of the normal stream: static areas are averaged over many frames, for
+     * a cleaner preview in low light
+     */
+    public final static int MODE_DENOISE = 4;
+
+    /**
+     * Number of render modes; modes are numbered 0 to MODE_COUNT - 1
+     */
+    public final static int MODE_COUNT = 5;
+
+    public final static int ENGINE_RENDERSCRIPT = 0;
+    public final static int ENGINE_CPU = 1;
+
+    /**
+     * Previous frame kept as 4 bytes per pixel (Y, U, V, 255)
+     */
+    public final static int HISTORY_RGBA = HistoryLayout.FORMAT_RGBA;
+    /**
+     * Previous frame kept as a Y plane plus a quarter-size UV plane, 1.5 bytes per pixel
+     */
+    public final static int HISTORY_YUV420 = HistoryLayout.FORMAT_YUV420;
+
+    /**
+     * Exposures of the two alternating requests of the HDR burst
+     */
+    public final static int EXPOSURE_EVEN = ExposurePairing.EXPOSURE_EVEN;
+    public final static int EXPOSURE_ODD = ExposurePairing.EXPOSURE_ODD;
+    /**
+     * Exposure of frames from the normal stream, or HDR frames whose capture result is missing
+     */
+    public final static int EXPOSURE_UNKNOWN = ExposurePairing.EXPOSURE_UNKNOWN;
+
+    /**
+     * Longest supported HDR burst
+     */
+    public final static int MAX_BRACKET_SIZE = BracketAccumulator.MAX_BRACKET_SIZE;
+
+    /**
+     * Largest fusion proxy scale, see {@link #setFusionProxyScale}
+     */
+    public final static int MAX_PROXY_SCALE = ExposureFusion.MAX_PROXY_SCALE;
+
+    /**
+     * Tone-mapping operators, see {@link #setToneMap}
+     */
+    public final static int TONE_MAP_NONE = ToneMapper.OPERATOR_NONE;
+    public final static int TONE_MAP_REINHARD = ToneMapper.OPERATOR_REINHARD;
+    public final static int TONE_MAP_ACES = ToneMapper.OPERATOR_ACES;
+    public final static int TONE_MAP_LOCAL = ToneMapper.OPERATOR_LOCAL;
+    public final static int TONE_MAP_COUNT = ToneMapper.OPERATOR_COUNT;
+
+    /**
+     * Processing quality levels chosen by adaptive quality, see {@link #setAdaptiveQuality}
+     */
+    public final static int QUALITY_FULL = QualityGovernor.LEVEL_FULL;
+    public final static int QUALITY_REDUCED = QualityGovernor.LEVEL_REDUCED;
+    public final static int QUALITY_LOW = QualityGovernor.LEVEL_LOW;
+    public final static int QUALITY_MINIMAL = QualityGovernor.LEVEL_MINIMAL;
+
+    private volatile int mBracketSize = BracketAccumulator.MIN_BRACKET_SIZE;
+
+    // Builds tone-mapping and response tables off the processing thread, created on first
+    // use and quit by release. Only the latest setToneMap call's tables are applied.
+    private HandlerThread mToneMapThread;
+    private Handler mToneMapHandler;
+    private final AtomicInteger mToneMapGeneration = new AtomicInteger();
+
+    // Auto bracketing state, only touched on the processing thread
+    private AutoBracketController mAutoBracket;
+    private AutoBracketListener mAutoBracketListener;
+    private Handler mAutoBracketHandler;
+    private final LumaHistogram mHistogram = new LumaHistogram();
+
+    // Smoothed sensor time between fused HDR outputs, 0 while not merging. The rest of the
+    // measurement is only touched on the processing thread; a longer gap restarts it.
+    private volatile long mFusedOutputInterval = 0;
+    private long mLastFusedTimestamp = 0;
+    private static final int FUSED_RATE_SMOOTHING = 8;
+    private static final long FUSED_RATE_RESET_INTERVAL = 1000 * 1000 * 1000L;
+
+    // Only touched on the processing thread
+    private StatisticsListener mStatisticsListener;
+    private FrameMetadataRecorder mFrameRecorder;
+
+    // Adaptive quality. The governor and the settings asked for are only touched on the
+    // processing thread, where applyQuality combines them with its level.
+    private final QualityGovernor mGovernor = new QualityGovernor();
+    private volatile boolean mAdaptiveQuality = true;
+    private volatile int mQualityLevel = QUALITY_FULL;
+    private volatile long mDroppedFrameCount = 0;
+    private QualityListener mQualityListener;
+    private Handler mQualityHandler;
+    private boolean mDeghostEnabled = true;
+    private boolean mAlignmentEnabled = true;
+    private int mFusionProxyScale = 1;
+
+    // Frames handed to the engine, accounted for once their output is sent. Reused in turn;
+    // there are more than the engines ever have in flight.
+    private static final int PROCESSED_FRAMES = 8;
+    private final ProcessedFrame[] mProcessedFrames = new ProcessedFrame[PROCESSED_FRAMES];
+    private int mNextProcessedFrame = 0;
+
+    // Deadline scheduling of input frames, only touched on the processing thread except for its
+    // counters
+    private final FrameScheduler mScheduler = new FrameScheduler();
+
+    private final RenderScript mRS;
+    private final Size mDimensions;
+
+    // Recording output, guarded by this; kept after stopRecording for its counts
+    private EncoderFeed mEncoderFeed;
+    private boolean mRecording = false;
+
+    // Notified of the next frame sent to the output, guarded by mFirstFrameLock
+    private final Object mFirstFrameLock = new Object();
+    private volatile FirstFrameListener mFirstFrameListener;
+    private Handler mFirstFrameHandler;
 
     public ViewfinderProcessor(RenderScript rs, Size dimensions) {
-        Type.Builder yuvTypeBuilder = new Type.Builder(rs, Element.YUV(rs));
-        yuvTypeBuilder.setX(dimensions.getWidth());
-        yuvTypeBuilder.setY(dimensions.getHeight());
-        yuvTypeBuilder.setYuvFormat(ImageFormat.YUV_420_888);
-        mInputHdrAllocation = Allocation.createTyped(rs, yuvTypeBuilder.create(),
-                Allocation.USAGE_IO_INPUT | Allocation.USAGE_SCRIPT);
-        mInputNormalAllocation = Allocation.createTyped(rs, yuvTypeBuilder.create(),
-                Allocation.USAGE_IO_INPUT | Allocation.USAGE_SCRIPT);
-
-        Type.Builder rgbTypeBuilder = new Type.Builder(rs, Element.RGBA_8888(rs));
-        rgbTypeBuilder.setX(dimensions.getWidth());
-        rgbTypeBuilder.setY(dimensions.getHeight());
-        mPrevAllocation = Allocation.createTyped(rs, rgbTypeBuilder.create(),
-                Allocation.USAGE_SCRIPT);
-        mOutputAllocation = Allocation.createTyped(rs, rgbTypeBuilder.create(),
-                Allocation.USAGE_IO_OUTPUT | Allocation.USAGE_SCRIPT);
-
-        HandlerThread processingThread = new HandlerThread("ViewfinderProcessor");
-        processingThread.start();
-        mProcessingHandler = new Handler(processingThread.getLooper());
-
-        mHdrMergeScript = new ScriptC_hdr_merge(rs);
-
-        mHdrMergeScript.set_gPrevFrame(mPrevAllocation);
-
-        mHdrTask = new ProcessingTask(mInputHdrAllocation, dimensions.getWidth()/2, true);
-        mNormalTask = new ProcessingTask(mInputNormalAllocation, 0, false);
+        this(rs, dimensions, ENGINE_RENDERSCRIPT);
+    }
+
+    /**
+     * @param engine which merge engine to use, one of the ENGINE_ constants
+     */
+    public ViewfinderProcessor(RenderScript rs, Size dimensions, int engine) {
+        this(rs, dimensions, engine, HISTORY_RGBA);
+    }
+
+    /**
+     * @param engine which merge engine to use, one of the ENGINE_ constants
+     * @param historyFormat how to store the previous frame, one of the HISTORY_ constants.
+     *                      Output is the same for both; HISTORY_YUV420 moves less memory.
+     */
+    public ViewfinderProcessor(RenderScript rs, Size dimensions, int engine,
+            int historyFormat) {
+        mRS = rs;
+        mDimensions = dimensions;
+        mProcessingThread = new HandlerThread("ViewfinderProcessor");
+        mProcessingThread.start();
+        mProcessingHandler = new Handler(mProcessingThread.getLooper());
+
+        switch (engine) {
+            case ENGINE_RENDERSCRIPT:
+                mEngine = new RenderScriptMergeEngine(rs, dimensions, historyFormat);
+                break;
+            case ENGINE_CPU:
+                mEngine = new CpuMergeEngine(rs, dimensions, mProcessingHandler,
+                        historyFormat);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown merge engine: " + engine);
+        }
+
+        // Nothing runs on the processing thread yet
+        applyQuality();
+        mEngine.setOutputListener(mOutputListener);
+
+        for (int i = 0; i < PROCESSED_FRAMES; i++) {
+            mProcessedFrames[i] = new ProcessedFrame();
+        }
+        mHdrTask = new ProcessingTask(MergeEngine.STREAM_HDR, dimensions.getWidth()/2, true);
+        mNormalTask = new ProcessingTask(MergeEngine.STREAM_NORMAL, 0, false);
 
         setRenderMode(MODE_NORMAL);
     }
 
+    /**
+     * Stop processing and free the merge engine, the processing thread and the table-building
+     * thread. The camera must no longer be sending frames to the input surfaces, and the
+     * processor can't be used again. Can be called from any thread.
+     */
+    public synchronized void release() {
+        stopRecording();
+        if (mToneMapThread != null) {
+            mToneMapThread.quitSafely();
+        }
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEngine.release();
+                // Drop frames queued behind this
+                mProcessingThread.quit();
+            }
+        });
+    }
+
     public Surface getInputHdrSurface() {
-        return mInputHdrAllocation.getSurface();
+        return mEngine.getInputSurface(MergeEngine.STREAM_HDR);
     }
 
     public Surface getInputNormalSurface() {
-        return mInputNormalAllocation.getSurface();
+        return mEngine.getInputSurface(MergeEngine.STREAM_NORMAL);
     }
 
     public void setOutputSurface(Surface output) {
-        mOutputAllocation.setSurface(output);
+        mEngine.setOutputSurface(output);
+    }
+
+    /**
+     * Also send every output frame to surface, such as a video encoder's input surface, until
+     * stopRecording is called. The surface must take RGBA_8888 buffers of the output size.
+     * Frames it isn't ready for are dropped rather than delaying the viewfinder. Can be called
+     * from any thread.
+     */
+    public synchronized void startRecording(Surface surface) {
+        stopRecording();
+        mEncoderFeed = new EncoderFeed(mRS, mDimensions, surface);
+        mRecording = true;
+        mEngine.setEncoderFeed(mEncoderFeed);
+    }
+
+    /**
+     * Stop sending frames to the recording surface, waiting for a frame being sent.
+     */
+    public synchronized void stopRecording() {
+        if (!mRecording) return;
+        mEngine.setEncoderFeed(null);
+        mEncoderFeed.release();
+        mRecording = false;
+    }
+
+    /**
+     * Get the number of output frames sent to the recording surface, during the current
+     * recording or the last one.
+     */
+    public synchronized long getRecordedFrameCount() {
+        return mEncoderFeed != null ? mEncoderFeed.getSentCount() : 0;
+    }
+
+    /**
+     * Get the number of output frames that were processed during the current recording or the
+     * last one: the recorded frames and those dropped because the recording surface was busy.
+     */
+    public synchronized long getRecordingProcessedFrameCount() {
+        return mEncoderFeed != null ?
+                mEncoderFeed.getSentCount() + mEncoderFeed.getDroppedCount() : 0;
     }
 
     public void setRenderMode(int mode) {
         mMode = mode;
     }
 
+    /**
+     * Enable or disable motion detection in the HDR merge. When enabled, tiles where the scene
+     * moved between the two exposures show only the better-exposed frame instead of a double
+     * image. Enabled by default. Can be called from any thread.
+     */
+    public void setDeghostEnabled(final boolean deghost) {
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDeghostEnabled = deghost;
+                applyQuality();
+            }
+        });
+    }
+
+    /**
+     * Enable or disable global alignment. When enabled, the camera shake between consecutive
+     * frames is estimated on a downscaled copy of each frame and the previous frame is shifted
+     * to match before merging. Enabled by default. Can be called from any thread.
+     */
+    public void setAlignmentEnabled(final boolean align) {
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mAlignmentEnabled = align;
+                applyQuality();
+            }
+        });
+    }
+
+    /**
+     * Get the number of tiles where motion was detected in the most recent HDR frame.
+     */
+    public int getMotionTileCount() {
+        return mEngine.getMotionTileCount();
+    }
+
+    /**
+     * Set the number of exposures in the repeating HDR burst. With more than two, HDR mode
+     * averages the latest frame of every exposure, updated incrementally as each one arrives.
+     * Can be called from any thread.
+     */
+    public void setBracketSize(final int bracketSize) {
+        if (bracketSize < BracketAccumulator.MIN_BRACKET_SIZE ||
+                bracketSize > BracketAccumulator.MAX_BRACKET_SIZE) {
+            throw new IllegalArgumentException("Unsupported bracket size: " + bracketSize);
+        }
+        mBracketSize = bracketSize;
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEngine.setBracketSize(bracketSize);
+            }
+        });
+    }
+
+    /**
+     * Set the resolution fusion weights are computed at. With a scale of 2 or 4, Fusion mode
+     * computes weights and its pyramid on a proxy frame that much smaller in each dimension and
+     * upsamples them edge-aware, so large frames cost about as much as one that size.
+     *
+     * Can be called from any thread.
+     *
+     * @param proxyScale 1 for full resolution, 2, or MAX_PROXY_SCALE
+     */
+    public void setFusionProxyScale(final int proxyScale) {
+        if (proxyScale != 1 && proxyScale != 2 && proxyScale != MAX_PROXY_SCALE) {
+            throw new IllegalArgumentException("Unsupported proxy scale: " + proxyScale);
+        }
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFusionProxyScale = proxyScale;
+                applyQuality();
+            }
+        });
+    }
+
+    /**
+     * Listener for changes of the processing quality level
+     */
+    public interface QualityListener {
+        /**
+         * Called when adaptive quality changed the processing quality level.
+         *
+         * @param level one of the QUALITY_ constants
+         * @param droppedFrames total number of input frames dropped so far because processing
+         *                      was behind
+         */
+        void onQualityChanged(int level, long droppedFrames);
+    }
+
+    /**
+     * Enable or disable adaptive quality. When enabled, the processor measures how long each
+     * frame takes to process against the interval between camera frames, and when it falls
+     * behind steps down to cheaper processing until it keeps up:
+     * <ul>
+     * <li>QUALITY_REDUCED: no deghosting or alignment, fusion weights on a proxy at least half
+     * size</li>
+     * <li>QUALITY_LOW: fusion weights on the smallest proxy, fusion replaced by averaging</li>
+     * <li>QUALITY_MINIMAL: no merging, the newest frame is shown as is</li>
+     * </ul>
+     * Quality steps back up once processing has enough headroom. Enabled by default; disabling
+     * it returns to QUALITY_FULL.
+     */
+    public void setAdaptiveQuality(boolean adaptive) {
+        mAdaptiveQuality = adaptive;
+        if (!adaptive) {
+            mProcessingHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mAdaptiveQuality) {
+                        mGovernor.reset();
+                        setQualityLevel(QUALITY_FULL);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Have listener notified on handler when the quality level changes, or stop if listener is
+     * null. Can be called from any thread.
+     */
+    public void setQualityListener(final QualityListener listener, final Handler handler) {
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mQualityListener = listener;
+                mQualityHandler = handler;
+            }
+        });
+    }
+
+    /**
+     * Get the current processing quality level, one of the QUALITY_ constants.
+     */
+    public int getQualityLevel() {
+        return mQualityLevel;
+    }
+
+    /**
+     * Get the number of input frames dropped because processing was behind, across both
+     * streams.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Set the refresh rate of the display showing the output, in Hz. Input frames are due one
+     * refresh after they arrive; frames that can't be processed by then are skipped. Assumes
+     * 60 Hz until set.
+     */
+    public void setDisplayRefreshRate(float refreshRate) {
+        if (!(refreshRate > 0)) return;
+        final long vsyncPeriod = Math.round(1e9 / refreshRate);
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.setVsyncPeriod(vsyncPeriod);
+            }
+        });
+    }
+
+    /**
+     * Get the number of processed input frames that finished by their deadline, across both
+     * streams.
+     */
+    public long getOnTimeFrameCount() {
+        return mScheduler.getOnTimeCount();
+    }
+
+    /**
+     * Get the number of processed input frames that finished after their deadline.
+     */
+    public long getLateFrameCount() {
+        return mScheduler.getLateCount();
+    }
+
+    /**
+     * Get the number of input frames that weren't processed: those that arrived behind a newer
+     * frame, were skipped for missing their deadline, or were of the stream not being shown
+     * while its frames were waiting.
+     */
+    public long getSkippedFrameCount() {
+        return mScheduler.getSkippedCount();
+    }
+
+    /**
+     * Get the rate of merged HDR outputs, in frames per second of sensor time, smoothed over the
+     * last few outputs, or 0 while frames aren't being merged.
+     */
+    public float getFusedOutputRate() {
+        long interval = mFusedOutputInterval;
+        return interval > 0 ? 1e9f / interval : 0.f;
+    }
+
+    /**
+     * Count a merged HDR output towards the fused output rate. Called on the processing thread.
+     */
+    private void onFusedOutput(long timestamp) {
+        if (timestamp == 0) {
+            timestamp = SystemClock.elapsedRealtimeNanos();
+        }
+        long interval = timestamp - mLastFusedTimestamp;
+        mLastFusedTimestamp = timestamp;
+        if (interval <= 0 || interval > FUSED_RATE_RESET_INTERVAL) return;
+        long smoothed = mFusedOutputInterval;
+        mFusedOutputInterval = smoothed == 0 ? interval :
+                smoothed + (interval - smoothed) / FUSED_RATE_SMOOTHING;
+    }
+
+    /**
+     * Take the next frame record for a merge of a frame of stream, started at startTime.
+     */
+    private ProcessedFrame nextProcessedFrame(int stream, long startTime, long deadline) {
+        ProcessedFrame frame = mProcessedFrames[mNextProcessedFrame];
+        mNextProcessedFrame = (mNextProcessedFrame + 1) % PROCESSED_FRAMES;
+        frame.mStartTime = startTime;
+        frame.mStream = stream;
+        frame.mDeadline = deadline;
+        frame.mDropped = false;
+        return frame;
+    }
+
+    /**
+     * A frame handed to the engine, with what is needed to account for it once its output is
+     * sent or the engine dropped it; runs on the processing thread then
+     */
+    private class ProcessedFrame implements Runnable {
+        int mStream;
+        long mDeadline;
+        long mTimestamp;
+        long mStartTime;
+        long mFrameInterval;
+        int mDroppedFrames;
+        long mSendTime;
+        boolean mDropped;
+
+        @Override
+        public void run() {
+            if (mDropped) {
+                // Counted with the next processed frame of the stream, like a skipped pair
+                mScheduler.onDropped();
+                ProcessingTask task = mStream == MergeEngine.STREAM_HDR ? mHdrTask : mNormalTask;
+                task.mSkippedFrames += mDroppedFrames + 1;
+                return;
+            }
+            mScheduler.onProcessed(mStream, mDeadline, mStartTime, mSendTime);
+            recordProcessed(mTimestamp, mSendTime);
+            onFrameProcessed(mSendTime - mStartTime, mFrameInterval, mDroppedFrames);
+        }
+    }
+
+    /**
+     * Feed the governor with one processed frame. Called on the processing thread.
+     */
+    private void onFrameProcessed(long processingTime, long frameInterval, int droppedFrames) {
+        mDroppedFrameCount += droppedFrames;
+        if (!mAdaptiveQuality) return;
+        if (mGovernor.onFrame(processingTime, frameInterval, droppedFrames)) {
+            setQualityLevel(mGovernor.getLevel());
+        }
+    }
+
+    private void setQualityLevel(final int level) {
+        if (level == mQualityLevel) return;
+        mQualityLevel = level;
+        applyQuality();
+
+        final QualityListener listener = mQualityListener;
+        if (listener == null) return;
+        final long droppedFrames = mDroppedFrameCount;
+        mQualityHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onQualityChanged(level, droppedFrames);
+            }
+        });
+    }
+
+    /**
+     * Configure the engine with the settings asked for, degraded to the current quality level.
+     * Called on the processing thread.
+     */
+    private void applyQuality() {
+        int level = mQualityLevel;
+        int proxyScale = mFusionProxyScale;
+        if (level >= QUALITY_LOW) {
+            proxyScale = MAX_PROXY_SCALE;
+        } else if (level >= QUALITY_REDUCED) {
+            proxyScale = Math.max(proxyScale, 2);
+        }
+        mEngine.setDeghostEnabled(mDeghostEnabled && level < QUALITY_REDUCED);
+        mEngine.setAlignmentEnabled(mAlignmentEnabled && level < QUALITY_REDUCED);
+        mEngine.setFusionProxyScale(proxyScale);
+    }
+
+    /**
+     * Set the tone mapping of the output. Global operators are baked with the YUV->RGB
+     * conversion into a lookup table, so they cost a table lookup per pixel; the local operator
+     * adds a pass over the output. Tables are built on a background thread, so the change takes
+     * effect a few frames later. Can be called from any thread.
+     *
+     * @param operator one of the TONE_MAP_ constants
+     * @param exposureStops exposure gain applied in linear light before the curve
+     */
+    public synchronized void setToneMap(final int operator, final float exposureStops) {
+        if (operator < 0 || operator >= TONE_MAP_COUNT) {
+            throw new IllegalArgumentException("Unknown tone-mapping operator: " + operator);
+        }
+        final int generation = mToneMapGeneration.incrementAndGet();
+        getToneMapHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                // Skip settings that were replaced while waiting
+                if (generation != mToneMapGeneration.get()) return;
+                final byte[] lut = operator == TONE_MAP_REINHARD || operator == TONE_MAP_ACES ?
+                        ToneMapper.buildLut(operator, exposureStops) : null;
+                final int[] localScale = operator == TONE_MAP_LOCAL ?
+                        LocalToneMap.buildScale(exposureStops) : null;
+                mProcessingHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mToneMapGeneration.get()) return;
+                        mEngine.setToneMap(lut, localScale);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Set the calibrated response of the camera, so that the Average and Denoise modes blend
+     * luma in linear light and Fusion mode judges exposure independently of the camera's tone
+     * curve. Both cost a table lookup per pixel; the tables are built on a background thread.
+     * Can be called from any thread.
+     *
+     * @param inverseResponse a 256-entry table from ResponseCalibration, or null to blend code
+     *                        values as they are
+     */
+    public synchronized void setInverseResponse(final float[] inverseResponse) {
+        getToneMapHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final LinearBlend blend = inverseResponse != null ?
+                        new LinearBlend(inverseResponse) : null;
+                mProcessingHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mEngine.setLinearBlend(blend);
+                    }
+                });
+            }
+        });
+    }
+
+    private synchronized Handler getToneMapHandler() {
+        if (mToneMapHandler == null) {
+            mToneMapThread = new HandlerThread("ToneMapBuilder");
+            mToneMapThread.start();
+            mToneMapHandler = new Handler(mToneMapThread.getLooper());
+        }
+        return mToneMapHandler;
+    }
+
+    /**
+     * Report which exposure of the HDR burst a capture used, so that HDR buffers are only merged
+     * as true even/odd pairs. Can be called from any thread.
+     *
+     * @param sensorTimestamp sensor timestamp of the capture, as given to onCaptureStarted or in
+     *                        CaptureResult.SENSOR_TIMESTAMP
+     * @param exposure index of the request within the burst; EXPOSURE_EVEN or EXPOSURE_ODD for
+     *                 a two-exposure burst
+     */
+    public void onCaptureResult(long sensorTimestamp, int exposure) {
+        mPairing.onCaptureResult(sensorTimestamp, exposure);
+        if (mHdrTask.mAwaitingResult) {
+            mProcessingHandler.post(mHdrTask);
+        }
+    }
+
+    /**
+     * Get the number of HDR frames that were not merged because the previous frame had the same
+     * exposure, for example after a dropped frame.
+     */
+    public int getSkippedPairCount() {
+        return mPairing.getSkippedPairCount();
+    }
+
+    /**
+     * Listener for the first processed frame
+     */
+    public interface FirstFrameListener {
+        /**
+         * Called once the first frame after {@link #setFirstFrameListener} has been sent to the
+         * output Surface.
+         *
+         * @param sendTime SystemClock.elapsedRealtimeNanos() when the frame was sent
+         */
+        void onFirstFrame(long sendTime);
+    }
+
+    /**
+     * Have listener notified on handler once the next processed frame is sent to the output
+     * Surface, for startup tracing. Can be called from any thread.
+     */
+    public void setFirstFrameListener(FirstFrameListener listener, Handler handler) {
+        synchronized (mFirstFrameLock) {
+            mFirstFrameHandler = handler;
+            mFirstFrameListener = listener;
+        }
+    }
+
+    /**
+     * Called on whichever thread the engine sends output from
+     */
+    private final MergeEngine.OutputListener mOutputListener = new MergeEngine.OutputListener() {
+        @Override
+        public void onOutputSent(Object tag, final long sendTime) {
+            if (tag != null) {
+                ProcessedFrame frame = (ProcessedFrame) tag;
+                frame.mSendTime = sendTime;
+                mProcessingHandler.post(frame);
+            }
+            if (mFirstFrameListener == null) return;
+
+            final FirstFrameListener listener;
+            Handler handler;
+            synchronized (mFirstFrameLock) {
+                listener = mFirstFrameListener;
+                handler = mFirstFrameHandler;
+                mFirstFrameListener = null;
+                mFirstFrameHandler = null;
+            }
+            if (listener == null) return;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onFirstFrame(sendTime);
+                }
+            });
+        }
+
+        @Override
+        public void onOutputDropped(Object tag) {
+            if (tag == null) return;
+            ProcessedFrame frame = (ProcessedFrame) tag;
+            frame.mDropped = true;
+            mProcessingHandler.post(frame);
+        }
+    };
+
+    /**
+     * Listener for exposure times proposed by auto bracketing
+     */
+    public interface AutoBracketListener {
+        /**
+         * Called when the HDR burst should switch to new exposure times. Calls are rate
+         * limited, so the burst can be resubmitted every time.
+         *
+         * @param evenExposure exposure time in ns for the first request of the burst
+         * @param oddExposure exposure time in ns for the last request of the burst
+         */
+        void onAutoBracket(long evenExposure, long oddExposure);
+    }
+
+    /**
+     * Enable automatic bracketing: the processor measures the luma histogram of the first and
+     * last exposure of the HDR burst while merging them, and proposes new exposure times so that
+     * the short one keeps its highlights and the long one its shadows.
+     *
+     * @param listener listener for new exposure times, or null to disable auto bracketing
+     * @param handler handler to call the listener on
+     * @param minExposure shortest exposure time to propose, in ns
+     * @param maxExposure longest exposure time to propose, in ns
+     */
+    public void setAutoBracketListener(final AutoBracketListener listener,
+            final Handler handler, final long minExposure, final long maxExposure) {
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mAutoBracketListener = listener;
+                mAutoBracketHandler = handler;
+                mAutoBracket = listener != null ?
+                        new AutoBracketController(minExposure, maxExposure) : null;
+            }
+        });
+    }
+
+    /**
+     * Report the exposure times of the first and last request of the HDR burst being captured,
+     * as the starting point for auto bracketing. Can be called from any thread.
+     */
+    public void setBracketExposures(final long evenExposure, final long oddExposure) {
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mAutoBracket != null) {
+                    mAutoBracket.setExposures(evenExposure, oddExposure);
+                }
+            }
+        });
+    }
+
+    /**
+     * Listener for per-frame luma statistics
+     */
+    public interface StatisticsListener {
+        /**
+         * Called on the processing thread for every merged frame, a frame or two after it was
+         * merged. Pixels are sampled on a 4x4 grid. The histogram array is reused for the next
+         * frame, so copy anything that is needed after returning, and return quickly.
+         *
+         * @param exposure exposure index of the frame within the HDR burst, or
+         *                 EXPOSURE_UNKNOWN
+         * @param histogram 256 counts of sampled pixels by luma
+         * @param sampleCount number of sampled pixels
+         * @param meanLuma mean luma of the sampled pixels
+         * @param clippedHighlights number of sampled pixels at or above luma 250
+         * @param clippedShadows number of sampled pixels at or below luma 5
+         */
+        void onFrameStatistics(int exposure, int[] histogram, int sampleCount, float meanLuma,
+                int clippedHighlights, int clippedShadows);
+    }
+
+    /**
+     * Have luma statistics of every merged frame computed during the merge pass and reported to
+     * listener, or stop if listener is null.
+     */
+    public void setStatisticsListener(final StatisticsListener listener) {
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStatisticsListener = listener;
+            }
+        });
+    }
+
+    /**
+     * Record the sensor timestamp and latency of every processed frame to recorder, or stop if
+     * recorder is null. The caller keeps ownership of recorder.
+     */
+    public void setFrameRecorder(final FrameMetadataRecorder recorder) {
+        mProcessingHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFrameRecorder = recorder;
+            }
+        });
+    }
+
+    /**
+     * Record that the frame with the given sensor timestamp was sent to the output at sendTime.
+     * The latency is only meaningful if the camera's timestamps are on the elapsedRealtimeNanos
+     * clock.
+     */
+    private void recordProcessed(long timestamp, long sendTime) {
+        if (mFrameRecorder == null || timestamp == 0) return;
+        mFrameRecorder.recordProcessed(timestamp, sendTime - timestamp);
+    }
+
+    /**
+     * Ask the engine for a histogram of the next merge if anyone needs it.
+     */
+    private void requestHistogram(int exposure) {
+        boolean autoBracket = mAutoBracket != null &&
+                exposure != ExposurePairing.EXPOSURE_UNKNOWN;
+        mEngine.setHistogramEnabled(mStatisticsListener != null || autoBracket);
+        mEngine.setHistogramExposure(exposure);
+    }
+
+    /**
+     * Report the histogram of the last merged frame, if any, and feed it to auto bracketing.
+     */
+    private void publishHistogram() {
+        if (!mEngine.getHistogram(mHistogram)) return;
+
+        if (mStatisticsListener != null) {
+            mStatisticsListener.onFrameStatistics(mHistogram.getExposure(), mHistogram.mBins,
+                    mHistogram.getTotal(), mHistogram.getMean(),
+                    mHistogram.getClippedHighlights(), mHistogram.getClippedShadows());
+        }
+        if (mAutoBracket != null) {
+            updateAutoBracket();
+        }
+    }
+
+    /**
+     * Feed the histogram of the last merged HDR frame to auto bracketing.
+     */
+    private void updateAutoBracket() {
+        int exposure = mHistogram.getExposure();
+        if (exposure != ExposurePairing.EXPOSURE_EVEN && exposure != mBracketSize - 1) return;
+        if (mAutoBracket.getEvenExposure() == 0) return;
+
+        boolean even = exposure == ExposurePairing.EXPOSURE_EVEN;
+        if (mAutoBracket.onHistogram(even, mHistogram, SystemClock.elapsedRealtimeNanos())) {
+            final AutoBracketListener listener = mAutoBracketListener;
+            final long evenExposure = mAutoBracket.getEvenExposure();
+            final long oddExposure = mAutoBracket.getOddExposure();
+            mAutoBracketHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onAutoBracket(evenExposure, oddExposure);
+                }
+            });
+        }
+    }
+
     /**
      * Simple class to keep track of incoming frame count,
      * and to process the newest one in the processing thread
      */
-    class ProcessingTask implements Runnable, Allocation.OnBufferAvailableListener {
+    class ProcessingTask implements Runnable, MergeEngine.InputListener {
         private int mPendingFrames = 0;
         private int mFrameCounter = 0;
         private int mCutPointX;
         private boolean mCheckMerge;
 
-        private Allocation mInputAllocation;
+        private int mStream;
+
+        // Latest frame of the stream not yet merged, for the HDR stream while its exposure is
+        // unknown
+        private boolean mFrameReady = false;
+        private long mFrameTimestamp;
+        private long mFrameArrivalTime;
+        private volatile boolean mAwaitingResult = false;
+
+        // Sensor timestamp of the last merged frame, and the number of frames received since,
+        // for the frame interval
+        private long mLastMergedTimestamp = 0;
+        private int mFramesSinceMerged = 0;
 
-        public ProcessingTask(Allocation input, int cutPointX, boolean checkMerge) {
-            mInputAllocation = input;
-            mInputAllocation.setOnBufferAvailableListener(this);
+        // When the newest frame arrived, guarded by this
+        private long mArrivalTime;
+        // Frames not processed since the last processed one: for the HDR stream those that
+        // arrived behind a newer frame, not yet given to the scheduler, and for both those the
+        // scheduler skipped, not yet counted as dropped
+        private int mOlderFrames = 0;
+        private int mSkippedFrames = 0;
+
+        public ProcessingTask(int stream, int cutPointX, boolean checkMerge) {
+            mStream = stream;
+            mEngine.setInputListener(stream, this);
             mCutPointX = cutPointX;
             mCheckMerge = checkMerge;
         }
 
         @Override
-        public void onBufferAvailable(Allocation a) {
+        public void onInputAvailable() {
             synchronized(this) {
                 mPendingFrames++;
+                mArrivalTime = SystemClock.elapsedRealtimeNanos();
                 mProcessingHandler.post(this);
             }
         }
 
+        synchronized boolean hasPendingFrames() {
+            return mPendingFrames > 0;
+        }
+
         @Override
         public void run() {
+            long startTime = SystemClock.elapsedRealtimeNanos();
 
             // Find out how many frames have arrived
             int pendingFrames;
+            long arrivalTime;
             synchronized(this) {
                 pendingFrames = mPendingFrames;
+                arrivalTime = mArrivalTime;
                 mPendingFrames = 0;
 
                 // Discard extra messages in case processing is slower than frame rate
                 mProcessingHandler.removeCallbacks(this);
             }
 
-            // Get to newest input
+            // Get to newest input. The engine may still be computing the previous frame; this
+            // only latches new buffers, the merge below waits for it if needed.
             for (int i = 0; i < pendingFrames; i++) {
-                mInputAllocation.ioReceive();
+                mEngine.receive(mStream);
             }
+            mFramesSinceMerged += pendingFrames;
+            int droppedFrames = Math.max(pendingFrames - 1, 0);
+            int qualityLevel = mQualityLevel;
 
-            mHdrMergeScript.set_gFrameCounter(mFrameCounter++);
-            mHdrMergeScript.set_gCurrentFrame(mInputAllocation);
-            mHdrMergeScript.set_gCutPointX(mCutPointX);
+            int mergeMode = HdrMergeKernel.MERGE_NONE;
             if (mCheckMerge && mMode == MODE_HDR) {
-                mHdrMergeScript.set_gDoMerge(1);
-            } else {
-                mHdrMergeScript.set_gDoMerge(0);
+                mergeMode = mBracketSize > 2 ?
+                        HdrMergeKernel.MERGE_BRACKET : HdrMergeKernel.MERGE_AVERAGE;
+            } else if (mCheckMerge && mMode == MODE_FUSION) {
+                mergeMode = qualityLevel >= QUALITY_LOW ?
+                        HdrMergeKernel.MERGE_AVERAGE : HdrMergeKernel.MERGE_FUSION;
+            } else if (!mCheckMerge && mMode == MODE_DENOISE) {
+                mergeMode = HdrMergeKernel.MERGE_DENOISE;
+            }
+            if (qualityLevel >= QUALITY_MINIMAL) {
+                mergeMode = HdrMergeKernel.MERGE_NONE;
             }
 
+            // Frames of the shown stream go first
+            int priorityStream = mMode == MODE_NORMAL || mMode == MODE_DENOISE ?
+                    MergeEngine.STREAM_NORMAL : MergeEngine.STREAM_HDR;
+            mScheduler.setPriorityStream(priorityStream);
+            ProcessingTask priorityTask =
+                    priorityStream == MergeEngine.STREAM_HDR ? mHdrTask : mNormalTask;
+            boolean priorityPending = priorityTask != this && priorityTask.hasPendingFrames();
+
+            if (!mCheckMerge) {
+                // History no longer holds an HDR frame
+                mPairing.setHistoryExposure(ExposurePairing.EXPOSURE_UNKNOWN);
+                mFusedOutputInterval = 0;
+                mLastFusedTimestamp = 0;
+
+                long timestamp = 0;
+                long deadline = 0;
+                if (pendingFrames > 0) {
+                    timestamp = mEngine.getTimestamp(mStream);
+                    deadline = mScheduler.deadline(timestamp, arrivalTime);
+                    if (!mScheduler.schedule(mStream, deadline, startTime, droppedFrames,
+                            priorityPending)) {
+                        mSkippedFrames += pendingFrames;
+                        return;
+                    }
+                }
+
+                // Run processing pass. Frames merged without a new input aren't accounted for.
+                ProcessedFrame frame = null;
+                if (pendingFrames > 0) {
+                    frame = nextProcessedFrame(mStream, startTime, deadline);
+                    frame.mTimestamp = timestamp;
+                    frame.mFrameInterval = frameInterval(timestamp);
+                    frame.mDroppedFrames = droppedFrames + mSkippedFrames;
+                    mSkippedFrames = 0;
+                }
+                requestHistogram(ExposurePairing.EXPOSURE_UNKNOWN);
+                mEngine.merge(mStream, mFrameCounter++, mCutPointX, mergeMode, frame);
+                publishHistogram();
+                return;
+            }
+
+            if (pendingFrames > 0) {
+                if (mFrameReady) {
+                    // Replaces a frame still waiting for its capture result
+                    mOlderFrames++;
+                }
+                mFrameReady = true;
+                mFrameTimestamp = mEngine.getTimestamp(mStream);
+                mFrameArrivalTime = arrivalTime;
+                mOlderFrames += droppedFrames;
+            }
+            if (!mFrameReady) return;
+
+            // Find the exposure of the frame, waiting for its capture result if needed. Without
+            // buffer timestamps, frames are merged unconditionally.
+            int exposure = ExposurePairing.EXPOSURE_UNKNOWN;
+            if (mFrameTimestamp != 0) {
+                exposure = mPairing.findExposure(mFrameTimestamp);
+                if (exposure == ExposurePairing.EXPOSURE_UNKNOWN &&
+                        mPairing.isResultPending(mFrameTimestamp)) {
+                    // onCaptureResult runs this task again
+                    mAwaitingResult = true;
+                    return;
+                }
+            }
+            mAwaitingResult = false;
+            mFrameReady = false;
+
+            long deadline = mScheduler.deadline(mFrameTimestamp, mFrameArrivalTime);
+            int olderFrames = mOlderFrames;
+            mOlderFrames = 0;
+            if (!mScheduler.schedule(mStream, deadline, SystemClock.elapsedRealtimeNanos(),
+                    olderFrames, priorityPending)) {
+                mSkippedFrames += olderFrames + 1;
+                return;
+            }
+
+            // Side-by-side shows the even exposure on the left when the exposure is known, and
+            // brackets store the frame in its exposure's slot
+            int frameCounter = exposure != ExposurePairing.EXPOSURE_UNKNOWN ?
+                    exposure : mFrameCounter;
+            mFrameCounter++;
+
+            int cutPointX = qualityLevel >= QUALITY_MINIMAL ? 0 : mCutPointX;
+            // Brackets keep the latest frame of each exposure, so any frame can be added
+            if (mergeMode != HdrMergeKernel.MERGE_NONE &&
+                    mergeMode != HdrMergeKernel.MERGE_BRACKET && mFrameTimestamp != 0) {
+                switch (mPairing.pair(exposure)) {
+                    case ExposurePairing.PAIR_SKIP:
+                        mScheduler.onDropped();
+                        mSkippedFrames += olderFrames + 1;
+                        return;
+                    case ExposurePairing.PAIR_PASSTHROUGH:
+                        mergeMode = HdrMergeKernel.MERGE_NONE;
+                        cutPointX = 0;
+                        break;
+                }
+            }
+            mPairing.setHistoryExposure(exposure);
+
             // Run processing pass
-            mHdrMergeScript.forEach_mergeHdrFrames(mPrevAllocation, mOutputAllocation);
-            mOutputAllocation.ioSend();
+            ProcessedFrame frame = nextProcessedFrame(mStream, startTime, deadline);
+            frame.mTimestamp = mFrameTimestamp;
+            frame.mFrameInterval = frameInterval(mFrameTimestamp);
+            frame.mDroppedFrames = olderFrames + mSkippedFrames;
+            mSkippedFrames = 0;
+            requestHistogram(exposure);
+            mEngine.merge(mStream, frameCounter, cutPointX, mergeMode, frame);
+            if (mergeMode != HdrMergeKernel.MERGE_NONE) {
+                onFusedOutput(mFrameTimestamp);
+            }
+            publishHistogram();
+        }
+
+        /**
+         * Get the average interval between the frames received since the last merged one, and
+         * make timestamp the last merged one.
+         *
+         * @return the interval in ns, or 0 if unknown
+         */
+        private long frameInterval(long timestamp) {
+            long interval = 0;
+            if (timestamp != 0 && mLastMergedTimestamp != 0 && mFramesSinceMerged > 0 &&
+                    timestamp > mLastMergedTimestamp) {
+                interval = (timestamp - mLastMergedTimestamp) / mFramesSinceMerged;
+            }
+            mLastMergedTimestamp = timestamp;
+            mFramesSinceMerged = 0;
+            return interval;
         }
     }
 
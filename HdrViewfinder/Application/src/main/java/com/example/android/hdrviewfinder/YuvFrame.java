@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plain-Java view of a YUV_420_888 frame, laid out the same way as the planes of an
+ * {@link android.media.Image}.
+ *
+ * <p>The frame only references the plane buffers; it does not copy them, so a single instance
+ * can be re-pointed at each new camera buffer without allocating.</p>
+ */
+class YuvFrame {
+
+    private final int mWidth;
+    private final int mHeight;
+
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private int mYRowStride;
+    private int mUvRowStride;
+    private int mUvPixelStride;
+
+    YuvFrame(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Point this frame at a new set of planes.
+     *
+     * @param y             full-resolution luma plane, one byte per pixel
+     * @param yRowStride    bytes between the starts of consecutive luma rows
+     * @param u             quarter-resolution Cb plane
+     * @param v             quarter-resolution Cr plane
+     * @param uvRowStride   bytes between the starts of consecutive chroma rows
+     * @param uvPixelStride bytes between consecutive chroma samples in a row
+     */
+    void setPlanes(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                   int uvRowStride, int uvPixelStride) {
+        mY = y;
+        mU = u;
+        mV = v;
+        mYRowStride = yRowStride;
+        mUvRowStride = uvRowStride;
+        mUvPixelStride = uvPixelStride;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Equivalent of rsGetElementAtYuv_uchar_Y.
+     */
+    int getY(int x, int y) {
+        return mY.get(y * mYRowStride + x) & 0xFF;
+    }
+
+    /**
+     * Equivalent of rsGetElementAtYuv_uchar_U.
+     */
+    int getU(int x, int y) {
+        return mU.get((y >> 1) * mUvRowStride + (x >> 1) * mUvPixelStride) & 0xFF;
+    }
+
+    /**
+     * Equivalent of rsGetElementAtYuv_uchar_V.
+     */
+    int getV(int x, int y) {
+        return mV.get((y >> 1) * mUvRowStride + (x >> 1) * mUvPixelStride) & 0xFF;
+    }
+}
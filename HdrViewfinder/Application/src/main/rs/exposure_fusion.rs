@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#pragma version(1)
+#pragma rs java_package_name(com.example.android.hdrviewfinder)
+#pragma rs_fp_relaxed
+
+// Two-frame exposure fusion; see ExposureFusion.java for the derivation.
+// Each pyramid level is a float2 allocation holding (luma difference, current frame weight).
+// With gProxyScale > 1, level 0 is a proxy frame that much smaller, built by proxyFrame and
+// proxyWeights, and fuseProxyOutput upsamples it into the full-resolution output.
+
+#include "history.rsh"
+#include "histogram.rsh"
+#include "tonemap.rsh"
+
+rs_allocation gCurrentFrame;
+
+int gWidth;
+int gHeight;
+
+// Finer level, read by downsample
+rs_allocation gFineLevel;
+int gFineWidth;
+int gFineHeight;
+
+// Coarser level and its collapsed result, read by collapse and fuseOutput
+rs_allocation gCoarseLevel;
+rs_allocation gCoarseResult;
+int gCoarseWidth;
+int gCoarseHeight;
+
+// Proxy frame (cur luma, prev luma, cur saturation, prev saturation), its collapsed level 0,
+// and their size
+int gProxyScale = 1;
+rs_allocation gProxy;
+rs_allocation gProxyResult;
+int gProxyWidth;
+int gProxyHeight;
+
+static const float WEIGHT_EPSILON = 1.f / 255.f;
+
+// Range kernel of the proxy weight upsampling by absolute luma difference, 256 entries; see
+// ExposureFusion.java
+float *gRangeWeight;
+
+// Proxy weights closer than this are interpolated without the range kernel; must match
+// ExposureFusion.java
+static const float FLAT_WEIGHT = 1.f / 512.f;
+
+// Well-exposedness by luma, used instead of the luma as it is when gWellExposedEnabled is set;
+// see LinearBlend.java
+int gWellExposedEnabled = 0;
+float *gWellExposed;
+
+static float wellExposed(uchar v) {
+    if (gWellExposedEnabled) {
+        return gWellExposed[v];
+    }
+    float d = v / 255.f - 0.5f;
+    return exp(-d * d * 12.5f);
+}
+
+static float weight(int contrast, int saturation, uchar luma) {
+    return (contrast / 255.f + WEIGHT_EPSILON) *
+            (saturation / 255.f + WEIGHT_EPSILON) * wellExposed(luma);
+}
+
+float2 __attribute__((kernel)) fusionWeights(uint32_t x, uint32_t y) {
+    uint32_t left = x > 0 ? x - 1 : 0;
+    uint32_t right = min(x + 1, (uint32_t) gWidth - 1);
+    uint32_t up = y > 0 ? y - 1 : 0;
+    uint32_t down = min(y + 1, (uint32_t) gHeight - 1);
+
+    int curY = rsGetElementAtYuv_uchar_Y(gCurrentFrame, x, y);
+    addToHistogram(curY, x, y);
+    int curContrast = abs(4 * curY -
+            rsGetElementAtYuv_uchar_Y(gCurrentFrame, left, y) -
+            rsGetElementAtYuv_uchar_Y(gCurrentFrame, right, y) -
+            rsGetElementAtYuv_uchar_Y(gCurrentFrame, x, up) -
+            rsGetElementAtYuv_uchar_Y(gCurrentFrame, x, down));
+    int curSaturation = abs(rsGetElementAtYuv_uchar_U(gCurrentFrame, x, y) - 128) +
+            abs(rsGetElementAtYuv_uchar_V(gCurrentFrame, x, y) - 128);
+
+    uchar4 prevPixel = readPrevPixel(x, y);
+    int prevY = prevPixel.r;
+    int prevContrast = abs(4 * prevY -
+            readPrevLuma(left, y) -
+            readPrevLuma(right, y) -
+            readPrevLuma(x, up) -
+            readPrevLuma(x, down));
+    int prevSaturation = abs(prevPixel.g - 128) + abs(prevPixel.b - 128);
+
+    float curWeight = weight(curContrast, curSaturation, curY);
+    float prevWeight = weight(prevContrast, prevSaturation, prevY);
+
+    float2 level;
+    level.x = curY - prevY;
+    level.y = curWeight / (curWeight + prevWeight);
+    return level;
+}
+
+// Box average of the luma of a gProxyScale x gProxyScale block of both frames, and the saturation
+// of its top-left chroma sample
+ushort4 __attribute__((kernel)) proxyFrame(uint32_t px, uint32_t py) {
+    uint32_t x0 = px * gProxyScale;
+    uint32_t y0 = py * gProxyScale;
+    uint32_t x1 = min(x0 + gProxyScale, (uint32_t) gWidth);
+    uint32_t y1 = min(y0 + gProxyScale, (uint32_t) gHeight);
+
+    int curSum = 0;
+    int prevSum = 0;
+    for (uint32_t y = y0; y < y1; y++) {
+        for (uint32_t x = x0; x < x1; x++) {
+            curSum += rsGetElementAtYuv_uchar_Y(gCurrentFrame, x, y);
+            prevSum += readPrevLuma(x, y);
+        }
+    }
+    int count = (x1 - x0) * (y1 - y0);
+    uchar4 prevPixel = readPrevPixel(x0, y0);
+
+    ushort4 proxy;
+    proxy.x = (curSum + count / 2) / count;
+    proxy.y = (prevSum + count / 2) / count;
+    proxy.z = abs(rsGetElementAtYuv_uchar_U(gCurrentFrame, x0, y0) - 128) +
+            abs(rsGetElementAtYuv_uchar_V(gCurrentFrame, x0, y0) - 128);
+    proxy.w = abs(prevPixel.g - 128) + abs(prevPixel.b - 128);
+    return proxy;
+}
+
+// Level 0 of a proxy, as fusionWeights
+float2 __attribute__((kernel)) proxyWeights(ushort4 proxy, uint32_t x, uint32_t y) {
+    uint32_t left = x > 0 ? x - 1 : 0;
+    uint32_t right = min(x + 1, (uint32_t) gProxyWidth - 1);
+    uint32_t up = y > 0 ? y - 1 : 0;
+    uint32_t down = min(y + 1, (uint32_t) gProxyHeight - 1);
+
+    int4 neighbors = convert_int4(rsGetElementAt_ushort4(gProxy, left, y)) +
+            convert_int4(rsGetElementAt_ushort4(gProxy, right, y)) +
+            convert_int4(rsGetElementAt_ushort4(gProxy, x, up)) +
+            convert_int4(rsGetElementAt_ushort4(gProxy, x, down));
+    int curContrast = abs(4 * proxy.x - neighbors.x);
+    int prevContrast = abs(4 * proxy.y - neighbors.y);
+
+    float curWeight = weight(curContrast, proxy.z, proxy.x);
+    float prevWeight = weight(prevContrast, proxy.w, proxy.y);
+
+    float2 level;
+    level.x = (float) proxy.x - proxy.y;
+    level.y = curWeight / (curWeight + prevWeight);
+    return level;
+}
+
+// [1 2 1] x [1 2 1] / 16 tent filter centered on the even pixels of the finer level
+float2 __attribute__((kernel)) downsample(uint32_t x, uint32_t y) {
+    uint32_t fx = 2 * x;
+    uint32_t fy = 2 * y;
+    uint32_t left = fx > 0 ? fx - 1 : 0;
+    uint32_t right = min(fx + 1, (uint32_t) gFineWidth - 1);
+    uint32_t up = fy > 0 ? fy - 1 : 0;
+    uint32_t down = min(fy + 1, (uint32_t) gFineHeight - 1);
+
+    float2 sum = rsGetElementAt_float2(gFineLevel, left, up) +
+            2.f * rsGetElementAt_float2(gFineLevel, fx, up) +
+            rsGetElementAt_float2(gFineLevel, right, up) +
+            2.f * rsGetElementAt_float2(gFineLevel, left, fy) +
+            4.f * rsGetElementAt_float2(gFineLevel, fx, fy) +
+            2.f * rsGetElementAt_float2(gFineLevel, right, fy) +
+            rsGetElementAt_float2(gFineLevel, left, down) +
+            2.f * rsGetElementAt_float2(gFineLevel, fx, down) +
+            rsGetElementAt_float2(gFineLevel, right, down);
+    return sum / 16.f;
+}
+
+// Bilinear sample of the coarser level at the position of fine pixel (x, y)
+static float2 upsampleLevel(uint32_t x, uint32_t y) {
+    uint32_t x0 = x >> 1;
+    uint32_t y0 = y >> 1;
+    uint32_t x1 = (x & 1) ? min(x0 + 1, (uint32_t) gCoarseWidth - 1) : x0;
+    uint32_t y1 = (y & 1) ? min(y0 + 1, (uint32_t) gCoarseHeight - 1) : y0;
+    return (rsGetElementAt_float2(gCoarseLevel, x0, y0) +
+            rsGetElementAt_float2(gCoarseLevel, x1, y0) +
+            rsGetElementAt_float2(gCoarseLevel, x0, y1) +
+            rsGetElementAt_float2(gCoarseLevel, x1, y1)) * 0.25f;
+}
+
+static float upsampleResult(uint32_t x, uint32_t y) {
+    uint32_t x0 = x >> 1;
+    uint32_t y0 = y >> 1;
+    uint32_t x1 = (x & 1) ? min(x0 + 1, (uint32_t) gCoarseWidth - 1) : x0;
+    uint32_t y1 = (y & 1) ? min(y0 + 1, (uint32_t) gCoarseHeight - 1) : y0;
+    return (rsGetElementAt_float(gCoarseResult, x0, y0) +
+            rsGetElementAt_float(gCoarseResult, x1, y0) +
+            rsGetElementAt_float(gCoarseResult, x0, y1) +
+            rsGetElementAt_float(gCoarseResult, x1, y1)) * 0.25f;
+}
+
+float __attribute__((kernel)) collapseTop(float2 level) {
+    return level.y * level.x;
+}
+
+// R(l) = W(l) * (D(l) - up(D(l+1))) + up(R(l+1))
+float __attribute__((kernel)) collapse(float2 level, uint32_t x, uint32_t y) {
+    float laplacian = level.x - upsampleLevel(x, y).x;
+    return level.y * laplacian + upsampleResult(x, y);
+}
+
+// Round fused YUV and convert to RGBA the same way as hdr_merge.rs
+static uchar4 fusedToRgb(float fusedY, float fusedU, float fusedV) {
+    return toneMapYuv(clamp((int) (fusedY + 0.5f), 0, 255),
+            clamp((int) (fusedU + 0.5f), 0, 255),
+            clamp((int) (fusedV + 0.5f), 0, 255));
+}
+
+// Level 0 collapse, chroma blend with level 1 weights, history update and YUV->RGB.
+// gCoarseLevel/gCoarseResult must point at level 1, gFineLevel at level 0.
+uchar4 __attribute__((kernel)) fuseOutput(uint32_t x, uint32_t y) {
+    uchar4 curPixel;
+    curPixel.r = rsGetElementAtYuv_uchar_Y(gCurrentFrame, x, y);
+    curPixel.g = rsGetElementAtYuv_uchar_U(gCurrentFrame, x, y);
+    curPixel.b = rsGetElementAtYuv_uchar_V(gCurrentFrame, x, y);
+    curPixel.a = 255;
+    uchar4 prevPixel = readPrevPixel(x, y);
+
+    float2 level = rsGetElementAt_float2(gFineLevel, x, y);
+    float laplacian = level.x - upsampleLevel(x, y).x;
+    float fusedY = prevPixel.r + level.y * laplacian + upsampleResult(x, y);
+
+    float w = rsGetElementAt_float2(gCoarseLevel, x >> 1, y >> 1).y;
+    float fusedU = prevPixel.g + w * (curPixel.g - prevPixel.g);
+    float fusedV = prevPixel.b + w * (curPixel.b - prevPixel.b);
+
+    // Store current pixel for next frame
+    storeHistory(curPixel, x, y);
+
+    return fusedToRgb(fusedY, fusedU, fusedV);
+}
+
+// Full-resolution output from a proxy: the finest band is blended with the proxy weight
+// upsampled by a joint bilateral filter over the 2x2 bilinear taps, guided by current luma.
+// gFineLevel must point at proxy level 0.
+uchar4 __attribute__((kernel)) fuseProxyOutput(uint32_t x, uint32_t y) {
+    uchar4 curPixel;
+    curPixel.r = rsGetElementAtYuv_uchar_Y(gCurrentFrame, x, y);
+    curPixel.g = rsGetElementAtYuv_uchar_U(gCurrentFrame, x, y);
+    curPixel.b = rsGetElementAtYuv_uchar_V(gCurrentFrame, x, y);
+    curPixel.a = 255;
+    uchar4 prevPixel = readPrevPixel(x, y);
+    addToHistogram(curPixel.r, x, y);
+
+    float px = (x + 0.5f) / gProxyScale - 0.5f;
+    float py = (y + 0.5f) / gProxyScale - 0.5f;
+    float fx = floor(px);
+    float fy = floor(py);
+    float tx = px - fx;
+    float ty = py - fy;
+    int x0 = clamp((int) fx, 0, gProxyWidth - 1);
+    int x1 = clamp((int) fx + 1, 0, gProxyWidth - 1);
+    int y0 = clamp((int) fy, 0, gProxyHeight - 1);
+    int y1 = clamp((int) fy + 1, 0, gProxyHeight - 1);
+
+    float4 spatial = { (1 - tx) * (1 - ty), tx * (1 - ty), (1 - tx) * ty, tx * ty };
+
+    float2 l00 = rsGetElementAt_float2(gFineLevel, x0, y0);
+    float2 l01 = rsGetElementAt_float2(gFineLevel, x1, y0);
+    float2 l10 = rsGetElementAt_float2(gFineLevel, x0, y1);
+    float2 l11 = rsGetElementAt_float2(gFineLevel, x1, y1);
+    float4 weights = { l00.y, l01.y, l10.y, l11.y };
+    float4 diffs = { l00.x, l01.x, l10.x, l11.x };
+    float4 results = { rsGetElementAt_float(gProxyResult, x0, y0),
+            rsGetElementAt_float(gProxyResult, x1, y0),
+            rsGetElementAt_float(gProxyResult, x0, y1),
+            rsGetElementAt_float(gProxyResult, x1, y1) };
+
+    float w;
+    if (fmax(fmax(weights.x, weights.y), fmax(weights.z, weights.w)) -
+            fmin(fmin(weights.x, weights.y), fmin(weights.z, weights.w)) < FLAT_WEIGHT) {
+        // No edge between the taps for the range kernel to respect
+        w = dot(spatial, weights);
+    } else {
+        int curY = curPixel.r;
+        float4 range = { gRangeWeight[abs(rsGetElementAt_ushort4(gProxy, x0, y0).x - curY)],
+                gRangeWeight[abs(rsGetElementAt_ushort4(gProxy, x1, y0).x - curY)],
+                gRangeWeight[abs(rsGetElementAt_ushort4(gProxy, x0, y1).x - curY)],
+                gRangeWeight[abs(rsGetElementAt_ushort4(gProxy, x1, y1).x - curY)] };
+        float4 bilateral = spatial * range;
+        w = dot(bilateral, weights) / (bilateral.x + bilateral.y + bilateral.z + bilateral.w);
+    }
+    float diffUp = dot(spatial, diffs);
+    float resultUp = dot(spatial, results);
+
+    float fusedY = prevPixel.r + w * (curPixel.r - prevPixel.r - diffUp) + resultUp;
+    float fusedU = prevPixel.g + w * (curPixel.g - prevPixel.g);
+    float fusedV = prevPixel.b + w * (curPixel.b - prevPixel.b);
+
+    // Store current pixel for next frame
+    storeHistory(curPixel, x, y);
+
+    return fusedToRgb(fusedY, fusedU, fusedV);
+}
@@ -17,27 +17,131 @@
 #pragma rs java_package_name(com.example.android.hdrviewfinder)
 #pragma rs_fp_relaxed
 
+#include "history.rsh"
+#include "histogram.rsh"
+#include "tonemap.rsh"
+
 rs_allocation gCurrentFrame;
-rs_allocation gPrevFrame;
 
 int gCutPointX = 0;
 int gDoMerge = 0;
 int gFrameCounter = 0;
 
-uchar4 __attribute__((kernel)) mergeHdrFrames(uchar4 prevPixel, uint32_t x, uint32_t y) {
+// Deghosting state, used by the tile passes and mergeHdrMotion; constants must match
+// MotionTiles.java. gRowStats has one float4 per tile column and pixel row, gTileFlags and
+// gTileSums one element per tile. gExposureRatio is set by updateExposureRatio.
+rs_allocation gRowStats;
+rs_allocation gTileFlags;
+rs_allocation gTileSums;
+int gWidth;
+int gHeight;
+float gExposureRatio = 1.f;
 
-    // Read in pixel values from latest frame - YUV color space
+// N-exposure bracket state, used by mergeBracket; see BracketAccumulator.java.
+// gBracketRing is a 3D uchar4 allocation with one Z slice per exposure, gBracketSums a 2D
+// ushort4 allocation with the per-pixel sum of all slices. The ring is uchar4 for either
+// history layout.
+rs_allocation gBracketRing;
+rs_allocation gBracketSums;
+int gBracketSize = 2;
+int gBracketSlot = 0;
+// Set when the ring holds no frames yet, so the current frame fills every slice
+int gBracketEmpty = 1;
+
+// Luma blends in the linear light of a calibrated response, used instead of code values when
+// gLinearBlendEnabled is set; ENTRIES elements each, indexed as in LinearBlend.java
+int gLinearBlendEnabled = 0;
+uchar *gLinearAverage;
+uchar *gLinearDenoise;
+
+// When the last merge was done, written by markOutputDone after its output is sent: the
+// rsUptimeNanos time as low and high words, since a 64-bit allocation can't be copied to Java
+// before API 23
+int32_t *gOutputDone;
+
+// gDoMerge values; must match HdrMergeKernel.java
+#define MERGE_AVERAGE 1
+#define MERGE_DENOISE 4
 
+// Temporal denoise weights of the current frame in 1/256ths; must match HdrMergeKernel.java
+#define DENOISE_MIN_WEIGHT 32
+#define DENOISE_WEIGHT_SLOPE 12
+
+#define TILE_SIZE 32
+#define CLIP_LOW 16
+#define CLIP_HIGH 240
+#define MOTION_THRESHOLD 12.f
+#define MAX_EXPOSURE_RATIO 64.f
+
+// gTileFlags values; nonzero for moving tiles, which use only the better-exposed frame
+#define TILE_STATIC 0
+#define TILE_MOTION_CURRENT 1
+#define TILE_MOTION_PREVIOUS 2
+
+static uchar4 readCurrentPixel(uint32_t x, uint32_t y) {
     uchar4 curPixel;
     curPixel.r = rsGetElementAtYuv_uchar_Y(gCurrentFrame, x, y);
     curPixel.g = rsGetElementAtYuv_uchar_U(gCurrentFrame, x, y);
     curPixel.b = rsGetElementAtYuv_uchar_V(gCurrentFrame, x, y);
     curPixel.a = 255;
+    return curPixel;
+}
+
+static uchar4 yuvToRgb(uchar4 mergedPixel) {
+    return toneMapYuv(mergedPixel.r, mergedPixel.g, mergedPixel.b);
+}
+
+// Half-resolution luma of the current frame for FrameAligner, each pixel the rounded mean of a
+// 2x2 block
+uchar __attribute__((kernel)) downsampleLuma(uint32_t x, uint32_t y) {
+    uint32_t px = 2 * x;
+    uint32_t py = 2 * y;
+    int sum = rsGetElementAtYuv_uchar_Y(gCurrentFrame, px, py) +
+            rsGetElementAtYuv_uchar_Y(gCurrentFrame, px + 1, py) +
+            rsGetElementAtYuv_uchar_Y(gCurrentFrame, px, py + 1) +
+            rsGetElementAtYuv_uchar_Y(gCurrentFrame, px + 1, py + 1);
+    return (sum + 2) >> 2;
+}
+
+// Recursive temporal filter: move from the history towards the current pixel by a weight that
+// grows with their luma difference, so static areas average and moving ones follow
+static uchar4 denoisePixel(uchar4 curPixel, uchar4 prevPixel) {
+    int4 prev = convert_int4(prevPixel);
+    int4 diff = convert_int4(curPixel) - prev;
+    int weight = min(DENOISE_MIN_WEIGHT + (int) abs(diff.r) * DENOISE_WEIGHT_SLOPE, 256);
+    uchar4 denoised = convert_uchar4(prev + ((diff * weight + 128) >> 8));
+    if (gLinearBlendEnabled) {
+        denoised.r = gLinearDenoise[(curPixel.r << 8) | prevPixel.r];
+    }
+    denoised.a = 255;
+    return denoised;
+}
+
+static uchar4 averagePixel(uchar4 curPixel, uchar4 prevPixel) {
+    uchar4 averaged = curPixel / 2 + prevPixel / 2;
+    if (gLinearBlendEnabled) {
+        averaged.r = gLinearAverage[(curPixel.r << 8) | prevPixel.r];
+    }
+    return averaged;
+}
+
+uchar4 __attribute__((kernel)) mergeHdrFrames(uint32_t x, uint32_t y) {
+
+    // Read in pixel values from latest frame - YUV color space
+
+    uchar4 curPixel = readCurrentPixel(x, y);
+    uchar4 prevPixel = readPrevPixel(x, y);
+    addToHistogram(curPixel.r, x, y);
 
     uchar4 mergedPixel;
-    if (gDoMerge == 1) {
+    uchar4 historyPixel = curPixel;
+    if (gDoMerge == MERGE_DENOISE) {
+        // The filtered pixel is the history of the next frame
+        mergedPixel = denoisePixel(curPixel, prevPixel);
+        historyPixel = mergedPixel;
+    } else if (gDoMerge == MERGE_AVERAGE) {
         // Complex HDR fusion technique
-        mergedPixel = curPixel / 2 + prevPixel / 2;
+        mergedPixel = averagePixel(curPixel, prevPixel);
 
         /* Experimental color saturation boosting merge
         mergedPixel.r = curPixel.r / 2 + prevPixel.r / 2;
@@ -56,26 +160,210 @@ uchar4 __attribute__((kernel)) mergeHdrFrames(uchar4 prevPixel, uint32_t x, uint
         mergedPixel = curPixel;
     }
 
-    // Convert YUV to RGB, JFIF transform with fixed-point math
-    // R = Y + 1.402 * (V - 128)
-    // G = Y - 0.34414 * (U - 128) - 0.71414 * (V - 128)
-    // B = Y + 1.772 * (U - 128)
-
-    int4 rgb;
-    rgb.r = mergedPixel.r +
-            mergedPixel.b * 1436 / 1024 - 179;
-    rgb.g = mergedPixel.r -
-            mergedPixel.g * 46549 / 131072 + 44 -
-            mergedPixel.b * 93604 / 131072 + 91;
-    rgb.b = mergedPixel.r +
-            mergedPixel.g * 1814 / 1024 - 227;
-    rgb.a = 255;
-
     // Store current pixel for next frame
-    rsSetElementAt_uchar4(gPrevFrame, curPixel, x, y);
+    storeHistory(historyPixel, x, y);
 
     // Write out merged HDR result
-    uchar4 out = convert_uchar4(clamp(rgb, 0, 255));
+    return yuvToRgb(mergedPixel);
+}
+
+// Average merge with per-tile motion detection, in passes so that no thread works through a
+// whole tile. The exposure ratio of the pair comes first: tileRowSums and tileSums reduce the
+// unclipped luma of each tile, and updateExposureRatio their total. tileRowStats then reduces
+// the row of a tile at each tile column and pixel row, tileMotion the rows of each tile to its
+// flag, and mergeHdrMotion merges each pixel by the flag of its tile.
+
+// Current and previous luma sums of one tile row over pixels unclipped in both frames, in .y
+// and .z
+float4 __attribute__((kernel)) tileRowSums(uint32_t x, uint32_t y) {
+    uint32_t startX = x * TILE_SIZE;
+    uint32_t endX = min(startX + TILE_SIZE, (uint32_t) gWidth);
+
+    float4 sums = 0.f;
+    for (uint32_t px = startX; px < endX; px++) {
+        int curY = rsGetElementAtYuv_uchar_Y(gCurrentFrame, px, y);
+        int prevY = readPrevLuma(px, y);
+        if (curY >= CLIP_LOW && curY <= CLIP_HIGH && prevY >= CLIP_LOW && prevY <= CLIP_HIGH) {
+            sums.y += curY;
+            sums.z += prevY;
+        }
+    }
+    return sums;
+}
+
+// Runs over gTileSums
+float2 __attribute__((kernel)) tileSums(uint32_t x, uint32_t y) {
+    uint32_t startY = y * TILE_SIZE;
+    uint32_t endY = min(startY + TILE_SIZE, (uint32_t) gHeight);
+
+    float2 sums = 0.f;
+    for (uint32_t py = startY; py < endY; py++) {
+        sums += rsGetElementAt_float4(gRowStats, x, py).yz;
+    }
+    return sums;
+}
+
+// Sets gExposureRatio to the current/previous ratio of the unclipped luma in gTileSums, like
+// MotionTiles.updateExposureRatio. The tile grid is small enough to reduce on one thread.
+void updateExposureRatio() {
+    uint32_t tilesX = rsAllocationGetDimX(gTileSums);
+    uint32_t tilesY = rsAllocationGetDimY(gTileSums);
+    float2 sums = 0.f;
+    for (uint32_t ty = 0; ty < tilesY; ty++) {
+        for (uint32_t tx = 0; tx < tilesX; tx++) {
+            sums += rsGetElementAt_float2(gTileSums, tx, ty);
+        }
+    }
+    if (sums.x > 0.f && sums.y > 0.f) {
+        gExposureRatio = clamp(sums.x / sums.y, 1.f / MAX_EXPOSURE_RATIO, MAX_EXPOSURE_RATIO);
+    } else {
+        gExposureRatio = 1.f;
+    }
+}
+
+// Statistics of one tile row: the summed excess of the exposure-normalised difference over
+// MOTION_THRESHOLD, over pixels unclipped in both frames, and the number of clipped current
+// pixels less clipped previous ones. A tile moves if its excess is positive, which is a mean
+// difference above the threshold.
+float4 __attribute__((kernel)) tileRowStats(uint32_t x, uint32_t y) {
+    uint32_t startX = x * TILE_SIZE;
+    uint32_t endX = min(startX + TILE_SIZE, (uint32_t) gWidth);
+
+    float4 stats = 0.f;
+    for (uint32_t px = startX; px < endX; px++) {
+        int curY = rsGetElementAtYuv_uchar_Y(gCurrentFrame, px, y);
+        int prevY = readPrevLuma(px, y);
+        bool curOk = curY >= CLIP_LOW && curY <= CLIP_HIGH;
+        bool prevOk = prevY >= CLIP_LOW && prevY <= CLIP_HIGH;
+        if (!curOk) stats.w += 1.f;
+        if (!prevOk) stats.w -= 1.f;
+        if (curOk && prevOk) {
+            stats.x += fabs(curY - prevY * gExposureRatio) - MOTION_THRESHOLD;
+        }
+    }
+    return stats;
+}
+
+// Runs over gTileFlags
+uchar __attribute__((kernel)) tileMotion(uint32_t x, uint32_t y) {
+    uint32_t startY = y * TILE_SIZE;
+    uint32_t endY = min(startY + TILE_SIZE, (uint32_t) gHeight);
+
+    float4 stats = 0.f;
+    for (uint32_t py = startY; py < endY; py++) {
+        stats += rsGetElementAt_float4(gRowStats, x, py);
+    }
+
+    if (!(stats.x > 0.f)) return TILE_STATIC;
+    // Fall back to the frame with fewer clipped pixels
+    return stats.w <= 0.f ? TILE_MOTION_CURRENT : TILE_MOTION_PREVIOUS;
+}
+
+uchar4 __attribute__((kernel)) mergeHdrMotion(uint32_t x, uint32_t y) {
+    uchar4 curPixel = readCurrentPixel(x, y);
+    uchar4 prevPixel = readPrevPixel(x, y);
+    addToHistogram(curPixel.r, x, y);
+
+    uchar flag = rsGetElementAt_uchar(gTileFlags, x / TILE_SIZE, y / TILE_SIZE);
+    uchar4 mergedPixel;
+    if (flag == TILE_STATIC) {
+        mergedPixel = averagePixel(curPixel, prevPixel);
+    } else {
+        mergedPixel = flag == TILE_MOTION_CURRENT ? curPixel : prevPixel;
+    }
+
+    storeHistory(curPixel, x, y);
+    return yuvToRgb(mergedPixel);
+}
+
+// Streaming average of the last frame of each bracket exposure. Replaces the ring slice of the
+// current exposure and updates the running sum by the difference, so the cost doesn't depend on
+// the bracket size.
+uchar4 __attribute__((kernel)) mergeBracket(uint32_t x, uint32_t y) {
+    uchar4 curPixel = readCurrentPixel(x, y);
+    ushort4 cur = convert_ushort4(curPixel);
+    addToHistogram(curPixel.r, x, y);
+
+    ushort4 sum;
+    if (gBracketEmpty) {
+        for (int i = 0; i < gBracketSize; i++) {
+            rsSetElementAt_uchar4(gBracketRing, curPixel, x, y, i);
+        }
+        sum = cur * (ushort) gBracketSize;
+    } else {
+        ushort4 old = convert_ushort4(rsGetElementAt_uchar4(gBracketRing, x, y, gBracketSlot));
+        sum = rsGetElementAt_ushort4(gBracketSums, x, y) + cur - old;
+        rsSetElementAt_uchar4(gBracketRing, curPixel, x, y, gBracketSlot);
+    }
+    rsSetElementAt_ushort4(gBracketSums, sum, x, y);
+
+    uchar4 mergedPixel = convert_uchar4((sum + (ushort) (gBracketSize / 2)) /
+            (ushort) gBracketSize);
+    return yuvToRgb(mergedPixel);
+}
+
+// Queued after the passes of a merge, so it runs once they are done
+void markOutputDone() {
+    int64_t now = rsUptimeNanos();
+    gOutputDone[0] = (int32_t) now;
+    gOutputDone[1] = (int32_t) (now >> 32);
+}
+
+// Local tone mapping pass over the merged output; see LocalToneMap.java. localGrid runs over
+// the grid allocation and averages the sampled luma of each cell of gLocalInput, then
+// localToneMap scales each pixel by the gLocalScale entry of its interpolated cell luma.
+#define LOCAL_CELL_SIZE 32
+#define LOCAL_SAMPLE_STEP 4
+#define LOCAL_SCALE_BITS 8
+
+rs_allocation gLocalInput;
+rs_allocation gLocalGrid;
+int32_t *gLocalScale;
+int gLocalGridWidth;
+int gLocalGridHeight;
+
+static int rgbLuma(uchar4 pixel) {
+    return (77 * pixel.r + 150 * pixel.g + 29 * pixel.b) >> 8;
+}
+
+uchar __attribute__((kernel)) localGrid(uint32_t x, uint32_t y) {
+    uint32_t endX = min((x + 1) * LOCAL_CELL_SIZE, (uint32_t) gWidth);
+    uint32_t endY = min((y + 1) * LOCAL_CELL_SIZE, (uint32_t) gHeight);
+    int sum = 0;
+    int count = 0;
+    for (uint32_t py = y * LOCAL_CELL_SIZE; py < endY; py += LOCAL_SAMPLE_STEP) {
+        for (uint32_t px = x * LOCAL_CELL_SIZE; px < endX; px += LOCAL_SAMPLE_STEP) {
+            sum += rgbLuma(rsGetElementAt_uchar4(gLocalInput, px, py));
+            count++;
+        }
+    }
+    return sum / count;
+}
+
+// Grid position of a pixel coordinate in 1/256ths, with cell centers at integers
+static int localGridPosition(uint32_t v) {
+    return max(0, ((int) (2 * v + 1) * 256 / LOCAL_CELL_SIZE - 256) / 2);
+}
+
+uchar4 __attribute__((kernel)) localToneMap(uint32_t x, uint32_t y) {
+    int positionX = localGridPosition(x);
+    int positionY = localGridPosition(y);
+    int x0 = positionX >> 8;
+    int x1 = min(x0 + 1, gLocalGridWidth - 1);
+    int y0 = min(positionY >> 8, gLocalGridHeight - 1);
+    int y1 = min((positionY >> 8) + 1, gLocalGridHeight - 1);
+    int wx = positionX & 0xFF;
+    int wy = positionY & 0xFF;
+
+    int top = rsGetElementAt_uchar(gLocalGrid, x0, y0) * (256 - wx) +
+            rsGetElementAt_uchar(gLocalGrid, x1, y0) * wx;
+    int bottom = rsGetElementAt_uchar(gLocalGrid, x0, y1) * (256 - wx) +
+            rsGetElementAt_uchar(gLocalGrid, x1, y1) * wx;
+    int scale = gLocalScale[(top * (256 - wy) + bottom * wy) >> 16];
 
+    int4 rgb = convert_int4(rsGetElementAt_uchar4(gLocalInput, x, y)) * scale +
+            (1 << (LOCAL_SCALE_BITS - 1));
+    uchar4 out = convert_uchar4(min(rgb / (1 << LOCAL_SCALE_BITS), 255));
+    out.a = 255;
     return out;
 }
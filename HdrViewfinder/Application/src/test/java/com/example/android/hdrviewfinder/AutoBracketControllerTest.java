@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the direction and rate limiting of {@link AutoBracketController} updates.
+ */
+public class AutoBracketControllerTest {
+
+    private static final long MS = 1000 * 1000L;
+
+    private static LumaHistogram uniformHistogram(int luma) {
+        LumaHistogram histogram = new LumaHistogram();
+        histogram.reset(0);
+        histogram.mBins[luma] = 1000;
+        histogram.updateStatistics();
+        return histogram;
+    }
+
+    @Test
+    public void clippedHighlightsShortenShortExposure() {
+        AutoBracketController controller = new AutoBracketController(MS / 10, 33 * MS);
+        controller.setExposures(10 * MS, 30 * MS);
+
+        assertTrue(controller.onHistogram(true, uniformHistogram(255), 0));
+        assertTrue(controller.getEvenExposure() < 10 * MS);
+        assertEquals(30 * MS, controller.getOddExposure());
+    }
+
+    @Test
+    public void darkShadowsLengthenLongExposureWithinRange() {
+        AutoBracketController controller = new AutoBracketController(MS / 10, 33 * MS);
+        controller.setExposures(1 * MS, 20 * MS);
+
+        assertTrue(controller.onHistogram(false, uniformHistogram(4), 0));
+        assertEquals(33 * MS, controller.getOddExposure());
+        assertEquals(1 * MS, controller.getEvenExposure());
+    }
+
+    @Test
+    public void updatesAreRateLimited() {
+        AutoBracketController controller = new AutoBracketController(MS / 10, 33 * MS);
+        controller.setExposures(10 * MS, 30 * MS);
+
+        assertTrue(controller.onHistogram(true, uniformHistogram(255), 0));
+        long evenExposure = controller.getEvenExposure();
+        assertFalse(controller.onHistogram(true, uniformHistogram(255),
+                AutoBracketController.MIN_UPDATE_INTERVAL_NS / 2));
+        assertEquals(evenExposure, controller.getEvenExposure());
+
+        assertTrue(controller.onHistogram(true, uniformHistogram(255),
+                AutoBracketController.MIN_UPDATE_INTERVAL_NS));
+        assertTrue(controller.getEvenExposure() < evenExposure);
+    }
+
+    @Test
+    public void wellExposedSceneIsLeftAlone() {
+        AutoBracketController controller = new AutoBracketController(MS / 10, 33 * MS);
+        controller.setExposures(10 * MS, 30 * MS);
+
+        assertFalse(controller.onHistogram(true,
+                uniformHistogram(AutoBracketController.HIGHLIGHT_TARGET), 0));
+        assertFalse(controller.onHistogram(false,
+                uniformHistogram(AutoBracketController.SHADOW_TARGET), 0));
+    }
+}
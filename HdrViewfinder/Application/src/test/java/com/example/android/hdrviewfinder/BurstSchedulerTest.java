@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the frame durations and output rate of {@link BurstScheduler}.
+ */
+public class BurstSchedulerTest {
+
+    private static final long MILLI_SECOND = 1000 * 1000L;
+    private static final long MIN_FRAME_DURATION = 10 * MILLI_SECOND;
+    private static final long MAX_FRAME_DURATION = 200 * MILLI_SECOND;
+
+    @Test
+    public void shortExposuresRunAtStreamRate() {
+        BurstScheduler scheduler = new BurstScheduler(MIN_FRAME_DURATION, MAX_FRAME_DURATION);
+        scheduler.schedule(new long[] {2 * MILLI_SECOND, 5 * MILLI_SECOND}, 2);
+        assertEquals(MIN_FRAME_DURATION, scheduler.getFrameDuration(0));
+        assertEquals(MIN_FRAME_DURATION, scheduler.getFrameDuration(1));
+        assertEquals(100.f, scheduler.getExpectedOutputRate(), 1e-3f);
+    }
+
+    @Test
+    public void longExposureOnlyHoldsUpItsFrame() {
+        BurstScheduler scheduler = new BurstScheduler(MIN_FRAME_DURATION, MAX_FRAME_DURATION);
+        scheduler.schedule(new long[] {2 * MILLI_SECOND, 40 * MILLI_SECOND}, 2);
+        assertEquals(MIN_FRAME_DURATION, scheduler.getFrameDuration(0));
+        assertEquals(40 * MILLI_SECOND, scheduler.getFrameDuration(1));
+        assertEquals(50 * MILLI_SECOND, scheduler.getCycleDuration());
+        assertEquals(40.f, scheduler.getExpectedOutputRate(), 1e-3f);
+    }
+
+    @Test
+    public void exposuresAreClampedToMaxFrameDuration() {
+        BurstScheduler scheduler = new BurstScheduler(MIN_FRAME_DURATION, MAX_FRAME_DURATION);
+        assertEquals(MAX_FRAME_DURATION, scheduler.clampExposure(1000 * MILLI_SECOND));
+        scheduler.schedule(new long[] {MILLI_SECOND, 20 * MILLI_SECOND, 1000 * MILLI_SECOND}, 3);
+        assertEquals(MAX_FRAME_DURATION, scheduler.getFrameDuration(2));
+        assertEquals(230 * MILLI_SECOND, scheduler.getCycleDuration());
+    }
+
+    @Test
+    public void unknownLimitsFollowExposure() {
+        BurstScheduler scheduler = new BurstScheduler(0, 0);
+        scheduler.schedule(new long[] {3 * MILLI_SECOND, 7 * MILLI_SECOND}, 2);
+        assertEquals(3 * MILLI_SECOND, scheduler.getFrameDuration(0));
+        assertEquals(200.f, scheduler.getExpectedOutputRate(), 1e-3f);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Checks the keying and eviction of {@link CaptureRequestCache}.
+ */
+public class CaptureRequestCacheTest {
+
+    private static final long EXPOSURE = 10 * 1000 * 1000L;
+    private static final int SENSITIVITY = 1600;
+    private static final long FRAME_DURATION = 1000 * 1000 * 1000L / 30;
+    private static final Object TAG = new Object();
+
+    @Test
+    public void exposuresWithinAStepShareARequest() {
+        CaptureRequestCache<String> cache = new CaptureRequestCache<>(4);
+        long exposure = CaptureRequestCache.quantizeExposure(EXPOSURE);
+        assertEquals(exposure, CaptureRequestCache.quantizeExposure(exposure));
+        cache.put(exposure, SENSITIVITY, FRAME_DURATION, TAG, "a");
+
+        assertEquals("a", cache.get(EXPOSURE + EXPOSURE / 100, SENSITIVITY, FRAME_DURATION, TAG));
+        assertEquals("a", cache.get(EXPOSURE, SENSITIVITY, FRAME_DURATION + 10, TAG));
+        assertNull(cache.get(EXPOSURE * 2, SENSITIVITY, FRAME_DURATION, TAG));
+        assertNull(cache.get(EXPOSURE, SENSITIVITY * 2, FRAME_DURATION, TAG));
+        assertNull(cache.get(EXPOSURE, SENSITIVITY, FRAME_DURATION, new Object()));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        CaptureRequestCache<String> cache = new CaptureRequestCache<>(2);
+        cache.put(EXPOSURE, SENSITIVITY, FRAME_DURATION, TAG, "a");
+        cache.put(EXPOSURE * 2, SENSITIVITY, FRAME_DURATION, TAG, "b");
+        // Touch a, so b is the oldest
+        assertEquals("a", cache.get(EXPOSURE, SENSITIVITY, FRAME_DURATION, TAG));
+        cache.put(EXPOSURE * 4, SENSITIVITY, FRAME_DURATION, TAG, "c");
+
+        assertEquals("a", cache.get(EXPOSURE, SENSITIVITY, FRAME_DURATION, TAG));
+        assertNull(cache.get(EXPOSURE * 2, SENSITIVITY, FRAME_DURATION, TAG));
+        assertEquals("c", cache.get(EXPOSURE * 4, SENSITIVITY, FRAME_DURATION, TAG));
+
+        cache.clear();
+        assertNull(cache.get(EXPOSURE, SENSITIVITY, FRAME_DURATION, TAG));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks wrap-around in {@link CaptureResultRing}.
+ */
+public class CaptureResultRingTest {
+
+    @Test
+    public void keepsNewestResults() {
+        CaptureResultRing ring = new CaptureResultRing(4);
+        for (int i = 0; i < 6; i++) {
+            ring.add(100 + i, 1000 * i, 10 * i, i % 2);
+        }
+
+        // The oldest slot is the next one written, so only capacity - 1 results are stable
+        assertEquals(6, ring.getCount());
+        assertTrue(ring.isOverwritten(2));
+        for (long i = 3; i < 6; i++) {
+            assertFalse(ring.isOverwritten(i));
+            assertEquals(100 + i, ring.getFrameNumber(i));
+            assertEquals(1000 * i, ring.getTimestamp(i));
+            assertEquals(10 * i, ring.getExposureTime(i));
+            assertEquals(i % 2, ring.getKind(i));
+        }
+    }
+
+    @Test
+    public void detectsOverwrittenResults() {
+        CaptureResultRing ring = new CaptureResultRing(4);
+        for (int i = 0; i < 3; i++) {
+            ring.add(i, i, i, 0);
+        }
+        assertFalse(ring.isOverwritten(0));
+
+        // The next add writes the slot of result 0
+        ring.add(3, 3, 3, 0);
+        assertTrue(ring.isOverwritten(0));
+        assertFalse(ring.isOverwritten(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityNotPowerOfTwo() {
+        new CaptureResultRing(6);
+    }
+}
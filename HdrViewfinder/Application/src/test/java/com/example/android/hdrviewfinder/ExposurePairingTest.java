@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link ExposurePairing} only merges frames of opposite exposure.
+ */
+public class ExposurePairingTest {
+
+    @Test
+    public void findsExposureByTimestamp() {
+        ExposurePairing pairing = new ExposurePairing();
+        pairing.onCaptureResult(1000, ExposurePairing.EXPOSURE_EVEN);
+        pairing.onCaptureResult(2000, ExposurePairing.EXPOSURE_ODD);
+
+        assertEquals(ExposurePairing.EXPOSURE_EVEN, pairing.findExposure(1000));
+        assertEquals(ExposurePairing.EXPOSURE_ODD, pairing.findExposure(2000));
+        assertEquals(ExposurePairing.EXPOSURE_UNKNOWN, pairing.findExposure(1500));
+
+        // Result for 1500 was lost, 3000 may still arrive
+        assertFalse(pairing.isResultPending(1500));
+        assertTrue(pairing.isResultPending(3000));
+    }
+
+    @Test
+    public void mergesOnlyAlternatingExposures() {
+        ExposurePairing pairing = new ExposurePairing();
+        assertEquals(ExposurePairing.PAIR_PASSTHROUGH,
+                pairing.pair(ExposurePairing.EXPOSURE_EVEN));
+        pairing.setHistoryExposure(ExposurePairing.EXPOSURE_EVEN);
+
+        assertEquals(ExposurePairing.PAIR_MERGE, pairing.pair(ExposurePairing.EXPOSURE_ODD));
+        pairing.setHistoryExposure(ExposurePairing.EXPOSURE_ODD);
+
+        // Even frame dropped
+        assertEquals(ExposurePairing.PAIR_SKIP, pairing.pair(ExposurePairing.EXPOSURE_ODD));
+        assertEquals(ExposurePairing.PAIR_MERGE, pairing.pair(ExposurePairing.EXPOSURE_EVEN));
+        assertEquals(1, pairing.getSkippedPairCount());
+    }
+
+    @Test
+    public void fallsBackToPassthroughWhenExposuresStopAlternating() {
+        ExposurePairing pairing = new ExposurePairing();
+        pairing.setHistoryExposure(ExposurePairing.EXPOSURE_EVEN);
+        for (int i = 0; i < ExposurePairing.MAX_CONSECUTIVE_SKIPS; i++) {
+            assertEquals(ExposurePairing.PAIR_SKIP, pairing.pair(ExposurePairing.EXPOSURE_EVEN));
+        }
+        assertEquals(ExposurePairing.PAIR_PASSTHROUGH,
+                pairing.pair(ExposurePairing.EXPOSURE_EVEN));
+        assertEquals(ExposurePairing.MAX_CONSECUTIVE_SKIPS + 1, pairing.getSkippedPairCount());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that {@link FrameAligner} recovers the shift between frames of a blocky scene.
+ */
+public class FrameAlignerTest {
+
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 192;
+    // Scene blocks are this many pixels; the scene extends MARGIN past each frame edge
+    private static final int BLOCK = 8;
+    private static final int MARGIN = 32;
+
+    private ForkJoinPool mPool;
+    private int[][] mScene;
+
+    @Before
+    public void setUp() {
+        mPool = new ForkJoinPool(4);
+        Random random = new Random(0x414c);
+        mScene = new int[(HEIGHT + 2 * MARGIN) / BLOCK][(WIDTH + 2 * MARGIN) / BLOCK];
+        for (int[] row : mScene) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = 40 + random.nextInt(180);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Test
+    public void firstFrameHasNoOffset() {
+        FrameAligner aligner = new FrameAligner(WIDTH, HEIGHT);
+        aligner.downsample(frame(0, 0, 1), mPool);
+        aligner.align();
+        assertEquals(0, aligner.getOffsetX());
+        assertEquals(0, aligner.getOffsetY());
+    }
+
+    @Test
+    public void findsShiftAcrossExposures() {
+        checkShift(6, -4);
+        checkShift(-20, 12);
+    }
+
+    @Test
+    public void resetDropsReference() {
+        FrameAligner aligner = new FrameAligner(WIDTH, HEIGHT);
+        aligner.downsample(frame(0, 0, 1), mPool);
+        aligner.align();
+        aligner.reset();
+        aligner.downsample(frame(8, 8, 1), mPool);
+        aligner.align();
+        assertEquals(0, aligner.getOffsetX());
+        assertEquals(0, aligner.getOffsetY());
+    }
+
+    /**
+     * Align a frame whose content moved by (shiftX, shiftY) and is a stop darker against the
+     * previous one; the previous frame's matching pixel is back by the shift.
+     */
+    private void checkShift(int shiftX, int shiftY) {
+        FrameAligner aligner = new FrameAligner(WIDTH, HEIGHT);
+        aligner.downsample(frame(0, 0, 1), mPool);
+        aligner.align();
+        aligner.downsample(frame(shiftX, shiftY, 0.5f), mPool);
+        aligner.align();
+        assertEquals("x offset for shift " + shiftX, -shiftX, aligner.getOffsetX());
+        assertEquals("y offset for shift " + shiftY, -shiftY, aligner.getOffsetY());
+    }
+
+    /**
+     * The scene moved by (shiftX, shiftY), with luma scaled by gain.
+     */
+    private YuvFrame frame(int shiftX, int shiftY, float gain) {
+        byte[] y = new byte[WIDTH * HEIGHT];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = mScene[(row - shiftY + MARGIN) / BLOCK][(x - shiftX + MARGIN) / BLOCK];
+                y[row * WIDTH + x] = (byte) Math.round(value * gain);
+            }
+        }
+        byte[] chroma = new byte[WIDTH * HEIGHT / 2];
+        Arrays.fill(chroma, (byte) 128);
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT);
+        frame.setPlanes(ByteBuffer.wrap(y), WIDTH, ByteBuffer.wrap(chroma),
+                ByteBuffer.wrap(chroma), WIDTH / 2, 1);
+        return frame;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Round-trips {@link FrameMetadataRecorder} files through {@link FrameMetadataReader}.
+ */
+public class FrameMetadataRecorderTest {
+
+    @Test
+    public void keepsNewestRecords() throws IOException {
+        File file = File.createTempFile("metadata", ".bin");
+        try {
+            FrameMetadataRecorder recorder = new FrameMetadataRecorder(file, 4);
+            for (int i = 0; i < 6; i++) {
+                recorder.recordCapture(i, 1000 + i, 10 * i, 33, 100, i % 2);
+            }
+            recorder.close();
+
+            List<FrameMetadataReader.Record> records = FrameMetadataReader.read(file);
+            assertEquals(4, records.size());
+            for (int i = 0; i < 4; i++) {
+                FrameMetadataReader.Record record = records.get(i);
+                assertEquals(FrameMetadataRecorder.TYPE_CAPTURE, record.type);
+                assertEquals(i + 2, record.frameNumber);
+                assertEquals(1000 + i + 2, record.timestamp);
+                assertEquals(10 * (i + 2), record.exposureTime);
+                assertEquals(33, record.frameDuration);
+                assertEquals(100, record.sensitivity);
+                assertEquals(i % 2, record.tag);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void exportsLatencyOfProcessedFrames() throws IOException {
+        File file = File.createTempFile("metadata", ".bin");
+        try {
+            FrameMetadataRecorder recorder = new FrameMetadataRecorder(file, 16);
+            recorder.recordCapture(7, 5000, 2000, 33000, 400, 0);
+            recorder.recordCapture(8, 6000, 8000, 33000, 400, 1);
+            recorder.recordProcessed(5000, 1500);
+            recorder.close();
+            // Dropped after close
+            recorder.recordProcessed(6000, 1500);
+
+            StringWriter csv = new StringWriter();
+            FrameMetadataReader.writeCsv(FrameMetadataReader.read(file), csv);
+            assertEquals(FrameMetadataReader.CSV_HEADER + "\n" +
+                    "7,5000,2000,33000,400,0,1500\n" +
+                    "8,6000,8000,33000,400,1,\n", csv.toString());
+        } finally {
+            file.delete();
+        }
+    }
+}
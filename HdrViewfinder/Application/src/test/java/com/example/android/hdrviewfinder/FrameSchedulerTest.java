@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the deadlines, skipping and counters of {@link FrameScheduler}.
+ */
+public class FrameSchedulerTest {
+
+    private static final long MILLI_SECOND = 1000 * 1000L;
+    private static final long VSYNC = 16 * MILLI_SECOND;
+    private static final int NORMAL = MergeEngine.STREAM_NORMAL;
+    private static final int HDR = MergeEngine.STREAM_HDR;
+
+    private static FrameScheduler newScheduler() {
+        FrameScheduler scheduler = new FrameScheduler();
+        scheduler.setVsyncPeriod(VSYNC);
+        return scheduler;
+    }
+
+    @Test
+    public void deadlineFollowsSensorTimestamp() {
+        FrameScheduler scheduler = newScheduler();
+        // Arrived 5 ms after exposure; due a refresh after that
+        assertEquals(105 * MILLI_SECOND + VSYNC,
+                scheduler.deadline(100 * MILLI_SECOND, 105 * MILLI_SECOND));
+        // A frame that arrived late is due by the smoothed latency, not its own 18 ms
+        assertEquals(200 * MILLI_SECOND + 6625 * 1000 + VSYNC,
+                scheduler.deadline(200 * MILLI_SECOND, 218 * MILLI_SECOND));
+        // Without a timestamp, the frame is due a refresh after it arrived
+        assertEquals(300 * MILLI_SECOND + VSYNC, scheduler.deadline(0, 300 * MILLI_SECOND));
+    }
+
+    @Test
+    public void frameThatCantFinishIsSkipped() {
+        FrameScheduler scheduler = newScheduler();
+        long deadline = scheduler.deadline(100 * MILLI_SECOND, 105 * MILLI_SECOND);
+        assertTrue(scheduler.schedule(NORMAL, deadline, 105 * MILLI_SECOND, 0, false));
+        scheduler.onProcessed(NORMAL, deadline, 105 * MILLI_SECOND, 115 * MILLI_SECOND);
+
+        // Takes 10 ms, but only 6 ms are left
+        deadline = scheduler.deadline(130 * MILLI_SECOND, 135 * MILLI_SECOND);
+        assertFalse(scheduler.schedule(NORMAL, deadline, 145 * MILLI_SECOND, 0, false));
+        assertTrue(scheduler.schedule(NORMAL, deadline, 140 * MILLI_SECOND, 0, false));
+        assertEquals(1, scheduler.getSkippedCount());
+    }
+
+    @Test
+    public void skipsAreLimited() {
+        FrameScheduler scheduler = newScheduler();
+        scheduler.onProcessed(NORMAL, 0, 0, 50 * MILLI_SECOND);
+        for (int i = 0; i < FrameScheduler.MAX_CONSECUTIVE_SKIPS; i++) {
+            long deadline = scheduler.deadline(i * VSYNC, i * VSYNC + MILLI_SECOND);
+            assertFalse(scheduler.schedule(NORMAL, deadline, i * VSYNC + MILLI_SECOND, 0,
+                    false));
+        }
+        // Every frame would be late; show this one anyway
+        long deadline = scheduler.deadline(10 * VSYNC, 10 * VSYNC + MILLI_SECOND);
+        assertTrue(scheduler.schedule(NORMAL, deadline, 10 * VSYNC + MILLI_SECOND, 0, false));
+    }
+
+    @Test
+    public void otherStreamWaitsForPriorityStream() {
+        FrameScheduler scheduler = newScheduler();
+        scheduler.setPriorityStream(HDR);
+        long deadline = scheduler.deadline(100 * MILLI_SECOND, 105 * MILLI_SECOND);
+        assertFalse(scheduler.schedule(NORMAL, deadline, 105 * MILLI_SECOND, 0, true));
+        assertTrue(scheduler.schedule(NORMAL, deadline, 105 * MILLI_SECOND, 0, false));
+        assertTrue(scheduler.schedule(HDR, deadline, 105 * MILLI_SECOND, 0, true));
+    }
+
+    @Test
+    public void countsFrames() {
+        FrameScheduler scheduler = newScheduler();
+        long deadline = scheduler.deadline(100 * MILLI_SECOND, 105 * MILLI_SECOND);
+        assertTrue(scheduler.schedule(NORMAL, deadline, 105 * MILLI_SECOND, 2, false));
+        scheduler.onProcessed(NORMAL, deadline, 105 * MILLI_SECOND, 110 * MILLI_SECOND);
+        deadline = scheduler.deadline(133 * MILLI_SECOND, 138 * MILLI_SECOND);
+        assertTrue(scheduler.schedule(HDR, deadline, 138 * MILLI_SECOND, 0, false));
+        scheduler.onProcessed(HDR, deadline, 138 * MILLI_SECOND, 160 * MILLI_SECOND);
+        // Accepted, then dropped before processing
+        deadline = scheduler.deadline(166 * MILLI_SECOND, 171 * MILLI_SECOND);
+        assertTrue(scheduler.schedule(NORMAL, deadline, 171 * MILLI_SECOND, 0, false));
+        scheduler.onDropped();
+
+        assertEquals(1, scheduler.getOnTimeCount());
+        assertEquals(1, scheduler.getLateCount());
+        assertEquals(3, scheduler.getSkippedCount());
+    }
+}
@@ -0,0 +1,696 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks {@link HdrMergeKernel} bit-for-bit against a direct transcription of hdr_merge.rs.
+ */
+public class HdrMergeKernelTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 50;
+
+    private ForkJoinPool mPool;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mPool = new ForkJoinPool(4);
+        mRandom = new Random(0x4d52);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Test
+    public void passthroughMatchesScript() {
+        checkParity(0, false, 0);
+    }
+
+    @Test
+    public void sideBySideMatchesScript() {
+        checkParity(WIDTH / 2, false, 0);
+        checkParity(WIDTH / 2, false, 1);
+    }
+
+    @Test
+    public void mergeMatchesScript() {
+        checkParity(0, true, 7);
+        checkParity(WIDTH / 2, true, 8);
+    }
+
+    @Test
+    public void mergeMatchesScriptAcrossFrames() {
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+        byte[] refPrev = new byte[WIDTH * HEIGHT * 4];
+        kernel.setPrevFrame(prev);
+
+        for (int frame = 0; frame < 6; frame++) {
+            YuvFrame input = randomFrame(WIDTH + 8, 2);
+            byte[] out = new byte[WIDTH * HEIGHT * 4];
+            byte[] refOut = new byte[WIDTH * HEIGHT * 4];
+
+            kernel.setCurrentFrame(input);
+            kernel.setFrameCounter(frame);
+            kernel.setCutPointX(WIDTH / 2);
+            kernel.setMergeMode(frame >= 3 ?
+                    HdrMergeKernel.MERGE_AVERAGE : HdrMergeKernel.MERGE_NONE);
+            kernel.mergeHdrFrames(out);
+            referenceMerge(input, refPrev, refOut, WIDTH / 2, frame >= 3, frame);
+
+            assertArrayEquals("output, frame " + frame, refOut, out);
+            assertArrayEquals("history, frame " + frame, refPrev, prev);
+        }
+    }
+
+    @Test
+    public void tilingDoesNotChangeOutput() {
+        YuvFrame input = randomFrame(WIDTH, 1);
+        byte[] prevSeed = randomBytes(WIDTH * HEIGHT * 4);
+
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            byte[] singleOut = runKernel(new HdrMergeKernel(WIDTH, HEIGHT, single), input,
+                    prevSeed.clone(), 0, HdrMergeKernel.MERGE_AVERAGE, 0);
+            byte[] parallelOut = runKernel(new HdrMergeKernel(WIDTH, HEIGHT, mPool), input,
+                    prevSeed.clone(), 0, HdrMergeKernel.MERGE_AVERAGE, 0);
+            assertArrayEquals(singleOut, parallelOut);
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void neutralGrayConvertsLikeScript() {
+        byte[] out = new byte[4];
+        HdrMergeKernel.writeRgb(null, out, 0, 128, 128, 128);
+        assertEquals(128, out[0] & 0xFF);
+        assertEquals(127, out[1] & 0xFF);
+        assertEquals(127, out[2] & 0xFF);
+        assertEquals(255, out[3] & 0xFF);
+    }
+
+    @Test
+    public void conversionClampsToByteRange() {
+        byte[] out = new byte[4];
+        HdrMergeKernel.writeRgb(null, out, 0, 255, 255, 255);
+        assertEquals(255, out[0] & 0xFF);
+        assertEquals(255, out[2] & 0xFF);
+        HdrMergeKernel.writeRgb(null, out, 0, 0, 0, 0);
+        assertEquals(0, out[0] & 0xFF);
+        assertEquals(0, out[2] & 0xFF);
+    }
+
+    @Test
+    public void toneLutReplacesConversion() {
+        byte[] lut = ToneMapper.buildLut(ToneMapper.OPERATOR_ACES, 1.f);
+        YuvFrame input = randomFrame(WIDTH, 2);
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        kernel.setToneMap(lut, null);
+        byte[] out = runKernel(kernel, input, new byte[WIDTH * HEIGHT * 4], 0,
+                HdrMergeKernel.MERGE_NONE, 0);
+
+        byte[] expected = new byte[4];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                ToneMapper.lookup(lut, expected, 0,
+                        input.getY(x, y), input.getU(x, y), input.getV(x, y));
+                assertArrayEquals(expected,
+                        Arrays.copyOfRange(out, (y * WIDTH + x) * 4, (y * WIDTH + x + 1) * 4));
+            }
+        }
+    }
+
+    @Test
+    public void fusionOfIdenticalFramesIsPassthrough() {
+        YuvFrame input = randomFrame(WIDTH, 2);
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+
+        byte[] passthrough = runKernel(kernel, input, prev, 0, HdrMergeKernel.MERGE_NONE, 0);
+        kernel.setMergeMode(HdrMergeKernel.MERGE_FUSION);
+        byte[] fused = new byte[WIDTH * HEIGHT * 4];
+        kernel.mergeHdrFrames(fused);
+
+        assertArrayEquals(passthrough, fused);
+    }
+
+    @Test
+    public void proxyFusionOfIdenticalFramesIsPassthrough() {
+        YuvFrame input = randomFrame(WIDTH, 2);
+        for (int proxyScale = 2; proxyScale <= ExposureFusion.MAX_PROXY_SCALE; proxyScale *= 2) {
+            HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+            kernel.setFusionProxyScale(proxyScale);
+            byte[] prev = new byte[WIDTH * HEIGHT * 4];
+
+            byte[] passthrough = runKernel(kernel, input, prev, 0, HdrMergeKernel.MERGE_NONE, 0);
+            kernel.setMergeMode(HdrMergeKernel.MERGE_FUSION);
+            byte[] fused = new byte[WIDTH * HEIGHT * 4];
+            kernel.mergeHdrFrames(fused);
+
+            assertArrayEquals("proxy scale " + proxyScale, passthrough, fused);
+        }
+    }
+
+    @Test
+    public void fusionPrefersWellExposedFrame() {
+        checkFusionPrefersWellExposedFrame(1);
+    }
+
+    @Test
+    public void proxyFusionPrefersWellExposedFrame() {
+        checkFusionPrefersWellExposedFrame(2);
+        checkFusionPrefersWellExposedFrame(ExposureFusion.MAX_PROXY_SCALE);
+    }
+
+    private void checkFusionPrefersWellExposedFrame(int proxyScale) {
+        // Textured mid-tones in the current frame, clipped flat white in the previous one
+        byte[] y = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = (byte) (100 + mRandom.nextInt(56));
+        }
+        byte[] chroma = new byte[WIDTH * HEIGHT / 2];
+        Arrays.fill(chroma, (byte) 128);
+        YuvFrame input = new YuvFrame(WIDTH, HEIGHT);
+        input.setPlanes(ByteBuffer.wrap(y), WIDTH, ByteBuffer.wrap(chroma),
+                ByteBuffer.wrap(chroma), WIDTH / 2, 1);
+
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+        Arrays.fill(prev, (byte) 128);
+        for (int i = 0; i < prev.length; i += 4) {
+            prev[i] = (byte) 255;
+        }
+
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        kernel.setFusionProxyScale(proxyScale);
+        byte[] fused = runKernel(kernel, input, prev, 0, HdrMergeKernel.MERGE_FUSION, 0);
+        kernel.setMergeMode(HdrMergeKernel.MERGE_NONE);
+        byte[] current = new byte[WIDTH * HEIGHT * 4];
+        kernel.mergeHdrFrames(current);
+
+        long error = 0;
+        for (int i = 0; i < fused.length; i += 4) {
+            error += Math.abs((fused[i] & 0xFF) - (current[i] & 0xFF));
+        }
+        assertTrue("fused frame should follow the well-exposed frame, proxy scale " + proxyScale,
+                error / (WIDTH * HEIGHT) < 16);
+    }
+
+    @Test
+    public void deghostStaticSceneMatchesAverage() {
+        YuvFrame input = midToneFrame(null);
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+        runKernel(kernel, input, prev, 0, HdrMergeKernel.MERGE_NONE, 0);
+        byte[] history = prev.clone();
+
+        byte[] average = runKernel(kernel, input, prev, 0, HdrMergeKernel.MERGE_AVERAGE, 1);
+        kernel.setPrevFrame(history);
+        kernel.setDeghostEnabled(true);
+        byte[] deghosted = new byte[WIDTH * HEIGHT * 4];
+        kernel.mergeHdrFrames(deghosted);
+
+        assertEquals(0, kernel.getMotionTiles().getMotionTileCount());
+        assertArrayEquals(average, deghosted);
+    }
+
+    @Test
+    public void deghostUsesSingleFrameInMovingTile() {
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        kernel.setDeghostEnabled(true);
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+        byte[] y = new byte[WIDTH * HEIGHT];
+        runKernel(kernel, midToneFrame(y), prev, 0, HdrMergeKernel.MERGE_NONE, 0);
+
+        // Replace the content of the first tile only
+        byte[] moved = y.clone();
+        for (int row = 0; row < MotionTiles.TILE_SIZE; row++) {
+            for (int col = 0; col < MotionTiles.TILE_SIZE; col++) {
+                moved[row * WIDTH + col] = (byte) (30 + mRandom.nextInt(190));
+            }
+        }
+        YuvFrame input = new YuvFrame(WIDTH, HEIGHT);
+        byte[] chroma = new byte[WIDTH * HEIGHT / 2];
+        Arrays.fill(chroma, (byte) 128);
+        input.setPlanes(ByteBuffer.wrap(moved), WIDTH, ByteBuffer.wrap(chroma),
+                ByteBuffer.wrap(chroma), WIDTH / 2, 1);
+
+        byte[] history = prev.clone();
+        byte[] deghosted = runKernel(kernel, input, prev, 0, HdrMergeKernel.MERGE_AVERAGE, 1);
+        assertEquals(1, kernel.getMotionTiles().getMotionTileCount());
+
+        kernel.setPrevFrame(history);
+        kernel.setMergeMode(HdrMergeKernel.MERGE_NONE);
+        byte[] current = new byte[WIDTH * HEIGHT * 4];
+        kernel.mergeHdrFrames(current);
+        for (int row = 0; row < MotionTiles.TILE_SIZE; row++) {
+            int offset = row * WIDTH * 4;
+            assertArrayEquals("row " + row,
+                    Arrays.copyOfRange(current, offset, offset + MotionTiles.TILE_SIZE * 4),
+                    Arrays.copyOfRange(deghosted, offset, offset + MotionTiles.TILE_SIZE * 4));
+        }
+    }
+
+    @Test
+    public void deghostNormalisesExposureOfCurrentPair() {
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        kernel.setDeghostEnabled(true);
+        byte[] dark = new byte[WIDTH * HEIGHT];
+        byte[] bright = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < dark.length; i++) {
+            int level = 30 + mRandom.nextInt(80);
+            dark[i] = (byte) level;
+            bright[i] = (byte) (2 * level);
+        }
+        byte[] chroma = new byte[WIDTH * HEIGHT / 2];
+        Arrays.fill(chroma, (byte) 128);
+        YuvFrame darkFrame = new YuvFrame(WIDTH, HEIGHT);
+        darkFrame.setPlanes(ByteBuffer.wrap(dark), WIDTH, ByteBuffer.wrap(chroma),
+                ByteBuffer.wrap(chroma), WIDTH / 2, 1);
+        YuvFrame brightFrame = new YuvFrame(WIDTH, HEIGHT);
+        brightFrame.setPlanes(ByteBuffer.wrap(bright), WIDTH, ByteBuffer.wrap(chroma),
+                ByteBuffer.wrap(chroma), WIDTH / 2, 1);
+
+        // The first deghosted merge of a static scene already compares at the pair's ratio
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+        runKernel(kernel, darkFrame, prev, 0, HdrMergeKernel.MERGE_NONE, 0);
+        runKernel(kernel, brightFrame, prev, 0, HdrMergeKernel.MERGE_AVERAGE, 1);
+        assertEquals(2.f, kernel.getMotionTiles().getExposureRatio(), 1e-3f);
+        assertEquals(0, kernel.getMotionTiles().getMotionTileCount());
+    }
+
+    @Test
+    public void doubleBufferedHistoryMatchesInPlace() {
+        YuvFrame input = randomFrame(WIDTH + 8, 2);
+        byte[] prevSeed = new byte[WIDTH * HEIGHT * 4];
+        mRandom.nextBytes(prevSeed);
+
+        for (int mergeMode = HdrMergeKernel.MERGE_NONE; mergeMode <= HdrMergeKernel.MERGE_FUSION;
+                mergeMode++) {
+            byte[] inPlace = prevSeed.clone();
+            byte[] expected = runKernel(new HdrMergeKernel(WIDTH, HEIGHT, mPool), input, inPlace,
+                    WIDTH / 2, mergeMode, 1);
+
+            byte[] prev = prevSeed.clone();
+            byte[] next = new byte[WIDTH * HEIGHT * 4];
+            HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+            kernel.setCurrentFrame(input);
+            kernel.setHistoryFrames(prev, next);
+            kernel.setCutPointX(WIDTH / 2);
+            kernel.setMergeMode(mergeMode);
+            kernel.setFrameCounter(1);
+            byte[] out = new byte[WIDTH * HEIGHT * 4];
+            kernel.mergeHdrFrames(out);
+
+            assertArrayEquals("output, mode " + mergeMode, expected, out);
+            assertArrayEquals("history, mode " + mergeMode, inPlace, next);
+            assertArrayEquals("unchanged prev, mode " + mergeMode, prevSeed, prev);
+        }
+    }
+
+    @Test
+    public void yuv420HistoryMatchesRgba() {
+        HdrMergeKernel rgba = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        HdrMergeKernel yuv420 = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        yuv420.setHistoryFormat(HistoryLayout.FORMAT_YUV420);
+        rgba.setDeghostEnabled(true);
+        yuv420.setDeghostEnabled(true);
+        int yuvSize = yuv420.getHistoryLayout().getBufferSize();
+        assertEquals(WIDTH * HEIGHT * 3 / 2, yuvSize);
+
+        byte[][] rgbaHistory = { new byte[WIDTH * HEIGHT * 4], new byte[WIDTH * HEIGHT * 4] };
+        byte[][] yuvHistory = { new byte[yuvSize], new byte[yuvSize] };
+        int[] modes = { HdrMergeKernel.MERGE_NONE, HdrMergeKernel.MERGE_AVERAGE,
+                HdrMergeKernel.MERGE_NONE, HdrMergeKernel.MERGE_FUSION,
+                HdrMergeKernel.MERGE_AVERAGE, HdrMergeKernel.MERGE_FUSION };
+        for (int frame = 0; frame < modes.length; frame++) {
+            YuvFrame input = frame % 2 == 0 ? randomFrame(WIDTH, 2) : midToneFrame(null);
+            byte[] expected = new byte[WIDTH * HEIGHT * 4];
+            byte[] out = new byte[WIDTH * HEIGHT * 4];
+            for (HdrMergeKernel kernel : new HdrMergeKernel[] { rgba, yuv420 }) {
+                byte[][] history = kernel == rgba ? rgbaHistory : yuvHistory;
+                kernel.setCurrentFrame(input);
+                kernel.setHistoryFrames(history[frame & 1], history[(frame + 1) & 1]);
+                kernel.setCutPointX(WIDTH / 2);
+                kernel.setMergeMode(modes[frame]);
+                kernel.setFrameCounter(frame);
+                kernel.mergeHdrFrames(kernel == rgba ? expected : out);
+            }
+            assertArrayEquals("frame " + frame, expected, out);
+        }
+    }
+
+    @Test
+    public void bracketAveragesLatestFrameOfEachExposure() {
+        final int bracketSize = 3;
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        kernel.setBracketSize(bracketSize);
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+
+        YuvFrame[] frames = new YuvFrame[5];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = randomFrame(WIDTH + 4, 2);
+        }
+
+        // First frame fills every slot
+        byte[] first = runKernel(kernel, frames[0], prev, 0, HdrMergeKernel.MERGE_BRACKET, 0);
+        assertArrayEquals(runKernel(new HdrMergeKernel(WIDTH, HEIGHT, mPool), frames[0],
+                new byte[WIDTH * HEIGHT * 4], 0, HdrMergeKernel.MERGE_NONE, 0), first);
+
+        // Each frame replaces the slot of its exposure
+        int[] exposures = { 0, 1, 2, 0, 1 };
+        YuvFrame[] slots = { frames[0], frames[0], frames[0] };
+        for (int i = 1; i < frames.length; i++) {
+            slots[exposures[i]] = frames[i];
+            byte[] out = runKernel(kernel, frames[i], prev, 0, HdrMergeKernel.MERGE_BRACKET,
+                    exposures[i]);
+            assertArrayEquals("frame " + i, referenceBracket(slots), out);
+        }
+    }
+
+    @Test
+    public void denoiseAveragesStaticNoise() {
+        final int level = 100;
+        final int noise = 6;
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+        runKernel(kernel, noisyFrame(level, noise), prev, 0, HdrMergeKernel.MERGE_NONE, 0);
+
+        byte[] out = null;
+        for (int frame = 1; frame <= 30; frame++) {
+            out = runKernel(kernel, noisyFrame(level, noise), prev, 0,
+                    HdrMergeKernel.MERGE_DENOISE, frame);
+        }
+
+        // Uniform noise of +-6 has a deviation of about 3.7; the filter should cut it by half
+        double sumSquares = 0;
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            int luma = prev[i * 4] & 0xFF;
+            sumSquares += (luma - level) * (luma - level);
+        }
+        assertTrue("history deviation", Math.sqrt(sumSquares / (WIDTH * HEIGHT)) < 1.85);
+        byte[] gray = new byte[4];
+        HdrMergeKernel.writeRgb(null, gray, 0, prev[0] & 0xFF, prev[1] & 0xFF, prev[2] & 0xFF);
+        assertArrayEquals(gray, Arrays.copyOfRange(out, 0, 4));
+    }
+
+    @Test
+    public void denoiseFollowsLargeChanges() {
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+        runKernel(kernel, noisyFrame(40, 0), prev, 0, HdrMergeKernel.MERGE_NONE, 0);
+
+        YuvFrame input = noisyFrame(200, 0);
+        byte[] denoised = runKernel(kernel, input, prev, 0, HdrMergeKernel.MERGE_DENOISE, 1);
+        byte[] current = runKernel(new HdrMergeKernel(WIDTH, HEIGHT, mPool), input,
+                new byte[WIDTH * HEIGHT * 4], 0, HdrMergeKernel.MERGE_NONE, 0);
+        assertArrayEquals(current, denoised);
+        assertEquals(200, prev[0] & 0xFF);
+    }
+
+    @Test
+    public void linearBlendTablesFollowResponse() {
+        LinearBlend blend = new LinearBlend(gammaResponse());
+        for (int level = 0; level < 256; level++) {
+            int i = LinearBlend.index(level, level);
+            assertEquals(level, blend.mAverage[i] & 0xFF);
+            assertEquals(level, blend.mDenoise[i] & 0xFF);
+            // On the standard curve, exposure is judged as on plain code values
+            assertEquals(ExposureFusion.wellExposed(level / 255.f), blend.mWellExposed[level],
+                    1e-3f);
+        }
+        // Black and white average to half the light, not half the code
+        int half = (int) Math.round(255 * Math.pow(0.5, 1 / ToneMapper.GAMMA));
+        assertEquals(half, blend.mAverage[LinearBlend.index(0, 255)] & 0xFF, 1);
+        // Large changes are still followed at once
+        assertEquals(255, blend.mDenoise[LinearBlend.index(255, 0)] & 0xFF);
+    }
+
+    @Test
+    public void linearBlendReplacesAverageLuma() {
+        // Close enough for no tile to count as moving
+        YuvFrame input = noisyFrame(106, 8);
+        byte[] prevSeed = new byte[WIDTH * HEIGHT * 4];
+        runKernel(new HdrMergeKernel(WIDTH, HEIGHT, mPool), noisyFrame(100, 8), prevSeed, 0,
+                HdrMergeKernel.MERGE_NONE, 0);
+
+        LinearBlend blend = new LinearBlend(gammaResponse());
+        byte[] expected = new byte[WIDTH * HEIGHT * 4];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int i = (y * WIDTH + x) * 4;
+                int prevY = prevSeed[i] & 0xFF;
+                int prevU = prevSeed[i + 1] & 0xFF;
+                int prevV = prevSeed[i + 2] & 0xFF;
+                HdrMergeKernel.writeRgb(null, expected, i,
+                        blend.mAverage[LinearBlend.index(input.getY(x, y), prevY)] & 0xFF,
+                        input.getU(x, y) / 2 + prevU / 2, input.getV(x, y) / 2 + prevV / 2);
+            }
+        }
+
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        kernel.setLinearBlend(blend);
+        byte[] average = runKernel(kernel, input, prevSeed.clone(), 0,
+                HdrMergeKernel.MERGE_AVERAGE, 1);
+        assertArrayEquals(expected, average);
+
+        // Static tiles of the deghosted merge use the same blend
+        kernel.setDeghostEnabled(true);
+        byte[] deghosted = runKernel(kernel, input, prevSeed.clone(), 0,
+                HdrMergeKernel.MERGE_AVERAGE, 1);
+        assertEquals(0, kernel.getMotionTiles().getMotionTileCount());
+        assertArrayEquals(expected, deghosted);
+    }
+
+    @Test
+    public void onlyHistoryReadingMergesAlign() {
+        assertTrue(HdrMergeKernel.readsHistory(HdrMergeKernel.MERGE_AVERAGE, 0));
+        assertTrue(HdrMergeKernel.readsHistory(HdrMergeKernel.MERGE_FUSION, 0));
+        assertTrue(HdrMergeKernel.readsHistory(HdrMergeKernel.MERGE_DENOISE, 0));
+        assertTrue(HdrMergeKernel.readsHistory(HdrMergeKernel.MERGE_NONE, WIDTH / 2));
+        assertFalse(HdrMergeKernel.readsHistory(HdrMergeKernel.MERGE_NONE, 0));
+        assertFalse(HdrMergeKernel.readsHistory(HdrMergeKernel.MERGE_BRACKET, 0));
+    }
+
+    @Test
+    public void histogramCountsSampledLumaInEveryMode() {
+        HdrMergeKernel kernel = new HdrMergeKernel(WIDTH, HEIGHT, mPool);
+        kernel.setBracketSize(3);
+        kernel.setDeghostEnabled(true);
+        LumaHistogram histogram = new LumaHistogram();
+        kernel.setHistogram(histogram);
+        byte[] prev = new byte[WIDTH * HEIGHT * 4];
+
+        int[] modes = { HdrMergeKernel.MERGE_NONE, HdrMergeKernel.MERGE_AVERAGE,
+                HdrMergeKernel.MERGE_FUSION, HdrMergeKernel.MERGE_BRACKET };
+        for (int mode : modes) {
+            YuvFrame input = randomFrame(WIDTH, 2);
+            histogram.reset(ExposurePairing.EXPOSURE_ODD);
+            runKernel(kernel, input, prev, 0, mode, 1);
+
+            int[] expected = new int[LumaHistogram.BINS];
+            long lumaSum = 0;
+            int total = 0;
+            for (int y = 0; y < HEIGHT; y += LumaHistogram.SAMPLE_STEP) {
+                for (int x = 0; x < WIDTH; x += LumaHistogram.SAMPLE_STEP) {
+                    int luma = input.getY(x, y);
+                    expected[luma]++;
+                    lumaSum += luma;
+                    total++;
+                }
+            }
+            int clippedHighlights = 0;
+            for (int i = LumaHistogram.CLIP_HIGHLIGHT; i < LumaHistogram.BINS; i++) {
+                clippedHighlights += expected[i];
+            }
+
+            // Counts of earlier passes must not carry over
+            assertArrayEquals("mode " + mode, expected, histogram.mBins);
+            assertEquals(total, histogram.getTotal());
+            assertEquals((float) lumaSum / total, histogram.getMean(), 1e-3f);
+            assertEquals(clippedHighlights, histogram.getClippedHighlights());
+            assertEquals(ExposurePairing.EXPOSURE_ODD, histogram.getExposure());
+        }
+    }
+
+    /**
+     * Inverse response of a plain gamma curve, as a calibration would record it.
+     */
+    private static float[] gammaResponse() {
+        float[] response = new float[256];
+        for (int i = 0; i < 256; i++) {
+            response[i] = (float) Math.pow(i / 255.0, ToneMapper.GAMMA);
+        }
+        return response;
+    }
+
+    /**
+     * Flat luma with uniform noise of up to +-noise, and neutral chroma.
+     */
+    private YuvFrame noisyFrame(int level, int noise) {
+        byte[] y = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = (byte) (level + mRandom.nextInt(2 * noise + 1) - noise);
+        }
+        byte[] chroma = new byte[WIDTH * HEIGHT / 2];
+        Arrays.fill(chroma, (byte) 128);
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT);
+        frame.setPlanes(ByteBuffer.wrap(y), WIDTH, ByteBuffer.wrap(chroma),
+                ByteBuffer.wrap(chroma), WIDTH / 2, 1);
+        return frame;
+    }
+
+    /**
+     * Random unclipped luma with neutral chroma; fills and returns lumaOut if given.
+     */
+    private YuvFrame midToneFrame(byte[] lumaOut) {
+        byte[] y = lumaOut != null ? lumaOut : new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < y.length; i++) {
+            y[i] = (byte) (30 + mRandom.nextInt(190));
+        }
+        byte[] chroma = new byte[WIDTH * HEIGHT / 2];
+        Arrays.fill(chroma, (byte) 128);
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT);
+        frame.setPlanes(ByteBuffer.wrap(y), WIDTH, ByteBuffer.wrap(chroma),
+                ByteBuffer.wrap(chroma), WIDTH / 2, 1);
+        return frame;
+    }
+
+    private static byte[] referenceBracket(YuvFrame[] slots) {
+        int n = slots.length;
+        byte[] out = new byte[WIDTH * HEIGHT * 4];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sumY = 0, sumU = 0, sumV = 0;
+                for (YuvFrame frame : slots) {
+                    sumY += frame.getY(x, y);
+                    sumU += frame.getU(x, y);
+                    sumV += frame.getV(x, y);
+                }
+                HdrMergeKernel.writeRgb(null, out, (y * WIDTH + x) * 4,
+                        (sumY + n / 2) / n, (sumU + n / 2) / n, (sumV + n / 2) / n);
+            }
+        }
+        return out;
+    }
+
+    private void checkParity(int cutPointX, boolean doMerge, int frameCounter) {
+        // Row padding and interleaved chroma, like a typical camera buffer
+        YuvFrame input = randomFrame(WIDTH + 16, 2);
+        byte[] prevSeed = randomBytes(WIDTH * HEIGHT * 4);
+
+        byte[] refPrev = prevSeed.clone();
+        byte[] refOut = new byte[WIDTH * HEIGHT * 4];
+        referenceMerge(input, refPrev, refOut, cutPointX, doMerge, frameCounter);
+
+        byte[] prev = prevSeed.clone();
+        byte[] out = runKernel(new HdrMergeKernel(WIDTH, HEIGHT, mPool), input, prev, cutPointX,
+                doMerge ? HdrMergeKernel.MERGE_AVERAGE : HdrMergeKernel.MERGE_NONE, frameCounter);
+
+        assertArrayEquals("output", refOut, out);
+        assertArrayEquals("history", refPrev, prev);
+    }
+
+    private static byte[] runKernel(HdrMergeKernel kernel, YuvFrame input, byte[] prev,
+                                    int cutPointX, int mergeMode, int frameCounter) {
+        byte[] out = new byte[WIDTH * HEIGHT * 4];
+        kernel.setCurrentFrame(input);
+        kernel.setPrevFrame(prev);
+        kernel.setCutPointX(cutPointX);
+        kernel.setMergeMode(mergeMode);
+        kernel.setFrameCounter(frameCounter);
+        kernel.mergeHdrFrames(out);
+        return out;
+    }
+
+    /**
+     * Line-by-line transcription of mergeHdrFrames in hdr_merge.rs, using uchar semantics.
+     */
+    private static void referenceMerge(YuvFrame cur, byte[] prevFrame, byte[] out,
+                                       int gCutPointX, boolean gDoMerge, int gFrameCounter) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int i = (y * WIDTH + x) * 4;
+                int[] prevPixel = {prevFrame[i] & 0xFF, prevFrame[i + 1] & 0xFF,
+                        prevFrame[i + 2] & 0xFF, prevFrame[i + 3] & 0xFF};
+                int[] curPixel = {cur.getY(x, y), cur.getU(x, y), cur.getV(x, y), 255};
+
+                int[] mergedPixel = new int[4];
+                if (gDoMerge) {
+                    for (int c = 0; c < 4; c++) {
+                        mergedPixel[c] = (curPixel[c] / 2 + prevPixel[c] / 2) & 0xFF;
+                    }
+                } else if (gCutPointX > 0) {
+                    boolean left = x < gCutPointX;
+                    boolean odd = (gFrameCounter & 0x1) != 0;
+                    mergedPixel = (left ^ odd) ? curPixel : prevPixel;
+                } else {
+                    mergedPixel = curPixel;
+                }
+
+                int r = mergedPixel[0] + mergedPixel[2] * 1436 / 1024 - 179;
+                int g = mergedPixel[0] - mergedPixel[1] * 46549 / 131072 + 44 -
+                        mergedPixel[2] * 93604 / 131072 + 91;
+                int b = mergedPixel[0] + mergedPixel[1] * 1814 / 1024 - 227;
+
+                for (int c = 0; c < 4; c++) {
+                    prevFrame[i + c] = (byte) curPixel[c];
+                }
+                out[i] = (byte) Math.min(Math.max(r, 0), 255);
+                out[i + 1] = (byte) Math.min(Math.max(g, 0), 255);
+                out[i + 2] = (byte) Math.min(Math.max(b, 0), 255);
+                out[i + 3] = (byte) 255;
+            }
+        }
+    }
+
+    private YuvFrame randomFrame(int yRowStride, int uvPixelStride) {
+        int uvWidth = (WIDTH + 1) / 2;
+        int uvHeight = (HEIGHT + 1) / 2;
+        int uvRowStride = uvWidth * uvPixelStride;
+
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT);
+        frame.setPlanes(ByteBuffer.wrap(randomBytes(yRowStride * HEIGHT)), yRowStride,
+                ByteBuffer.wrap(randomBytes(uvRowStride * uvHeight)),
+                ByteBuffer.wrap(randomBytes(uvRowStride * uvHeight)),
+                uvRowStride, uvPixelStride);
+        return frame;
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        mRandom.nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+/**
+ * Checks the hysteresis of {@link QualityGovernor} level changes.
+ */
+public class QualityGovernorTest {
+
+    private static final long INTERVAL = 33 * 1000 * 1000L;
+
+    /**
+     * Feed frames at the given load until the level changes, returning how many it took, or -1
+     * if it didn't change within maxFrames.
+     */
+    private static int framesUntilChange(QualityGovernor governor, float load, int maxFrames) {
+        for (int i = 1; i <= maxFrames; i++) {
+            if (governor.onFrame((long) (load * INTERVAL), INTERVAL, 0)) return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void stepsDownWhenOverloadedAndUpWithHeadroom() {
+        QualityGovernor governor = new QualityGovernor();
+        assertEquals(QualityGovernor.STEP_DOWN_FRAMES, framesUntilChange(governor, 1.2f, 100));
+        assertEquals(QualityGovernor.LEVEL_REDUCED, governor.getLevel());
+
+        // Between the thresholds the level holds
+        assertEquals(-1, framesUntilChange(governor, 0.75f, 500));
+
+        // One frame for the smoothed load to drop below the threshold
+        assertEquals(QualityGovernor.STEP_UP_FRAMES + 1, framesUntilChange(governor, 0.3f, 500));
+        assertEquals(QualityGovernor.LEVEL_FULL, governor.getLevel());
+    }
+
+    @Test
+    public void droppedFramesCountAsOverload() {
+        QualityGovernor governor = new QualityGovernor();
+        boolean changed = false;
+        for (int i = 0; i < QualityGovernor.STEP_DOWN_FRAMES; i++) {
+            assertFalse(changed);
+            changed = governor.onFrame(INTERVAL / 4, INTERVAL, 1);
+        }
+        assertEquals(QualityGovernor.LEVEL_REDUCED, governor.getLevel());
+        assertEquals(QualityGovernor.STEP_DOWN_FRAMES, governor.getDroppedFrameCount());
+    }
+
+    @Test
+    public void failedStepUpBacksOff() {
+        QualityGovernor governor = new QualityGovernor();
+        framesUntilChange(governor, 1.2f, 100);
+        int firstStepUp = framesUntilChange(governor, 0.3f, 500);
+
+        // The full level can't keep up
+        framesUntilChange(governor, 1.2f, 100);
+        assertEquals(QualityGovernor.LEVEL_REDUCED, governor.getLevel());
+
+        int secondStepUp = framesUntilChange(governor, 0.3f, 1000);
+        assertEquals(firstStepUp + QualityGovernor.STEP_UP_FRAMES, secondStepUp);
+    }
+
+    @Test
+    public void staysAtCheapestLevel() {
+        QualityGovernor governor = new QualityGovernor();
+        for (int i = 0; i < 1000; i++) {
+            governor.onFrame(2 * INTERVAL, INTERVAL, 0);
+        }
+        assertEquals(QualityGovernor.LEVEL_MINIMAL, governor.getLevel());
+
+        governor.reset();
+        assertEquals(QualityGovernor.LEVEL_FULL, governor.getLevel());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link RadianceMerger} recovers the same radiance from both exposures, and skips
+ * clipped ones.
+ */
+public class RadianceMergerTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    private static final long SHORT_EXPOSURE = 10 * 1000 * 1000L;
+    private static final long LONG_EXPOSURE = 4 * SHORT_EXPOSURE;
+
+    // Fixed-point YUV->RGB can be a level off on gray
+    private static final float RGB_TOLERANCE = 0.02f;
+
+    @Test
+    public void unclippedExposuresAgreeOnRadiance() {
+        // Four times the light in gamma-encoded gray
+        int shortLuma = 64;
+        int longLuma = (int) Math.round(
+                255 * Math.pow(4 * Math.pow(shortLuma / 255.0, RadianceMerger.GAMMA),
+                        1 / RadianceMerger.GAMMA));
+        float expected = linearRadiance(shortLuma, SHORT_EXPOSURE);
+
+        float[] row = merge(shortLuma, longLuma);
+        for (float value : row) {
+            assertEquals(expected, value, expected * 0.05f);
+        }
+    }
+
+    @Test
+    public void clippedExposureIsIgnored() {
+        float expected = linearRadiance(200, SHORT_EXPOSURE);
+        float[] row = merge(200, 255);
+        for (float value : row) {
+            assertEquals(expected, value, expected * RGB_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void shortExposureIsUsedWhenBothAreClipped() {
+        float expected = linearRadiance(255, SHORT_EXPOSURE);
+        float[] row = merge(255, 255);
+        for (float value : row) {
+            assertEquals(expected, value, expected * RGB_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void inverseResponseReplacesGamma() {
+        // A linear camera: four times the light is four times the level
+        float[] table = new float[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = i / 255.f;
+        }
+        RadianceMerger merger = new RadianceMerger();
+        merger.setInverseResponse(table);
+        float[] row = new float[WIDTH * 3];
+        merger.mergeRow(grayFrame(40), SHORT_EXPOSURE, grayFrame(160), LONG_EXPOSURE, 0, row);
+        float expected = 40 / 255.f * 1e9f / SHORT_EXPOSURE;
+        for (float value : row) {
+            assertEquals(expected, value, expected * RGB_TOLERANCE);
+        }
+    }
+
+    private static float linearRadiance(int luma, long exposure) {
+        return (float) (Math.pow(luma / 255.0, RadianceMerger.GAMMA) * 1e9 / exposure);
+    }
+
+    /**
+     * Merge the first row of two gray frames.
+     */
+    private static float[] merge(int shortLuma, int longLuma) {
+        float[] row = new float[WIDTH * 3];
+        new RadianceMerger().mergeRow(grayFrame(shortLuma), SHORT_EXPOSURE,
+                grayFrame(longLuma), LONG_EXPOSURE, 0, row);
+        return row;
+    }
+
+    private static YuvFrame grayFrame(int luma) {
+        byte[] y = new byte[WIDTH * HEIGHT];
+        Arrays.fill(y, (byte) luma);
+        byte[] chroma = new byte[WIDTH / 2 * HEIGHT / 2];
+        Arrays.fill(chroma, (byte) 128);
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT);
+        frame.setPlanes(ByteBuffer.wrap(y), WIDTH, ByteBuffer.wrap(chroma),
+                ByteBuffer.wrap(chroma), WIDTH / 2, 1);
+        return frame;
+    }
+}
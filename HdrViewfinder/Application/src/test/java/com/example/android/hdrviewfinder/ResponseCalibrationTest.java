@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that {@link ResponseCalibration} recovers a known response from a synthetic bracket.
+ */
+public class ResponseCalibrationTest {
+
+    // Each sampled grid cell is this many pixels square
+    private static final int CELL = 4;
+    private static final int SIZE = ResponseCalibration.GRID * CELL;
+
+    // A response that isn't the default 2.2 gamma
+    private static final double CAMERA_GAMMA = 1.8;
+
+    @Test
+    public void recoversResponseCurve() {
+        long[] exposures = ResponseCalibration.bracket(10 * 1000 * 1000L);
+        ResponseCalibration calibration = new ResponseCalibration(exposures);
+
+        // Radiances over 8 stops, exposed so the middle frame spans the whole range
+        Random random = new Random(0x5250);
+        double[] radiance = new double[ResponseCalibration.GRID * ResponseCalibration.GRID];
+        for (int i = 0; i < radiance.length; i++) {
+            radiance[i] = Math.pow(2, -8 * random.nextDouble());
+        }
+        for (int frame = 0; frame < exposures.length; frame++) {
+            double gain = (double) exposures[frame] / exposures[exposures.length / 2];
+            calibration.addFrame(frame, frame(radiance, gain));
+        }
+        assertTrue(calibration.isComplete());
+
+        float[] table = calibration.solve();
+        assertEquals(1.f, table[255], 0.f);
+        for (int level = 1; level < 256; level++) {
+            assertTrue("table must not decrease at " + level, table[level] >= table[level - 1]);
+        }
+        // Only the ratios between levels are determined; compare relative to mid-gray
+        double scale = table[128] / Math.pow(128 / 255.0, CAMERA_GAMMA);
+        for (int level = 16; level <= 240; level += 8) {
+            double expected = scale * Math.pow(level / 255.0, CAMERA_GAMMA);
+            assertEquals("level " + level, expected, table[level], expected * 0.1);
+        }
+    }
+
+    @Test
+    public void bracketIsCenteredInStops() {
+        long[] exposures = ResponseCalibration.bracket(1000 * 1000L);
+        assertEquals(ResponseCalibration.BRACKET_FRAMES, exposures.length);
+        assertEquals(1000 * 1000L, exposures[exposures.length / 2]);
+        for (int i = 1; i < exposures.length; i++) {
+            assertEquals(Math.pow(2, ResponseCalibration.BRACKET_STEP_STOPS),
+                    (double) exposures[i] / exposures[i - 1], 1e-3);
+        }
+    }
+
+    @Test
+    public void savedTableLoadsBack() throws Exception {
+        File directory = File.createTempFile("response", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        File file = ResponseCalibration.file(directory, "0");
+        try {
+            assertNull(ResponseCalibration.load(file));
+            float[] table = new float[ResponseCalibration.LEVELS];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (float) Math.pow(i / 255.0, CAMERA_GAMMA);
+            }
+            ResponseCalibration.save(table, file);
+            assertArrayEquals(table, ResponseCalibration.load(file), 0.f);
+        } finally {
+            file.delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * A gray frame of the cells' radiances, scaled by gain and encoded with the camera response.
+     */
+    private static YuvFrame frame(double[] radiance, double gain) {
+        byte[] y = new byte[SIZE * SIZE];
+        for (int row = 0; row < SIZE; row++) {
+            for (int x = 0; x < SIZE; x++) {
+                double light = radiance[(row / CELL) * ResponseCalibration.GRID + x / CELL] * gain;
+                long level = Math.round(255 * Math.pow(Math.min(light, 1), 1 / CAMERA_GAMMA));
+                y[row * SIZE + x] = (byte) level;
+            }
+        }
+        byte[] chroma = new byte[SIZE * SIZE / 2];
+        Arrays.fill(chroma, (byte) 128);
+        YuvFrame frame = new YuvFrame(SIZE, SIZE);
+        frame.setPlanes(ByteBuffer.wrap(y), SIZE, ByteBuffer.wrap(chroma),
+                ByteBuffer.wrap(chroma), SIZE / 2, 1);
+        return frame;
+    }
+}
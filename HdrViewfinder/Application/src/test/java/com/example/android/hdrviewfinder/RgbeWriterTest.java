@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Checks that {@link RgbeWriter} output decodes back to the written radiance.
+ */
+public class RgbeWriterTest {
+
+    private static final String HEADER_END = "\n\n";
+
+    @Test
+    public void runLengthEncodedRowsRoundTrip() throws IOException {
+        // Wide enough to be run-length encoded, with runs and literals mixed
+        checkRoundTrip(300, 3);
+    }
+
+    @Test
+    public void narrowRowsRoundTripFlat() throws IOException {
+        checkRoundTrip(5, 2);
+    }
+
+    private static void checkRoundTrip(int width, int height) throws IOException {
+        float[][] rows = new float[height][width * 3];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Flat spans every 50 pixels, gradients and a wide range in between
+                boolean flat = (x / 50) % 2 == 0;
+                float value = flat ? 0.5f * (y + 1) : (float) Math.pow(2, (x % 40) - 20);
+                rows[y][x * 3] = value;
+                rows[y][x * 3 + 1] = value * 0.5f;
+                rows[y][x * 3 + 2] = x % 7 == 0 ? 0.f : value * 0.25f;
+            }
+        }
+        rows[0][0] = rows[0][1] = rows[0][2] = 0.f;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RgbeWriter writer = new RgbeWriter(out, width, height);
+        for (float[] row : rows) {
+            writer.writeRow(row);
+        }
+        byte[] file = out.toByteArray();
+
+        String text = new String(file, Charset.forName("US-ASCII"));
+        int dataStart = text.indexOf(HEADER_END) + HEADER_END.length();
+        String resolution = "-Y " + height + " +X " + width + "\n";
+        assertEquals(resolution, text.substring(dataStart, dataStart + resolution.length()));
+
+        byte[] decoded = new byte[width * 4];
+        int offset = dataStart + resolution.length();
+        for (int y = 0; y < height; y++) {
+            offset = decodeRow(file, offset, width, decoded);
+            for (int x = 0; x < width; x++) {
+                float max = Math.max(rows[y][x * 3], rows[y][x * 3 + 1]);
+                for (int c = 0; c < 3; c++) {
+                    assertEquals("pixel " + x + "," + y + " channel " + c,
+                            rows[y][x * 3 + c], fromRgbe(decoded, x * 4, c), max / 128);
+                }
+            }
+        }
+        assertEquals(file.length, offset);
+    }
+
+    /**
+     * Minimal Radiance scanline reader, returning the offset after the row.
+     */
+    private static int decodeRow(byte[] file, int offset, int width, byte[] pixels) {
+        if (width < 8 || file[offset] != 2 || file[offset + 1] != 2) {
+            System.arraycopy(file, offset, pixels, 0, width * 4);
+            return offset + width * 4;
+        }
+        assertEquals(width, ((file[offset + 2] & 0xFF) << 8) | (file[offset + 3] & 0xFF));
+        offset += 4;
+        for (int c = 0; c < 4; c++) {
+            int x = 0;
+            while (x < width) {
+                int count = file[offset++] & 0xFF;
+                if (count > 128) {
+                    byte value = file[offset++];
+                    for (int i = 0; i < count - 128; i++) {
+                        pixels[(x++) * 4 + c] = value;
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        pixels[(x++) * 4 + c] = file[offset++];
+                    }
+                }
+            }
+            assertEquals(width, x);
+        }
+        return offset;
+    }
+
+    private static float fromRgbe(byte[] pixels, int offset, int channel) {
+        int exponent = pixels[offset + 3] & 0xFF;
+        if (exponent == 0) return 0.f;
+        return Math.scalb((pixels[offset + channel] & 0xFF) + 0.5f, exponent - 128 - 8);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Checks the exposure response of {@link SimulatedScene} frames.
+ */
+public class SimulatedSceneTest {
+
+    private static final int WIDTH = 20;
+    private static final int HEIGHT = 6;
+
+    @Test
+    public void exposureScalesLinearValues() {
+        SimulatedScene scene = uniformScene(1.f);
+        byte[] frame = new byte[scene.getFrameSize()];
+
+        scene.render(SimulatedScene.KEY_EXPOSURE, SimulatedScene.KEY_SENSITIVITY, frame);
+        double key = linear(frame[0]);
+        assertEquals(SimulatedScene.MID_GRAY, key, 0.01);
+        // Neutral stays neutral
+        assertEquals(128, frame[WIDTH * HEIGHT] & 0xFF);
+        assertEquals(128, frame[scene.getFrameSize() - 1] & 0xFF);
+
+        // Doubling either exposure time or sensitivity doubles the linear value
+        scene.render(SimulatedScene.KEY_EXPOSURE * 2, SimulatedScene.KEY_SENSITIVITY, frame);
+        assertEquals(2, linear(frame[0]) / key, 0.1);
+        scene.render(SimulatedScene.KEY_EXPOSURE, SimulatedScene.KEY_SENSITIVITY * 2, frame);
+        assertEquals(2, linear(frame[0]) / key, 0.1);
+
+        scene.render(SimulatedScene.KEY_EXPOSURE * 100, SimulatedScene.KEY_SENSITIVITY, frame);
+        assertEquals(255, frame[0] & 0xFF);
+    }
+
+    @Test
+    public void loadedScenesAreNormalized() throws IOException {
+        File file = File.createTempFile("scene", ".hdr");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                RgbeWriter writer = new RgbeWriter(out, WIDTH, HEIGHT);
+                float[] row = new float[WIDTH * 3];
+                Arrays.fill(row, 1000.f);
+                for (int y = 0; y < HEIGHT; y++) {
+                    writer.writeRow(row);
+                }
+            } finally {
+                out.close();
+            }
+
+            SimulatedScene scene = SimulatedScene.load(file);
+            assertEquals(WIDTH, scene.getWidth());
+            assertEquals(HEIGHT, scene.getHeight());
+            byte[] frame = new byte[scene.getFrameSize()];
+            scene.render(SimulatedScene.KEY_EXPOSURE, SimulatedScene.KEY_SENSITIVITY, frame);
+            for (int i = 0; i < WIDTH * HEIGHT; i++) {
+                assertEquals(SimulatedScene.MID_GRAY, linear(frame[i]), 0.01);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static SimulatedScene uniformScene(float radiance) {
+        float[] rgb = new float[WIDTH * HEIGHT * 3];
+        Arrays.fill(rgb, radiance);
+        SimulatedScene.normalize(rgb, WIDTH * HEIGHT);
+        return new SimulatedScene(WIDTH, HEIGHT, rgb);
+    }
+
+    private static double linear(byte encoded) {
+        return Math.pow((encoded & 0xFF) / 255.0, ToneMapper.GAMMA);
+    }
+}
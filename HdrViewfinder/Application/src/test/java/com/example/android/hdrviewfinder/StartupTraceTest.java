@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the milestones recorded by {@link StartupTrace}.
+ */
+public class StartupTraceTest {
+
+    private static final long START = 5000 * 1000 * 1000L;
+    private static final long MS = 1000 * 1000L;
+
+    @Test
+    public void keepsFirstCompletionOfEachStep() {
+        StartupTrace trace = new StartupTrace(START);
+        trace.mark("renderscript", START + 120 * MS);
+        trace.mark("surface", START + 80 * MS);
+        trace.mark("surface", START + 300 * MS);
+
+        assertEquals(120 * MS, trace.getElapsed("renderscript"));
+        assertEquals(80 * MS, trace.getElapsed("surface"));
+        assertEquals(-1, trace.getElapsed("session"));
+        assertEquals("renderscript 120 ms, surface 80 ms", trace.toString());
+    }
+
+    @Test
+    public void endsAtFirstFrame() {
+        StartupTrace trace = new StartupTrace(START);
+        trace.mark("session", START + 400 * MS);
+        String summary = trace.finish(START + 450 * MS);
+
+        assertTrue(trace.isFinished());
+        assertEquals("session 400 ms, first frame 450 ms", summary);
+        assertNull(trace.finish(START + 900 * MS));
+        trace.mark("surface", START + 950 * MS);
+        assertEquals(-1, trace.getElapsed("surface"));
+        assertEquals(450 * MS, trace.getElapsed(StartupTrace.FIRST_FRAME));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.hdrviewfinder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks the tone curves baked by {@link ToneMapper} and the {@link LocalToneMap} pass.
+ */
+public class ToneMapperTest {
+
+    private static final int NEUTRAL = 128;
+
+    @Test
+    public void globalCurvesAreMonotonicOnGray() {
+        for (int operator : new int[] {ToneMapper.OPERATOR_REINHARD, ToneMapper.OPERATOR_ACES}) {
+            byte[] lut = ToneMapper.buildLut(operator, 1.f);
+            byte[] rgba = new byte[4];
+            int previous = -1;
+            for (int y = 0; y < 256; y++) {
+                ToneMapper.lookup(lut, rgba, 0, y, NEUTRAL, NEUTRAL);
+                int g = rgba[1] & 0xFF;
+                assertTrue("operator " + operator + " at " + y, g >= previous);
+                // Gray stays gray
+                assertEquals(g, rgba[0] & 0xFF);
+                assertEquals(g, rgba[2] & 0xFF);
+                previous = g;
+            }
+            ToneMapper.lookup(lut, rgba, 0, 0, NEUTRAL, NEUTRAL);
+            assertEquals(0, rgba[1] & 0xFF);
+        }
+    }
+
+    @Test
+    public void reinhardMapsWhiteToWhiteAndLiftsShadows() {
+        byte[] lut = ToneMapper.buildLut(ToneMapper.OPERATOR_REINHARD, 1.f);
+        byte[] rgba = new byte[4];
+        ToneMapper.lookup(lut, rgba, 0, 255, NEUTRAL, NEUTRAL);
+        assertTrue((rgba[1] & 0xFF) >= 253);
+        ToneMapper.lookup(lut, rgba, 0, 40, NEUTRAL, NEUTRAL);
+        assertTrue((rgba[1] & 0xFF) > 40);
+    }
+
+    @Test
+    public void localOperatorLiftsDarkRegionsMore() {
+        int width = 4 * LocalToneMap.CELL_SIZE;
+        int height = LocalToneMap.CELL_SIZE;
+        byte[] rgba = new byte[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Dark left half, bright right half, with the same detail step in both
+                int level = (x < width / 2 ? 40 : 200) + (x % 2 == 0 ? 0 : 10);
+                int offset = (y * width + x) * 4;
+                rgba[offset] = rgba[offset + 1] = rgba[offset + 2] = (byte) level;
+                rgba[offset + 3] = (byte) 255;
+            }
+        }
+
+        LocalToneMap toneMap = new LocalToneMap(width, height);
+        toneMap.setScale(LocalToneMap.buildScale(1.f));
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            toneMap.apply(rgba, pool);
+        } finally {
+            pool.shutdown();
+        }
+
+        int darkGain = (rgba[4] & 0xFF) - 40;
+        int brightGain = (rgba[(width - 2) * 4] & 0xFF) - 200;
+        assertTrue("dark " + darkGain + ", bright " + brightGain, darkGain > brightGain);
+        // Detail within the dark region survives
+        assertTrue((rgba[5 * 4] & 0xFF) > (rgba[4 * 4] & 0xFF));
+    }
+}